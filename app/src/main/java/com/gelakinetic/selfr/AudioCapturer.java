@@ -19,18 +19,55 @@
 
 package com.gelakinetic.selfr;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
+import java.util.concurrent.locks.LockSupport;
 
 public class AudioCapturer implements Runnable {
 
-    private static final int SAMPLES_PER_SECOND = 16000;
+    static final int SAMPLES_PER_SECOND = 16000;
+    /* How much audio the ring between capture and detection can hold */
+    private static final int RING_MILLISECONDS = 2000;
+    private static final int MIN_RING_FRAMES = 4;
+    /* Names of traced events */
+    private static final String TRACE_READ = "audio read";
+    private static final String TRACE_DETECT = "detect";
     private static AudioCapturer audioCapturer;
-    private AudioRecord audioRecorder = null;
-    private Thread thread = null;
-    private boolean isRecording;
+    private int frameSize = SAMPLES_PER_SECOND;
+    private AudioFrameRing frameRing = null;
+    private IAudioSource audioSource = new AudioRecordSource();
+    private volatile Thread thread = null;
+    private volatile Thread detectorThread = null;
+    private volatile boolean isRecording;
     private IAudioReceiver iAudioReceiver;
+    private final CaptureMetrics metrics = CaptureMetrics.getInstance();
+    private final TraceRecorder trace = TraceRecorder.getInstance();
+
+    /**
+     * Consumes frames from the ring and passes them to the iAudioReceiver. This runs on its own
+     * thread so that slow detection or camera work never stalls AudioRecord.read()
+     */
+    private final Runnable detectorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            /* Set the thread priority, just below the capture thread */
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+            AudioFrameRing ring = frameRing;
+            while (isRecording && Thread.currentThread() == detectorThread) {
+                short[] frame = ring.peek();
+                if (frame == null) {
+                    /* Nothing to do, wait for the capture thread to publish a frame */
+                    LockSupport.park(this);
+                    continue;
+                }
+                long timestamp = ring.peekTimestamp();
+                metrics.record(CaptureMetrics.Stage.DETECTOR_QUEUE, timestamp,
+                        CaptureMetrics.now());
+                trace.begin(TRACE_DETECT);
+                iAudioReceiver.capturedAudioReceived(frame, ring.peekLength(), timestamp);
+                trace.end(TRACE_DETECT);
+                ring.release();
+            }
+        }
+    };
 
     /**
      * Default constructor
@@ -54,6 +91,31 @@ public class AudioCapturer implements Runnable {
         return audioCapturer;
     }
 
+    /**
+     * Set how many samples are read and passed to the iAudioReceiver at a time. Smaller frames
+     * mean lower latency between a sound and the iAudioReceiver hearing it. This takes effect the
+     * next time start() is called
+     *
+     * @param frameSize The number of samples per frame, SAMPLES_PER_SECOND is one second
+     */
+    public void setFrameSize(int frameSize) {
+        if (frameSize > 0) {
+            this.frameSize = frameSize;
+        }
+    }
+
+    /**
+     * Set where audio is captured from. By default this is the microphone, through AudioRecord.
+     * This takes effect the next time start() is called
+     *
+     * @param source The IAudioSource to capture audio from
+     */
+    public void setAudioSource(IAudioSource source) {
+        if (source != null) {
+            audioSource = source;
+        }
+    }
+
     /**
      * Start recording audio and passing samples to the given iAudioReceiver
      *
@@ -61,25 +123,20 @@ public class AudioCapturer implements Runnable {
      */
     public boolean start() {
 
-        /* Figure out how big the buffer needs to be */
-        int bufferSize = AudioRecord.getMinBufferSize(SAMPLES_PER_SECOND,
-                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-
-        /* If it's all good */
-        if (bufferSize != AudioRecord.ERROR_BAD_VALUE && bufferSize != AudioRecord.ERROR) {
-
-            /* Make an AudioRecord object */
-            audioRecorder = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, SAMPLES_PER_SECOND,
-                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize * 10);
-            /* If it's all good */
-            if (audioRecorder.getState() == AudioRecord.STATE_INITIALIZED) {
-                /* Start running this on a background thread */
-                audioRecorder.startRecording();
-                isRecording = true;
-                thread = new Thread(this);
-                thread.start();
-                return true;
-            }
+        /* If the source opened */
+        if (audioSource.open(SAMPLES_PER_SECOND)) {
+            /* Make a fresh ring, so threads from a prior recording can't touch it */
+            int ringFrames = Math.max(MIN_RING_FRAMES,
+                    (SAMPLES_PER_SECOND * RING_MILLISECONDS / 1000) / frameSize);
+            frameRing = new AudioFrameRing(ringFrames, frameSize);
+
+            /* Start running this on a background thread, and detection on another */
+            isRecording = true;
+            detectorThread = new Thread(detectorRunnable);
+            detectorThread.start();
+            thread = new Thread(this);
+            thread.start();
+            return true;
         }
         return false;
     }
@@ -89,29 +146,53 @@ public class AudioCapturer implements Runnable {
      */
     public void stop() {
         isRecording = false;
-        if (audioRecorder != null) {
-            if (audioRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                /* Stop recording if it was recording */
-                audioRecorder.stop();
-            }
-            /* And release if it wasn't null */
-            audioRecorder.release();
+        if (detectorThread != null) {
+            /* Wake the detector thread so it notices it should stop */
+            LockSupport.unpark(detectorThread);
         }
+        /* Stop recording and release the source */
+        audioSource.close();
+    }
+
+    /**
+     * @return The number of frames dropped because detection couldn't keep up with capture
+     */
+    public long getOverruns() {
+        if (frameRing == null) {
+            return 0;
+        }
+        return frameRing.getOverruns();
     }
 
     /**
      * Called when this starts running on a background thread. This does the actual audio capture.
+     * Frames are published to the ring and consumed on the detector thread, so this never blocks
+     * on anything other than reading from the IAudioSource
      */
     @Override
     public void run() {
         /* Set the thread priority */
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-        while (isRecording &&
-                audioRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-            /* Read a buffer of samples and pass them to the iAudioReceiver */
-            short[] tempBuf = new short[SAMPLES_PER_SECOND];
-            audioRecorder.read(tempBuf, 0, tempBuf.length);
-            iAudioReceiver.capturedAudioReceived(tempBuf);
+        AudioFrameRing ring = frameRing;
+        IAudioSource source = audioSource;
+        Thread consumer = detectorThread;
+        while (isRecording && Thread.currentThread() == thread) {
+            /* Read a frame of samples straight into the ring */
+            short[] frame = ring.claim();
+            long readStart = CaptureMetrics.now();
+            trace.begin(TRACE_READ);
+            int samplesRead = source.read(frame, 0, frame.length);
+            trace.end(TRACE_READ);
+            if (samplesRead < 0) {
+                /* The source stopped or ran out of samples */
+                break;
+            }
+            long readEnd = CaptureMetrics.now();
+            metrics.record(CaptureMetrics.Stage.AUDIO_READ, readStart, readEnd);
+            if (samplesRead > 0 && ring.publish(frame, samplesRead, readEnd)) {
+                /* Wake the detector thread */
+                LockSupport.unpark(consumer);
+            }
         }
     }
 
@@ -126,12 +207,12 @@ public class AudioCapturer implements Runnable {
         super.finalize();
 
         /* Release any resources, just in case */
-        if (audioRecorder != null && audioRecorder.getState() == AudioRecord.STATE_INITIALIZED) {
-            audioRecorder.stop();
-            audioRecorder.release();
+        if (audioSource != null) {
+            audioSource.close();
         }
-        audioRecorder = null;
+        audioSource = null;
         iAudioReceiver = null;
         thread = null;
+        detectorThread = null;
     }
-}
\ No newline at end of file
+}
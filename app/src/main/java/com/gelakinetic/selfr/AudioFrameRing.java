@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free ring of audio frames with exactly one producer thread and one consumer thread. Every
+ * frame is allocated up front, so nothing is allocated while audio flows. If the consumer falls
+ * behind, the producer never waits, the frame is counted as an overrun and dropped instead
+ */
+class AudioFrameRing {
+
+    /* Preallocated frames, and the number of valid samples and capture time of each */
+    private final short[][] mFrames;
+    private final int[] mLengths;
+    private final long[] mTimestamps;
+
+    /* Where the producer discards frames when the ring is full */
+    private final short[] mOverrunFrame;
+
+    /* The sequence number of the next frame to write, only advanced by the producer */
+    private final AtomicLong mHead = new AtomicLong(0);
+    /* The sequence number of the next frame to read, only advanced by the consumer */
+    private final AtomicLong mTail = new AtomicLong(0);
+
+    /* Counters, written by the producer, readable from any thread */
+    private volatile long mOverruns = 0;
+    private volatile long mHighWaterMark = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param capacity  The number of frames the ring holds
+     * @param frameSize The number of samples in each frame
+     */
+    AudioFrameRing(int capacity, int frameSize) {
+        mFrames = new short[capacity][frameSize];
+        mLengths = new int[capacity];
+        mTimestamps = new long[capacity];
+        mOverrunFrame = new short[frameSize];
+    }
+
+    /**
+     * Producer only. Get the frame to fill next. If the ring is full, this returns a scratch frame
+     * instead and the next publish() is counted as an overrun rather than being delivered
+     *
+     * @return A frame to write samples into, never null
+     */
+    short[] claim() {
+        long head = mHead.get();
+        if (head - mTail.get() >= mFrames.length) {
+            return mOverrunFrame;
+        }
+        return mFrames[(int) (head % mFrames.length)];
+    }
+
+    /**
+     * Producer only. Make the frame returned by the last claim() visible to the consumer
+     *
+     * @param frame     The frame returned by the last claim()
+     * @param length    The number of valid samples in the frame
+     * @param timestamp When the last sample in the frame was captured, from System.nanoTime()
+     * @return true if the frame was published, false if it was dropped as an overrun
+     */
+    boolean publish(short[] frame, int length, long timestamp) {
+        if (frame == mOverrunFrame) {
+            mOverruns++;
+            return false;
+        }
+        long head = mHead.get();
+        int index = (int) (head % mFrames.length);
+        mLengths[index] = length;
+        mTimestamps[index] = timestamp;
+        /* An ordered store is enough for a single consumer, and is cheaper than a volatile one */
+        mHead.lazySet(head + 1);
+
+        long depth = head + 1 - mTail.get();
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Consumer only. Get the oldest frame which hasn't been released yet
+     *
+     * @return The oldest frame, or null if the ring is empty
+     */
+    short[] peek() {
+        long tail = mTail.get();
+        if (tail == mHead.get()) {
+            return null;
+        }
+        return mFrames[(int) (tail % mFrames.length)];
+    }
+
+    /**
+     * Consumer only
+     *
+     * @return The number of valid samples in the frame returned by peek()
+     */
+    int peekLength() {
+        return mLengths[(int) (mTail.get() % mFrames.length)];
+    }
+
+    /**
+     * Consumer only
+     *
+     * @return When the last sample of the frame returned by peek() was captured
+     */
+    long peekTimestamp() {
+        return mTimestamps[(int) (mTail.get() % mFrames.length)];
+    }
+
+    /**
+     * Consumer only. Hand the frame returned by peek() back to the producer
+     */
+    void release() {
+        mTail.lazySet(mTail.get() + 1);
+    }
+
+    /**
+     * @return The number of frames dropped because the consumer fell behind
+     */
+    long getOverruns() {
+        return mOverruns;
+    }
+
+    /**
+     * @return The most frames that have ever been waiting for the consumer at once
+     */
+    long getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * @return The number of frames this ring holds
+     */
+    int getCapacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * @return The number of samples in each frame
+     */
+    int getFrameSize() {
+        return mOverrunFrame.length;
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+class AudioRecordSource implements IAudioSource {
+
+    private AudioRecord mAudioRecorder = null;
+
+    /**
+     * Create an AudioRecord for the default microphone and start recording
+     *
+     * @param sampleRate The number of samples per second the caller expects
+     * @return true if recording started, false otherwise
+     */
+    @Override
+    public boolean open(int sampleRate) {
+        /* Figure out how big the buffer needs to be */
+        int bufferSize = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+
+        /* If it's all good */
+        if (bufferSize != AudioRecord.ERROR_BAD_VALUE && bufferSize != AudioRecord.ERROR) {
+
+            /* Make an AudioRecord object */
+            mAudioRecorder = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize * 10);
+            /* If it's all good */
+            if (mAudioRecorder.getState() == AudioRecord.STATE_INITIALIZED) {
+                mAudioRecorder.startRecording();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read samples from the microphone, blocking until they are available
+     *
+     * @param buffer The buffer to read samples into
+     * @param offset Where in buffer to start writing samples
+     * @param length The maximum number of samples to read
+     * @return The number of samples read, or a negative number if recording stopped
+     */
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        AudioRecord audioRecorder = mAudioRecorder;
+        if (audioRecorder == null ||
+                audioRecorder.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            return AudioRecord.ERROR_INVALID_OPERATION;
+        }
+        return audioRecorder.read(buffer, offset, length);
+    }
+
+    /**
+     * Stop recording audio and release the AudioRecord
+     */
+    @Override
+    public void close() {
+        if (mAudioRecorder != null) {
+            if (mAudioRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                /* Stop recording if it was recording */
+                mAudioRecorder.stop();
+            }
+            /* And release if it wasn't null */
+            mAudioRecorder.release();
+            mAudioRecorder = null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * Runs an IAudioSource through a ButtonDetector on the calling thread, as fast as the source can
+ * deliver samples. This uses no Android classes, so the trigger path can be replayed on a plain JVM
+ */
+class AudioReplay {
+
+    interface Listener {
+        /**
+         * Called when the detector would have taken a picture
+         *
+         * @param sampleIndex The index of the sample, from the start of the source, where the
+         *                    threshold was crossed
+         * @param level       The level that crossed the threshold
+         */
+        void onButtonPressed(long sampleIndex, float level);
+    }
+
+    private final IAudioSource mSource;
+    private final ButtonDetector mButtonDetector;
+    private final short[] mFrame;
+    private long mDebounceSamples = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param source         Where to read samples from
+     * @param buttonDetector The detector to run the samples through
+     * @param frameSize      How many samples to pass to the detector at a time, the same as
+     *                       AudioCapturer.setFrameSize()
+     */
+    AudioReplay(IAudioSource source, ButtonDetector buttonDetector, int frameSize) {
+        mSource = source;
+        mButtonDetector = buttonDetector;
+        mFrame = new short[frameSize];
+    }
+
+    /**
+     * Ignore button presses for a while after each one, like CameraActivity does after taking a
+     * picture
+     *
+     * @param debounceSamples How many samples to ignore presses for
+     */
+    void setDebounceSamples(long debounceSamples) {
+        mDebounceSamples = debounceSamples;
+    }
+
+    /**
+     * Open the source, replay all of it through the detector, and close it
+     *
+     * @param sampleRate The sample rate to open the source at
+     * @param listener   Notified of every detected button press, may be null
+     * @return The number of samples replayed, or -1 if the source couldn't be opened
+     */
+    long run(int sampleRate, Listener listener) {
+        if (!mSource.open(sampleRate)) {
+            return -1;
+        }
+        long position = 0;
+        long debounceUntil = -1;
+        try {
+            int samplesRead;
+            while ((samplesRead = mSource.read(mFrame, 0, mFrame.length)) > 0) {
+                if (mButtonDetector.process(mFrame, samplesRead)) {
+                    long triggerIndex = position + mButtonDetector.getTriggerOffset();
+                    if (triggerIndex >= debounceUntil) {
+                        debounceUntil = triggerIndex + mDebounceSamples;
+                        if (listener != null) {
+                            listener.onButtonPressed(triggerIndex, mButtonDetector.getLevel());
+                        }
+                    }
+                }
+                position += samplesRead;
+            }
+        } finally {
+            mSource.close();
+        }
+        return position;
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * Tells selfie stick buttons apart by the tone each one makes. A bank of GoertzelFilters, one per
+ * button, measures the power at each button's frequency in short blocks. The loudest block for each
+ * button is remembered for every buffer, so when ButtonDetector detects a press, the button with
+ * the most power is the one which was pressed
+ */
+class ButtonClassifier {
+
+    /* Length of each Goertzel block. 10ms at 16kHz is 160 samples, about 100Hz of bandwidth */
+    private static final int BLOCK_MILLIS = 10;
+    private final GoertzelFilter[] mFilters;
+    /* The most power in any block for each filter, since the last buffer started */
+    private final float[] mPeakPowers;
+    private final int mBlockSize;
+    private int mBlockPosition = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param frequencies The tone of each button, in Hz. Button 0 is frequencies[0], and so on
+     * @param sampleRate  The sample rate of the samples to be processed, in Hz
+     */
+    ButtonClassifier(float[] frequencies, int sampleRate) {
+        mFilters = new GoertzelFilter[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            mFilters[i] = new GoertzelFilter(frequencies[i], sampleRate);
+        }
+        mPeakPowers = new float[frequencies.length];
+        mBlockSize = Math.max(1, sampleRate * BLOCK_MILLIS / 1000);
+    }
+
+    /**
+     * Run a buffer of samples through every filter. Blocks are independent of the buffer size, so
+     * this works the same in BLOCK and STREAMING detection modes. classify() only considers the
+     * most recent buffer, and the block in progress when it started
+     *
+     * @param samples Samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     */
+    void process(short[] samples, int length) {
+        /* Start looking for peaks again, but keep the block in progress */
+        for (int i = 0; i < mFilters.length; i++) {
+            mPeakPowers[i] = 0;
+        }
+
+        int offset = 0;
+        while (offset < length) {
+            /* Process up to the end of the current block */
+            int count = Math.min(length - offset, mBlockSize - mBlockPosition);
+            for (GoertzelFilter filter : mFilters) {
+                filter.process(samples, offset, count);
+            }
+            offset += count;
+            mBlockPosition += count;
+
+            /* At the end of a block, check it for peaks and start over */
+            if (mBlockPosition == mBlockSize) {
+                for (int i = 0; i < mFilters.length; i++) {
+                    mPeakPowers[i] = Math.max(mPeakPowers[i], mFilters[i].getPower());
+                    mFilters[i].reset();
+                }
+                mBlockPosition = 0;
+            }
+        }
+    }
+
+    /**
+     * Figure out which button was pressed, based on the most recent samples
+     *
+     * @return The index of the button with the most power, or 0 if there are no buttons
+     */
+    int classify() {
+        int button = 0;
+        float maxPower = -1;
+        for (int i = 0; i < mFilters.length; i++) {
+            /* Include the partial block in progress, it's the most recent audio */
+            float power = Math.max(mPeakPowers[i], mFilters[i].getPower());
+            if (power > maxPower) {
+                maxPower = power;
+                button = i;
+            }
+        }
+        return button;
+    }
+
+    /**
+     * @return The number of buttons this classifier can tell apart
+     */
+    int getButtonCount() {
+        return mFilters.length;
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+class ButtonDetector {
+
+    /* Enums */
+    enum Mode {
+        /* Average the envelope over each whole buffer, and decide once per buffer */
+        BLOCK,
+        /* Keep a sliding window over the envelope, and decide on every sample */
+        STREAMING
+    }
+
+    private final Mode mMode;
+    private final boolean mFixedPoint;
+    private float mThreshold;
+    /* The threshold in Q8, so the fixed point comparison keeps its fraction */
+    private long mThresholdQ8;
+
+    /* Optionally moves the threshold with the noise floor, mThreshold is then the minimum */
+    private NoiseFloorEstimator mNoiseFloorEstimator = null;
+    private float mNoiseMargin = 1;
+    private float mMinThreshold;
+
+    /* Floating point detection state */
+    private final EnvelopeDetector mEnvelopeDetector;
+    private final SlidingWindowAverage mWindow;
+
+    /* Fixed point detection state */
+    private final FixedPointEnvelopeDetector mFixedEnvelopeDetector;
+    private final FixedPointSlidingWindow mFixedWindow;
+
+    /* Reused for every buffer of audio, so processing doesn't allocate */
+    private float[] mEnvelope = new float[0];
+    private int[] mFixedEnvelope = new int[0];
+
+    /* Arm when the level crosses this fraction of the threshold, 0 never arms */
+    private float mArmingFraction = 0;
+
+    /* Optionally tells buttons apart, runs alongside the envelope detector */
+    private ButtonClassifier mClassifier = null;
+
+    /* Results from the last call to process() */
+    private float mLevel = 0;
+    private int mTriggerOffset = -1;
+
+    /**
+     * Default constructor
+     *
+     * @param mode          BLOCK to decide once per buffer, or STREAMING to decide on every sample
+     * @param windowSamples The number of envelope samples to average over in STREAMING mode.
+     *                      Unused in BLOCK mode
+     */
+    ButtonDetector(Mode mode, int windowSamples) {
+        this(mode, windowSamples, false);
+    }
+
+    /**
+     * Constructor which can select integer only math, for devices with slow floating point
+     *
+     * @param mode          BLOCK to decide once per buffer, or STREAMING to decide on every sample
+     * @param windowSamples The number of envelope samples to average over in STREAMING mode.
+     *                      Unused in BLOCK mode
+     * @param fixedPoint    true to use FixedPointEnvelopeDetector, false to use EnvelopeDetector
+     */
+    ButtonDetector(Mode mode, int windowSamples, boolean fixedPoint) {
+        this(mode, windowSamples, fixedPoint, EnvelopeDetector.ALPHA);
+    }
+
+    /**
+     * Constructor with a different envelope filter coefficient, for tuning against recordings
+     *
+     * @param mode          BLOCK to decide once per buffer, or STREAMING to decide on every sample
+     * @param windowSamples The number of envelope samples to average over in STREAMING mode.
+     *                      Unused in BLOCK mode
+     * @param fixedPoint    true to use FixedPointEnvelopeDetector, false to use EnvelopeDetector
+     * @param alpha         The envelope filter coefficient, EnvelopeDetector.ALPHA by default
+     */
+    ButtonDetector(Mode mode, int windowSamples, boolean fixedPoint, float alpha) {
+        mMode = mode;
+        mFixedPoint = fixedPoint;
+        if (mFixedPoint) {
+            mEnvelopeDetector = null;
+            mWindow = null;
+            mFixedEnvelopeDetector = new FixedPointEnvelopeDetector(alpha);
+            mFixedWindow = (mMode == Mode.STREAMING) ?
+                    new FixedPointSlidingWindow(windowSamples) : null;
+        } else {
+            mEnvelopeDetector = new EnvelopeDetector(alpha);
+            mWindow = (mMode == Mode.STREAMING) ? new SlidingWindowAverage(windowSamples) : null;
+            mFixedEnvelopeDetector = null;
+            mFixedWindow = null;
+        }
+    }
+
+    /**
+     * @param threshold The level which must be exceeded for a button press to be detected
+     */
+    void setThreshold(float threshold) {
+        mMinThreshold = threshold;
+        applyThreshold(threshold);
+    }
+
+    /**
+     * Set the threshold used while processing
+     *
+     * @param threshold The level which must be exceeded for a button press to be detected
+     */
+    private void applyThreshold(float threshold) {
+        mThreshold = threshold;
+        mThresholdQ8 = Math.round((double) threshold * (1 << 8));
+    }
+
+    /**
+     * Move the threshold with the noise floor, rather than keeping it fixed. The threshold set
+     * with setThreshold() becomes the lowest the threshold can go
+     *
+     * @param estimator A NoiseFloorEstimator to track the noise floor, or null for a fixed
+     *                  threshold
+     * @param marginDb  How far above the noise floor the threshold is, in decibels
+     */
+    void setAdaptiveThreshold(NoiseFloorEstimator estimator, float marginDb) {
+        mNoiseFloorEstimator = estimator;
+        mNoiseMargin = (float) Math.pow(10, marginDb / 10);
+        if (mNoiseFloorEstimator == null) {
+            applyThreshold(mMinThreshold);
+        }
+    }
+
+    /**
+     * @return The level which must be exceeded for a button press to be detected. With an
+     * adaptive threshold this changes as the noise floor moves
+     */
+    float getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * Report a lower pre-threshold being crossed, so slow work like focusing can start while a
+     * press is still building up. Arming follows the threshold when it's adaptive
+     *
+     * @param fraction The fraction of the threshold to arm at, between 0 and 1. 0 never arms
+     */
+    void setArmingFraction(float fraction) {
+        mArmingFraction = Math.max(0, Math.min(1, fraction));
+    }
+
+    /**
+     * @param classifier A ButtonClassifier to tell buttons apart, or null if every button press
+     *                   should be treated the same
+     */
+    void setClassifier(ButtonClassifier classifier) {
+        mClassifier = classifier;
+    }
+
+    /**
+     * @return BLOCK or STREAMING
+     */
+    Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * @return true if this uses integer only math, false otherwise
+     */
+    boolean isFixedPoint() {
+        return mFixedPoint;
+    }
+
+    /**
+     * Run a buffer of samples through the envelope detector and check for a button press
+     *
+     * @param samples Samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     * @return true if the level crossed the threshold somewhere in this buffer, false otherwise
+     */
+    boolean process(short[] samples, int length) {
+        mTriggerOffset = -1;
+        if (mFixedPoint) {
+            processFixedPoint(samples, length);
+        } else {
+            processFloatingPoint(samples, length);
+        }
+
+        /* Follow the noise floor. The estimator tracks the median, so presses barely move it, and
+         * skipping updates during presses could leave it stuck below a sudden rise in noise
+         */
+        if (mNoiseFloorEstimator != null) {
+            mNoiseFloorEstimator.update(getNoiseLevel(), length);
+            applyThreshold(Math.max(mMinThreshold,
+                    mNoiseFloorEstimator.getEstimate() * mNoiseMargin));
+        }
+        if (mClassifier != null) {
+            mClassifier.process(samples, length);
+        }
+        return mTriggerOffset >= 0;
+    }
+
+    /**
+     * @return The level at the end of the last buffer. Unlike getLevel() in STREAMING mode, this
+     * isn't a peak, so it's a fair sample of the background noise
+     */
+    private float getNoiseLevel() {
+        if (mMode == Mode.BLOCK) {
+            return mLevel;
+        } else if (mFixedPoint) {
+            return mFixedWindow.getAverage();
+        } else {
+            return mWindow.getAverage();
+        }
+    }
+
+    /**
+     * @return Which button was pressed, if the last call to process() detected a press. This is
+     * always 0 without a ButtonClassifier
+     */
+    int getButton() {
+        if (mClassifier == null) {
+            return 0;
+        }
+        return mClassifier.classify();
+    }
+
+    /**
+     * Run a buffer of samples through EnvelopeDetector, setting mLevel and mTriggerOffset
+     *
+     * @param samples Samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     */
+    private void processFloatingPoint(short[] samples, int length) {
+        /* Only grow the envelope buffer if a larger audio buffer shows up */
+        if (mEnvelope.length < length + 1) {
+            mEnvelope = new float[length + 1];
+        }
+
+        /* Keep the envelope detector running, no matter what */
+        mEnvelopeDetector.findEnvelope(samples, length, mEnvelope);
+
+        if (mMode == Mode.BLOCK) {
+            /* Check to see if the average of the envelope crosses a threshold */
+            mLevel = EnvelopeDetector.average(mEnvelope, length + 1);
+            if (mLevel > mThreshold) {
+                mTriggerOffset = length - 1;
+            }
+        } else {
+            /* Check the windowed energy after every sample, and remember the first crossing */
+            float peak = 0;
+            for (int i = 1; i <= length; i++) {
+                float level = mWindow.add(mEnvelope[i]);
+                if (mTriggerOffset < 0) {
+                    if (level > mThreshold) {
+                        mTriggerOffset = i - 1;
+                        peak = level;
+                    } else if (level > peak) {
+                        peak = level;
+                    }
+                }
+            }
+            /* Report the level which caused the trigger, or the loudest level otherwise */
+            mLevel = peak;
+        }
+    }
+
+    /**
+     * Run a buffer of samples through FixedPointEnvelopeDetector, setting mLevel and
+     * mTriggerOffset. Everything done per sample is integer math
+     *
+     * @param samples Samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     */
+    private void processFixedPoint(short[] samples, int length) {
+        /* Only grow the envelope buffer if a larger audio buffer shows up */
+        if (mFixedEnvelope.length < length + 1) {
+            mFixedEnvelope = new int[length + 1];
+        }
+
+        /* Keep the envelope detector running, no matter what */
+        mFixedEnvelopeDetector.findEnvelope(samples, length, mFixedEnvelope);
+
+        if (mMode == Mode.BLOCK) {
+            /* Check to see if the average of the envelope crosses a threshold */
+            mLevel = (float) FixedPointEnvelopeDetector.sum(mFixedEnvelope, length + 1) /
+                    (length + 1);
+            if (mLevel > mThreshold) {
+                mTriggerOffset = length - 1;
+            }
+        } else {
+            /* Compare sums rather than averages, so there's no division per sample */
+            long peakSum = 0;
+            int peakCount = 1;
+            for (int i = 1; i <= length; i++) {
+                long sum = mFixedWindow.add(mFixedEnvelope[i]);
+                if (mTriggerOffset < 0) {
+                    int count = mFixedWindow.getCount();
+                    if ((sum << 8) > mThresholdQ8 * count) {
+                        mTriggerOffset = i - 1;
+                        peakSum = sum;
+                        peakCount = count;
+                    } else if (sum * peakCount > peakSum * count) {
+                        peakSum = sum;
+                        peakCount = count;
+                    }
+                }
+            }
+            /* Report the level which caused the trigger, or the loudest level otherwise */
+            mLevel = (float) peakSum / peakCount;
+        }
+    }
+
+    /**
+     * @return The level calculated by the last call to process()
+     */
+    float getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return true if the level crossed the pre-threshold in the last call to process(), false
+     * otherwise, or if arming is off. This is also true whenever the threshold was crossed
+     */
+    boolean isArmed() {
+        return mArmingFraction > 0 && mLevel > mThreshold * mArmingFraction;
+    }
+
+    /**
+     * @return The index of the sample in the last buffer where the threshold was crossed, or -1 if
+     * it wasn't crossed
+     */
+    int getTriggerOffset() {
+        return mTriggerOffset;
+    }
+}
@@ -0,0 +1,909 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A camera engine built on android.hardware.camera2. Unlike the legacy API, the preview keeps
+ * running while pictures are taken, so pictures in a burst don't wait for the preview to restart,
+ * and focus and exposure are driven per frame. Only use this on Lollipop and later, and prefer it
+ * when isSupported() says the cameras are more than a shim over the legacy API
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+@SuppressWarnings("deprecation")
+class Camera2Engine implements ICameraEngine {
+
+    /* How many JPEGs can be waiting to be read from the ImageReader */
+    private static final int MAX_PICTURES = 2;
+
+    /* How long pre-focus holds focus and exposure without a picture being taken */
+    private static final int PRE_FOCUS_TIMEOUT = 3000;
+
+    /* The flash modes a camera with a flash supports, in Camera.Parameters terms */
+    private static final List<String> FLASH_MODES = Collections.unmodifiableList(Arrays.asList(
+            Camera.Parameters.FLASH_MODE_OFF, Camera.Parameters.FLASH_MODE_ON));
+
+    private final CameraManager mCameraManager;
+    private final Listener mListener;
+    private final Handler mListenerHandler;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /* Only changed on the camera thread, but read from anywhere */
+    private volatile State mState = State.CLOSED;
+    private volatile PreviewSizeSelector mPreviewSizeSelector = null;
+
+    /* The open camera, and what it can do. Only used on the camera thread */
+    private String mOpeningCameraId = null;
+    private CameraDevice mCamera = null;
+    private CameraCaptureSession mSession = null;
+    private ImageReader mImageReader = null;
+    private Surface mPreviewSurface = null;
+    private CaptureRequest.Builder mPreviewRequest = null;
+    private boolean mAutoFocus = false;
+    private boolean mFlashSupported = false;
+
+    /* Picks preview sizes for each camera, and remembers its answers */
+    private final HashMap<String, PreviewSizeSelector> mPreviewSizeSelectors = new HashMap<>();
+    private volatile int mPreviewPixelBudget = Integer.MAX_VALUE;
+
+    /* Settings for the preview and pictures, set from any thread */
+    private volatile int mPreviewWidth = 0;
+    private volatile int mPreviewHeight = 0;
+    private volatile String mFlashMode = Camera.Parameters.FLASH_MODE_OFF;
+    private volatile int mRotation = 0;
+
+    /* When the last open() was requested, until the first preview frame arrives */
+    private long mOpenRequestTime = 0;
+
+    /* Pre-focus state. Arming is set from the detector thread, the rest on the camera thread */
+    private volatile boolean mPreFocusArmed = false;
+    private volatile long mArmTime = 0;
+    private boolean mPreFocusDone = false;
+    private boolean mReleaseExposureLock = false;
+
+    /* Where the picture being taken goes */
+    private PictureCallback mPictureCallback = null;
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        /**
+         * Called on the camera thread once the camera is open
+         *
+         * @param camera The camera which opened
+         */
+        @Override
+        public void onOpened(CameraDevice camera) {
+            /* Close cameras which were opened for a request which was since closed */
+            if (mState != State.CLOSED || !camera.getId().equals(mOpeningCameraId)) {
+                camera.close();
+                return;
+            }
+            mOpeningCameraId = null;
+            mCamera = camera;
+            mState = State.OPENED;
+            mListenerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCameraOpened(Camera2Engine.this);
+                }
+            });
+        }
+
+        /**
+         * Called on the camera thread if the camera was taken by someone else
+         *
+         * @param camera The camera which disconnected
+         */
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            releaseCamera(camera);
+        }
+
+        /**
+         * Called on the camera thread if the camera failed
+         *
+         * @param camera The camera which failed
+         * @param error  What went wrong, one of the CameraDevice.StateCallback.ERROR_* values
+         */
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            releaseCamera(camera);
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback mPreviewCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                /**
+                 * Called on the camera thread for every preview frame. Records when the first one
+                 * arrives, and watches for pre-focus finishing
+                 *
+                 * @param session The session the frame came from
+                 * @param request The request for the frame
+                 * @param result  The frame's metadata
+                 */
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session,
+                                               CaptureRequest request, TotalCaptureResult result) {
+                    if (mOpenRequestTime != 0) {
+                        mMetrics.record(CaptureMetrics.Stage.FIRST_PREVIEW_FRAME,
+                                mOpenRequestTime, CaptureMetrics.now());
+                        mOpenRequestTime = 0;
+                    }
+                    if (mPreFocusArmed && !mPreFocusDone) {
+                        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+                        if (afState != null &&
+                                (afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                                        afState == CaptureResult
+                                                .CONTROL_AF_STATE_NOT_FOCUSED_LOCKED)) {
+                            mPreFocusDone = true;
+                            mMetrics.record(CaptureMetrics.Stage.PRE_FOCUS, mArmTime,
+                                    CaptureMetrics.now());
+                        }
+                    }
+                }
+            };
+
+    private final CameraCaptureSession.CaptureCallback mStillCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                /**
+                 * Called on the camera thread when a picture couldn't be taken. No JPEG will
+                 * arrive, so go back to previewing and let exposure follow the scene again, or
+                 * every later picture would be refused
+                 *
+                 * @param session The session the picture was requested from
+                 * @param request The request for the picture
+                 * @param failure What went wrong
+                 */
+                @Override
+                public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                            CaptureFailure failure) {
+                    if (mState != State.CAPTURING) {
+                        return;
+                    }
+                    mPictureCallback = null;
+                    mState = State.PREVIEWING;
+                    if (mReleaseExposureLock) {
+                        mReleaseExposureLock = false;
+                        setExposureLock(false);
+                    }
+                }
+            };
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                /**
+                 * Called on the camera thread when a JPEG is ready. Copies it out of the
+                 * ImageReader, so the Image can be given back right away
+                 *
+                 * @param reader The ImageReader with the JPEG
+                 */
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image;
+                    try {
+                        image = reader.acquireNextImage();
+                    } catch (IllegalStateException e) {
+                        return;
+                    }
+                    if (image == null) {
+                        return;
+                    }
+                    ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                    byte[] jpeg = new byte[buffer.remaining()];
+                    buffer.get(jpeg);
+                    image.close();
+
+                    PictureCallback callback = mPictureCallback;
+                    mPictureCallback = null;
+                    if (callback != null) {
+                        callback.onPictureTaken(jpeg);
+                    }
+                }
+            };
+
+    private final Runnable mCancelPreFocusRunnable = new Runnable() {
+        /**
+         * Called on the camera thread when the detector armed, but no picture was taken in time.
+         * Lets focus and exposure follow the scene again
+         */
+        @Override
+        public void run() {
+            if (!mPreFocusArmed) {
+                return;
+            }
+            if (mState == State.PREVIEWING) {
+                if (mAutoFocus) {
+                    triggerAutoFocus(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+                }
+                setExposureLock(false);
+            }
+            mPreFocusArmed = false;
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param context         The Context to get the CameraManager from
+     * @param listener        Notified when a camera is opened
+     * @param listenerHandler The Handler to notify the listener on
+     */
+    Camera2Engine(Context context, Listener listener, Handler listenerHandler) {
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mListener = listener;
+        mListenerHandler = listenerHandler;
+    }
+
+    /**
+     * Check if every camera is more capable than a shim over the legacy API. Only call this on
+     * Lollipop and later
+     *
+     * @param context The Context to get the CameraManager from
+     * @return true if this engine should be used, false if LegacyCameraEngine should be
+     */
+    static boolean isSupported(Context context) {
+        CameraManager cameraManager =
+                (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            String[] cameraIds = cameraManager.getCameraIdList();
+            if (cameraIds.length == 0) {
+                return false;
+            }
+            for (String cameraId : cameraIds) {
+                Integer level = cameraManager.getCameraCharacteristics(cameraId)
+                        .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                if (level == null ||
+                        level == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (CameraAccessException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Start the camera thread
+     */
+    @Override
+    public void start() {
+        mThread = new HandlerThread("CameraThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Release the camera and stop the camera thread, after every command already posted. Commands
+     * posted afterwards are ignored. This doesn't wait for the camera to be released
+     */
+    @Override
+    public void stop() {
+        close();
+        final HandlerThread thread = mThread;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    /**
+     * @return The engine's state
+     */
+    @Override
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Run something on the camera thread, after every command already posted
+     *
+     * @param runnable What to run
+     */
+    @Override
+    public void post(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Run something on the camera thread after a delay
+     *
+     * @param runnable    What to run
+     * @param delayMillis How long to wait, in milliseconds
+     */
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        mHandler.postDelayed(runnable, delayMillis);
+    }
+
+    /**
+     * Remove pending posts of a Runnable from the camera thread
+     *
+     * @param runnable What not to run
+     */
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+
+    /**
+     * Open a camera, closing the current one first if one is open. The listener is notified once
+     * the camera is open
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     */
+    @Override
+    public void open(final int cameraType) {
+        final long requestTime = CaptureMetrics.now();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                try {
+                    String cameraId = findCamera(cameraType);
+                    if (cameraId == null || !prepareCamera(cameraId)) {
+                        return;
+                    }
+                    mOpenRequestTime = requestTime;
+                    mOpeningCameraId = cameraId;
+                    mCameraManager.openCamera(cameraId, mStateCallback, mHandler);
+                } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+                    closeCamera();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the preview and release the camera, if one is open
+     */
+    @Override
+    public void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+    }
+
+    /**
+     * Start the preview on a surface, once it's created. The surface is sized to the preview size
+     * first, since a camera2 session only accepts supported sizes
+     *
+     * @param holder The surface to draw the preview on
+     */
+    @Override
+    public void startPreview(final SurfaceHolder holder) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.OPENED) {
+                    startSession(holder);
+                }
+            }
+        });
+    }
+
+    /**
+     * Restart the preview on a surface, after its size changed
+     *
+     * @param holder The surface to draw the preview on
+     */
+    @Override
+    public void restartPreview(final SurfaceHolder holder) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.OPENED || mState == State.PREVIEWING) {
+                    startSession(holder);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The preview size selector for the open camera, or null if none is open
+     */
+    @Override
+    public PreviewSizeSelector getPreviewSizeSelector() {
+        return mPreviewSizeSelector;
+    }
+
+    /**
+     * Set the size of preview frames. It's applied when the preview starts or restarts
+     *
+     * @param width  The width of preview frames, in pixels
+     * @param height The height of preview frames, in pixels
+     */
+    @Override
+    public void setPreviewSize(int width, int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
+    /**
+     * Limit how many pixels preview frames have, to save power. This takes effect the next time a
+     * camera is opened
+     *
+     * @param pixelBudget The most pixels a preview frame should have, Integer.MAX_VALUE for no
+     *                    limit
+     */
+    @Override
+    public void setPreviewPixelBudget(int pixelBudget) {
+        mPreviewPixelBudget = pixelBudget;
+    }
+
+    /**
+     * @return FLASH_MODE_OFF and FLASH_MODE_ON if the open camera has a flash, null otherwise
+     */
+    @Override
+    public List<String> getSupportedFlashModes() {
+        return (mState != State.CLOSED && mFlashSupported) ? FLASH_MODES : null;
+    }
+
+    /**
+     * Set the flash mode, it's used for the next picture
+     *
+     * @param flashMode One of the Camera.Parameters.FLASH_MODE_* values
+     */
+    @Override
+    public void setFlashMode(String flashMode) {
+        mFlashMode = flashMode;
+    }
+
+    /**
+     * Set the rotation, it's used for the next picture
+     *
+     * @param rotation The clockwise rotation to apply to pictures, in degrees
+     */
+    @Override
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    /**
+     * Take a picture. The preview keeps running. Must be called on the camera thread
+     *
+     * @param callback Called on the camera thread with the JPEG
+     * @return true if the picture is being taken, false if the camera wasn't previewing
+     */
+    @Override
+    public boolean takePicture(PictureCallback callback) {
+        if (mState != State.PREVIEWING) {
+            return false;
+        }
+
+        /* Count whether pre-focus had settled. Focus and exposure stay locked for the picture */
+        boolean exposureLocked = mPreFocusArmed || mReleaseExposureLock;
+        if (mPreFocusArmed) {
+            mHandler.removeCallbacks(mCancelPreFocusRunnable);
+            mMetrics.increment(mPreFocusDone ? CaptureMetrics.Counter.PRE_FOCUS_IN_TIME :
+                    CaptureMetrics.Counter.PRE_FOCUS_LATE);
+            mPreFocusArmed = false;
+            mReleaseExposureLock = true;
+        }
+
+        try {
+            CaptureRequest.Builder request =
+                    mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            request.addTarget(mImageReader.getSurface());
+            request.set(CaptureRequest.JPEG_ORIENTATION, mRotation);
+            if (mAutoFocus) {
+                request.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_AUTO);
+            }
+            request.set(CaptureRequest.CONTROL_AE_LOCK, exposureLocked);
+            request.set(CaptureRequest.CONTROL_AE_MODE, (mFlashSupported &&
+                    Camera.Parameters.FLASH_MODE_ON.equals(mFlashMode)) ?
+                    CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH :
+                    CaptureRequest.CONTROL_AE_MODE_ON);
+            mPictureCallback = callback;
+            mSession.capture(request.build(), mStillCaptureCallback, mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            mPictureCallback = null;
+            return false;
+        }
+        mState = State.CAPTURING;
+        return true;
+    }
+
+    /**
+     * Get ready for another picture. The preview never stopped, so this only releases exposure if
+     * pre-focus locked it. Must be called on the camera thread, from the PictureCallback
+     *
+     * @return true if another picture can be taken, false otherwise
+     */
+    @Override
+    public boolean startPreviewAfterPicture() {
+        if (mState != State.CAPTURING) {
+            return false;
+        }
+        mState = State.PREVIEWING;
+
+        /* Let exposure follow the scene again, after the picture pre-focus was for */
+        if (mReleaseExposureLock) {
+            mReleaseExposureLock = false;
+            setExposureLock(false);
+        }
+        return true;
+    }
+
+    /**
+     * Start focusing and lock exposure because a button press may be coming, so the camera is
+     * settled when takePicture() is called. This can be called from any thread, and does nothing
+     * if pre-focus is already running. If no picture is taken within PRE_FOCUS_TIMEOUT, focus and
+     * exposure are released
+     *
+     * @param armTime When the detector armed, from CaptureMetrics.now()
+     */
+    @Override
+    public void preFocus(final long armTime) {
+        if (mPreFocusArmed) {
+            return;
+        }
+        mPreFocusArmed = true;
+        mArmTime = armTime;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.PREVIEWING) {
+                    mPreFocusArmed = false;
+                    return;
+                }
+                /* Fixed focus cameras only need exposure to settle */
+                mPreFocusDone = !mAutoFocus || !triggerAutoFocus(
+                        CaptureRequest.CONTROL_AF_TRIGGER_START);
+                setExposureLock(true);
+                mHandler.postDelayed(mCancelPreFocusRunnable, PRE_FOCUS_TIMEOUT);
+            }
+        });
+    }
+
+    /**
+     * @return true if pre-focus was started and hasn't been used or released yet, false otherwise
+     */
+    @Override
+    public boolean isPreFocusArmed() {
+        return mPreFocusArmed;
+    }
+
+    /**
+     * Preview frames aren't kept by this engine, zero shutter lag falls back to takePicture(),
+     * which doesn't stop the preview
+     *
+     * @param buffers Ignored
+     */
+    @Override
+    public void setZslBuffers(int buffers) {
+        /* Unused */
+    }
+
+    /**
+     * @return null, preview frames aren't kept by this engine
+     */
+    @Override
+    public PreviewFrameRing getPreviewFrameRing() {
+        return null;
+    }
+
+    /**
+     * Give a locked preview frame back, on the camera thread
+     *
+     * @param frameRing The ring the frame was locked in
+     * @param index     The locked frame's index
+     */
+    @Override
+    public void releasePreviewFrame(final PreviewFrameRing frameRing, final int index) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                frameRing.release(index);
+            }
+        });
+    }
+
+    /**
+     * Find a camera facing the given way. Must be called on the camera thread
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     * @return The ID of the first camera facing that way, or null if there isn't one
+     * @throws CameraAccessException If the cameras couldn't be listed
+     */
+    private String findCamera(int cameraType) throws CameraAccessException {
+        int lensFacing = (cameraType == Camera.CameraInfo.CAMERA_FACING_FRONT) ?
+                CameraCharacteristics.LENS_FACING_FRONT : CameraCharacteristics.LENS_FACING_BACK;
+        for (String cameraId : mCameraManager.getCameraIdList()) {
+            Integer facing = mCameraManager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == lensFacing) {
+                return cameraId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read what a camera can do, and set up the JPEG reader at its largest picture size. Must be
+     * called on the camera thread
+     *
+     * @param cameraId The camera to read
+     * @return true if the camera can preview and take pictures, false otherwise
+     * @throws CameraAccessException If the camera's characteristics couldn't be read
+     */
+    private boolean prepareCamera(String cameraId) throws CameraAccessException {
+        CameraCharacteristics characteristics =
+                mCameraManager.getCameraCharacteristics(cameraId);
+        StreamConfigurationMap map =
+                characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return false;
+        }
+        Size[] previewSizes = map.getOutputSizes(SurfaceHolder.class);
+        Size[] pictureSizes = map.getOutputSizes(ImageFormat.JPEG);
+        if (previewSizes == null || previewSizes.length == 0 || pictureSizes == null ||
+                pictureSizes.length == 0) {
+            return false;
+        }
+
+        /* Take pictures at native resolution */
+        Size pictureSize = pictureSizes[0];
+        for (Size size : pictureSizes) {
+            if ((long) size.getWidth() * size.getHeight() >
+                    (long) pictureSize.getWidth() * pictureSize.getHeight()) {
+                pictureSize = size;
+            }
+        }
+        mImageReader = ImageReader.newInstance(pictureSize.getWidth(), pictureSize.getHeight(),
+                ImageFormat.JPEG, MAX_PICTURES);
+        mImageReader.setOnImageAvailableListener(mImageListener, mHandler);
+
+        /* Auto-focus if we can */
+        mAutoFocus = false;
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int afMode : afModes) {
+                if (afMode == CameraCharacteristics.CONTROL_AF_MODE_AUTO) {
+                    mAutoFocus = true;
+                }
+            }
+        }
+        Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        mFlashSupported = flash != null && flash;
+
+        /* Reuse the camera's preview size selector, and its remembered answers, if there is one */
+        PreviewSizeSelector selector = mPreviewSizeSelectors.get(cameraId);
+        if (selector == null || selector.getPixelBudget() != mPreviewPixelBudget) {
+            int[] sizes = new int[previewSizes.length * 2];
+            for (int i = 0; i < previewSizes.length; i++) {
+                sizes[2 * i] = previewSizes[i].getWidth();
+                sizes[2 * i + 1] = previewSizes[i].getHeight();
+            }
+            selector = new PreviewSizeSelector(sizes, mPreviewPixelBudget);
+            mPreviewSizeSelectors.put(cameraId, selector);
+        }
+        mPreviewSizeSelector = selector;
+        return true;
+    }
+
+    /**
+     * Start a capture session with the preview surface and the JPEG reader, which starts the
+     * preview once it's configured. If the surface isn't the preview size yet, it's resized
+     * instead, and the surface change restarts the preview. Must be called on the camera thread
+     *
+     * @param holder The surface to draw the preview on
+     */
+    private void startSession(final SurfaceHolder holder) {
+        final int width = mPreviewWidth;
+        final int height = mPreviewHeight;
+        Rect frame = holder.getSurfaceFrame();
+        if (width > 0 && height > 0 && (frame.width() != width || frame.height() != height)) {
+            /* The surface can only be resized on the UI thread */
+            mListenerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    holder.setFixedSize(width, height);
+                }
+            });
+            return;
+        }
+
+        closeSession();
+        final Surface previewSurface = holder.getSurface();
+        mPreviewSurface = previewSurface;
+        try {
+            mCamera.createCaptureSession(Arrays.asList(previewSurface, mImageReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        /**
+                         * Called on the camera thread when the session is ready
+                         *
+                         * @param session The session which was configured
+                         */
+                        @Override
+                        public void onConfigured(CameraCaptureSession session) {
+                            /* Close sessions which were replaced before they were configured */
+                            if (session.getDevice() != mCamera ||
+                                    previewSurface != mPreviewSurface) {
+                                session.close();
+                                return;
+                            }
+                            startRepeatingPreview(session);
+                        }
+
+                        /**
+                         * Called on the camera thread if the session can't be configured
+                         *
+                         * @param session The session which failed
+                         */
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session) {
+                            /* The preview doesn't start, the camera stays OPENED */
+                        }
+                    }, mHandler);
+        } catch (CameraAccessException | IllegalArgumentException | IllegalStateException e) {
+            mPreviewSurface = null;
+        }
+    }
+
+    /**
+     * Start the preview in a session which was just configured. Must be called on the camera
+     * thread
+     *
+     * @param session The configured session
+     */
+    private void startRepeatingPreview(CameraCaptureSession session) {
+        mSession = session;
+        try {
+            mPreviewRequest = mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            mPreviewRequest.addTarget(mPreviewSurface);
+            if (mAutoFocus) {
+                mPreviewRequest.set(CaptureRequest.CONTROL_AF_MODE,
+                        CaptureRequest.CONTROL_AF_MODE_AUTO);
+            }
+            mSession.setRepeatingRequest(mPreviewRequest.build(), mPreviewCaptureCallback,
+                    mHandler);
+            mState = State.PREVIEWING;
+        } catch (CameraAccessException | IllegalStateException e) {
+            closeSession();
+        }
+    }
+
+    /**
+     * Send a single auto-focus trigger along with the preview. Must be called on the camera thread
+     *
+     * @param trigger CONTROL_AF_TRIGGER_START or CONTROL_AF_TRIGGER_CANCEL
+     * @return true if the trigger was sent, false otherwise
+     */
+    private boolean triggerAutoFocus(int trigger) {
+        try {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER, trigger);
+            mSession.capture(mPreviewRequest.build(), mPreviewCaptureCallback, mHandler);
+            return true;
+        } catch (CameraAccessException | IllegalStateException e) {
+            return false;
+        } finally {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AF_TRIGGER,
+                    CaptureRequest.CONTROL_AF_TRIGGER_IDLE);
+        }
+    }
+
+    /**
+     * Lock or unlock auto-exposure for the preview. Must be called on the camera thread
+     *
+     * @param lock true to hold the current exposure, false to let it adjust
+     */
+    private void setExposureLock(boolean lock) {
+        if (mSession == null) {
+            return;
+        }
+        try {
+            mPreviewRequest.set(CaptureRequest.CONTROL_AE_LOCK, lock);
+            mSession.setRepeatingRequest(mPreviewRequest.build(), mPreviewCaptureCallback,
+                    mHandler);
+        } catch (CameraAccessException | IllegalStateException e) {
+            /* Eat it */
+        }
+    }
+
+    /**
+     * Close the capture session, if there is one. Must be called on the camera thread
+     */
+    private void closeSession() {
+        if (mSession != null) {
+            mSession.close();
+            mSession = null;
+        }
+        mPreviewRequest = null;
+        if (mState == State.PREVIEWING || mState == State.CAPTURING) {
+            mState = State.OPENED;
+        }
+    }
+
+    /**
+     * Release a camera which disconnected or failed, if it's the open one. Must be called on the
+     * camera thread
+     *
+     * @param camera The camera which disconnected or failed
+     */
+    private void releaseCamera(CameraDevice camera) {
+        if (camera == mCamera || mCamera == null) {
+            closeCamera();
+        }
+        camera.close();
+    }
+
+    /**
+     * Stop the preview and release the camera, if one is open. Must be called on the camera thread
+     */
+    private void closeCamera() {
+        closeSession();
+        mState = State.CLOSED;
+        if (mCamera != null) {
+            mCamera.close();
+            mCamera = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        mOpeningCameraId = null;
+        mPreviewSurface = null;
+        mPreviewSizeSelector = null;
+        mPictureCallback = null;
+        mOpenRequestTime = 0;
+        mPreFocusArmed = false;
+        mReleaseExposureLock = false;
+        mHandler.removeCallbacks(mCancelPreFocusRunnable);
+    }
+}
@@ -21,6 +21,7 @@ package com.gelakinetic.selfr;
 
 import android.Manifest;
 import android.app.Dialog;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
@@ -53,16 +54,15 @@ import android.view.View;
 import android.view.WindowManager;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
+import android.widget.AdapterView;
 import android.widget.FrameLayout;
+import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.zip.ZipEntry;
@@ -83,6 +83,53 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     /* Constants */
     private static final int UI_ANIMATION_DELAY = 200;
     private static final int PERMISSION_REQUEST_CODE = 162;
+    private static final int BUTTON_DEBOUNCE_DELAY = 3000;
+
+    /* The adaptive threshold tracks the median level, and follows changes in about two seconds */
+    private static final float NOISE_FLOOR_QUANTILE = 0.5f;
+    private static final int NOISE_FLOOR_TIME_CONSTANT = 2 * AudioCapturer.SAMPLES_PER_SECOND;
+
+    /* Which button does what, when a ButtonClassifier can tell them apart */
+    private static final int BUTTON_SHUTTER = 0;
+    private static final int BUTTON_SWITCH_CAMERA = 1;
+    private static final int BUTTON_SWITCH_FLASH = 2;
+
+    /* How many full resolution JPEGs can wait to be written */
+    private static final int PICTURE_QUEUE_CAPACITY = 3;
+
+    /* Saved pictures are registered with the media scanner ten at a time, or after two seconds */
+    private static final int MEDIA_SCAN_BATCH_SIZE = 10;
+    private static final int MEDIA_SCAN_WINDOW = 2000;
+
+    /* How many preview buffers to allocate for zero shutter lag. Two are always with the camera,
+     * so at 30 fps this keeps the last 200 ms of frames
+     */
+    private static final int ZSL_BUFFERS = 8;
+
+    /* The most pixels a preview frame has in low power mode, VGA */
+    private static final int LOW_POWER_PREVIEW_PIXELS = 640 * 480;
+
+    /* Names of traced events */
+    private static final String TRACE_FRONT_FLASH = "front flash";
+    private static final String TRACE_TAKE_PICTURE = "take picture";
+    private static final String TRACE_ZSL_PICTURE = "zsl picture";
+    private static final String TRACE_BURST_PICTURE = "burst picture";
+    private static final String TRACE_CLEAR_DEBOUNCE = "clear debounce";
+    private static final String TRACE_PICTURE_TAKEN = "picture taken";
+
+    /* Where camera capabilities are remembered, in the app's private files */
+    private static final String CAPABILITY_INDEX_FILE = "camera_capabilities.bin";
+
+    /* Where the journals of pictures saved in each session are kept, in the app's files */
+    private static final String JOURNAL_DIRECTORY = "journals";
+
+    /* The review strip's thumbnails. They're cached in an eighth of the heap, and in the app's
+     * cache directory
+     */
+    private static final int REVIEW_THUMBNAIL_DP = 96;
+    private static final int THUMBNAIL_MEMORY_DIVISOR = 8;
+    private static final String THUMBNAIL_DIRECTORY = "thumbnails";
+    private static final long THUMBNAIL_DISK_BYTES = 8 * 1024 * 1024;
 
     /* UI Objects */
     private FrameLayout mContentView;
@@ -91,6 +138,8 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     private View mControlsView;
     private CameraPreview mCameraPreview;
     private TextView mDebugTextView;
+    private ListView mReviewStrip;
+    private Menu mMenu;
 
     /* State objects */
     private ViewState mSystemBarVisible;
@@ -98,17 +147,48 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     private int mCameraType = Camera.CameraInfo.CAMERA_FACING_FRONT;
     private String mFlashMode = Camera.Parameters.FLASH_MODE_OFF;
     private boolean mHardwareFlashSupported = false;
-    private boolean mDebounce = false;
+    private volatile boolean mDebounce = false;
     private int mDeviceRotation = 0;
     private float mOldBrightness;
 
     /* Hardware interface objects */
     private HeadsetStateReceiver mHeadsetStateReceiver;
     private AudioCapturer mAudioCapturer;
-    private Camera mCamera;
+    private volatile ICameraEngine mCameraEngine;
+    private CameraCapabilityIndex mCapabilityIndex;
     private OrientationEventListener mOrientationEventListener;
-    private EnvelopeDetector mEnvelopeDetector;
-    private float mButtonThreshold;
+    private ButtonDetector mButtonDetector;
+    /* Read once per picture on the camera thread, replaced in onResume(). It isn't nulled in
+     * onPause(), since a stopped writer already drops anything submitted to it
+     */
+    private volatile PictureWriter mPictureWriter;
+    private MediaScanBatcher mMediaScanBatcher;
+    private CaptureNamer mCaptureNamer;
+    private ThumbnailLoader mThumbnailLoader;
+    private ReviewAdapter mReviewAdapter;
+    private volatile float mDebugValue;
+    private volatile float mDebugThreshold;
+
+    /* Latency metrics, and timestamps for the shot in progress */
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private final TraceRecorder mTrace = TraceRecorder.getInstance();
+    private volatile long mPressTime;
+    private volatile long mFrontFlashTime;
+    private volatile long mTakePictureTime;
+    private volatile int mPressRotation;
+    private long mArmTime;
+
+    /* Burst state. A burst is started on the detector thread, and continued on the UI thread */
+    private int mBurstCount = 1;
+    private int mBurstInterval = 0;
+    private volatile int mBurstRemaining = 0;
+    private int mBurstTaken = 0;
+    private long mBurstStartTime;
+    private long mLastPictureTime;
+    private boolean mZsl = false;
+    private boolean mExifRotation = false;
+    private volatile int mBurstResultCount = 0;
+    private volatile float mBurstFps = 0;
 
     /* Handler and Runnables */
     private Handler mHandler;
@@ -185,16 +265,30 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
          */
         @Override
         public void run() {
-            /* Save the old brightness, set current to max */
-            WindowManager.LayoutParams layout = getWindow().getAttributes();
-            mOldBrightness = layout.screenBrightness;
-            layout.screenBrightness = 1F;
-            getWindow().setAttributes(layout);
-            /* Show the "flash" screen */
-            mFlashView.setVisibility(View.VISIBLE);
-            /* Take a picture, after letting the "flash" settle */
-            mHandler.removeCallbacks(mTakePictureRunnable);
-            mHandler.postDelayed(mTakePictureRunnable, 2000);
+            mTrace.begin(TRACE_FRONT_FLASH);
+            try {
+                mFrontFlashTime = CaptureMetrics.now();
+
+                /* Save the old brightness, set current to max. If the "flash" is already up,
+                 * the brightness saved then is the one to go back to
+                 */
+                WindowManager.LayoutParams layout = getWindow().getAttributes();
+                if (mFlashView.getVisibility() != View.VISIBLE) {
+                    mOldBrightness = layout.screenBrightness;
+                }
+                layout.screenBrightness = 1F;
+                getWindow().setAttributes(layout);
+                /* Show the "flash" screen */
+                mFlashView.setVisibility(View.VISIBLE);
+                /* Take a picture, after letting the "flash" settle */
+                ICameraEngine cameraEngine = mCameraEngine;
+                if (cameraEngine != null) {
+                    cameraEngine.removeCallbacks(mTakePictureRunnable);
+                    cameraEngine.postDelayed(mTakePictureRunnable, 2000);
+                }
+            } finally {
+                mTrace.end(TRACE_FRONT_FLASH);
+            }
         }
     };
 
@@ -216,23 +310,195 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
 
     private final Runnable mTakePictureRunnable = new Runnable() {
         /**
-         * Take a picture and set a timer to not allow another picture
-         * for three seconds
+         * Take a picture, or the first picture of a burst, on the camera thread, and set a timer
+         * to not allow another picture for three seconds
+         */
+        @Override
+        public void run() {
+            mTrace.begin(TRACE_TAKE_PICTURE);
+            try {
+                /* Just to be sure */
+                ICameraEngine cameraEngine = mCameraEngine;
+                if (cameraEngine == null) {
+                    return;
+                }
+                if (cameraEngine.getState() == ICameraEngine.State.CAPTURING) {
+                    /* A picture, maybe part of a burst, is already being taken. Drop this press,
+                     * and leave that picture's burst and metrics alone
+                     */
+                    return;
+                }
+                long takePictureTime = CaptureMetrics.now();
+                /* takePicture() uses up pre-focus, so check it first */
+                boolean preFocusArmed = cameraEngine.isPreFocusArmed();
+                /* Pending parameter changes are pushed along with the picture */
+                if (!cameraEngine.takePicture(mPicture)) {
+                    /* That didn't work... */
+                    mFrontFlashTime = 0;
+                    return;
+                }
+                mTakePictureTime = takePictureTime;
+                if (mFrontFlashTime != 0) {
+                    mMetrics.record(CaptureMetrics.Stage.FRONT_FLASH, mFrontFlashTime,
+                            mTakePictureTime);
+                    mFrontFlashTime = 0;
+                }
+                mMetrics.record(CaptureMetrics.Stage.PRESS_TO_SHUTTER, mPressTime,
+                        mTakePictureTime);
+                if (!preFocusArmed) {
+                    mMetrics.increment(CaptureMetrics.Counter.PRE_FOCUS_MISSED);
+                }
+                mBurstRemaining = mBurstCount - 1;
+                debounceButton();
+            } finally {
+                mTrace.end(TRACE_TAKE_PICTURE);
+            }
+        }
+    };
+
+    private final Runnable mZslPictureRunnable = new Runnable() {
+        /**
+         * Save the preview frame closest to the button press, on the camera thread, rather than
+         * waiting for takePicture(). Falls back to takePicture() if no frames were kept
          */
         @Override
         public void run() {
+            mTrace.begin(TRACE_ZSL_PICTURE);
+            try {
+                final ICameraEngine cameraEngine = mCameraEngine;
+                final PreviewFrameRing frameRing = (cameraEngine == null) ? null :
+                        cameraEngine.getPreviewFrameRing();
+                final int frame = (frameRing == null) ? -1 : frameRing.lockClosest(mPressTime);
+                if (frame < 0) {
+                    mTakePictureRunnable.run();
+                    return;
+                }
+
+                /* Get a file to write the picture to */
+                long frameTime = frameRing.getTimestamp(frame);
+                long captureTimeMillis = CaptureMetrics.toWallTime(frameTime);
+                File pictureFile = getOutputImageFile(captureTimeMillis);
+                PictureWriter pictureWriter = mPictureWriter;
+                if (pictureFile == null || pictureWriter == null) {
+                    frameRing.release(frame);
+                    return;
+                }
+
+                long now = CaptureMetrics.now();
+                mMetrics.record(CaptureMetrics.Stage.PRESS_TO_SHUTTER, mPressTime, now);
+                mMetrics.record(CaptureMetrics.Stage.ZSL_FRAME_OFFSET,
+                        Math.min(frameTime, mPressTime), Math.max(frameTime, mPressTime));
+
+                /* Compress and save it in the background, then give the buffer back to the
+                 * camera
+                 */
+                pictureWriter.submitPreviewFrame(frameRing.getFrame(frame), frameRing.getWidth(),
+                        frameRing.getHeight(), pictureFile, mPressTime,
+                        JpegExifWriter.orientationForRotation(mPressRotation), captureTimeMillis,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                cameraEngine.releasePreviewFrame(frameRing, frame);
+                            }
+                        }, new SessionJournal.Entry(pictureFile, captureTimeMillis,
+                                (now - mPressTime) / 1000, mCameraType, mPressRotation));
+
+                /* Make a shutter effect */
+                runOnUiThread(mSetFrontShutterRunnable);
+                mHandler.removeCallbacks(mClearFrontShutterRunnable);
+                mHandler.postDelayed(mClearFrontShutterRunnable, 500);
+                debounceButton();
+            } finally {
+                mTrace.end(TRACE_ZSL_PICTURE);
+            }
+        }
+    };
+
+    private final Runnable mBurstPictureRunnable = new Runnable() {
+        /**
+         * Take the next picture in a burst, on the camera thread. The preview was already
+         * restarted in onPictureTaken()
+         */
+        @Override
+        public void run() {
+            mTrace.begin(TRACE_BURST_PICTURE);
             try {
                 /* Just to be sure */
-                if (mCamera == null) {
+                ICameraEngine cameraEngine = mCameraEngine;
+                if (cameraEngine == null || mBurstRemaining <= 0) {
+                    mBurstRemaining = 0;
                     return;
                 }
-                mCamera.takePicture(null, null, mPicture);
-                mDebounce = true;
-                mHandler.removeCallbacks(mClearDebounceRunnable);
-                mHandler.postDelayed(mClearDebounceRunnable, 3000);
-            } catch (RuntimeException e) {
-                /* That didn't work... */
+                mBurstRemaining--;
+                mTakePictureTime = CaptureMetrics.now();
+                if (cameraEngine.takePicture(mPicture)) {
+                    debounceButton();
+                } else {
+                    /* That didn't work, end the burst */
+                    mBurstRemaining = 0;
+                    finishBurst();
+                }
+            } finally {
+                mTrace.end(TRACE_BURST_PICTURE);
+            }
+        }
+    };
+
+    private final Runnable mShowBurstResultRunnable = new Runnable() {
+        /**
+         * Show how many pictures the last burst took, and how fast
+         */
+        @Override
+        public void run() {
+            Toast.makeText(CameraActivity.this, String.format(Locale.getDefault(),
+                    getString(R.string.burst_result), mBurstResultCount, mBurstFps),
+                    Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private final Runnable mUpdateDebugTextRunnable = new Runnable() {
+        /**
+         * Update the debug text view on the UI thread, not the audio thread
+         */
+        @Override
+        public void run() {
+            String debugText = String.format(Locale.getDefault(), "%d / %d", (int) mDebugValue,
+                    (int) mDebugThreshold);
+            /* Show dropped audio frames too, if there were any */
+            if (mAudioCapturer != null && mAudioCapturer.getOverruns() > 0) {
+                debugText += String.format(Locale.getDefault(), " (%d dropped)",
+                        mAudioCapturer.getOverruns());
+            }
+            /* And shutter latency, once a picture was taken */
+            String shutterSummary = mMetrics.getShutterSummary();
+            if (!shutterSummary.isEmpty()) {
+                debugText += "\n" + shutterSummary;
+            }
+            /* And the last burst's frame rate */
+            if (mBurstFps > 0) {
+                debugText += String.format(Locale.getDefault(), "\nburst %.1f fps", mBurstFps);
             }
+            mDebugTextView.setText(debugText);
+        }
+    };
+
+    private final Runnable mSwitchCameraRunnable = new Runnable() {
+        /**
+         * Switch the camera from a selfie stick button, on the UI thread
+         */
+        @Override
+        public void run() {
+            switchCamera(mMenu == null ? null : mMenu.findItem(R.id.camera_switch));
+        }
+    };
+
+    private final Runnable mSwitchFlashRunnable = new Runnable() {
+        /**
+         * Switch the flash from a selfie stick button, on the UI thread
+         */
+        @Override
+        public void run() {
+            switchFlash(mMenu == null ? null : mMenu.findItem(R.id.flash_setting));
         }
     };
 
@@ -242,7 +508,12 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
          */
         @Override
         public void run() {
-            mDebounce = false;
+            mTrace.begin(TRACE_CLEAR_DEBOUNCE);
+            try {
+                mDebounce = false;
+            } finally {
+                mTrace.end(TRACE_CLEAR_DEBOUNCE);
+            }
         }
     };
 
@@ -268,104 +539,142 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
         }
     };
 
-    private final Camera.PictureCallback mPicture = new Camera.PictureCallback() {
+    private final ICameraEngine.PictureCallback mPicture = new ICameraEngine.PictureCallback() {
 
         /**
-         * Callback for after a picture was taken
+         * Callback for after a picture was taken, on the camera thread
          * @param data      The bytes to be saved as an image
-         * @param camera    The Camera object that took the picture
          */
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
-            /* If there is no hardware flash and the front facing camera was used */
-            if (!mHardwareFlashSupported &&
-                    mCameraType == Camera.CameraInfo.CAMERA_FACING_FRONT &&
-                    mFlashMode.equals(Camera.Parameters.FLASH_MODE_ON)) {
-                /* Clear the "flash" screen */
-                mClearFrontFlashRunnable.run();
-            } else {
-                /* Otherwise, make a shutter effect */
-                mSetFrontShutterRunnable.run();
-                mHandler.removeCallbacks(mClearFrontShutterRunnable);
-                mHandler.postDelayed(mClearFrontShutterRunnable, 500);
+        public void onPictureTaken(byte[] data) {
+            mTrace.begin(TRACE_PICTURE_TAKEN);
+            try {
+                long pictureTime = CaptureMetrics.now();
+                mMetrics.record(CaptureMetrics.Stage.TAKE_PICTURE, mTakePictureTime, pictureTime);
+
+                /* Keep track of the burst this picture is part of */
+                if (mBurstTaken == 0) {
+                    mBurstStartTime = mTakePictureTime;
+                } else {
+                    mMetrics.record(CaptureMetrics.Stage.BURST_INTERVAL, mLastPictureTime,
+                            pictureTime);
+                }
+                mBurstTaken++;
+                mLastPictureTime = pictureTime;
+
+                /* The camera stops the preview to take a picture, restart it first so the next
+                 * picture in a burst can be taken as soon as possible
+                 */
+                ICameraEngine cameraEngine = mCameraEngine;
+                if (cameraEngine == null || !cameraEngine.startPreviewAfterPicture()) {
+                    /* Without a preview, no more pictures can be taken */
+                    mBurstRemaining = 0;
+                }
+
+                /* If there is no hardware flash and the front facing camera was used */
+                if (!mHardwareFlashSupported &&
+                        mCameraType == Camera.CameraInfo.CAMERA_FACING_FRONT &&
+                        mFlashMode.equals(Camera.Parameters.FLASH_MODE_ON)) {
+                    /* Clear the "flash" screen, once the burst is done */
+                    if (mBurstRemaining <= 0) {
+                        runOnUiThread(mClearFrontFlashRunnable);
+                    }
+                } else {
+                    /* Otherwise, make a shutter effect */
+                    runOnUiThread(mSetFrontShutterRunnable);
+                    mHandler.removeCallbacks(mClearFrontShutterRunnable);
+                    mHandler.postDelayed(mClearFrontShutterRunnable, 500);
+                }
+
+                /* Get a file to write the picture to, and hand the image off to be saved in the
+                 * background
+                 */
+                long captureTimeMillis = CaptureMetrics.toWallTime(mTakePictureTime);
+                File pictureFile = getOutputImageFile(captureTimeMillis);
+                PictureWriter pictureWriter = mPictureWriter;
+                if (pictureFile != null && pictureWriter != null) {
+                    /* Tag the picture with its orientation if the camera didn't rotate it */
+                    int orientation = mExifRotation ?
+                            JpegExifWriter.orientationForRotation(mPressRotation) :
+                            JpegExifWriter.ORIENTATION_NONE;
+                    pictureWriter.submit(data, pictureFile, mPressTime, orientation,
+                            captureTimeMillis, new SessionJournal.Entry(pictureFile,
+                                    captureTimeMillis, (mTakePictureTime - mPressTime) / 1000,
+                                    mCameraType, mPressRotation));
+                }
+
+                /* Take the next picture in the burst, or wrap it up */
+                if (mBurstRemaining > 0 && cameraEngine != null) {
+                    cameraEngine.postDelayed(mBurstPictureRunnable, mBurstInterval);
+                } else {
+                    finishBurst();
+                }
+            } finally {
+                mTrace.end(TRACE_PICTURE_TAKEN);
             }
+        }
+    };
 
-            /* Get a file to write the picture to */
-            File pictureFile = getOutputImageFile();
-            if (pictureFile == null) {
+    private final ICameraEngine.Listener mCameraListener = new ICameraEngine.Listener() {
+        /**
+         * Called on the UI thread once a camera was opened on the camera thread. Adds the preview
+         *
+         * @param engine The engine which opened the camera
+         */
+        @Override
+        public void onCameraOpened(ICameraEngine engine) {
+            /* Ignore cameras opened before a pause */
+            if (engine != mCameraEngine) {
                 return;
             }
 
-            try {
-                /* Save the image */
-                FileOutputStream fos = new FileOutputStream(pictureFile);
-                fos.write(data);
-                fos.close();
-
-                /* Notify the media scanner so it displays in the gallery */
-                sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                        Uri.fromFile(pictureFile)));
-            } catch (IOException e) {
-                /* Eat it */
+            /* Set the preview with the new Camera object */
+            if (mCameraPreview != null) {
+                mContentView.removeView(mCameraPreview);
             }
+            mCameraPreview = new CameraPreview(CameraActivity.this, engine);
+            mContentView.addView(mCameraPreview);
+
+            /* Make sure the flash parameter is correct */
+            setFlashParameter();
         }
     };
 
-    /**
-     * A safe way to get an instance of the Camera object. Also sets up picture size & focus type
-     *
-     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
-     *                   Camera.CameraInfo.CAMERA_FACING_BACK
-     * @return A Camera object if it was created, or null
-     */
-    @Nullable
-    private static Camera getCameraInstance(int cameraType) {
-        Camera camera = null;
-        try {
-            Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-            /* Scan through all the cameras for one of the specified type */
-            for (int camIdx = 0; camIdx < Camera.getNumberOfCameras(); camIdx++) {
-                Camera.getCameraInfo(camIdx, cameraInfo);
-                if (cameraInfo.facing == cameraType) {
-                    try {
-                        /* Open the camera, get default parameters */
-                        camera = Camera.open(camIdx);
-                        Camera.Parameters parameters = camera.getParameters();
-
-                        /* Set the image to native resolution */
-                        List<Camera.Size> sizes = parameters.getSupportedPictureSizes();
-                        Camera.Size nativeSize = null;
-                        int maxHeight = Integer.MIN_VALUE;
-                        for (Camera.Size size : sizes) {
-                            if (size.height > maxHeight) {
-                                maxHeight = size.height;
-                                nativeSize = size;
-                            }
-                        }
-                        if (nativeSize != null) {
-                            parameters.setPictureSize(nativeSize.width, nativeSize.height);
-                        }
+    private final PictureWriter.Listener mPictureWriterListener = new PictureWriter.Listener() {
+        /**
+         * Called on the UI thread after a picture was saved
+         *
+         * @param file The file the picture was written to
+         */
+        @Override
+        public void onPictureWritten(File file) {
+            /* Notify the media scanner so it displays in the gallery, along with its neighbors */
+            mMediaScanBatcher.add(file);
 
-                        /* Set auto-focus, if we can */
-                        List<String> focusModes = parameters.getSupportedFocusModes();
-                        if (focusModes != null &&
-                                focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
-                            parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
-                        }
+            /* And show it in the review strip */
+            mReviewAdapter.addPicture(file);
+        }
 
-                        /* Set the parameters */
-                        camera.setParameters(parameters);
+        /**
+         * Called on the UI thread when a picture couldn't be saved
+         *
+         * @param file The file the picture would have been written to
+         */
+        @Override
+        public void onPictureDropped(File file) {
+            Toast.makeText(CameraActivity.this, R.string.picture_dropped, Toast.LENGTH_SHORT)
+                    .show();
+        }
 
-                    } catch (RuntimeException e) {
-                        /* Eat it */
-                    }
-                }
-            }
-        } catch (Exception e) {
-            /* Camera is not available (in use or does not exist) */
+        /**
+         * Called on the UI thread once a stopped writer saved everything it had queued
+         */
+        @Override
+        public void onStopped() {
+            /* Show the last pictures in the gallery now, rather than when their batch times out */
+            mMediaScanBatcher.flush();
         }
-        return camera; /* returns null if camera is unavailable */
-    }
+    };
 
     /**
      * Perform initialization of all non-camera views
@@ -385,11 +694,45 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
         mFlashView = (FrameLayout) findViewById(R.id.flash_view);
         mNoStickWarningView = (TextView) findViewById(R.id.no_stick_text);
         mDebugTextView = (TextView) findViewById(R.id.debug_text_view);
+        mReviewStrip = (ListView) findViewById(R.id.review_strip);
 
         mControlsVisible = ViewState.VISIBLE;
         mSystemBarVisible = ViewState.VISIBLE;
 
         mHandler = new Handler();
+        mMediaScanBatcher = new MediaScanBatcher(this, mHandler, MEDIA_SCAN_BATCH_SIZE,
+                MEDIA_SCAN_WINDOW);
+
+        /* Pictures go in a Selfr folder in the DCIM directory. PictureWriter creates it if it
+         * doesn't exist, so the disk isn't touched here
+         */
+        mCaptureNamer = new CaptureNamer(new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), getString(R.string.app_name)));
+
+        /* Set up the review strip. Thumbnails are loaded in the background as they scroll by */
+        int thumbnailSize = (int) (REVIEW_THUMBNAIL_DP *
+                getResources().getDisplayMetrics().density);
+        mThumbnailLoader = new ThumbnailLoader(new ThumbnailCache(
+                (int) (Runtime.getRuntime().maxMemory() / THUMBNAIL_MEMORY_DIVISOR),
+                new File(getCacheDir(), THUMBNAIL_DIRECTORY), THUMBNAIL_DISK_BYTES),
+                thumbnailSize, mHandler);
+        mThumbnailLoader.start();
+        mReviewAdapter = new ReviewAdapter(this, mThumbnailLoader, thumbnailSize);
+        mReviewStrip.setAdapter(mReviewAdapter);
+        mReviewStrip.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                /* Open the picture in a viewer */
+                Intent intent = new Intent(Intent.ACTION_VIEW);
+                intent.setDataAndType(Uri.fromFile(mReviewAdapter.getItem(position)),
+                        "image/jpeg");
+                startActivity(intent);
+            }
+        });
+
+        /* The capability index is only read from disk when a camera is first opened */
+        mCapabilityIndex = new CameraCapabilityIndex(new File(getFilesDir(), CAPABILITY_INDEX_FILE),
+                Build.FINGERPRINT);
 
         /* Set up the user interaction to manually show or hide the system UI. */
         mContentView.setOnClickListener(new View.OnClickListener() {
@@ -402,8 +745,6 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
         /* Set up the Toolbar */
         Toolbar mToolbar = (Toolbar) findViewById(R.id.toolbar);
         setSupportActionBar(mToolbar);
-
-        mEnvelopeDetector = new EnvelopeDetector();
     }
 
     /**
@@ -451,19 +792,102 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
             } else {
                 mDebugTextView.setVisibility(View.GONE);
             }
+            /* The metrics menu item and tracing both depend on the debug value being visible */
+            invalidateOptionsMenu();
+            mTrace.setEnabled(mDebugTextView.getVisibility() == View.VISIBLE);
+
+            /* Set up the button detector, either once a second or streaming with a short hop */
+            boolean fixedPoint = prefs.getBoolean(getString(R.string.fixed_point_key), false);
+            int frameSize;
+            if (prefs.getString(getString(R.string.detection_mode_key),
+                    getString(R.string.default_detection_mode))
+                    .equals(getString(R.string.detection_mode_streaming))) {
+                int hopMs = parseIntPreference(prefs, R.string.hop_size_key,
+                        R.string.default_hop_size);
+                int windowMs = parseIntPreference(prefs, R.string.window_size_key,
+                        R.string.default_window_size);
+                frameSize = Math.max(1, hopMs * AudioCapturer.SAMPLES_PER_SECOND / 1000);
+                mButtonDetector = new ButtonDetector(ButtonDetector.Mode.STREAMING,
+                        Math.max(1, windowMs * AudioCapturer.SAMPLES_PER_SECOND / 1000),
+                        fixedPoint);
+            } else {
+                frameSize = AudioCapturer.SAMPLES_PER_SECOND;
+                mButtonDetector = new ButtonDetector(ButtonDetector.Mode.BLOCK, 0, fixedPoint);
+            }
+            mButtonDetector.setThreshold(parseFloatPreference(prefs, R.string.threshold_key,
+                    R.string.default_threshold));
+
+            /* Optionally move the threshold with the noise floor, in noisy places */
+            if (prefs.getBoolean(getString(R.string.adaptive_threshold_key), false)) {
+                mButtonDetector.setAdaptiveThreshold(
+                        new NoiseFloorEstimator(NOISE_FLOOR_QUANTILE, NOISE_FLOOR_TIME_CONSTANT),
+                        parseFloatPreference(prefs, R.string.adaptive_margin_key,
+                                R.string.default_adaptive_margin));
+            }
 
-            mButtonThreshold = Float.parseFloat(prefs.getString(getString(R.string.threshold_key),
-                    getString(R.string.default_threshold)));
+            /* Optionally arm below the threshold, to focus before the press finishes. Block mode
+             * only decides once a second, so arming could never lead the trigger there
+             */
+            if (mButtonDetector.getMode() == ButtonDetector.Mode.STREAMING) {
+                mButtonDetector.setArmingFraction(Math.max(0, parseIntPreference(prefs,
+                        R.string.pre_focus_key, R.string.default_pre_focus)) / 100f);
+            }
 
-            /* Set up the audio capture */
-            mAudioCapturer = AudioCapturer.getInstance(this);
+            /* If buttons have distinct tones, tell them apart so each can do something different */
+            float[] buttonTones = parseButtonTones(prefs.getString(
+                    getString(R.string.button_tones_key), ""));
+            if (buttonTones.length > 1) {
+                mButtonDetector.setClassifier(
+                        new ButtonClassifier(buttonTones, AudioCapturer.SAMPLES_PER_SECOND));
+            }
 
-            /* Set up the camera */
-            mCamera = getCameraInstance(mCameraType);
-            if (mCamera != null) {
-                mCameraPreview = new CameraPreview(this, mCamera);
-                mContentView.addView(mCameraPreview);
+            /* Set up the background picture writer */
+            PictureWriter.Policy savePolicy;
+            try {
+                savePolicy = PictureWriter.Policy.valueOf(prefs.getString(
+                        getString(R.string.save_policy_key),
+                        getString(R.string.default_save_policy)).toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                savePolicy = PictureWriter.Policy.BLOCK;
             }
+            PictureWriter.SyncPolicy syncPolicy;
+            try {
+                syncPolicy = PictureWriter.SyncPolicy.valueOf(prefs.getString(
+                        getString(R.string.sync_policy_key),
+                        getString(R.string.default_sync_policy)).toUpperCase(Locale.US));
+            } catch (IllegalArgumentException e) {
+                syncPolicy = PictureWriter.SyncPolicy.DATA;
+            }
+            mPictureWriter = new PictureWriter(PICTURE_QUEUE_CAPACITY, savePolicy, syncPolicy,
+                    mPictureWriterListener, mHandler, SessionJournal.getInstance(
+                    new File(getFilesDir(), JOURNAL_DIRECTORY)));
+
+            /* Clean up after any crash while saving, before saving anything new */
+            mPictureWriter.start(Environment.MEDIA_MOUNTED.equals(
+                    Environment.getExternalStorageState()) ? mCaptureNamer.getDirectory() : null);
+
+            /* Set up burst capture, one picture per press unless a burst is configured */
+            mBurstCount = Math.max(1, parseIntPreference(prefs, R.string.burst_count_key,
+                    R.string.default_burst_count));
+            mBurstInterval = Math.max(0, parseIntPreference(prefs, R.string.burst_interval_key,
+                    R.string.default_burst_interval));
+
+            /* Set up the audio capture */
+            mAudioCapturer = AudioCapturer.getInstance(this);
+            mAudioCapturer.setFrameSize(frameSize);
+
+            /* Set up the camera, on its own thread. The preview is added once it's open */
+            mCameraEngine = createCameraEngine(prefs.getString(
+                    getString(R.string.camera_engine_key),
+                    getString(R.string.default_camera_engine)));
+            mZsl = prefs.getBoolean(getString(R.string.zsl_key), false);
+            mExifRotation = prefs.getBoolean(getString(R.string.exif_rotation_key), false);
+            mCameraEngine.setZslBuffers(mZsl ? ZSL_BUFFERS : 0);
+            mCameraEngine.setPreviewPixelBudget(
+                    prefs.getBoolean(getString(R.string.low_power_preview_key), false) ?
+                            LOW_POWER_PREVIEW_PIXELS : Integer.MAX_VALUE);
+            mCameraEngine.start();
+            mCameraEngine.open(mCameraType);
 
             /* Register the headset state receiver */
             mHeadsetStateReceiver = new HeadsetStateReceiver(this);
@@ -538,10 +962,31 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
             mContentView.removeView(mCameraPreview);
             mCameraPreview = null;
         }
-        if (mCamera != null) {
-            mCamera.stopPreview();
-            mCamera.release();
-            mCamera = null;
+        final PictureWriter pictureWriter = mPictureWriter;
+        if (mCameraEngine != null) {
+            /* Cancel any burst in progress, then release the camera on the camera thread */
+            mCameraEngine.removeCallbacks(mBurstPictureRunnable);
+            mCameraEngine.removeCallbacks(mTakePictureRunnable);
+            mCameraEngine.removeCallbacks(mZslPictureRunnable);
+            mCameraEngine.close();
+
+            /* Stop the picture writer on the camera thread once the camera is released, so a
+             * picture which arrived before that still goes to the writer. Pictures already
+             * submitted are still saved
+             */
+            if (pictureWriter != null) {
+                mCameraEngine.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pictureWriter.stop();
+                    }
+                });
+            }
+            mCameraEngine.stop();
+            mCameraEngine = null;
+        } else if (pictureWriter != null) {
+            /* No camera, so nothing else can be submitted. Pictures already taken are saved */
+            pictureWriter.stop();
         }
 
         /* Clean up the audio */
@@ -550,6 +995,15 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
             mAudioCapturer = null;
         }
 
+        /* Forget any burst in progress */
+        mBurstRemaining = 0;
+        mBurstTaken = 0;
+
+        /* Show what was saved so far in the gallery right away. Pictures still being written
+         * are flushed once the writer has stopped
+         */
+        mMediaScanBatcher.flush();
+
         /* Clean up the receiver */
         if (mHeadsetStateReceiver != null) {
             unregisterReceiver(mHeadsetStateReceiver);
@@ -563,6 +1017,32 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
         }
     }
 
+    /**
+     * Stop loading thumbnails when the activity is destroyed
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mThumbnailLoader.stop();
+    }
+
+    /**
+     * Give thumbnail memory back when the system asks for it. They're all on disk, so they're
+     * quick to get back
+     *
+     * @param level How badly memory is needed, one of the ComponentCallbacks2.TRIM_MEMORY_* values
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            /* Nothing is on screen */
+            mThumbnailLoader.getCache().trimMemory(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mThumbnailLoader.getCache().trimMemory(0.5f);
+        }
+    }
+
     /**
      * Build a dialog, currently only the about dialog
      *
@@ -779,9 +1259,26 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.camera_menu, menu);
+        mMenu = menu;
         return true;
     }
 
+    /**
+     * Prepare the Screen's standard options menu to be displayed. Metrics can only be dumped
+     * while the debug value is displayed
+     *
+     * @param menu The options menu as last shown or first initialized by onCreateOptionsMenu().
+     * @return true, since the menu should be displayed
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        MenuItem dumpMetrics = menu.findItem(R.id.dump_metrics);
+        if (dumpMetrics != null) {
+            dumpMetrics.setVisible(mDebugTextView.getVisibility() == View.VISIBLE);
+        }
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     /**
      * This hook is called whenever an item in your options menu is selected.
      *
@@ -813,6 +1310,16 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
                 startActivity(intent);
                 return true;
             }
+            case R.id.review: {
+                /* Show or hide the strip of pictures saved so far */
+                toggleReviewStrip();
+                return true;
+            }
+            case R.id.dump_metrics: {
+                /* Write latency metrics to a file */
+                dumpMetrics();
+                return true;
+            }
             case R.id.about: {
                 /* Show the about dialog */
                 showDialog(DIALOG_ABOUT);
@@ -829,19 +1336,24 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
      * If the flash is on, turn it off, and vice versa. Front facing cameras without hardware
      * flash will briefly display a max brightness, pure white screen
      *
-     * @param item The menu item to change the icon in order to reflect the current state
+     * @param item The menu item to change the icon in order to reflect the current state, may be
+     *             null
      */
-    private void switchFlash(MenuItem item) {
+    private void switchFlash(@Nullable MenuItem item) {
         /* Change the flash mode & icon */
         switch (mFlashMode) {
             case Camera.Parameters.FLASH_MODE_OFF: {
                 mFlashMode = Camera.Parameters.FLASH_MODE_ON;
-                item.setIcon(R.drawable.ic_flash_on_white_24dp);
+                if (item != null) {
+                    item.setIcon(R.drawable.ic_flash_on_white_24dp);
+                }
                 break;
             }
             case Camera.Parameters.FLASH_MODE_ON: {
                 mFlashMode = Camera.Parameters.FLASH_MODE_OFF;
-                item.setIcon(R.drawable.ic_flash_off_white_24dp);
+                if (item != null) {
+                    item.setIcon(R.drawable.ic_flash_off_white_24dp);
+                }
                 break;
             }
         }
@@ -853,49 +1365,40 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     }
 
     /**
-     * If the rear camera is being used, switch to the front camera, and vice versa
-     * This blocks the UI thread, which is generally bad, but nothing is happening anyway,
-     * and swapping camera resources on a separate thread is a recipe for crashes
+     * If the rear camera is being used, switch to the front camera, and vice versa. The camera is
+     * released and opened on the camera thread, and the preview is added back once it's open
      *
-     * @param item The menu item to change the icon in order to reflect the current state
+     * @param item The menu item to change the icon in order to reflect the current state, may be
+     *             null
      */
-    private void switchCamera(MenuItem item) {
+    private void switchCamera(@Nullable MenuItem item) {
         /* Switch from one camera type to the other, adjust the icon as necessary */
         switch (mCameraType) {
             case Camera.CameraInfo.CAMERA_FACING_FRONT: {
                 mCameraType = Camera.CameraInfo.CAMERA_FACING_BACK;
-                item.setIcon(R.drawable.ic_camera_rear_white_24dp);
+                if (item != null) {
+                    item.setIcon(R.drawable.ic_camera_rear_white_24dp);
+                }
                 break;
             }
             case Camera.CameraInfo.CAMERA_FACING_BACK: {
                 mCameraType = Camera.CameraInfo.CAMERA_FACING_FRONT;
-                item.setIcon(R.drawable.ic_camera_front_white_24dp);
+                if (item != null) {
+                    item.setIcon(R.drawable.ic_camera_front_white_24dp);
+                }
                 break;
             }
         }
 
-        /* Remove old camera & preview */
+        /* Remove old preview */
         if (mCameraPreview != null) {
             mContentView.removeView(mCameraPreview);
+            mCameraPreview = null;
         }
 
-        /* Release current camera resources */
-        if (mCamera != null) {
-            mCamera.stopPreview();
-            mCamera.release();
-            mCamera = null;
-        }
-
-        /* Get a new camera instance */
-        mCamera = getCameraInstance(mCameraType);
-
-        /* Set the preview with the new Camera object */
-        if (mCamera != null) {
-            mCameraPreview = new CameraPreview(getApplicationContext(), mCamera);
-            mContentView.addView(mCameraPreview);
-
-            /* Make sure the flash parameter is correct */
-            setFlashParameter();
+        /* Release the current camera and open the new one, mCameraListener adds the preview */
+        if (mCameraEngine != null) {
+            mCameraEngine.open(mCameraType);
         }
 
         /* Hide the UI */
@@ -903,29 +1406,29 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     }
 
     /**
-     * Sets the current flash mode to the current Camera object
+     * Sets the current flash mode to the current Camera object's cached parameters. It's applied
+     * along with any other changes right before the next picture is taken
      */
     private void setFlashParameter() {
-        if (mCamera == null) {
+        ICameraEngine cameraEngine = mCameraEngine;
+        if (cameraEngine == null) {
             return;
         }
         /* If the camera supports flash, set the parameter */
-        Camera.Parameters parameters = mCamera.getParameters();
-        List<String> flashModes = parameters.getSupportedFlashModes();
+        List<String> flashModes = cameraEngine.getSupportedFlashModes();
         if (flashModes != null &&
                 flashModes.contains(Camera.Parameters.FLASH_MODE_OFF) &&
                 flashModes.contains(Camera.Parameters.FLASH_MODE_ON)) {
             switch (mFlashMode) {
                 case Camera.Parameters.FLASH_MODE_OFF: {
-                    parameters.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+                    cameraEngine.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
                     break;
                 }
                 case Camera.Parameters.FLASH_MODE_ON: {
-                    parameters.setFlashMode(Camera.Parameters.FLASH_MODE_ON);
+                    cameraEngine.setFlashMode(Camera.Parameters.FLASH_MODE_ON);
                     break;
                 }
             }
-            mCamera.setParameters(parameters);
             mHardwareFlashSupported = true;
         } else {
             mHardwareFlashSupported = false;
@@ -933,57 +1436,42 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
     }
 
     /**
-     * Create a File for saving an image
+     * Create a File for saving an image. Pictures taken in the same second, or even the same
+     * millisecond, never get the same file
+     *
+     * @param captureTimeMillis When the picture was taken, from System.currentTimeMillis()
      */
     @Nullable
-    private File getOutputImageFile() {
+    private File getOutputImageFile(long captureTimeMillis) {
         /* Make sure the external storage is mounted first */
         if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
             return null;
         }
-
-        /* Make a Selfr folder in the DCIM directory */
-        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_DCIM), getString(R.string.app_name));
-
-        /* Create the storage directory if it does not exist */
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) {
-                /* Can't make the folder */
-                return null;
-            }
-        }
-
-        /* Create a media file name */
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss",
-                Locale.getDefault()).format(new Date());
-        return new File(mediaStorageDir.getPath() + File.separator + "IMG_" + timeStamp + ".jpg");
+        return mCaptureNamer.next(captureTimeMillis);
     }
 
     /**
-     * Called from AudioCapturer when a buffer of audio was received
+     * Called from AudioCapturer's detector thread when a buffer of audio was received. Capture
+     * runs on a separate thread, so slow camera calls here don't cause audio to be lost
      *
-     * @param tempBuf A buffer of audio received
+     * @param tempBuf   A buffer of audio received
+     * @param length    The number of valid samples in tempBuf
+     * @param timestamp When the last sample in tempBuf was captured, from System.nanoTime()
      */
     @Override
-    public void capturedAudioReceived(short[] tempBuf) {
+    public void capturedAudioReceived(short[] tempBuf, int length, long timestamp) {
 
-        /* Keep the envelope detector running, no matter what */
-        float outputs[] = new float[tempBuf.length + 1];
-        mEnvelopeDetector.findEnvelope(tempBuf, outputs);
-        final float average = EnvelopeDetector.average(outputs);
+        /* Keep the button detector running, no matter what */
+        long detectStart = CaptureMetrics.now();
+        boolean buttonPressed = mButtonDetector.process(tempBuf, length);
+        long detectEnd = CaptureMetrics.now();
+        mMetrics.record(CaptureMetrics.Stage.ENVELOPE, detectStart, detectEnd);
 
         /* Update the debug text view */
         if (mDebugTextView.getVisibility() == View.VISIBLE) {
-            runOnUiThread(new Runnable() {
-                /**
-                 * Update the debug text view on the UI thread, not the audio thread
-                 */
-                @Override
-                public void run() {
-                    mDebugTextView.setText(String.format(Locale.getDefault(), "%d", (int) average));
-                }
-            });
+            mDebugValue = mButtonDetector.getLevel();
+            mDebugThreshold = mButtonDetector.getThreshold();
+            runOnUiThread(mUpdateDebugTextRunnable);
         }
 
         /* If the app just took a picture, and is debouncing, don't look for button presses */
@@ -991,32 +1479,240 @@ public class CameraActivity extends AppCompatActivity implements IAudioReceiver
             return;
         }
 
-        /* Check to see if the average of the envelope crosses a threshold */
-        boolean buttonPressed = false;
-        if (average > mButtonThreshold) {
-            buttonPressed = true;
+        /* If a press may be coming, start focusing and lock exposure on the camera thread */
+        ICameraEngine armEngine = mCameraEngine;
+        if (!buttonPressed && mButtonDetector.isArmed() && armEngine != null &&
+                !armEngine.isPreFocusArmed() &&
+                armEngine.getState() == ICameraEngine.State.PREVIEWING) {
+            mArmTime = detectEnd;
+            armEngine.preFocus(mArmTime);
         }
 
         /* If a button press was detected */
         if (buttonPressed) {
-            /* And the camera isn't null */
-            if (mCamera != null) {
-                /* Set rotation */
-                Camera.Parameters parameters = mCamera.getParameters();
-                parameters.setRotation(mDeviceRotation);
-                mCamera.setParameters(parameters);
+            /* Figure out which button it was, if the buttons can be told apart */
+            switch (mButtonDetector.getButton()) {
+                case BUTTON_SWITCH_CAMERA: {
+                    runOnUiThread(mSwitchCameraRunnable);
+                    debounceButton();
+                    return;
+                }
+                case BUTTON_SWITCH_FLASH: {
+                    runOnUiThread(mSwitchFlashRunnable);
+                    debounceButton();
+                    return;
+                }
+                case BUTTON_SHUTTER:
+                default: {
+                    /* Take a picture, below */
+                    break;
+                }
+            }
+
+            /* A press stays over the threshold for several hops when streaming. Debounce now,
+             * on this thread, so the same press can't start a second picture or flash
+             */
+            debounceButton();
+
+            /* When the press happened, back from the end of the buffer to the trigger sample */
+            mPressTime = timestamp - ((length - 1 - mButtonDetector.getTriggerOffset()) *
+                    1000000000L / AudioCapturer.SAMPLES_PER_SECOND);
+
+            /* And the camera is previewing */
+            ICameraEngine cameraEngine = mCameraEngine;
+            if (cameraEngine != null && cameraEngine.isPreFocusArmed()) {
+                mMetrics.record(CaptureMetrics.Stage.ARM_LEAD, mArmTime, detectEnd);
+            }
+            if (cameraEngine != null &&
+                    cameraEngine.getState() == ICameraEngine.State.PREVIEWING) {
+                /* Set rotation. Along with any other pending changes, it's applied right before
+                 * the picture is taken, and only if something changed. With EXIF rotation the
+                 * camera doesn't rotate the full resolution JPEG, the writer tags it instead
+                 */
+                mPressRotation = mDeviceRotation;
+                cameraEngine.setRotation(mExifRotation ? 0 : mPressRotation);
 
                 if (!mHardwareFlashSupported &&
                         mCameraType == Camera.CameraInfo.CAMERA_FACING_FRONT &&
                         mFlashMode.equals(Camera.Parameters.FLASH_MODE_ON)) {
                     /* No hardware flash & front camera, draw the screen bright white */
+                    mMetrics.record(CaptureMetrics.Stage.DECISION, detectEnd,
+                            CaptureMetrics.now());
                     runOnUiThread(mSetFrontFlashRunnable);
                 } else {
-                    /* Take a picture immediately */
-                    mTakePictureRunnable.run();
+                    /* Take a picture immediately, on the camera thread. With zero shutter lag,
+                     * save the preview frame from when the button was pressed instead
+                     */
+                    mMetrics.record(CaptureMetrics.Stage.DECISION, detectEnd,
+                            CaptureMetrics.now());
+                    cameraEngine.post((mZsl && mBurstCount == 1) ?
+                            mZslPictureRunnable : mTakePictureRunnable);
+                }
+            }
+        }
+    }
+
+    /**
+     * Show or hide the review strip. The first time it's shown, the pictures are read from the
+     * session journals on the thumbnail thread, rather than listing the picture directory. Earlier
+     * sessions' journals are pruned of deleted pictures as they're read
+     */
+    private void toggleReviewStrip() {
+        if (mReviewStrip.getVisibility() == View.VISIBLE) {
+            mReviewStrip.setVisibility(View.GONE);
+            return;
+        }
+        mReviewStrip.setVisibility(View.VISIBLE);
+        if (mReviewAdapter.getCount() > 0) {
+            return;
+        }
+        final File journalDirectory = new File(getFilesDir(), JOURNAL_DIRECTORY);
+        final File currentJournal = SessionJournal.getInstance(journalDirectory).getFile();
+        mThumbnailLoader.post(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<File> pictures = new ArrayList<>();
+                for (File journal : SessionJournal.list(journalDirectory)) {
+                    if (journal.equals(currentJournal)) {
+                        /* This session's journal is still being written, so it's only read */
+                        for (SessionJournal.Entry entry : SessionJournal.read(journal)) {
+                            if (entry.mFile.exists()) {
+                                pictures.add(entry.mFile);
+                            }
+                        }
+                    } else {
+                        for (SessionJournal.Entry entry : SessionJournal.prune(journal)) {
+                            pictures.add(entry.mFile);
+                        }
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReviewAdapter.setPictures(pictures);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Write the latency metrics and the trace to files in the app's external files directory, so
+     * they can be pulled off the device and compared with others
+     */
+    private void dumpMetrics() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            Toast.makeText(this, R.string.dump_metrics_failure, Toast.LENGTH_LONG).show();
+            return;
+        }
+        File metricsFile = new File(directory, "metrics.txt");
+        String header = Build.MANUFACTURER + " " + Build.MODEL + ", Android " +
+                Build.VERSION.RELEASE + " (" + Build.FINGERPRINT + ")";
+        File traceFile = new File(directory, "trace.json");
+        if (mMetrics.dump(metricsFile, header) &&
+                mTrace.export(traceFile, android.os.Process.myPid())) {
+            Toast.makeText(this, directory.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(this, R.string.dump_metrics_failure, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * Called on the camera thread after the last picture of a burst. Reports the frame rate which
+     * was actually achieved, from the first takePicture() to the last onPictureTaken()
+     */
+    private void finishBurst() {
+        if (mBurstTaken > 1) {
+            mBurstFps = mBurstTaken * 1e9f / (mLastPictureTime - mBurstStartTime);
+            mBurstResultCount = mBurstTaken;
+            runOnUiThread(mShowBurstResultRunnable);
+        }
+        mBurstTaken = 0;
+    }
+
+    /**
+     * Ignore button presses for a while, so one press doesn't trigger an action repeatedly
+     */
+    private void debounceButton() {
+        mDebounce = true;
+        mHandler.removeCallbacks(mClearDebounceRunnable);
+        mHandler.postDelayed(mClearDebounceRunnable, BUTTON_DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Parse an integer preference, which is stored as a string by EditTextPreference
+     *
+     * @param prefs     The preferences to read from
+     * @param keyId     The resource ID of the preference's key
+     * @param defaultId The resource ID of the preference's default value
+     * @return The preference's value, or the default if it isn't a number
+     */
+    private int parseIntPreference(SharedPreferences prefs, int keyId, int defaultId) {
+        try {
+            return Integer.parseInt(prefs.getString(getString(keyId), getString(defaultId)));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(getString(defaultId));
+        }
+    }
+
+    /**
+     * Parse a decimal preference, which is stored as a string by EditTextPreference
+     *
+     * @param prefs     The preferences to read from
+     * @param keyId     The resource ID of the preference's key
+     * @param defaultId The resource ID of the preference's default value
+     * @return The preference's value, or the default if it isn't a number
+     */
+    private float parseFloatPreference(SharedPreferences prefs, int keyId, int defaultId) {
+        try {
+            return Float.parseFloat(prefs.getString(getString(keyId), getString(defaultId)));
+        } catch (NumberFormatException e) {
+            return Float.parseFloat(getString(defaultId));
+        }
+    }
+
+    /**
+     * Create the camera engine for this device. Camera2 is only used on Lollipop and later, and
+     * automatically only if every camera is more capable than a shim over the legacy API
+     *
+     * @param engine The camera engine preference, auto, legacy or camera2
+     * @return The camera engine to use
+     */
+    private ICameraEngine createCameraEngine(String engine) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                !engine.equals(getString(R.string.camera_engine_legacy)) &&
+                (engine.equals(getString(R.string.camera_engine_camera2)) ||
+                        Camera2Engine.isSupported(this))) {
+            return new Camera2Engine(this, mCameraListener, mHandler);
+        }
+        return new LegacyCameraEngine(mCameraListener, mHandler, mCapabilityIndex);
+    }
+
+    /**
+     * Parse the button tone preference, a comma separated list of frequencies in Hz. The first is
+     * the shutter button, the second switches the camera, and the third switches the flash
+     *
+     * @param tones The preference string
+     * @return The frequencies which could be parsed, possibly none
+     */
+    private static float[] parseButtonTones(String tones) {
+        ArrayList<Float> frequencies = new ArrayList<>();
+        for (String tone : tones.split(",")) {
+            try {
+                float frequency = Float.parseFloat(tone.trim());
+                if (frequency > 0 && frequency < AudioCapturer.SAMPLES_PER_SECOND / 2) {
+                    frequencies.add(frequency);
                 }
+            } catch (NumberFormatException e) {
+                /* Skip it */
             }
         }
+        float[] parsed = new float[frequencies.size()];
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = frequencies.get(i);
+        }
+        return parsed;
     }
 
     /**
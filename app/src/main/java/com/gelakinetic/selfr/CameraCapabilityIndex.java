@@ -0,0 +1,305 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers what each camera on this device can do, so opening a camera is a lookup rather than a
+ * scan through every camera's info and supported sizes. The index is stored in a small binary file,
+ * and is thrown away when the OS build changes, since an update can change what cameras support
+ */
+@SuppressWarnings("deprecation")
+class CameraCapabilityIndex {
+
+    /* File format */
+    private static final int MAGIC = 0x53454C46;
+    private static final int VERSION = 1;
+    /* The largest values the file's unsigned byte and short fields hold */
+    private static final int MAX_BYTE = 0xFF;
+    private static final int MAX_SHORT = 0xFFFF;
+
+    /**
+     * What one camera can do
+     */
+    static class Capabilities {
+        final int mCameraId;
+        final int mFacing;
+        final int mPictureWidth;
+        final int mPictureHeight;
+        final boolean mAutoFocus;
+        /* Supported preview sizes, as width, height pairs */
+        final int[] mPreviewSizes;
+
+        Capabilities(int cameraId, int facing, int pictureWidth, int pictureHeight,
+                     boolean autoFocus, int[] previewSizes) {
+            mCameraId = cameraId;
+            mFacing = facing;
+            mPictureWidth = pictureWidth;
+            mPictureHeight = pictureHeight;
+            mAutoFocus = autoFocus;
+            mPreviewSizes = previewSizes;
+        }
+    }
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final ArrayList<Capabilities> mCapabilities = new ArrayList<>();
+    private boolean mLoaded = false;
+
+    /**
+     * Default constructor. Nothing is read until the index is first used
+     *
+     * @param file        Where the index is stored
+     * @param fingerprint Identifies the OS build, like Build.FINGERPRINT. The stored index is only
+     *                    used if it was written by the same build
+     */
+    CameraCapabilityIndex(File file, String fingerprint) {
+        mFile = file;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Find a camera's capabilities
+     *
+     * @param facing Camera.CameraInfo.CAMERA_FACING_FRONT or Camera.CameraInfo.CAMERA_FACING_BACK
+     * @return The capabilities of the first camera facing that way, or null if it isn't indexed
+     */
+    synchronized Capabilities find(int facing) {
+        load();
+        for (Capabilities capabilities : mCapabilities) {
+            if (capabilities.mFacing == facing) {
+                return capabilities;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add a camera's capabilities, replacing any for the same camera, and save the index.
+     * Capabilities which don't fit in the file aren't indexed, so that camera is scanned every time
+     * it's opened instead
+     *
+     * @param capabilities What the camera can do
+     * @return true if the capabilities were indexed, false if they don't fit
+     */
+    synchronized boolean put(Capabilities capabilities) {
+        load();
+        boolean replaced = remove(capabilities.mCameraId);
+        if (!fits(capabilities) || mCapabilities.size() >= MAX_BYTE) {
+            if (replaced) {
+                save();
+            }
+            return false;
+        }
+        mCapabilities.add(capabilities);
+        save();
+        return true;
+    }
+
+    /**
+     * @param capabilities A camera's capabilities
+     * @return true if every value fits in its field in the file, false if any would be truncated
+     */
+    private static boolean fits(Capabilities capabilities) {
+        if (capabilities.mCameraId < 0 || capabilities.mCameraId > MAX_BYTE ||
+                capabilities.mFacing < 0 || capabilities.mFacing > MAX_BYTE ||
+                capabilities.mPictureWidth < 0 || capabilities.mPictureWidth > MAX_SHORT ||
+                capabilities.mPictureHeight < 0 || capabilities.mPictureHeight > MAX_SHORT ||
+                capabilities.mPreviewSizes.length / 2 > MAX_BYTE) {
+            return false;
+        }
+        for (int size : capabilities.mPreviewSizes) {
+            if (size < 0 || size > MAX_SHORT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forget a camera's capabilities, like when they turned out to be wrong, and save the index
+     *
+     * @param cameraId The camera's ID
+     */
+    synchronized void invalidate(int cameraId) {
+        load();
+        if (remove(cameraId)) {
+            save();
+        }
+    }
+
+    /**
+     * @param cameraId The ID of a camera to remove from the index
+     * @return true if it was in the index, false otherwise
+     */
+    private boolean remove(int cameraId) {
+        for (int i = 0; i < mCapabilities.size(); i++) {
+            if (mCapabilities.get(i).mCameraId == cameraId) {
+                mCapabilities.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Scan a camera's parameters for the capabilities this app uses
+     *
+     * @param cameraId   The camera's ID
+     * @param facing     Which way it faces
+     * @param parameters Its parameters
+     * @return The camera's capabilities
+     */
+    static Capabilities scan(int cameraId, int facing, Camera.Parameters parameters) {
+        /* Find the native resolution, the tallest picture size */
+        int pictureWidth = 0;
+        int pictureHeight = 0;
+        List<Camera.Size> pictureSizes = parameters.getSupportedPictureSizes();
+        if (pictureSizes != null) {
+            int maxHeight = Integer.MIN_VALUE;
+            for (Camera.Size size : pictureSizes) {
+                if (size.height > maxHeight) {
+                    maxHeight = size.height;
+                    pictureWidth = size.width;
+                    pictureHeight = size.height;
+                }
+            }
+        }
+
+        /* Check for auto-focus */
+        List<String> focusModes = parameters.getSupportedFocusModes();
+        boolean autoFocus = focusModes != null &&
+                focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO);
+
+        /* Flatten the preview sizes */
+        List<Camera.Size> previewSizes = parameters.getSupportedPreviewSizes();
+        int previewSizeCount = (previewSizes == null) ? 0 : previewSizes.size();
+        int[] flatPreviewSizes = new int[previewSizeCount * 2];
+        for (int i = 0; i < flatPreviewSizes.length / 2; i++) {
+            flatPreviewSizes[2 * i] = previewSizes.get(i).width;
+            flatPreviewSizes[2 * i + 1] = previewSizes.get(i).height;
+        }
+
+        return new Capabilities(cameraId, facing, pictureWidth, pictureHeight, autoFocus,
+                flatPreviewSizes);
+    }
+
+    /**
+     * Read the index from disk, once. A missing, corrupt or outdated file leaves the index empty
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !in.readUTF().equals(mFingerprint)) {
+                return;
+            }
+            ArrayList<Capabilities> loaded = new ArrayList<>();
+            int count = in.readUnsignedByte();
+            for (int i = 0; i < count; i++) {
+                int cameraId = in.readUnsignedByte();
+                int facing = in.readUnsignedByte();
+                int pictureWidth = in.readUnsignedShort();
+                int pictureHeight = in.readUnsignedShort();
+                boolean autoFocus = in.readBoolean();
+                int[] previewSizes = new int[in.readUnsignedByte() * 2];
+                for (int j = 0; j < previewSizes.length; j++) {
+                    previewSizes[j] = in.readUnsignedShort();
+                }
+                loaded.add(new Capabilities(cameraId, facing, pictureWidth, pictureHeight,
+                        autoFocus, previewSizes));
+            }
+            mCapabilities.addAll(loaded);
+        } catch (IOException e) {
+            /* Start over with an empty index */
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index to disk. It's written to a temporary file and renamed, so a crash part way
+     * through never leaves a corrupt index behind
+     */
+    private void save() {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeByte(mCapabilities.size());
+            for (Capabilities capabilities : mCapabilities) {
+                out.writeByte(capabilities.mCameraId);
+                out.writeByte(capabilities.mFacing);
+                out.writeShort(capabilities.mPictureWidth);
+                out.writeShort(capabilities.mPictureHeight);
+                out.writeBoolean(capabilities.mAutoFocus);
+                out.writeByte(capabilities.mPreviewSizes.length / 2);
+                for (int size : capabilities.mPreviewSizes) {
+                    out.writeShort(size);
+                }
+            }
+            written = true;
+        } catch (IOException e) {
+            /* The index will be rebuilt next time */
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written || !tempFile.renameTo(mFile)) {
+            /* Don't leave a partial index around, it will be rebuilt next time */
+            tempFile.delete();
+        }
+    }
+}
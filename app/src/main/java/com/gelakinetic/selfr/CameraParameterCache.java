@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a local copy of a Camera's parameters. Camera.getParameters() and setParameters() each
+ * flatten and parse the whole parameter string across IPC, so rather than round tripping for every
+ * change, changes are made to the local copy and pushed with a single setParameters() call, and
+ * only if something actually changed. Reading supported values never touches the camera
+ */
+@SuppressWarnings("deprecation")
+class CameraParameterCache {
+
+    private static final String KEY_ROTATION = "rotation";
+    private static final String KEY_FLASH_MODE = "flash-mode";
+    private static final String KEY_PREVIEW_SIZE = "preview-size";
+    private static final String KEY_PICTURE_SIZE = "picture-size";
+    private static final String KEY_FOCUS_MODE = "focus-mode";
+    private static final String KEY_AUTO_EXPOSURE_LOCK = "auto-exposure-lock";
+
+    private final Camera mCamera;
+    private Camera.Parameters mParameters;
+
+    /* Changes which haven't been applied yet, as parameter keys and values */
+    private final LinkedHashMap<String, String> mPending = new LinkedHashMap<>();
+
+    /**
+     * Default constructor. Reads the camera's parameters once
+     *
+     * @param camera The camera to cache parameters for
+     */
+    CameraParameterCache(Camera camera) {
+        mCamera = camera;
+        mParameters = camera.getParameters();
+    }
+
+    /**
+     * @return The cached parameters, for reading supported values. Changes made to these directly
+     * won't be applied, use the setters instead
+     */
+    synchronized Camera.Parameters getParameters() {
+        return mParameters;
+    }
+
+    /**
+     * @return The supported preview sizes, from the cached parameters
+     */
+    synchronized List<Camera.Size> getSupportedPreviewSizes() {
+        return mParameters.getSupportedPreviewSizes();
+    }
+
+    /**
+     * @return The supported flash modes, from the cached parameters, or null if flash isn't
+     * supported
+     */
+    synchronized List<String> getSupportedFlashModes() {
+        return mParameters.getSupportedFlashModes();
+    }
+
+    /**
+     * @param rotation The clockwise rotation to apply to pictures, in degrees
+     */
+    synchronized void setRotation(int rotation) {
+        if (!Integer.toString(rotation).equals(mParameters.get(KEY_ROTATION))) {
+            mParameters.setRotation(rotation);
+            changed(KEY_ROTATION);
+        }
+    }
+
+    /**
+     * @param flashMode One of the Camera.Parameters.FLASH_MODE_* values
+     */
+    synchronized void setFlashMode(String flashMode) {
+        if (!flashMode.equals(mParameters.getFlashMode())) {
+            mParameters.setFlashMode(flashMode);
+            changed(KEY_FLASH_MODE);
+        }
+    }
+
+    /**
+     * @param width  The width of preview frames, in pixels
+     * @param height The height of preview frames, in pixels
+     */
+    synchronized void setPreviewSize(int width, int height) {
+        Camera.Size current = mParameters.getPreviewSize();
+        if (current == null || current.width != width || current.height != height) {
+            mParameters.setPreviewSize(width, height);
+            changed(KEY_PREVIEW_SIZE);
+        }
+    }
+
+    /**
+     * @param width  The width of pictures, in pixels
+     * @param height The height of pictures, in pixels
+     */
+    synchronized void setPictureSize(int width, int height) {
+        Camera.Size current = mParameters.getPictureSize();
+        if (current == null || current.width != width || current.height != height) {
+            mParameters.setPictureSize(width, height);
+            changed(KEY_PICTURE_SIZE);
+        }
+    }
+
+    /**
+     * @param focusMode One of the Camera.Parameters.FOCUS_MODE_* values
+     */
+    synchronized void setFocusMode(String focusMode) {
+        if (!focusMode.equals(mParameters.getFocusMode())) {
+            mParameters.setFocusMode(focusMode);
+            changed(KEY_FOCUS_MODE);
+        }
+    }
+
+    /**
+     * Lock or unlock auto-exposure. This does nothing if the camera can't lock it
+     *
+     * @param lock true to hold the current exposure, false to let it adjust
+     */
+    synchronized void setAutoExposureLock(boolean lock) {
+        if (mParameters.isAutoExposureLockSupported() &&
+                mParameters.getAutoExposureLock() != lock) {
+            mParameters.setAutoExposureLock(lock);
+            changed(KEY_AUTO_EXPOSURE_LOCK);
+        }
+    }
+
+    /**
+     * Remember a change to the cached parameters, so it can be applied on its own if the camera
+     * rejects a batch of changes
+     *
+     * @param key The key of the parameter which changed
+     */
+    private void changed(String key) {
+        mPending.put(key, mParameters.get(key));
+    }
+
+    /**
+     * @return true if there are changes which haven't been applied, false otherwise
+     */
+    synchronized boolean isDirty() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Push every change made since the last apply() to the camera, with a single setParameters()
+     * call. This does nothing if nothing changed. If the camera rejects the batch, the cache is
+     * re-read from the camera and the changes are tried one at a time, so a single bad value only
+     * loses itself, and the cache never drifts from what the camera actually uses
+     *
+     * @return true if the parameters were applied or there was nothing to apply, false if the
+     * camera rejected any of them
+     */
+    synchronized boolean apply() {
+        if (mPending.isEmpty()) {
+            return true;
+        }
+        try {
+            mCamera.setParameters(mParameters);
+            mPending.clear();
+            return true;
+        } catch (RuntimeException e) {
+            /* Fall through and find the bad change */
+        }
+
+        boolean applied = true;
+        try {
+            mParameters = mCamera.getParameters();
+            for (Map.Entry<String, String> change : mPending.entrySet()) {
+                mParameters.set(change.getKey(), change.getValue());
+                try {
+                    mCamera.setParameters(mParameters);
+                } catch (RuntimeException e) {
+                    /* Throw away this change, and keep the ones before it */
+                    applied = false;
+                    mParameters = mCamera.getParameters();
+                }
+            }
+        } catch (RuntimeException e) {
+            /* The camera is gone, the cache doesn't matter anymore */
+            applied = false;
+        }
+        mPending.clear();
+        return applied;
+    }
+}
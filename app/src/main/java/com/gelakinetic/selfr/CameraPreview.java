@@ -20,20 +20,16 @@
 package com.gelakinetic.selfr;
 
 import android.content.Context;
-import android.hardware.Camera;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.IOException;
-import java.util.List;
-
-@SuppressWarnings("deprecation")
 public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     private SurfaceHolder mHolder;
-    private Camera mCamera;
-    private boolean isPreviewRunning = false;
+    private ICameraEngine mCameraEngine;
+    private PreviewSizeSelector mPreviewSizeSelector;
+    private int mPreviewSize = -1;
 
     /**
      * Constructor which fixes a lint warning
@@ -45,16 +41,18 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     }
 
     /**
-     * Constructor that should be used. Uses the given Camera for the preview
+     * Constructor that should be used. Uses the ICameraEngine's open camera for the preview. All
+     * of the work with the camera is posted to the camera thread
      *
-     * @param context The context for this UI element
-     * @param camera  The Camera to use for this preview
+     * @param context      The context for this UI element
+     * @param cameraEngine The ICameraEngine, which has a camera open
      */
-    public CameraPreview(Context context, @NotNull Camera camera) {
+    public CameraPreview(Context context, @NotNull ICameraEngine cameraEngine) {
         super(context);
 
-        /* Set the camera and get a list of supported preview sizes */
-        mCamera = camera;
+        /* Set the camera, and get its preview size selector */
+        mCameraEngine = cameraEngine;
+        mPreviewSizeSelector = cameraEngine.getPreviewSizeSelector();
 
         /* Install a SurfaceHolder.Callback so we get notified when the underlying
          * surface is created and destroyed.
@@ -73,12 +71,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
      */
     public void surfaceCreated(SurfaceHolder holder) {
         /* The Surface has been created, now tell the camera where to draw the preview. */
-        try {
-            mCamera.setPreviewDisplay(holder);
-            mCamera.startPreview();
-        } catch (IOException e) {
-            /* Eat it */
-        }
+        mCameraEngine.startPreview(holder);
     }
 
     /**
@@ -90,8 +83,8 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
      * @param holder The SurfaceHolder whose surface is being destroyed.
      */
     public void surfaceDestroyed(SurfaceHolder holder) {
-        /* Empty. Resources are released in CameraActivity.onPause() or
-         * CameraActivity.switchCamera()
+        /* Empty. Resources are released by the ICameraEngine, when CameraActivity.onPause() or
+         * CameraActivity.switchCamera() closes the camera
          */
     }
 
@@ -106,31 +99,8 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
      * @param height The height of the surface, in pixels
      */
     public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-        /* Stop the preview during modification */
-        if (isPreviewRunning) {
-            mCamera.stopPreview();
-        }
-
-        /* Rotate to device orientation (locked in portrait) */
-        mCamera.setDisplayOrientation(90);
-
-        /* Set the preview size to the surface size */
-        Camera.Parameters parameters = mCamera.getParameters();
-        parameters.setPreviewSize(width, height);
-        try {
-            mCamera.setParameters(parameters);
-        } catch (RuntimeException e) {
-            /* eat it? */
-        }
-
-        /* Restart the preview */
-        try {
-            mCamera.setPreviewDisplay(mHolder);
-            mCamera.startPreview();
-            isPreviewRunning = true;
-        } catch (Exception e) {
-            /* Eat it */
-        }
+        /* Restart the preview on the camera thread, with the size chosen in onMeasure() */
+        mCameraEngine.restartPreview(mHolder);
     }
 
     /**
@@ -149,74 +119,34 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         int width = resolveSize(getSuggestedMinimumWidth(), widthMeasureSpec);
         int height = resolveSize(getSuggestedMinimumHeight(), heightMeasureSpec);
 
-        /* Get supported preview sizes */
-        List<Camera.Size> supportedPreviewSizes =
-                mCamera.getParameters().getSupportedPreviewSizes();
-        Camera.Size previewSize = null;
-        if (supportedPreviewSizes != null) {
-            /* Find the optimal preview size */
-            previewSize = getOptimalPreviewSize(supportedPreviewSizes, width, height);
-
-            /* Set the camera with the preview size */
-            if (previewSize != null) {
-                Camera.Parameters parameters = mCamera.getParameters();
-                parameters.setPreviewSize(previewSize.width, previewSize.height);
-                mCamera.setParameters(parameters);
+        /* Find the optimal preview size. The selector remembers its answers, so repeated measure
+         * passes are a lookup and never touch the camera
+         */
+        int previewSize = (mPreviewSizeSelector == null) ? -1 :
+                mPreviewSizeSelector.select(width, height);
+
+        if (previewSize >= 0) {
+            int previewWidth = mPreviewSizeSelector.getWidth(previewSize);
+            int previewHeight = mPreviewSizeSelector.getHeight(previewSize);
+
+            /* Remember the preview size if it changed. The camera gets it when the surface
+             * starts or restarts the preview
+             */
+            if (previewSize != mPreviewSize) {
+                mCameraEngine.setPreviewSize(previewWidth, previewHeight);
+                mPreviewSize = previewSize;
             }
-        }
 
-        if (previewSize != null) {
             /* Set this view with the preview size */
             float ratio;
-            if (previewSize.height >= previewSize.width) {
-                ratio = (float) previewSize.height / (float) previewSize.width;
+            if (previewHeight >= previewWidth) {
+                ratio = (float) previewHeight / (float) previewWidth;
             } else {
-                ratio = (float) previewSize.width / (float) previewSize.height;
+                ratio = (float) previewWidth / (float) previewHeight;
             }
             setMeasuredDimension(width, (int) (width * ratio));
         } else {
             setMeasuredDimension(width, height);
         }
     }
-
-    /**
-     * Given a list of preview sizes, and the screen size, find the largest preview which most
-     * closely matches the aspect ratio of the screen
-     *
-     * @param sizes        A list of supported preview sizes
-     * @param screenWidth  The width of the screen
-     * @param screenHeight The height of the screen
-     * @return The preview size which is best for this screen
-     */
-    private Camera.Size getOptimalPreviewSize(List<Camera.Size> sizes, int screenWidth,
-                                              int screenHeight) {
-        /* No preview sizes? Don't bother */
-        if (sizes == null) {
-            return null;
-        }
-
-        /* This is the aspect ratio of the screen */
-        double targetRatio = Math.max(screenHeight, screenWidth) /
-                Math.min(screenHeight, screenWidth);
-
-        /* Set up search variables */
-        Camera.Size optimalSize = null;
-        double minRatioDiff = Double.MAX_VALUE;
-        double minSizeDiff = Double.MAX_VALUE;
-        /* Iterate through all sizes */
-        for (Camera.Size size : sizes) {
-            /* Find the closest aspect ratio match */
-            double ratio = Math.max(size.height, size.width) / Math.min(size.height, size.width);
-            if (Math.abs(ratio - targetRatio) <= minRatioDiff) {
-                /* Find the largest of the aspect ratio matches */
-                if (Math.abs(Math.max(size.height, size.width) - Math.max(screenHeight, screenWidth)) < minSizeDiff) {
-                    optimalSize = size;
-                    minRatioDiff = Math.abs(ratio - targetRatio);
-                    minSizeDiff = Math.abs(Math.max(size.height, size.width) - Math.max(screenHeight, screenWidth));
-                }
-            }
-        }
-
-        return optimalSize;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for every stage between a button press and a picture on disk. Timestamps are
+ * from System.nanoTime(), which is monotonic
+ */
+class CaptureMetrics {
+
+    /* Enums */
+    enum Stage {
+        /* Waiting in IAudioSource.read() for a frame of audio */
+        AUDIO_READ,
+        /* From a frame being captured until the detector thread picks it up */
+        DETECTOR_QUEUE,
+        /* Running the envelope detector and threshold on a frame */
+        ENVELOPE,
+        /* From the threshold being crossed until the picture is requested or the flash shown */
+        DECISION,
+        /* The front "flash" screen, from showing it until the picture is requested */
+        FRONT_FLASH,
+        /* From Camera.takePicture() until onPictureTaken() */
+        TAKE_PICTURE,
+        /* Writing the JPEG to disk, from opening the temporary file until it's renamed */
+        FILE_WRITE,
+        /* Forcing a written JPEG to storage, part of FILE_WRITE */
+        FSYNC,
+        /* From the button press until Camera.takePicture() */
+        PRESS_TO_SHUTTER,
+        /* From the button press until the JPEG is on disk */
+        PRESS_TO_DISK,
+        /* Between pictures in a burst, from one onPictureTaken() to the next */
+        BURST_INTERVAL,
+        /* From asking for a camera to be opened until its first preview frame */
+        FIRST_PREVIEW_FRAME,
+        /* How far the saved preview frame was from the button press, in zero shutter lag mode */
+        ZSL_FRAME_OFFSET,
+        /* From the detector arming until pre-focus finished */
+        PRE_FOCUS,
+        /* From the detector arming until the button press, how much warning pre-focus gets */
+        ARM_LEAD
+    }
+
+    enum Counter {
+        /* Pictures taken after pre-focus finished */
+        PRE_FOCUS_IN_TIME,
+        /* Pictures taken while pre-focus was still running */
+        PRE_FOCUS_LATE,
+        /* Pictures taken without the detector arming first */
+        PRE_FOCUS_MISSED,
+        /* Complete pictures left as temporary files by a crash, and renamed into place */
+        TEMP_SALVAGED,
+        /* Truncated pictures left as temporary files by a crash, and deleted */
+        TEMP_DELETED
+    }
+
+    private static CaptureMetrics captureMetrics;
+    private final LatencyHistogram[] histograms;
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    /**
+     * Default constructor
+     */
+    private CaptureMetrics() {
+        histograms = new LatencyHistogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Use this instead of the constructor. This manages a static instance of CaptureMetrics, so
+     * every thread records to the same histograms
+     *
+     * @return The CaptureMetrics to use
+     */
+    static synchronized CaptureMetrics getInstance() {
+        if (captureMetrics == null) {
+            captureMetrics = new CaptureMetrics();
+        }
+        return captureMetrics;
+    }
+
+    /**
+     * @return A monotonic timestamp, in nanoseconds
+     */
+    static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param timestamp A timestamp from now()
+     * @return The same moment as wall clock time, in milliseconds from System.currentTimeMillis()
+     */
+    static long toWallTime(long timestamp) {
+        return System.currentTimeMillis() - (now() - timestamp) / 1000000;
+    }
+
+    /**
+     * Record how long a stage took
+     *
+     * @param stage      The stage which finished
+     * @param startNanos When the stage started, from now()
+     * @param endNanos   When the stage ended, from now()
+     */
+    void record(Stage stage, long startNanos, long endNanos) {
+        histograms[stage.ordinal()].record(endNanos - startNanos);
+    }
+
+    /**
+     * Count an event
+     *
+     * @param counter The event which happened
+     */
+    void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * @param counter An event
+     * @return How many times it happened
+     */
+    long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * @param stage A stage
+     * @return The histogram of that stage's latencies
+     */
+    LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+
+    /**
+     * @return A short summary of shutter latency, suitable for the debug view
+     */
+    String getShutterSummary() {
+        LatencyHistogram shutter = getHistogram(Stage.PRESS_TO_SHUTTER);
+        if (shutter.getCount() == 0) {
+            return "";
+        }
+        return String.format(Locale.US, "shutter p50 %d ms, p99 %d ms",
+                shutter.getPercentileMicros(50) / 1000, shutter.getPercentileMicros(99) / 1000);
+    }
+
+    /**
+     * @return A table of count, mean, p50, p90, p99 and max for every stage, in microseconds,
+     * followed by every counter
+     */
+    String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.US, "%-18s %8s %10s %10s %10s %10s %10s%n",
+                "stage", "count", "mean_us", "p50_us", "p90_us", "p99_us", "max_us"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            summary.append(String.format(Locale.US, "%-18s %8d %10d %10d %10d %10d %10d%n",
+                    stage.name(), histogram.getCount(), histogram.getMeanMicros(),
+                    histogram.getPercentileMicros(50), histogram.getPercentileMicros(90),
+                    histogram.getPercentileMicros(99), histogram.getMaxMicros()));
+        }
+        for (Counter counter : Counter.values()) {
+            summary.append(String.format(Locale.US, "%-18s %8d%n", counter.name(),
+                    getCount(counter)));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Write the summary table to a file, so latencies can be compared across devices
+     *
+     * @param file   The file to write to. It is overwritten
+     * @param header A line describing the device, written before the table
+     * @return true if the file was written, false otherwise
+     */
+    boolean dump(File file, String header) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(header);
+            writer.write("\n");
+            writer.write(getSummary());
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Names pictures by the millisecond they were taken, like IMG_20151231_235959_123.jpg. Names only
+ * ever move forward, so two pictures in the same millisecond, or a wall clock which jumps
+ * backwards, get a sequence number appended instead of overwriting each other. Names from earlier
+ * runs aren't remembered, so each name is checked against the disk before it's handed out
+ */
+class CaptureNamer {
+
+    private static final String PREFIX = "IMG_";
+    private static final String SUFFIX = ".jpg";
+
+    private final File mDirectory;
+    /* Formatting dates is slow to set up, so this is built once and only used while synchronized */
+    private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+    private final Date mDate = new Date();
+    private long mLastMillis = Long.MIN_VALUE;
+    private String mStamp = null;
+    private int mSequence = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param directory The directory pictures are saved in
+     */
+    CaptureNamer(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return The directory pictures are saved in
+     */
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * @return A file for the next picture, named for the current time. It's never the same as any
+     * other file this CaptureNamer returned
+     */
+    File next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * @param millis When the picture was taken, from System.currentTimeMillis()
+     * @return A file for the next picture. It's never the same as any other file this CaptureNamer
+     * returned, and sorts after all of them. It doesn't exist yet, unless another process is
+     * naming pictures in the same directory
+     */
+    synchronized File next(long millis) {
+        if (millis > mLastMillis) {
+            mLastMillis = millis;
+            mSequence = 0;
+            mDate.setTime(mLastMillis);
+            mStamp = mFormat.format(mDate);
+        } else {
+            /* Same millisecond as the last picture, or the clock went backwards. Stay on the last
+             * millisecond, so names keep sorting in the order they were taken
+             */
+            mSequence++;
+        }
+
+        /* An earlier run, or a clock which was set back and forward again, may have used this
+         * millisecond too. Skip any names which are already taken
+         */
+        File file = build();
+        while (file.exists()) {
+            mSequence++;
+            file = build();
+        }
+        return file;
+    }
+
+    /**
+     * @return The file for the current millisecond and sequence number
+     */
+    private File build() {
+        StringBuilder name = new StringBuilder(32);
+        name.append(PREFIX).append(mStamp);
+        if (mSequence > 0) {
+            /* Padded so IMG_..._123_010 sorts after IMG_..._123_009 */
+            name.append(String.format(Locale.US, "_%03d", mSequence));
+        }
+        name.append(SUFFIX);
+        return new File(mDirectory, name.toString());
+    }
+}
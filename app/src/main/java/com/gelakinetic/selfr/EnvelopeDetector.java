@@ -21,12 +21,41 @@ package com.gelakinetic.selfr;
 
 class EnvelopeDetector {
 
-    /* Filter coefficient */
-    private static final float ALPHA = 0.5f;
+    /* Default filter coefficient */
+    static final float ALPHA = 0.5f;
+
+    /* Filter coefficient, how much of each new squared sample goes into the output */
+    private final float mAlpha;
 
     /* Save the last output sample for the next calculations, to keep calculations continuous */
     private float mLastOutput = 0;
 
+    /**
+     * Default constructor, filters with ALPHA
+     */
+    EnvelopeDetector() {
+        this(ALPHA);
+    }
+
+    /**
+     * Constructor with a different filter coefficient, for tuning the detector against recordings
+     *
+     * @param alpha The filter coefficient, between 0 and 1. Larger values follow the signal faster
+     */
+    EnvelopeDetector(float alpha) throws IllegalArgumentException {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        mAlpha = alpha;
+    }
+
+    /**
+     * @return The filter coefficient
+     */
+    float getAlpha() {
+        return mAlpha;
+    }
+
     /**
      * Approximate the envelope of an input signal by squaring it and running it through
      * a low pass filter
@@ -35,18 +64,37 @@ class EnvelopeDetector {
      * @param outputs Output, the approximate envelope of the input samples
      */
     void findEnvelope(short[] samples, float[] outputs) throws IllegalArgumentException {
+        findEnvelope(samples, samples.length, outputs);
+    }
+
+    /**
+     * Approximate the envelope of the first length samples of an input signal. This lets callers
+     * reuse the same, possibly oversized, buffers for every call without allocating
+     *
+     * @param samples Input, samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     * @param outputs Output, the approximate envelope of the input samples. Must hold at least
+     *                length + 1 elements
+     */
+    void findEnvelope(short[] samples, int length, float[] outputs)
+            throws IllegalArgumentException {
+        if (outputs.length < length + 1) {
+            throw new IllegalArgumentException("outputs must hold at least length + 1 elements");
+        }
+
         /* Counter variable */
         int i;
+        float alpha = mAlpha;
 
         /* Seed outputs with the last output value from prior calculations */
         outputs[0] = mLastOutput;
 
         /* For each sample */
-        for (i = 0; i < samples.length; i++) {
-            /* Square it, multiply by ALPHA, and sum it with the prior output
-             * multiplied by (1 - ALPHA)
+        for (i = 0; i < length; i++) {
+            /* Square it, multiply by alpha, and sum it with the prior output
+             * multiplied by (1 - alpha)
              */
-            outputs[i + 1] = (ALPHA * (samples[i] * samples[i])) + ((1 - ALPHA) * outputs[i]);
+            outputs[i + 1] = (alpha * (samples[i] * samples[i])) + ((1 - alpha) * outputs[i]);
         }
 
         /* Save the last output sample for the next processing call */
@@ -60,11 +108,22 @@ class EnvelopeDetector {
      * @return The average value of elements in the array
      */
     static float average(float[] array) {
+        return average(array, array.length);
+    }
+
+    /**
+     * Helper function to calculate the average of the first length elements of an array
+     *
+     * @param array  An array to average
+     * @param length The number of elements to average
+     * @return The average value of the first length elements in the array
+     */
+    static float average(float[] array, int length) {
         float avg = 0;
-        for (float f : array) {
-            avg += f;
+        for (int i = 0; i < length; i++) {
+            avg += array[i];
         }
-        return (avg / array.length);
+        return (avg / length);
     }
 }
 
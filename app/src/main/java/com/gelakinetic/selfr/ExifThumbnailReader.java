@@ -0,0 +1,283 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the small thumbnail cameras embed in a JPEG's EXIF, along with its orientation, without
+ * decoding the picture. Only the segments before the image data are read, which is a few
+ * kilobytes, rather than the whole picture. JpegExifWriter keeps a single EXIF segment, but
+ * pictures from elsewhere can have more than one, so every one is checked and the first
+ * orientation found wins
+ */
+class ExifThumbnailReader {
+
+    /* JPEG markers */
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+
+    /* TIFF tags */
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * What was found in a JPEG's EXIF
+     */
+    static class Exif {
+        /* One of the JpegExifWriter.ORIENTATION_* values */
+        int mOrientation = JpegExifWriter.ORIENTATION_NONE;
+        /* The embedded thumbnail, a JPEG, is mThumbnailLength bytes of mThumbnail starting at
+         * mThumbnailOffset. mThumbnail is null if there isn't one
+         */
+        byte[] mThumbnail = null;
+        int mThumbnailOffset = 0;
+        int mThumbnailLength = 0;
+    }
+
+    /**
+     * Static methods only
+     */
+    private ExifThumbnailReader() {
+    }
+
+    /**
+     * @param orientation One of the JpegExifWriter.ORIENTATION_* values
+     * @return The clockwise rotation which shows the image upright, in degrees
+     */
+    static int rotationForOrientation(int orientation) {
+        switch (orientation) {
+            case JpegExifWriter.ORIENTATION_ROTATE_90:
+                return 90;
+            case JpegExifWriter.ORIENTATION_ROTATE_180:
+                return 180;
+            case JpegExifWriter.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Read the EXIF of a JPEG
+     *
+     * @param file The JPEG
+     * @return What was found, or null if the file couldn't be read or isn't a JPEG. A JPEG without
+     * EXIF has no thumbnail and ORIENTATION_NONE
+     */
+    static Exif read(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+                return null;
+            }
+            Exif exif = new Exif();
+            while (true) {
+                if (in.readUnsignedByte() != 0xFF) {
+                    /* Lost track of the segments, go with what was found */
+                    return exif;
+                }
+                int marker = in.readUnsignedByte();
+                if (marker == 0xFF) {
+                    /* Fill byte, the marker is next */
+                    continue;
+                }
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    /* The image data starts here, and EXIF is always before it */
+                    return exif;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return exif;
+                }
+                if (marker == MARKER_APP1 && length > EXIF_HEADER.length) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    parse(segment, exif);
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
+    /**
+     * Skip bytes in a stream, since skip() may skip fewer than asked for
+     *
+     * @param in     The stream
+     * @param length How many bytes to skip
+     * @throws IOException If the stream ended first
+     */
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of JPEG");
+            }
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Pull the orientation and thumbnail out of an APP1 segment. The first orientation found wins,
+     * as that's the one viewers use
+     *
+     * @param segment The segment, after its length
+     * @param exif    Where to put what was found
+     */
+    private static void parse(byte[] segment, Exif exif) {
+        for (int i = 0; i < EXIF_HEADER.length; i++) {
+            if (segment[i] != EXIF_HEADER[i]) {
+                /* Some other APP1, like XMP */
+                return;
+            }
+        }
+        int tiff = EXIF_HEADER.length;
+        if (segment.length < tiff + 8) {
+            return;
+        }
+        boolean littleEndian;
+        if (segment[tiff] == 'I' && segment[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (segment[tiff] == 'M' && segment[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return;
+        }
+
+        /* IFD0 has the orientation, and links to IFD1, which has the thumbnail */
+        int ifd0 = readInt(segment, tiff + 4, littleEndian);
+        int ifd1 = 0;
+        int entries = readIfd(segment, tiff, ifd0, littleEndian);
+        if (entries >= 0) {
+            for (int i = 0; i < entries; i++) {
+                int entry = tiff + ifd0 + 2 + i * 12;
+                if (readShort(segment, entry, littleEndian) == TAG_ORIENTATION &&
+                        exif.mOrientation == JpegExifWriter.ORIENTATION_NONE) {
+                    /* A SHORT value sits at the start of the value field */
+                    exif.mOrientation = readShort(segment, entry + 8, littleEndian);
+                }
+            }
+            int next = tiff + ifd0 + 2 + entries * 12;
+            if (next + 4 <= segment.length) {
+                ifd1 = readInt(segment, next, littleEndian);
+            }
+        }
+        if (ifd1 <= 0 || exif.mThumbnail != null) {
+            return;
+        }
+
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        entries = readIfd(segment, tiff, ifd1, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = tiff + ifd1 + 2 + i * 12;
+            int tag = readShort(segment, entry, littleEndian);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = readValue(segment, entry, littleEndian);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = readValue(segment, entry, littleEndian);
+            }
+        }
+        if (thumbnailOffset > 0 && thumbnailLength > 0 &&
+                tiff + (long) thumbnailOffset + thumbnailLength <= segment.length) {
+            exif.mThumbnail = segment;
+            exif.mThumbnailOffset = tiff + thumbnailOffset;
+            exif.mThumbnailLength = thumbnailLength;
+        }
+    }
+
+    /**
+     * @param segment      The APP1 segment
+     * @param tiff         Where the TIFF header starts in the segment
+     * @param ifd          The IFD's offset from the TIFF header
+     * @param littleEndian The TIFF header's byte order
+     * @return The number of entries in the IFD, or -1 if it doesn't fit in the segment
+     */
+    private static int readIfd(byte[] segment, int tiff, int ifd, boolean littleEndian) {
+        if (ifd < 8 || tiff + (long) ifd + 2 > segment.length) {
+            return -1;
+        }
+        int entries = readShort(segment, tiff + ifd, littleEndian);
+        if (tiff + (long) ifd + 2 + entries * 12L > segment.length) {
+            return -1;
+        }
+        return entries;
+    }
+
+    /**
+     * @param segment      The APP1 segment
+     * @param entry        Where the IFD entry starts
+     * @param littleEndian The TIFF header's byte order
+     * @return The entry's value, as a SHORT or a LONG depending on its type
+     */
+    private static int readValue(byte[] segment, int entry, boolean littleEndian) {
+        if (readShort(segment, entry + 2, littleEndian) == TYPE_SHORT) {
+            return readShort(segment, entry + 8, littleEndian);
+        }
+        return readInt(segment, entry + 8, littleEndian);
+    }
+
+    /**
+     * @param data         Bytes
+     * @param offset       Where the value starts
+     * @param littleEndian The byte order
+     * @return An unsigned 16 bit value
+     */
+    private static int readShort(byte[] data, int offset, boolean littleEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+    }
+
+    /**
+     * @param data         Bytes
+     * @param offset       Where the value starts
+     * @param littleEndian The byte order
+     * @return A 32 bit value
+     */
+    private static int readInt(byte[] data, int offset, boolean littleEndian) {
+        int high = readShort(data, littleEndian ? offset + 2 : offset, littleEndian);
+        int low = readShort(data, littleEndian ? offset : offset + 2, littleEndian);
+        return (high << 16) | low;
+    }
+}
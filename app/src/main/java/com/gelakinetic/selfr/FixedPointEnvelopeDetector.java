@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * The same envelope approximation as EnvelopeDetector, calculated with integers only. This is for
+ * older ARM devices where floating point math is slow. Outputs are in the same units as
+ * EnvelopeDetector's, squared sample values
+ */
+class FixedPointEnvelopeDetector {
+
+    private static final int ONE_Q15 = 1 << 15;
+
+    /* Filter coefficient as a Q15 fixed point number */
+    private final int mAlphaQ15;
+
+    /* Save the last output sample for the next calculations, to keep calculations continuous */
+    private int mLastOutput = 0;
+
+    /**
+     * Default constructor, filters with EnvelopeDetector.ALPHA
+     */
+    FixedPointEnvelopeDetector() {
+        this(EnvelopeDetector.ALPHA);
+    }
+
+    /**
+     * Constructor with a different filter coefficient, for tuning the detector against recordings
+     *
+     * @param alpha The filter coefficient, between 0 and 1. It's rounded to the nearest Q15 value
+     */
+    FixedPointEnvelopeDetector(float alpha) throws IllegalArgumentException {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        mAlphaQ15 = Math.max(1, Math.round(alpha * ONE_Q15));
+    }
+
+    /**
+     * Approximate the envelope of the first length samples of an input signal by squaring it and
+     * running it through a low pass filter
+     *
+     * @param samples Input, samples from the AudioCapturer
+     * @param length  The number of valid samples in samples
+     * @param outputs Output, the approximate envelope of the input samples. Must hold at least
+     *                length + 1 elements
+     */
+    void findEnvelope(short[] samples, int length, int[] outputs) throws IllegalArgumentException {
+        if (outputs.length < length + 1) {
+            throw new IllegalArgumentException("outputs must hold at least length + 1 elements");
+        }
+
+        /* Seed outputs with the last output value from prior calculations */
+        outputs[0] = mLastOutput;
+
+        int alphaQ15 = mAlphaQ15;
+        if (alphaQ15 == ONE_Q15 / 2) {
+            /* With ALPHA at one half, the filter is just an average of the squared sample and the
+             * prior output. Both are at most 2^30, so their sum fits in 32 unsigned bits
+             */
+            for (int i = 0; i < length; i++) {
+                outputs[i + 1] = ((samples[i] * samples[i]) + outputs[i]) >>> 1;
+            }
+        } else {
+            /* Otherwise, multiply in Q15 with a 64 bit intermediate */
+            for (int i = 0; i < length; i++) {
+                outputs[i + 1] = (int) (((long) alphaQ15 * (samples[i] * samples[i]) +
+                        (long) (ONE_Q15 - alphaQ15) * outputs[i]) >> 15);
+            }
+        }
+
+        /* Save the last output sample for the next processing call */
+        mLastOutput = outputs[length];
+    }
+
+    /**
+     * Helper function to calculate the sum of the first length elements of an array
+     *
+     * @param array  An array to sum
+     * @param length The number of elements to sum
+     * @return The sum of the first length elements in the array
+     */
+    static long sum(int[] array, int length) {
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += array[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * An integer version of SlidingWindowAverage. The sum is kept exactly, so it never needs to be
+ * resynchronized, and callers can compare against it without dividing
+ */
+class FixedPointSlidingWindow {
+
+    /* The last mWindow.length values added, in a circular buffer */
+    private final int[] mWindow;
+    /* Where the next value will be written in mWindow */
+    private int mIndex = 0;
+    /* How many values have been added, up to mWindow.length */
+    private int mCount = 0;
+    /* The running sum of every value in mWindow */
+    private long mSum = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param windowSize The number of values to sum over, at least one
+     */
+    FixedPointSlidingWindow(int windowSize) {
+        mWindow = new int[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Add a value to the window, pushing out the oldest one if the window is full
+     *
+     * @param value The value to add
+     * @return The sum of the values currently in the window
+     */
+    long add(int value) {
+        mSum += value - (long) mWindow[mIndex];
+        mWindow[mIndex] = value;
+        mIndex++;
+        if (mIndex == mWindow.length) {
+            mIndex = 0;
+        }
+        if (mCount < mWindow.length) {
+            mCount++;
+        }
+        return mSum;
+    }
+
+    /**
+     * @return The number of values currently in the window
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The average of the values currently in the window, or 0 if it is empty
+     */
+    float getAverage() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return (float) mSum / mCount;
+    }
+}
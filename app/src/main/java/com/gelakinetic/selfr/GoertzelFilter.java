@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * Measures the power of a single frequency in a block of samples. This is much cheaper than an FFT
+ * when only a few frequencies are interesting, one multiply and two adds per sample
+ */
+class GoertzelFilter {
+
+    private final float mFrequency;
+    private final float mCoefficient;
+
+    /* Filter state, carried across calls to process() until reset() */
+    private float mS1 = 0;
+    private float mS2 = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param frequency  The frequency to measure, in Hz
+     * @param sampleRate The sample rate of the samples to be processed, in Hz
+     */
+    GoertzelFilter(float frequency, int sampleRate) {
+        mFrequency = frequency;
+        mCoefficient = (float) (2 * Math.cos(2 * Math.PI * frequency / sampleRate));
+    }
+
+    /**
+     * Run samples through the filter
+     *
+     * @param samples Samples from the AudioCapturer
+     * @param offset  The index of the first sample to process
+     * @param length  The number of samples to process
+     */
+    void process(short[] samples, int offset, int length) {
+        float s1 = mS1;
+        float s2 = mS2;
+        for (int i = offset; i < offset + length; i++) {
+            float s0 = samples[i] + mCoefficient * s1 - s2;
+            s2 = s1;
+            s1 = s0;
+        }
+        mS1 = s1;
+        mS2 = s2;
+    }
+
+    /**
+     * @return The power at this filter's frequency in the samples processed since the last reset
+     */
+    float getPower() {
+        return mS1 * mS1 + mS2 * mS2 - mCoefficient * mS1 * mS2;
+    }
+
+    /**
+     * Clear the filter state to start measuring a new block
+     */
+    void reset() {
+        mS1 = 0;
+        mS2 = 0;
+    }
+
+    /**
+     * @return The frequency this filter measures, in Hz
+     */
+    float getFrequency() {
+        return mFrequency;
+    }
+}
@@ -21,9 +21,14 @@ package com.gelakinetic.selfr;
 
 interface IAudioReceiver {
     /**
-     * Called when there is a buffer of audio to process
+     * Called on AudioCapturer's detector thread when there is a buffer of audio to process. The
+     * buffer is a slot in AudioCapturer's AudioFrameRing. It's only valid until this returns, when
+     * the slot is handed back to the capture thread to be overwritten, so copy anything which is
+     * needed later rather than holding a reference to it
      *
-     * @param tempBuf A buffer of audio received
+     * @param tempBuf   A buffer of audio received
+     * @param length    The number of valid samples in tempBuf
+     * @param timestamp When the last sample in tempBuf was captured, from System.nanoTime()
      */
-    void capturedAudioReceived(short[] tempBuf);
+    void capturedAudioReceived(short[] tempBuf, int length, long timestamp);
 }
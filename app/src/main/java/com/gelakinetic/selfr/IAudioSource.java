@@ -0,0 +1,46 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+interface IAudioSource {
+    /**
+     * Prepare the source to deliver 16 bit mono samples
+     *
+     * @param sampleRate The number of samples per second the caller expects
+     * @return true if the source is ready to read from, false otherwise
+     */
+    boolean open(int sampleRate);
+
+    /**
+     * Read samples from the source. This may block until samples are available
+     *
+     * @param buffer The buffer to read samples into
+     * @param offset Where in buffer to start writing samples
+     * @param length The maximum number of samples to read
+     * @return The number of samples read, or a negative number if the source is exhausted or
+     * there was an error
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Stop delivering samples and release any resources. The source may be opened again after
+     */
+    void close();
+}
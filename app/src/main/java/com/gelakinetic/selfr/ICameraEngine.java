@@ -0,0 +1,225 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.view.SurfaceHolder;
+
+import java.util.List;
+
+/**
+ * Owns a camera, and does all of the work with it on a single background thread, so opening,
+ * switching and releasing cameras never blocks the UI. The UI and audio threads post commands,
+ * which run in order on the camera thread, and callbacks are delivered there too. Flash modes use
+ * the Camera.Parameters.FLASH_MODE_* values, and camera types the
+ * Camera.CameraInfo.CAMERA_FACING_* values, whichever API implements the engine
+ */
+interface ICameraEngine {
+
+    /* Enums */
+    enum State {
+        /* No camera is open */
+        CLOSED,
+        /* A camera is open, but it isn't previewing */
+        OPENED,
+        /* The preview is running, pictures can be taken */
+        PREVIEWING,
+        /* A picture is being taken, until startPreviewAfterPicture() */
+        CAPTURING
+    }
+
+    interface Listener {
+        /**
+         * Called on the Listener's Handler once a camera was opened
+         *
+         * @param engine The engine which opened the camera
+         */
+        void onCameraOpened(ICameraEngine engine);
+    }
+
+    interface PictureCallback {
+        /**
+         * Called on the camera thread when a picture was taken
+         *
+         * @param jpeg The picture, as a JPEG
+         */
+        void onPictureTaken(byte[] jpeg);
+    }
+
+    /**
+     * Start the camera thread
+     */
+    void start();
+
+    /**
+     * Release the camera and stop the camera thread, after every command already posted. Commands
+     * posted afterwards are ignored. This doesn't wait for the camera to be released
+     */
+    void stop();
+
+    /**
+     * Release any open camera, then open a camera facing the given way
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     */
+    void open(int cameraType);
+
+    /**
+     * Stop the preview and release the camera, if one is open
+     */
+    void close();
+
+    /**
+     * @return The engine's state
+     */
+    State getState();
+
+    /**
+     * Run something on the camera thread
+     *
+     * @param runnable What to run
+     */
+    void post(Runnable runnable);
+
+    /**
+     * Run something on the camera thread, after a delay
+     *
+     * @param runnable    What to run
+     * @param delayMillis How long to wait, in milliseconds
+     */
+    void postDelayed(Runnable runnable, long delayMillis);
+
+    /**
+     * Remove anything waiting to run on the camera thread
+     *
+     * @param runnable What not to run
+     */
+    void removeCallbacks(Runnable runnable);
+
+    /**
+     * Start the preview on a surface, once it's created
+     *
+     * @param holder The surface to draw the preview on
+     */
+    void startPreview(SurfaceHolder holder);
+
+    /**
+     * Restart the preview on a surface, after its size changed, with the size from
+     * setPreviewSize()
+     *
+     * @param holder The surface to draw the preview on
+     */
+    void restartPreview(SurfaceHolder holder);
+
+    /**
+     * @return The preview size selector for the open camera, or null if none is open
+     */
+    PreviewSizeSelector getPreviewSizeSelector();
+
+    /**
+     * Set the size of preview frames. This takes effect when the preview starts or restarts
+     *
+     * @param width  The width of preview frames, in pixels
+     * @param height The height of preview frames, in pixels
+     */
+    void setPreviewSize(int width, int height);
+
+    /**
+     * Limit how many pixels preview frames have, to save power. This takes effect the next time a
+     * camera is opened
+     *
+     * @param pixelBudget The most pixels a preview frame should have, Integer.MAX_VALUE for no
+     *                    limit
+     */
+    void setPreviewPixelBudget(int pixelBudget);
+
+    /**
+     * @return The flash modes the open camera supports, or null if it has no flash or none is open
+     */
+    List<String> getSupportedFlashModes();
+
+    /**
+     * Set the flash mode for pictures. This takes effect with the next picture
+     *
+     * @param flashMode One of the Camera.Parameters.FLASH_MODE_* values
+     */
+    void setFlashMode(String flashMode);
+
+    /**
+     * Set the rotation of pictures. This takes effect with the next picture
+     *
+     * @param rotation The clockwise rotation to apply to pictures, in degrees
+     */
+    void setRotation(int rotation);
+
+    /**
+     * Apply any pending changes and take a picture. Must be called on the camera thread
+     *
+     * @param callback Called on the camera thread with the JPEG
+     * @return true if the picture is being taken, false if the camera wasn't previewing
+     */
+    boolean takePicture(PictureCallback callback);
+
+    /**
+     * Get ready for another picture after one was taken. Must be called on the camera thread, from
+     * the PictureCallback
+     *
+     * @return true if the preview is running again, false otherwise
+     */
+    boolean startPreviewAfterPicture();
+
+    /**
+     * Start focusing and lock exposure because a button press may be coming, so the camera is
+     * settled when takePicture() is called. This can be called from any thread, and does nothing
+     * if pre-focus is already running
+     *
+     * @param armTime When the detector armed, from CaptureMetrics.now()
+     */
+    void preFocus(long armTime);
+
+    /**
+     * @return true if pre-focus was started and hasn't been used or released yet, false otherwise
+     */
+    boolean isPreFocusArmed();
+
+    /**
+     * Keep recent preview frames for zero shutter lag pictures. This takes effect the next time
+     * the preview starts. Engines which can't keep frames ignore this
+     *
+     * @param buffers How many preview buffers to allocate, or 0 to not keep frames
+     */
+    void setZslBuffers(int buffers);
+
+    /**
+     * @return The recent preview frames, or null if they aren't being kept. Only use it on the
+     * camera thread
+     */
+    PreviewFrameRing getPreviewFrameRing();
+
+    /**
+     * Give a frame locked for a zero shutter lag picture back to the camera. This can be called
+     * from any thread
+     *
+     * @param frameRing The ring the frame was locked in
+     * @param index     The frame, from PreviewFrameRing.lockClosest()
+     */
+    void releasePreviewFrame(PreviewFrameRing frameRing, int index);
+}
@@ -0,0 +1,479 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes a JPEG with an EXIF orientation, without decoding it. If the JPEG already has an EXIF
+ * orientation tag, its two bytes are patched as the JPEG is written. If it has EXIF without one,
+ * a copy of the first IFD with an orientation entry added is appended to the EXIF segment. If it
+ * has no EXIF, a small APP1 segment with the orientation and capture time is spliced in after the
+ * start of the image. Either way the rest of the bytes are written as they are, so this costs
+ * about as much as writing the JPEG does
+ */
+class JpegExifWriter {
+
+    /* EXIF orientation values, for how a viewer should rotate the image to show it upright */
+    static final int ORIENTATION_NONE = 0;
+    static final int ORIENTATION_NORMAL = 1;
+    static final int ORIENTATION_ROTATE_180 = 3;
+    static final int ORIENTATION_ROTATE_90 = 6;
+    static final int ORIENTATION_ROTATE_270 = 8;
+
+    /* JPEG markers */
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+
+    /* TIFF tags and types */
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    /* Layout of the inserted segment. Offsets are from the start of the TIFF header */
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int DATE_LENGTH = 20;
+    private static final int IFD0_OFFSET = 8;
+    private static final int IFD0_ENTRIES = 3;
+    private static final int DATE_TIME_OFFSET = IFD0_OFFSET + 2 + IFD0_ENTRIES * 12 + 4;
+    private static final int EXIF_IFD_OFFSET = DATE_TIME_OFFSET + DATE_LENGTH;
+    private static final int EXIF_IFD_ENTRIES = 2;
+    private static final int DATE_TIME_ORIGINAL_OFFSET = EXIF_IFD_OFFSET + 2 +
+            EXIF_IFD_ENTRIES * 12 + 4;
+    private static final int TIFF_LENGTH = DATE_TIME_ORIGINAL_OFFSET + DATE_LENGTH;
+    private static final int SEGMENT_LENGTH = 4 + EXIF_HEADER.length + TIFF_LENGTH;
+
+    /* The longest a segment can be, not counting its marker */
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    /* Shared by every writer thread, so only use it while holding its lock */
+    private static final SimpleDateFormat DATE_FORMAT =
+            new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+
+    /**
+     * Static methods only
+     */
+    private JpegExifWriter() {
+    }
+
+    /**
+     * @param rotation The clockwise rotation an image needs to be upright, in degrees, as passed
+     *                 to Camera.Parameters.setRotation()
+     * @return The EXIF orientation for that rotation
+     */
+    static int orientationForRotation(int rotation) {
+        switch (((rotation % 360) + 360) % 360) {
+            case 90:
+                return ORIENTATION_ROTATE_90;
+            case 180:
+                return ORIENTATION_ROTATE_180;
+            case 270:
+                return ORIENTATION_ROTATE_270;
+            default:
+                return ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Write a JPEG with an EXIF orientation. An existing orientation tag is patched, or one is
+     * added to the camera's EXIF, leaving the rest of it alone. EXIF which can't be read is
+     * replaced. There is only ever one EXIF segment, since readers disagree about which of two
+     * to believe
+     *
+     * @param jpeg              The JPEG. It isn't modified
+     * @param length            The number of valid bytes in jpeg
+     * @param orientation       One of the ORIENTATION_* values. ORIENTATION_NONE writes the JPEG
+     *                          as it is
+     * @param captureTimeMillis When the picture was taken, from System.currentTimeMillis(). Only
+     *                          used if the JPEG has no EXIF of its own
+     * @param out               Where to write the JPEG
+     * @throws IOException If the JPEG couldn't be written
+     */
+    static void write(byte[] jpeg, int length, int orientation, long captureTimeMillis,
+                      OutputStream out) throws IOException {
+        if (orientation == ORIENTATION_NONE || length < 4 || (jpeg[0] & 0xFF) != 0xFF ||
+                (jpeg[1] & 0xFF) != MARKER_SOI) {
+            /* Not asked to, or not a JPEG, leave it alone */
+            out.write(jpeg, 0, length);
+            return;
+        }
+
+        int exifSegment = findSegment(jpeg, length, true);
+        if (exifSegment >= 0) {
+            int segmentEnd = exifSegment + 2 + readShort(jpeg, exifSegment + 2, false);
+            boolean littleEndian = jpeg[exifSegment + 4 + EXIF_HEADER.length] == 'I';
+            int ifd0 = findIfd0(jpeg, exifSegment, segmentEnd);
+            int orientationOffset = (ifd0 < 0) ? -1 :
+                    findOrientation(jpeg, ifd0, littleEndian);
+            if (orientationOffset >= 0) {
+                /* Patch the orientation in place, since there's already a tag for it */
+                out.write(jpeg, 0, orientationOffset);
+                out.write(littleEndian ? orientation : 0);
+                out.write(littleEndian ? 0 : orientation);
+                out.write(jpeg, orientationOffset + 2, length - orientationOffset - 2);
+            } else if (ifd0 >= 0 && canAddOrientation(jpeg, exifSegment, segmentEnd, ifd0)) {
+                addOrientation(jpeg, length, exifSegment, segmentEnd, ifd0, orientation, out);
+            } else {
+                /* The camera's EXIF can't be read or grown, so replace it rather than add a
+                 * second segment
+                 */
+                out.write(jpeg, 0, exifSegment);
+                out.write(buildSegment(orientation, captureTimeMillis));
+                out.write(jpeg, segmentEnd, length - segmentEnd);
+            }
+            return;
+        }
+
+        /* Otherwise splice a segment in, after a JFIF segment if the JPEG starts with one */
+        int insertAt = findSegment(jpeg, length, false);
+        out.write(jpeg, 0, insertAt);
+        out.write(buildSegment(orientation, captureTimeMillis));
+        out.write(jpeg, insertAt, length - insertAt);
+    }
+
+    /**
+     * Find where an EXIF segment is, or where one should go
+     *
+     * @param jpeg   The JPEG
+     * @param length The number of valid bytes in jpeg
+     * @param exif   true to find an existing EXIF segment, false to find where to insert one
+     * @return The offset of the EXIF segment's marker, or -1 if there isn't one. When inserting,
+     * the offset after the start of image and any JFIF segment
+     */
+    private static int findSegment(byte[] jpeg, int length, boolean exif) {
+        int position = 2;
+        while (position + 4 <= length && (jpeg[position] & 0xFF) == 0xFF) {
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                break;
+            }
+            int segmentLength = readShort(jpeg, position + 2, false);
+            if (!exif) {
+                /* Insert after a leading JFIF segment, or right after the start of image */
+                return (marker == MARKER_APP0 && position + 2 + segmentLength <= length) ?
+                        position + 2 + segmentLength : 2;
+            }
+            if (marker == MARKER_APP1 && segmentLength >= 2 + EXIF_HEADER.length + 8 &&
+                    position + 2 + segmentLength <= length &&
+                    startsWith(jpeg, position + 4, EXIF_HEADER)) {
+                return position;
+            }
+            position += 2 + segmentLength;
+        }
+        return exif ? -1 : 2;
+    }
+
+    /**
+     * Find an EXIF segment's first IFD, and check that all of it is inside the segment
+     *
+     * @param jpeg       The JPEG
+     * @param segment    The offset of the EXIF segment's marker
+     * @param segmentEnd The offset just past the end of the segment
+     * @return The offset of the IFD, or -1 if the EXIF can't be read
+     */
+    private static int findIfd0(byte[] jpeg, int segment, int segmentEnd) {
+        int tiff = segment + 4 + EXIF_HEADER.length;
+        boolean littleEndian;
+        if (jpeg[tiff] == 'I' && jpeg[tiff + 1] == 'I') {
+            littleEndian = true;
+        } else if (jpeg[tiff] == 'M' && jpeg[tiff + 1] == 'M') {
+            littleEndian = false;
+        } else {
+            return -1;
+        }
+        long ifd = tiff + readInt(jpeg, tiff + 4, littleEndian);
+        if (ifd < tiff + 8 || ifd + 2 > segmentEnd) {
+            return -1;
+        }
+        /* The entries, and the offset of the next IFD */
+        int entries = readShort(jpeg, (int) ifd, littleEndian);
+        if (ifd + 2 + entries * 12 + 4 > segmentEnd) {
+            return -1;
+        }
+        return (int) ifd;
+    }
+
+    /**
+     * Find the value of the orientation tag in an IFD
+     *
+     * @param jpeg         The JPEG
+     * @param ifd          The offset of the IFD, from findIfd0()
+     * @param littleEndian true if the EXIF is little endian, false if it's big endian
+     * @return The offset of the orientation's two byte value, or -1 if there isn't one
+     */
+    private static int findOrientation(byte[] jpeg, int ifd, boolean littleEndian) {
+        int entries = readShort(jpeg, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (readShort(jpeg, entry, littleEndian) == TAG_ORIENTATION &&
+                    readShort(jpeg, entry + 2, littleEndian) == TYPE_SHORT &&
+                    readInt(jpeg, entry + 4, littleEndian) == 1) {
+                return entry + 8;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param jpeg       The JPEG
+     * @param segment    The offset of the EXIF segment's marker
+     * @param segmentEnd The offset just past the end of the segment
+     * @param ifd0       The offset of the segment's first IFD, from findIfd0()
+     * @return true if an IFD one entry larger still fits in the segment, false otherwise
+     */
+    private static boolean canAddOrientation(byte[] jpeg, int segment, int segmentEnd, int ifd0) {
+        int tiff = segment + 4 + EXIF_HEADER.length;
+        int entries = readShort(jpeg, ifd0, jpeg[tiff] == 'I');
+        int padding = (segmentEnd - tiff) % 2;
+        return (segmentEnd - segment - 2) + padding + 2 + (entries + 1) * 12 + 4 <=
+                MAX_SEGMENT_LENGTH;
+    }
+
+    /**
+     * Write a JPEG, adding an orientation entry to its EXIF. Growing the first IFD in place would
+     * move everything after it, and every offset into it would have to be found and fixed,
+     * including ones in maker notes which can't be. Instead a copy of the IFD with the new entry
+     * is appended to the segment, and the TIFF header is pointed at it. Nothing else moves, and
+     * the old IFD is left unused
+     *
+     * @param jpeg        The JPEG
+     * @param length      The number of valid bytes in jpeg
+     * @param segment     The offset of the EXIF segment's marker
+     * @param segmentEnd  The offset just past the end of the segment
+     * @param ifd0        The offset of the segment's first IFD, from findIfd0()
+     * @param orientation One of the ORIENTATION_* values
+     * @param out         Where to write the JPEG
+     * @throws IOException If the JPEG couldn't be written
+     */
+    private static void addOrientation(byte[] jpeg, int length, int segment, int segmentEnd,
+                                       int ifd0, int orientation, OutputStream out)
+            throws IOException {
+        int tiff = segment + 4 + EXIF_HEADER.length;
+        boolean littleEndian = jpeg[tiff] == 'I';
+        int entries = readShort(jpeg, ifd0, littleEndian);
+
+        /* Entries must stay sorted by tag, so the orientation goes before the first larger one */
+        byte[] ifd = new byte[2 + (entries + 1) * 12 + 4];
+        writeShort(ifd, 0, entries + 1, littleEndian);
+        int position = 2;
+        boolean added = false;
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            if (!added && readShort(jpeg, entry, littleEndian) > TAG_ORIENTATION) {
+                writeEntry(ifd, position, TAG_ORIENTATION, TYPE_SHORT, 1, orientation,
+                        littleEndian);
+                position += 12;
+                added = true;
+            }
+            System.arraycopy(jpeg, entry, ifd, position, 12);
+            position += 12;
+        }
+        if (!added) {
+            writeEntry(ifd, position, TAG_ORIENTATION, TYPE_SHORT, 1, orientation, littleEndian);
+            position += 12;
+        }
+        /* Keep the link to the next IFD, which holds the thumbnail */
+        System.arraycopy(jpeg, ifd0 + 2 + entries * 12, ifd, position, 4);
+
+        /* IFDs must start on an even offset */
+        int padding = (segmentEnd - tiff) % 2;
+        int newSegmentLength = (segmentEnd - segment - 2) + padding + ifd.length;
+        byte[] header = new byte[4];
+
+        /* The marker and the new length */
+        out.write(jpeg, 0, segment + 2);
+        writeShort(header, 0, newSegmentLength, false);
+        out.write(header, 0, 2);
+
+        /* The segment up to the TIFF header's IFD offset, then the new IFD's offset */
+        out.write(jpeg, segment + 4, tiff + 4 - (segment + 4));
+        writeInt(header, 0, segmentEnd + padding - tiff, littleEndian);
+        out.write(header, 0, 4);
+
+        /* The rest of the segment as it was, the new IFD, and the rest of the JPEG */
+        out.write(jpeg, tiff + 8, segmentEnd - (tiff + 8));
+        if (padding != 0) {
+            out.write(0);
+        }
+        out.write(ifd);
+        out.write(jpeg, segmentEnd, length - segmentEnd);
+    }
+
+    /**
+     * Build an APP1 segment with the orientation, and the capture time in local time
+     *
+     * @param orientation       One of the ORIENTATION_* values
+     * @param captureTimeMillis When the picture was taken, from System.currentTimeMillis()
+     * @return The segment, starting with its marker
+     */
+    private static byte[] buildSegment(int orientation, long captureTimeMillis) {
+        byte[] segment = new byte[SEGMENT_LENGTH];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) MARKER_APP1;
+        writeShort(segment, 2, SEGMENT_LENGTH - 2, false);
+        System.arraycopy(EXIF_HEADER, 0, segment, 4, EXIF_HEADER.length);
+
+        /* Little endian TIFF header */
+        int tiff = 4 + EXIF_HEADER.length;
+        segment[tiff] = 'I';
+        segment[tiff + 1] = 'I';
+        writeShort(segment, tiff + 2, 42, true);
+        writeInt(segment, tiff + 4, IFD0_OFFSET, true);
+
+        /* IFD0, with the orientation, the date and a pointer to the EXIF IFD */
+        int entry = tiff + IFD0_OFFSET;
+        writeShort(segment, entry, IFD0_ENTRIES, true);
+        entry += 2;
+        writeEntry(segment, entry, TAG_ORIENTATION, TYPE_SHORT, 1, orientation, true);
+        writeEntry(segment, entry + 12, TAG_DATE_TIME, TYPE_ASCII, DATE_LENGTH, DATE_TIME_OFFSET,
+                true);
+        writeEntry(segment, entry + 24, TAG_EXIF_IFD, TYPE_LONG, 1, EXIF_IFD_OFFSET, true);
+
+        /* The EXIF IFD, with the capture time to the millisecond */
+        entry = tiff + EXIF_IFD_OFFSET;
+        writeShort(segment, entry, EXIF_IFD_ENTRIES, true);
+        entry += 2;
+        writeEntry(segment, entry, TAG_DATE_TIME_ORIGINAL, TYPE_ASCII, DATE_LENGTH,
+                DATE_TIME_ORIGINAL_OFFSET, true);
+        writeEntry(segment, entry + 12, TAG_SUB_SEC_TIME_ORIGINAL, TYPE_ASCII, 4, 0, true);
+        /* Milliseconds as three digits, which fit in the value field */
+        int millis = (int) (((captureTimeMillis % 1000) + 1000) % 1000);
+        segment[entry + 12 + 8] = (byte) ('0' + millis / 100);
+        segment[entry + 12 + 9] = (byte) ('0' + (millis / 10) % 10);
+        segment[entry + 12 + 10] = (byte) ('0' + millis % 10);
+
+        /* The dates, null terminated. The time zone is checked each time, in case it changed */
+        String dateString;
+        synchronized (DATE_FORMAT) {
+            DATE_FORMAT.setTimeZone(TimeZone.getDefault());
+            dateString = DATE_FORMAT.format(new Date(captureTimeMillis));
+        }
+        byte[] date = dateString.getBytes(Charset.forName("US-ASCII"));
+        System.arraycopy(date, 0, segment, tiff + DATE_TIME_OFFSET,
+                Math.min(date.length, DATE_LENGTH - 1));
+        System.arraycopy(date, 0, segment, tiff + DATE_TIME_ORIGINAL_OFFSET,
+                Math.min(date.length, DATE_LENGTH - 1));
+        return segment;
+    }
+
+    /**
+     * Write an IFD entry
+     *
+     * @param buffer       Where to write it
+     * @param offset       Where the entry starts
+     * @param tag          The tag
+     * @param type         The type of the value
+     * @param count        How many values there are
+     * @param value        The value if it fits in four bytes, otherwise the offset of the values
+     * @param littleEndian true for little endian, false for big endian
+     */
+    private static void writeEntry(byte[] buffer, int offset, int tag, int type, int count,
+                                   int value, boolean littleEndian) {
+        writeShort(buffer, offset, tag, littleEndian);
+        writeShort(buffer, offset + 2, type, littleEndian);
+        writeInt(buffer, offset + 4, count, littleEndian);
+        if (type == TYPE_SHORT) {
+            /* Short values are left justified in the value field */
+            writeShort(buffer, offset + 8, value, littleEndian);
+            writeShort(buffer, offset + 10, 0, littleEndian);
+        } else {
+            writeInt(buffer, offset + 8, value, littleEndian);
+        }
+    }
+
+    /**
+     * @param buffer       Where to write
+     * @param offset       Where to write the short
+     * @param value        The short to write
+     * @param littleEndian true for little endian, false for big endian
+     */
+    private static void writeShort(byte[] buffer, int offset, int value, boolean littleEndian) {
+        buffer[offset] = (byte) (littleEndian ? value : value >> 8);
+        buffer[offset + 1] = (byte) (littleEndian ? value >> 8 : value);
+    }
+
+    /**
+     * @param buffer       Where to write
+     * @param offset       Where to write the int
+     * @param value        The int to write
+     * @param littleEndian true for little endian, false for big endian
+     */
+    private static void writeInt(byte[] buffer, int offset, int value, boolean littleEndian) {
+        writeShort(buffer, offset, littleEndian ? value : value >>> 16, littleEndian);
+        writeShort(buffer, offset + 2, littleEndian ? value >>> 16 : value, littleEndian);
+    }
+
+    /**
+     * @param buffer       Where to read
+     * @param offset       Where the unsigned short is
+     * @param littleEndian true for little endian, false for big endian
+     * @return The unsigned short
+     */
+    private static int readShort(byte[] buffer, int offset, boolean littleEndian) {
+        int first = buffer[offset] & 0xFF;
+        int second = buffer[offset + 1] & 0xFF;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    /**
+     * @param buffer       Where to read
+     * @param offset       Where the unsigned int is
+     * @param littleEndian true for little endian, false for big endian
+     * @return The unsigned int
+     */
+    private static long readInt(byte[] buffer, int offset, boolean littleEndian) {
+        long first = readShort(buffer, offset, littleEndian);
+        long second = readShort(buffer, offset + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    /**
+     * @param buffer Where to look
+     * @param offset Where to start looking
+     * @param prefix What to look for
+     * @return true if the buffer has the prefix at the offset, false otherwise
+     */
+    private static boolean startsWith(byte[] buffer, int offset, byte[] prefix) {
+        if (offset + prefix.length > buffer.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size histogram of latencies, in microseconds. Buckets are spaced four to an octave, so
+ * any percentile is reported within 25% of the true value. Recording is lock free and never
+ * allocates, so it's safe to call from the audio threads
+ */
+class LatencyHistogram {
+
+    /* Four buckets per power of two */
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /* Enough buckets for every positive long */
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mTotalCount = new AtomicLong(0);
+    private final AtomicLong mTotalMicros = new AtomicLong(0);
+    private final AtomicLong mMaxMicros = new AtomicLong(0);
+
+    /**
+     * Record a latency
+     *
+     * @param nanos The latency in nanoseconds. Negative latencies are recorded as zero
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        mCounts.incrementAndGet(bucketFor(micros));
+        mTotalCount.incrementAndGet();
+        mTotalMicros.addAndGet(micros);
+        long max;
+        while (micros > (max = mMaxMicros.get())) {
+            if (mMaxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * @return The mean latency in microseconds, or 0 if nothing was recorded
+     */
+    long getMeanMicros() {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return mTotalMicros.get() / count;
+    }
+
+    /**
+     * @return The largest latency recorded, in microseconds
+     */
+    long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Estimate a percentile from the buckets
+     *
+     * @param percentile The percentile to estimate, between 0 and 100
+     * @return The upper bound of the bucket containing the percentile, in microseconds, or 0 if
+     * nothing was recorded
+     */
+    long getPercentileMicros(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), mMaxMicros.get());
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalMicros.set(0);
+        mMaxMicros.set(0);
+    }
+
+    /**
+     * @param micros A latency in microseconds, not negative
+     * @return The index of the bucket the latency belongs in
+     */
+    private static int bucketFor(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = octave - SUB_BUCKET_BITS;
+        int subBucket = (int) (micros >> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (shift * SUB_BUCKETS) + subBucket;
+    }
+
+    /**
+     * @param bucket The index of a bucket
+     * @return The largest latency, in microseconds, which belongs in that bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,730 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.SurfaceHolder;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A camera engine built on android.hardware.Camera, which every device has. Because the camera is
+ * opened on the camera thread, its callbacks, like Camera.PictureCallback, run there too. The
+ * preview is stopped while a picture is taken, until startPreviewAfterPicture()
+ */
+@SuppressWarnings("deprecation")
+class LegacyCameraEngine implements ICameraEngine {
+
+    private final Listener mListener;
+    private final Handler mListenerHandler;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /* Only changed on the camera thread, but read from anywhere */
+    private volatile State mState = State.CLOSED;
+    private volatile Camera mCamera = null;
+    private volatile CameraParameterCache mParameterCache = null;
+    private volatile CameraCapabilityIndex.Capabilities mCapabilities = null;
+
+    /* What each camera can do, so opening one doesn't need a scan */
+    private final CameraCapabilityIndex mCapabilityIndex;
+
+    /* When the last open() was requested, until the first preview frame arrives */
+    private long mOpenRequestTime = 0;
+
+    /* Picks preview sizes for each camera, and remembers its answers */
+    private final HashMap<Integer, PreviewSizeSelector> mPreviewSizeSelectors = new HashMap<>();
+    private volatile PreviewSizeSelector mPreviewSizeSelector = null;
+    private volatile int mPreviewPixelBudget = Integer.MAX_VALUE;
+
+    /* How long pre-focus holds focus and exposure without a picture being taken */
+    private static final int PRE_FOCUS_TIMEOUT = 3000;
+
+    /* Pre-focus state. Arming is set from the detector thread, the rest on the camera thread */
+    private volatile boolean mPreFocusArmed = false;
+    private volatile long mArmTime = 0;
+    private boolean mPreFocusDone = false;
+    private boolean mReleaseExposureLock = false;
+
+    /* Recent preview frames for zero shutter lag, when enabled */
+    private volatile int mZslBuffers = 0;
+    private volatile PreviewFrameRing mFrameRing = null;
+
+    /* Where the picture being taken goes */
+    private PictureCallback mPictureCallback = null;
+
+    private final Camera.PictureCallback mCameraPictureCallback = new Camera.PictureCallback() {
+        /**
+         * Called on the camera thread after a picture was taken
+         *
+         * @param data   The JPEG
+         * @param camera The camera which took the picture
+         */
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            PictureCallback callback = mPictureCallback;
+            mPictureCallback = null;
+            if (callback != null) {
+                callback.onPictureTaken(data);
+            }
+        }
+    };
+
+    private final Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
+        /**
+         * Called on the camera thread with the first preview frame after a camera was opened, and
+         * with every frame when zero shutter lag is enabled
+         *
+         * @param data   The preview frame
+         * @param camera The camera which produced the frame
+         */
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            long now = CaptureMetrics.now();
+            if (mOpenRequestTime != 0) {
+                mMetrics.record(CaptureMetrics.Stage.FIRST_PREVIEW_FRAME, mOpenRequestTime, now);
+                mOpenRequestTime = 0;
+            }
+            PreviewFrameRing frameRing = mFrameRing;
+            if (frameRing != null) {
+                frameRing.onPreviewFrame(data, now);
+            }
+        }
+    };
+
+    private final Camera.AutoFocusCallback mAutoFocusCallback = new Camera.AutoFocusCallback() {
+        /**
+         * Called on the camera thread when pre-focus finished, whether or not it found focus
+         *
+         * @param success true if the camera focused, false otherwise
+         * @param camera  The camera which focused
+         */
+        @Override
+        public void onAutoFocus(boolean success, Camera camera) {
+            if (mPreFocusArmed && !mPreFocusDone) {
+                mPreFocusDone = true;
+                mMetrics.record(CaptureMetrics.Stage.PRE_FOCUS, mArmTime, CaptureMetrics.now());
+            }
+        }
+    };
+
+    private final Runnable mCancelPreFocusRunnable = new Runnable() {
+        /**
+         * Called on the camera thread when the detector armed, but no picture was taken in time.
+         * Lets focus and exposure follow the scene again
+         */
+        @Override
+        public void run() {
+            if (!mPreFocusArmed) {
+                return;
+            }
+            if (mState == State.PREVIEWING) {
+                try {
+                    mCamera.cancelAutoFocus();
+                } catch (RuntimeException e) {
+                    /* Eat it */
+                }
+                mParameterCache.setAutoExposureLock(false);
+                mParameterCache.apply();
+            }
+            mPreFocusArmed = false;
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param listener        Notified when a camera is opened
+     * @param listenerHandler The Handler to notify the listener on
+     * @param capabilityIndex Where cameras' capabilities are looked up. It's only read and
+     *                        written on the camera thread
+     */
+    LegacyCameraEngine(Listener listener, Handler listenerHandler,
+                       CameraCapabilityIndex capabilityIndex) {
+        mListener = listener;
+        mListenerHandler = listenerHandler;
+        mCapabilityIndex = capabilityIndex;
+    }
+
+    /**
+     * Start the camera thread
+     */
+    @Override
+    public void start() {
+        mThread = new HandlerThread("CameraThread");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Release the camera and stop the camera thread, after every command already posted. Commands
+     * posted afterwards are ignored. This doesn't wait for the camera to be released
+     */
+    @Override
+    public void stop() {
+        close();
+        final HandlerThread thread = mThread;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    /**
+     * @return The engine's state
+     */
+    @Override
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Keep recent preview frames for zero shutter lag pictures. This takes effect the next time
+     * the preview starts
+     *
+     * @param buffers How many preview buffers to allocate, or 0 to not keep frames
+     */
+    @Override
+    public void setZslBuffers(int buffers) {
+        mZslBuffers = buffers;
+    }
+
+    /**
+     * Limit how many pixels preview frames have, to save power. This takes effect the next time a
+     * camera is opened
+     *
+     * @param pixelBudget The most pixels a preview frame should have, Integer.MAX_VALUE for no
+     *                    limit
+     */
+    @Override
+    public void setPreviewPixelBudget(int pixelBudget) {
+        mPreviewPixelBudget = pixelBudget;
+    }
+
+    /**
+     * @return The preview size selector for the open camera, or null if none is open
+     */
+    @Override
+    public PreviewSizeSelector getPreviewSizeSelector() {
+        return mPreviewSizeSelector;
+    }
+
+    /**
+     * @return The recent preview frames, or null if they aren't being kept. Only use it on the
+     * camera thread
+     */
+    @Override
+    public PreviewFrameRing getPreviewFrameRing() {
+        return mFrameRing;
+    }
+
+    /**
+     * Give a locked preview frame back to the camera, on the camera thread
+     *
+     * @param frameRing The ring the frame was locked in
+     * @param index     The locked frame's index
+     */
+    @Override
+    public void releasePreviewFrame(final PreviewFrameRing frameRing, final int index) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                frameRing.release(index);
+            }
+        });
+    }
+
+    /**
+     * Run something on the camera thread, after every command already posted
+     *
+     * @param runnable What to run
+     */
+    @Override
+    public void post(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+
+    /**
+     * Run something on the camera thread after a delay
+     *
+     * @param runnable    What to run
+     * @param delayMillis How long to wait, in milliseconds
+     */
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        mHandler.postDelayed(runnable, delayMillis);
+    }
+
+    /**
+     * Remove pending posts of a Runnable from the camera thread
+     *
+     * @param runnable What not to run
+     */
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        mHandler.removeCallbacks(runnable);
+    }
+
+    /**
+     * Open a camera, closing the current one first if one is open. The listener is notified once
+     * the camera is open
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     */
+    @Override
+    public void open(final int cameraType) {
+        final long requestTime = CaptureMetrics.now();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+                if (!openCamera(cameraType)) {
+                    return;
+                }
+                mOpenRequestTime = requestTime;
+                mState = State.OPENED;
+                mListenerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onCameraOpened(LegacyCameraEngine.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the preview and release the camera, if one is open
+     */
+    @Override
+    public void close() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera();
+            }
+        });
+    }
+
+    /**
+     * Start the preview on a surface, once it's created
+     *
+     * @param holder The surface to draw the preview on
+     */
+    @Override
+    public void startPreview(final SurfaceHolder holder) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.OPENED) {
+                    return;
+                }
+                try {
+                    mCamera.setPreviewDisplay(holder);
+                    mParameterCache.apply();
+                    startCameraPreview();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        });
+    }
+
+    /**
+     * Restart the preview on a surface, after its size changed. The preview size chosen by
+     * CameraPreview is applied while the preview is stopped
+     *
+     * @param holder The surface to draw the preview on
+     */
+    @Override
+    public void restartPreview(final SurfaceHolder holder) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.OPENED && mState != State.PREVIEWING) {
+                    return;
+                }
+
+                /* Stop the preview during modification */
+                if (mState == State.PREVIEWING) {
+                    mCamera.stopPreview();
+                    mState = State.OPENED;
+                }
+
+                /* Rotate to device orientation (locked in portrait) */
+                mCamera.setDisplayOrientation(90);
+
+                /* Apply the preview size */
+                mParameterCache.apply();
+
+                /* Restart the preview */
+                try {
+                    mCamera.setPreviewDisplay(holder);
+                    startCameraPreview();
+                } catch (Exception e) {
+                    /* Eat it */
+                }
+            }
+        });
+    }
+
+    /**
+     * Start focusing and lock exposure because a button press may be coming, so the camera is
+     * settled when takePicture() is called. This can be called from any thread, and does nothing
+     * if pre-focus is already running. If no picture is taken within PRE_FOCUS_TIMEOUT, focus and
+     * exposure are released
+     *
+     * @param armTime When the detector armed, from CaptureMetrics.now()
+     */
+    @Override
+    public void preFocus(final long armTime) {
+        if (mPreFocusArmed) {
+            return;
+        }
+        mPreFocusArmed = true;
+        mArmTime = armTime;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != State.PREVIEWING) {
+                    mPreFocusArmed = false;
+                    return;
+                }
+                mPreFocusDone = false;
+                if (mCapabilities.mAutoFocus) {
+                    try {
+                        mCamera.autoFocus(mAutoFocusCallback);
+                    } catch (RuntimeException e) {
+                        /* Treat it like the camera can't focus */
+                        mPreFocusDone = true;
+                    }
+                } else {
+                    /* Fixed focus, only exposure needs to settle */
+                    mPreFocusDone = true;
+                }
+                mParameterCache.setAutoExposureLock(true);
+                mParameterCache.apply();
+                mHandler.postDelayed(mCancelPreFocusRunnable, PRE_FOCUS_TIMEOUT);
+            }
+        });
+    }
+
+    /**
+     * @return true if pre-focus was started and hasn't been used or released yet, false otherwise
+     */
+    @Override
+    public boolean isPreFocusArmed() {
+        return mPreFocusArmed;
+    }
+
+    /**
+     * Set the size of preview frames in the parameter cache. It's applied when the preview starts
+     * or restarts
+     *
+     * @param width  The width of preview frames, in pixels
+     * @param height The height of preview frames, in pixels
+     */
+    @Override
+    public void setPreviewSize(int width, int height) {
+        CameraParameterCache cache = mParameterCache;
+        if (cache != null) {
+            cache.setPreviewSize(width, height);
+        }
+    }
+
+    /**
+     * @return The flash modes the open camera supports, from the parameter cache, or null if it has
+     * no flash or none is open
+     */
+    @Override
+    public List<String> getSupportedFlashModes() {
+        CameraParameterCache cache = mParameterCache;
+        return (cache == null) ? null : cache.getSupportedFlashModes();
+    }
+
+    /**
+     * Set the flash mode in the parameter cache. It's applied along with any other changes right
+     * before the next picture is taken
+     *
+     * @param flashMode One of the Camera.Parameters.FLASH_MODE_* values
+     */
+    @Override
+    public void setFlashMode(String flashMode) {
+        CameraParameterCache cache = mParameterCache;
+        if (cache != null) {
+            cache.setFlashMode(flashMode);
+        }
+    }
+
+    /**
+     * Set the rotation in the parameter cache. It's applied along with any other changes right
+     * before the next picture is taken
+     *
+     * @param rotation The clockwise rotation to apply to pictures, in degrees
+     */
+    @Override
+    public void setRotation(int rotation) {
+        CameraParameterCache cache = mParameterCache;
+        if (cache != null) {
+            cache.setRotation(rotation);
+        }
+    }
+
+    /**
+     * Apply any pending parameter changes and take a picture. Must be called on the camera thread
+     *
+     * @param callback Called on the camera thread with the JPEG
+     * @return true if the picture is being taken, false if the camera wasn't previewing
+     */
+    @Override
+    public boolean takePicture(PictureCallback callback) {
+        if (mState != State.PREVIEWING) {
+            return false;
+        }
+
+        /* Count whether pre-focus had settled. Focus and exposure stay locked for the picture */
+        if (mPreFocusArmed) {
+            mHandler.removeCallbacks(mCancelPreFocusRunnable);
+            mMetrics.increment(mPreFocusDone ? CaptureMetrics.Counter.PRE_FOCUS_IN_TIME :
+                    CaptureMetrics.Counter.PRE_FOCUS_LATE);
+            if (!mPreFocusDone) {
+                /* Many cameras refuse to take a picture while auto-focus is still running. Stop it
+                 * and take the picture with whatever focus it reached
+                 */
+                try {
+                    mCamera.cancelAutoFocus();
+                } catch (RuntimeException e) {
+                    /* Eat it */
+                }
+            }
+            mPreFocusArmed = false;
+            mReleaseExposureLock = true;
+        }
+
+        mParameterCache.apply();
+        mPictureCallback = callback;
+        try {
+            mCamera.takePicture(null, null, mCameraPictureCallback);
+        } catch (RuntimeException e) {
+            mPictureCallback = null;
+            return false;
+        }
+        mState = State.CAPTURING;
+        return true;
+    }
+
+    /**
+     * Restart the preview after a picture was taken, so another can be taken. Must be called on the
+     * camera thread, from the Camera.PictureCallback
+     *
+     * @return true if the preview is running again, false otherwise
+     */
+    @Override
+    public boolean startPreviewAfterPicture() {
+        if (mState != State.CAPTURING) {
+            return false;
+        }
+        try {
+            startCameraPreview();
+        } catch (RuntimeException e) {
+            mState = State.OPENED;
+            return false;
+        }
+
+        /* Let exposure follow the scene again, after the picture pre-focus was for */
+        if (mReleaseExposureLock) {
+            mReleaseExposureLock = false;
+            mParameterCache.setAutoExposureLock(false);
+            mParameterCache.apply();
+        }
+        return true;
+    }
+
+    /**
+     * Start the preview, and wait for the first frame if the camera was just opened. Must be
+     * called on the camera thread
+     */
+    private void startCameraPreview() {
+        Camera.Size previewSize = null;
+        if (mZslBuffers > 0) {
+            Camera.Parameters parameters = mParameterCache.getParameters();
+            if (parameters.getPreviewFormat() == ImageFormat.NV21) {
+                previewSize = parameters.getPreviewSize();
+            }
+        }
+        if (previewSize == null) {
+            closeFrameRing();
+        } else if (mFrameRing != null &&
+                mFrameRing.fits(previewSize.width, previewSize.height, mZslBuffers)) {
+            /* Same size frames, like after every picture, so keep the buffers. Clearing the
+             * callback empties the camera's buffer queue, then they're all queued again
+             */
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mFrameRing.requeue();
+            mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        } else {
+            /* Keep recent frames. Buffers are only allocated here, never per frame */
+            closeFrameRing();
+            mFrameRing = new PreviewFrameRing(mCamera, previewSize.width, previewSize.height,
+                    mZslBuffers);
+            mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+        }
+        if (mFrameRing == null && mOpenRequestTime != 0) {
+            mCamera.setOneShotPreviewCallback(mPreviewCallback);
+        }
+        mCamera.startPreview();
+        mState = State.PREVIEWING;
+    }
+
+    /**
+     * Stop keeping preview frames. Must be called on the camera thread
+     */
+    private void closeFrameRing() {
+        if (mFrameRing != null) {
+            mFrameRing.close();
+            mFrameRing = null;
+            mCamera.setPreviewCallbackWithBuffer(null);
+        }
+    }
+
+    /**
+     * Stop the preview and release the camera, if one is open. Must be called on the camera thread
+     */
+    private void closeCamera() {
+        if (mCamera != null) {
+            closeFrameRing();
+        }
+        Camera camera = mCamera;
+        mState = State.CLOSED;
+        mCamera = null;
+        mParameterCache = null;
+        mCapabilities = null;
+        mPreviewSizeSelector = null;
+        mOpenRequestTime = 0;
+        mPreFocusArmed = false;
+        mReleaseExposureLock = false;
+        mHandler.removeCallbacks(mCancelPreFocusRunnable);
+        if (camera != null) {
+            camera.stopPreview();
+            camera.release();
+        }
+    }
+
+    /**
+     * Open a camera and set its picture size & focus type. Capabilities come from the index, and
+     * the cameras are only scanned if this camera isn't indexed yet. Must be called on the camera
+     * thread
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     * @return true if the camera was opened, false otherwise
+     */
+    private boolean openCamera(int cameraType) {
+        CameraCapabilityIndex.Capabilities capabilities = mCapabilityIndex.find(cameraType);
+        int cameraId = (capabilities != null) ? capabilities.mCameraId : findCamera(cameraType);
+        if (cameraId < 0) {
+            return false;
+        }
+
+        Camera camera;
+        CameraParameterCache parameterCache;
+        try {
+            /* Open the camera, get default parameters */
+            camera = Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            /* Camera is not available (in use or does not exist). If it was indexed, the index
+             * may be wrong, so scan again next time
+             */
+            if (capabilities != null) {
+                mCapabilityIndex.invalidate(cameraId);
+            }
+            return false;
+        }
+        try {
+            parameterCache = new CameraParameterCache(camera);
+
+            /* Index the camera, the first time it's opened on this build */
+            if (capabilities == null) {
+                capabilities = CameraCapabilityIndex.scan(cameraId, cameraType,
+                        parameterCache.getParameters());
+                mCapabilityIndex.put(capabilities);
+            }
+
+            /* Set the image to native resolution, and auto-focus if we can */
+            if (capabilities.mPictureHeight > 0) {
+                parameterCache.setPictureSize(capabilities.mPictureWidth,
+                        capabilities.mPictureHeight);
+            }
+            if (capabilities.mAutoFocus) {
+                parameterCache.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+            }
+
+            /* Set the parameters */
+            parameterCache.apply();
+        } catch (RuntimeException e) {
+            camera.release();
+            return false;
+        }
+
+        /* Reuse the camera's preview size selector, and its remembered answers, if there is one */
+        PreviewSizeSelector selector = mPreviewSizeSelectors.get(cameraId);
+        if (selector == null || selector.getPixelBudget() != mPreviewPixelBudget) {
+            selector = new PreviewSizeSelector(capabilities.mPreviewSizes, mPreviewPixelBudget);
+            mPreviewSizeSelectors.put(cameraId, selector);
+        }
+
+        mCapabilities = capabilities;
+        mPreviewSizeSelector = selector;
+        mParameterCache = parameterCache;
+        mCamera = camera;
+        return true;
+    }
+
+    /**
+     * Scan through all the cameras for one of the specified type
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     * @return The ID of the first camera facing that way, or -1 if there isn't one
+     */
+    private static int findCamera(int cameraType) {
+        try {
+            Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+            for (int camIdx = 0; camIdx < Camera.getNumberOfCameras(); camIdx++) {
+                Camera.getCameraInfo(camIdx, cameraInfo);
+                if (cameraInfo.facing == cameraType) {
+                    return camIdx;
+                }
+            }
+        } catch (RuntimeException e) {
+            /* Camera info is not available */
+        }
+        return -1;
+    }
+}
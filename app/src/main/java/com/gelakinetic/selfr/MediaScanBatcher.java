@@ -0,0 +1,146 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Gathers saved pictures and tells the media scanner about them in batches, rather than one
+ * broadcast per picture, so bursts don't flood the scanner while pictures are still being written.
+ * A batch is flushed when it's full, when the oldest picture in it has waited long enough, or
+ * when flush() is called. Only use this on its Handler's thread
+ */
+class MediaScanBatcher {
+
+    /* Every picture is a JPEG, so the scanner doesn't have to guess */
+    private static final String MIME_TYPE = "image/jpeg";
+
+    interface Scanner {
+        /**
+         * Tell the media scanner about some files
+         *
+         * @param paths     The files' paths
+         * @param mimeTypes Each file's MIME type
+         */
+        void scanFile(String[] paths, String[] mimeTypes);
+    }
+
+    /**
+     * Tells the real media scanner about files, through MediaScannerConnection
+     */
+    private static class MediaScanner implements Scanner {
+        private final Context mContext;
+
+        /**
+         * @param context The Context to connect to the media scanner with. The application
+         *                context is used, so this can outlive an Activity
+         */
+        MediaScanner(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        public void scanFile(String[] paths, String[] mimeTypes) {
+            MediaScannerConnection.scanFile(mContext, paths, mimeTypes, null);
+        }
+    }
+
+    private final Scanner mScanner;
+    private final Handler mHandler;
+    private final int mBatchSize;
+    private final long mWindowMillis;
+    private final ArrayList<String> mPending = new ArrayList<>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        /**
+         * Flush the batch once the oldest picture in it has waited long enough
+         */
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param context      The Context to connect to the media scanner with. The application
+     *                     context is used, so this can outlive an Activity
+     * @param handler      The Handler for the thread this is used on, which flushes are timed on
+     * @param batchSize    How many pictures to gather before flushing
+     * @param windowMillis The longest a picture waits before it's flushed, in milliseconds
+     */
+    MediaScanBatcher(Context context, Handler handler, int batchSize, long windowMillis) {
+        this(new MediaScanner(context), handler, batchSize, windowMillis);
+    }
+
+    /**
+     * Constructor with the scanner to tell about pictures, for testing
+     *
+     * @param scanner      Where flushed batches go
+     * @param handler      The Handler for the thread this is used on, which flushes are timed on
+     * @param batchSize    How many pictures to gather before flushing
+     * @param windowMillis The longest a picture waits before it's flushed, in milliseconds
+     */
+    MediaScanBatcher(Scanner scanner, Handler handler, int batchSize, long windowMillis) {
+        mScanner = scanner;
+        mHandler = handler;
+        mBatchSize = Math.max(1, batchSize);
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Add a saved picture to the batch
+     *
+     * @param file The picture
+     */
+    void add(File file) {
+        mPending.add(file.getAbsolutePath());
+        if (mPending.size() >= mBatchSize) {
+            flush();
+        } else if (mPending.size() == 1) {
+            /* The window starts with the first picture in a batch */
+            mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+        }
+    }
+
+    /**
+     * Tell the media scanner about every picture in the batch now, in a single connection
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mPending.isEmpty()) {
+            return;
+        }
+        String[] paths = mPending.toArray(new String[mPending.size()]);
+        String[] mimeTypes = new String[paths.length];
+        for (int i = 0; i < mimeTypes.length; i++) {
+            mimeTypes[i] = MIME_TYPE;
+        }
+        mPending.clear();
+        mScanner.scanFile(paths, mimeTypes);
+    }
+}
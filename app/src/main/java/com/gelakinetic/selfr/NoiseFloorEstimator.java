@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * Tracks a quantile of the button level over time, using O(1) memory. Each update nudges the
+ * estimate up or down by a small multiplicative step. Steps up are weighted by the quantile, and
+ * steps down by one minus the quantile, so the estimate settles where that fraction of levels fall
+ * below it. Short loud events like button presses barely move it, which makes the median a good
+ * estimate of the noise floor
+ */
+class NoiseFloorEstimator {
+
+    /* The estimate never goes below this, so multiplicative steps can climb out of silence */
+    private static final float MIN_ESTIMATE = 1;
+
+    private final float mQuantile;
+    private final float mTimeConstantSamples;
+    private float mEstimate = -1;
+
+    /**
+     * Default constructor
+     *
+     * @param quantile            The quantile to track, between 0 and 1. 0.5 is the median
+     * @param timeConstantSamples Roughly how many samples it takes for the estimate to follow a
+     *                            change in the noise floor
+     */
+    NoiseFloorEstimator(float quantile, int timeConstantSamples) {
+        mQuantile = quantile;
+        mTimeConstantSamples = Math.max(1, timeConstantSamples);
+    }
+
+    /**
+     * Update the estimate with a new level
+     *
+     * @param level   A button level, as calculated by ButtonDetector
+     * @param samples How many samples the level was calculated over, so updates are weighted the
+     *                same whatever the buffer size is
+     */
+    void update(float level, int samples) {
+        if (mEstimate < 0) {
+            /* Seed the estimate with the first level */
+            mEstimate = Math.max(MIN_ESTIMATE, level);
+            return;
+        }
+        float step = Math.min(1, samples / mTimeConstantSamples);
+        if (level > mEstimate) {
+            mEstimate *= 1 + (step * mQuantile);
+        } else if (level < mEstimate) {
+            mEstimate /= 1 + (step * (1 - mQuantile));
+        }
+        if (mEstimate < MIN_ESTIMATE) {
+            mEstimate = MIN_ESTIMATE;
+        }
+    }
+
+    /**
+     * @return The current estimate, or 0 if there haven't been any updates yet
+     */
+    float getEstimate() {
+        return Math.max(0, mEstimate);
+    }
+}
@@ -0,0 +1,568 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes JPEGs to disk on a background thread, so a slow SD card never stalls the UI thread. The
+ * camera callback hands the bytes off with submit() and returns. Pictures wait in a bounded queue,
+ * and what happens when it's full is decided by the Policy
+ */
+class PictureWriter {
+
+    /* Enums */
+    enum Policy {
+        /* Wait in submit() until there is room in the queue, or the writer is stopped */
+        BLOCK,
+        /* Throw away pictures which don't fit in the queue */
+        DROP
+    }
+
+    enum SyncPolicy {
+        /* Leave it to the OS to write pictures to storage when it wants to. Fastest, but a power
+         * loss soon after a picture can lose it
+         */
+        NONE,
+        /* Force each picture's bytes to storage before it's renamed into place */
+        DATA,
+        /* Force each picture's bytes and file information to storage before it's renamed */
+        FULL
+    }
+
+    interface Listener {
+        /**
+         * Called on the Listener's Handler when a picture was written
+         *
+         * @param file The file the picture was written to
+         */
+        void onPictureWritten(File file);
+
+        /**
+         * Called on the Listener's Handler when a picture was dropped because the queue was full,
+         * or couldn't be written
+         *
+         * @param file The file the picture would have been written to
+         */
+        void onPictureDropped(File file);
+
+        /**
+         * Called on the Listener's Handler once a writer thread was stopped and every picture
+         * queued before stop() was written or dropped. This comes after the last
+         * onPictureWritten() for those pictures
+         */
+        void onStopped();
+    }
+
+    /* JPEG quality for preview frames */
+    private static final int PREVIEW_FRAME_QUALITY = 95;
+
+    /* The name of traced writes */
+    private static final String TRACE_WRITE = "write picture";
+
+    /* How often a submit() waiting for room checks if the writer was stopped */
+    private static final long BLOCK_CHECK_MILLIS = 100;
+
+    /* Pictures are written to their name plus this, then renamed once they're complete */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /* Leftover temporary files are dealt with once per process, while holding this lock. No
+     * writer writes anything until it has held the lock once, so every temporary file seen by
+     * recovery was left by a process which died, never one a live writer is filling
+     */
+    private static final Object RECOVERY_LOCK = new Object();
+    private static boolean recovered = false;
+
+    private final int mCapacity;
+    private final Policy mPolicy;
+    private final SyncPolicy mSyncPolicy;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final SessionJournal mJournal;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private final TraceRecorder mTrace = TraceRecorder.getInstance();
+    /* The queue of the running writer thread, null when stopped */
+    private volatile ArrayBlockingQueue<Job> mQueue = null;
+
+    /**
+     * A ByteArrayOutputStream which exposes its buffer, so it can be read without a copy
+     */
+    private static class JpegBuffer extends ByteArrayOutputStream {
+        /**
+         * @return The buffer, with size() valid bytes
+         */
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * A picture waiting to be written
+     */
+    private static class Job {
+        /* Queued when the writer should stop, to wake it if it's waiting for a picture */
+        static final Job STOP = new Job(null, null, 0, JpegExifWriter.ORIENTATION_NONE, 0,
+                null);
+
+        final byte[] mData;
+        final File mFile;
+        final long mPressTime;
+        final int mOrientation;
+        final long mCaptureTimeMillis;
+        final SessionJournal.Entry mEntry;
+
+        /* For NV21 preview frames, which are compressed to JPEG as they're written */
+        int mYuvWidth = 0;
+        int mYuvHeight = 0;
+        Runnable mOnDone = null;
+
+        Job(byte[] data, File file, long pressTime, int orientation, long captureTimeMillis,
+            SessionJournal.Entry entry) {
+            mData = data;
+            mFile = file;
+            mPressTime = pressTime;
+            mOrientation = orientation;
+            mCaptureTimeMillis = captureTimeMillis;
+            mEntry = entry;
+        }
+    }
+
+    /**
+     * Writes the pictures from one queue, which belongs to a single start() / stop() cycle
+     */
+    private class Worker implements Runnable {
+
+        private final ArrayBlockingQueue<Job> mJobs;
+        private final File mRecoverDirectory;
+
+        /* Compressed pictures are held here while EXIF is spliced in. A worker still draining
+         * after a restart has its own, and it's reused, so it only grows to the largest picture
+         */
+        private final JpegBuffer mJpegBuffer = new JpegBuffer();
+
+        /**
+         * Default constructor
+         *
+         * @param jobs             The queue this worker writes from
+         * @param recoverDirectory Where to recover leftover pictures, may be null
+         */
+        Worker(ArrayBlockingQueue<Job> jobs, File recoverDirectory) {
+            mJobs = jobs;
+            mRecoverDirectory = recoverDirectory;
+        }
+
+        /**
+         * Called when this starts running on a background thread. Write pictures until stop() is
+         * called and every picture queued before it is written
+         */
+        @Override
+        public void run() {
+            synchronized (RECOVERY_LOCK) {
+                /* Only the first writer in the process recovers, before anything is written */
+                if (!recovered && mRecoverDirectory != null) {
+                    recover(mRecoverDirectory);
+                    recovered = true;
+                }
+            }
+            while (true) {
+                Job job;
+                if (mQueue != mJobs) {
+                    /* Stopping, so write whatever is left without waiting for more. Anything
+                     * queued after this finds the queue is stale, and takes itself back out
+                     */
+                    job = mJobs.poll();
+                    if (job == null) {
+                        break;
+                    }
+                } else {
+                    try {
+                        job = mJobs.take();
+                    } catch (InterruptedException e) {
+                        continue;
+                    }
+                }
+                if (job == Job.STOP) {
+                    /* Only a wake up, the loop drains the rest of the queue */
+                    continue;
+                }
+                mTrace.begin(TRACE_WRITE);
+                write(job, mJpegBuffer);
+                mTrace.end(TRACE_WRITE);
+                if (job.mOnDone != null) {
+                    job.mOnDone.run();
+                }
+            }
+            notifyStopped();
+        }
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param capacity   How many pictures can wait to be written
+     * @param policy     What to do with pictures when the queue is full
+     * @param syncPolicy How hard to push each picture to storage before it's renamed into place
+     * @param listener   Notified when pictures are written or dropped, may be null
+     * @param handler    The Handler to notify the listener on
+     * @param journal    Where saved pictures are logged, may be null
+     */
+    PictureWriter(int capacity, Policy policy, SyncPolicy syncPolicy, Listener listener,
+                  Handler handler, SessionJournal journal) {
+        mCapacity = Math.max(1, capacity);
+        mPolicy = policy;
+        mSyncPolicy = syncPolicy;
+        mListener = listener;
+        mHandler = handler;
+        mJournal = journal;
+    }
+
+    /**
+     * Start the writer thread. Each start gets a fresh queue, so a writer still finishing pictures
+     * from before a stop() never competes with the new one
+     *
+     * @param recoverDirectory Where pictures are saved. Before the first writer in this process
+     *                         writes anything, it finishes or deletes pictures left half written
+     *                         there by a crash. May be null
+     */
+    void start(File recoverDirectory) {
+        ArrayBlockingQueue<Job> queue = new ArrayBlockingQueue<>(mCapacity);
+        mQueue = queue;
+        Thread thread = new Thread(new Worker(queue, recoverDirectory));
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread once the pictures already queued are written. This never blocks, so
+     * it's safe to call from the UI thread, and doesn't wait for the pictures
+     */
+    void stop() {
+        ArrayBlockingQueue<Job> queue = mQueue;
+        /* The writer sees its queue is no longer current, and drains it before stopping */
+        mQueue = null;
+        if (queue != null) {
+            /* Wake the writer if it's waiting on an empty queue. If the queue is full, the writer
+             * isn't waiting, and it checks for the stop before taking each picture
+             */
+            queue.offer(Job.STOP);
+        }
+    }
+
+    /**
+     * Queue a picture to be written. This returns immediately unless the policy is BLOCK and the
+     * queue is full
+     *
+     * @param data              The JPEG bytes. These must not be modified after this call
+     * @param file              Where to write the picture. Its directory is created if it
+     *                          doesn't exist
+     * @param pressTime         When the button was pressed, from CaptureMetrics.now()
+     * @param orientation       The EXIF orientation to write, one of the
+     *                          JpegExifWriter.ORIENTATION_* values. ORIENTATION_NONE leaves the
+     *                          JPEG's EXIF alone
+     * @param captureTimeMillis When the picture was taken, from System.currentTimeMillis()
+     * @param entry             Logged to the journal once the picture is written, may be null
+     * @return true if the picture was queued, false if it was dropped
+     */
+    boolean submit(byte[] data, File file, long pressTime, int orientation,
+                   long captureTimeMillis, SessionJournal.Entry entry) {
+        return enqueue(new Job(data, file, pressTime, orientation, captureTimeMillis, entry));
+    }
+
+    /**
+     * Queue a preview frame to be compressed to JPEG and written, for zero shutter lag pictures.
+     * Compressing happens on the writer thread, straight into the file
+     *
+     * @param nv21              The frame, in NV21. It must not be modified until onDone runs
+     * @param width             The width of the frame, in pixels
+     * @param height            The height of the frame, in pixels
+     * @param file              Where to write the picture. Its directory is created if it
+     *                          doesn't exist
+     * @param pressTime         When the button was pressed, from CaptureMetrics.now()
+     * @param orientation       The EXIF orientation to write, one of the
+     *                          JpegExifWriter.ORIENTATION_* values. Preview frames are never
+     *                          rotated, so this should always be set
+     * @param captureTimeMillis When the frame was captured, from System.currentTimeMillis()
+     * @param onDone            Run on the writer thread once the frame isn't needed anymore,
+     *                          whether it was written or dropped. May be null
+     * @param entry             Logged to the journal once the picture is written, may be null
+     * @return true if the frame was queued, false if it was dropped
+     */
+    boolean submitPreviewFrame(byte[] nv21, int width, int height, File file, long pressTime,
+                               int orientation, long captureTimeMillis, Runnable onDone,
+                               SessionJournal.Entry entry) {
+        Job job = new Job(nv21, file, pressTime, orientation, captureTimeMillis, entry);
+        job.mYuvWidth = width;
+        job.mYuvHeight = height;
+        job.mOnDone = onDone;
+        return enqueue(job);
+    }
+
+    /**
+     * Queue a job, following the Policy when the queue is full
+     *
+     * @param job The picture to write
+     * @return true if the picture was queued, false if it was dropped
+     */
+    private boolean enqueue(Job job) {
+        ArrayBlockingQueue<Job> queue = mQueue;
+        boolean queued = false;
+        if (queue != null) {
+            switch (mPolicy) {
+                case BLOCK: {
+                    /* Wait for room, but not past a stop. A stopped writer may have exited
+                     * already, and the wake up it was sent can fill the last slot for good
+                     */
+                    try {
+                        while (!(queued = queue.offer(job, BLOCK_CHECK_MILLIS,
+                                TimeUnit.MILLISECONDS)) && mQueue == queue) {
+                            /* Still running, keep waiting */
+                        }
+                    } catch (InterruptedException e) {
+                        /* Treat it like a drop */
+                    }
+                    break;
+                }
+                case DROP: {
+                    queued = queue.offer(job);
+                    break;
+                }
+            }
+            /* If the writer was stopped meanwhile, it may have drained the queue already and
+             * will never see this job. Whoever removes it first owns it, so if it's still here,
+             * it's dropped rather than lost
+             */
+            if (queued && mQueue != queue && queue.remove(job)) {
+                queued = false;
+            }
+        }
+        if (!queued) {
+            if (job.mOnDone != null) {
+                job.mOnDone.run();
+            }
+            notifyDropped(job.mFile);
+        }
+        return queued;
+    }
+
+    /**
+     * Write a single picture, and notify the listener
+     *
+     * @param job    The picture to write
+     * @param buffer Where to compress the picture before it's written, if it has to be
+     */
+    private void write(Job job, JpegBuffer buffer) {
+        /* Make sure the directory exists */
+        File directory = job.mFile.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            notifyDropped(job.mFile);
+            return;
+        }
+
+        /* Write to a temporary file first, so a crash or a full disk part way through never
+         * leaves a truncated picture under the real name
+         */
+        File tempFile = new File(job.mFile.getPath() + TEMP_SUFFIX);
+        long writeStart = CaptureMetrics.now();
+        FileOutputStream fos = null;
+        boolean written = false;
+        try {
+            fos = new FileOutputStream(tempFile);
+            buffer.reset();
+            if (job.mYuvWidth > 0) {
+                /* Compress a preview frame */
+                YuvImage image = new YuvImage(job.mData, ImageFormat.NV21, job.mYuvWidth,
+                        job.mYuvHeight, null);
+                if (!image.compressToJpeg(new Rect(0, 0, job.mYuvWidth, job.mYuvHeight),
+                        PREVIEW_FRAME_QUALITY, buffer)) {
+                    throw new IOException("Couldn't compress a preview frame");
+                }
+                JpegExifWriter.write(buffer.getBuffer(), buffer.size(),
+                        job.mOrientation, job.mCaptureTimeMillis, fos);
+            } else {
+                JpegExifWriter.write(job.mData, job.mData.length, job.mOrientation,
+                        job.mCaptureTimeMillis, fos);
+            }
+            sync(fos);
+            written = true;
+        } catch (IOException e) {
+            /* Reported as a drop below */
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+
+        /* Once it's complete, move it into place in one step */
+        if (!written || !tempFile.renameTo(job.mFile)) {
+            /* Don't leave a partial picture behind */
+            tempFile.delete();
+            notifyDropped(job.mFile);
+            return;
+        }
+
+        long writeEnd = CaptureMetrics.now();
+        mMetrics.record(CaptureMetrics.Stage.FILE_WRITE, writeStart, writeEnd);
+        mMetrics.record(CaptureMetrics.Stage.PRESS_TO_DISK, job.mPressTime, writeEnd);
+        if (mJournal != null && job.mEntry != null) {
+            mJournal.append(job.mEntry);
+        }
+        notifyWritten(job.mFile);
+    }
+
+    /**
+     * Push a written picture to storage, according to the SyncPolicy, and record how long it took
+     *
+     * @param fos The stream the picture was written to
+     * @throws IOException If the picture couldn't be pushed to storage
+     */
+    private void sync(FileOutputStream fos) throws IOException {
+        if (mSyncPolicy == SyncPolicy.NONE) {
+            return;
+        }
+        long syncStart = CaptureMetrics.now();
+        fos.getChannel().force(mSyncPolicy == SyncPolicy.FULL);
+        mMetrics.record(CaptureMetrics.Stage.FSYNC, syncStart, CaptureMetrics.now());
+    }
+
+    /**
+     * Deal with temporary files left behind when the app was killed part way through saving. Any
+     * which hold a whole JPEG were written, and only missed being renamed, so they're renamed into
+     * place and logged to the journal. The rest are truncated, and deleted. Only names are listed
+     * and a few bytes of each temporary file read, so this is fast
+     *
+     * @param directory Where pictures are saved
+     */
+    void recover(File directory) {
+        File[] tempFiles = directory.listFiles();
+        if (tempFiles == null) {
+            return;
+        }
+        for (File tempFile : tempFiles) {
+            String name = tempFile.getPath();
+            if (!name.endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            File file = new File(name.substring(0, name.length() - TEMP_SUFFIX.length()));
+            if (!file.exists() && isCompleteJpeg(tempFile) && tempFile.renameTo(file)) {
+                mMetrics.increment(CaptureMetrics.Counter.TEMP_SALVAGED);
+                if (mJournal != null) {
+                    /* The journal line was lost with the crash. Only the time is known, roughly */
+                    mJournal.append(new SessionJournal.Entry(file, file.lastModified(),
+                            SessionJournal.UNKNOWN, SessionJournal.UNKNOWN, 0));
+                }
+                notifyWritten(file);
+            } else if (tempFile.delete()) {
+                mMetrics.increment(CaptureMetrics.Counter.TEMP_DELETED);
+            }
+        }
+    }
+
+    /**
+     * @param file A file which might hold a JPEG
+     * @return true if the file starts with a JPEG's start of image marker and ends with its end of
+     * image marker, false otherwise
+     */
+    private static boolean isCompleteJpeg(File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            long length = in.length();
+            if (length < 4 || in.readUnsignedShort() != 0xFFD8) {
+                return false;
+            }
+            in.seek(length - 2);
+            return in.readUnsignedShort() == 0xFFD9;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell the listener a picture was written, on its Handler
+     *
+     * @param file The file which was written
+     */
+    private void notifyWritten(final File file) {
+        if (mListener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPictureWritten(file);
+            }
+        });
+    }
+
+    /**
+     * Tell the listener a writer thread finished, on its Handler
+     */
+    private void notifyStopped() {
+        if (mListener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onStopped();
+            }
+        });
+    }
+
+    /**
+     * Tell the listener a picture was dropped, on its Handler
+     *
+     * @param file The file which wasn't written
+     */
+    private void notifyDropped(final File file) {
+        if (mListener == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onPictureDropped(file);
+            }
+        });
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+/**
+ * Keeps the most recent preview frames in a fixed pool of preallocated buffers, for zero shutter
+ * lag pictures. The camera fills buffers through setPreviewCallbackWithBuffer(), and as each frame
+ * arrives the oldest one is handed back to be filled again, so nothing is allocated per frame. A
+ * frame can be locked so it isn't reused while it's encoded. Everything except the buffer contents
+ * of locked frames must only be touched on the camera thread
+ */
+@SuppressWarnings("deprecation")
+class PreviewFrameRing {
+
+    /* How many buffers are always queued with the camera, so it never runs dry */
+    private static final int QUEUED_BUFFERS = 2;
+
+    private final Camera mCamera;
+    private final int mWidth;
+    private final int mHeight;
+    private final byte[][] mBuffers;
+    private final long[] mTimestamps;
+    private final boolean[] mLocked;
+
+    /* Indices of filled buffers, oldest first, in a circular array */
+    private final int[] mFilled;
+    private int mFilledStart = 0;
+    private int mFilledCount = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Default constructor. Allocates every buffer and queues them all with the camera
+     *
+     * @param camera  The camera, which must be previewing in NV21
+     * @param width   The width of preview frames, in pixels
+     * @param height  The height of preview frames, in pixels
+     * @param buffers How many buffers to allocate. Up to buffers - 2 frames are kept
+     */
+    PreviewFrameRing(Camera camera, int width, int height, int buffers) {
+        mCamera = camera;
+        mWidth = width;
+        mHeight = height;
+        int count = Math.max(buffers, QUEUED_BUFFERS + 1);
+        int size = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        mBuffers = new byte[count][size];
+        mTimestamps = new long[count];
+        mLocked = new boolean[count];
+        mFilled = new int[count];
+        for (byte[] buffer : mBuffers) {
+            mCamera.addCallbackBuffer(buffer);
+        }
+    }
+
+    /**
+     * @return The width of preview frames, in pixels
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of preview frames, in pixels
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Called from the camera's preview callback with a filled buffer. Remembers the frame, and
+     * gives the camera back the oldest unlocked frame's buffer to fill
+     *
+     * @param data      A buffer from this ring, holding a new frame
+     * @param timestamp When the frame arrived, from CaptureMetrics.now()
+     */
+    void onPreviewFrame(byte[] data, long timestamp) {
+        int index = indexOf(data);
+        if (index < 0 || mClosed) {
+            return;
+        }
+        mTimestamps[index] = timestamp;
+        mFilled[(mFilledStart + mFilledCount) % mFilled.length] = index;
+        mFilledCount++;
+
+        /* Keep enough buffers queued with the camera */
+        int queued = mBuffers.length - mFilledCount - countLocked();
+        while (queued < QUEUED_BUFFERS && mFilledCount > 0) {
+            int oldest = mFilled[mFilledStart];
+            mFilledStart = (mFilledStart + 1) % mFilled.length;
+            mFilledCount--;
+            mCamera.addCallbackBuffer(mBuffers[oldest]);
+            queued++;
+        }
+    }
+
+    /**
+     * Find the kept frame which arrived closest to a moment, and lock it so its buffer isn't
+     * reused until release() is called
+     *
+     * @param timestamp The moment, from CaptureMetrics.now()
+     * @return The locked frame's index, or -1 if there are no frames
+     */
+    int lockClosest(long timestamp) {
+        int closest = -1;
+        long closestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < mFilledCount; i++) {
+            int index = mFilled[(mFilledStart + i) % mFilled.length];
+            long distance = Math.abs(mTimestamps[index] - timestamp);
+            if (distance < closestDistance) {
+                closest = i;
+                closestDistance = distance;
+            }
+        }
+        if (closest < 0) {
+            return -1;
+        }
+
+        /* Take it out of the filled frames, shifting the newer ones down */
+        int index = mFilled[(mFilledStart + closest) % mFilled.length];
+        for (int i = closest; i < mFilledCount - 1; i++) {
+            mFilled[(mFilledStart + i) % mFilled.length] =
+                    mFilled[(mFilledStart + i + 1) % mFilled.length];
+        }
+        mFilledCount--;
+        mLocked[index] = true;
+        return index;
+    }
+
+    /**
+     * @param index A locked frame's index
+     * @return The frame's NV21 data. It can be read from any thread until it's released
+     */
+    byte[] getFrame(int index) {
+        return mBuffers[index];
+    }
+
+    /**
+     * @param index A frame's index
+     * @return When the frame arrived, from CaptureMetrics.now()
+     */
+    long getTimestamp(int index) {
+        return mTimestamps[index];
+    }
+
+    /**
+     * Give a locked frame's buffer back to the camera
+     *
+     * @param index A locked frame's index
+     */
+    void release(int index) {
+        if (mLocked[index]) {
+            mLocked[index] = false;
+            if (!mClosed) {
+                mCamera.addCallbackBuffer(mBuffers[index]);
+            }
+        }
+    }
+
+    /**
+     * @param width   The width of preview frames, in pixels
+     * @param height  The height of preview frames, in pixels
+     * @param buffers How many buffers would be allocated
+     * @return true if this ring's buffers already fit those frames, so it can be kept when the
+     * preview restarts, false otherwise
+     */
+    boolean fits(int width, int height, int buffers) {
+        return !mClosed && width == mWidth && height == mHeight &&
+                Math.max(buffers, QUEUED_BUFFERS + 1) == mBuffers.length;
+    }
+
+    /**
+     * Hand every unlocked buffer back to the camera when the preview restarts, after its buffer
+     * queue was cleared. Frames kept from before the restart are forgotten, they're stale now.
+     * Locked frames go back to the camera when they're released, as usual
+     */
+    void requeue() {
+        mFilledStart = 0;
+        mFilledCount = 0;
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (!mLocked[i]) {
+                mCamera.addCallbackBuffer(mBuffers[i]);
+            }
+        }
+    }
+
+    /**
+     * Stop handing buffers to the camera, like when it's released or the preview size changes.
+     * Locked frames can still be read until they're released
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    /**
+     * @param data A buffer
+     * @return Which of this ring's buffers it is, or -1 if it isn't one of them
+     */
+    private int indexOf(byte[] data) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == data) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return How many frames are locked
+     */
+    private int countLocked() {
+        int locked = 0;
+        for (boolean isLocked : mLocked) {
+            if (isLocked) {
+                locked++;
+            }
+        }
+        return locked;
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * Picks the preview size for a camera which best fits a surface, and remembers its answers so that
+ * repeated layout passes are a lookup. Candidates are scored first on how closely their aspect
+ * ratio matches the surface's, compared exactly rather than with integer division, then on how
+ * closely their long side matches the surface's long side. Sizes with more pixels than the budget
+ * are only picked if nothing else fits. This uses no Android classes
+ */
+class PreviewSizeSelector {
+
+    /* Aspect ratios closer than this are considered the same, so 1920x1080 and 1280x720 tie */
+    private static final double RATIO_TOLERANCE = 0.001;
+
+    /* How many surface sizes to remember answers for */
+    private static final int MEMO_SIZE = 4;
+
+    private final int[] mSizes;
+    private final int mPixelBudget;
+
+    /* Remembered answers, replaced round robin */
+    private final int[] mMemoWidths = new int[MEMO_SIZE];
+    private final int[] mMemoHeights = new int[MEMO_SIZE];
+    private final int[] mMemoResults = new int[MEMO_SIZE];
+    private int mMemoCount = 0;
+    private int mMemoNext = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param sizes       Supported preview sizes, as width, height pairs
+     * @param pixelBudget The most pixels a preview frame should have, or Integer.MAX_VALUE for no
+     *                    limit
+     */
+    PreviewSizeSelector(int[] sizes, int pixelBudget) {
+        mSizes = sizes;
+        mPixelBudget = pixelBudget;
+    }
+
+    /**
+     * @return The most pixels a preview frame should have
+     */
+    int getPixelBudget() {
+        return mPixelBudget;
+    }
+
+    /**
+     * Pick the preview size which best fits a surface
+     *
+     * @param surfaceWidth  The width of the surface, in pixels
+     * @param surfaceHeight The height of the surface, in pixels
+     * @return The index of the chosen size's width in the sizes array, or -1 if there are no sizes
+     */
+    synchronized int select(int surfaceWidth, int surfaceHeight) {
+        for (int i = 0; i < mMemoCount; i++) {
+            if (mMemoWidths[i] == surfaceWidth && mMemoHeights[i] == surfaceHeight) {
+                return mMemoResults[i];
+            }
+        }
+        int result = score(surfaceWidth, surfaceHeight);
+        mMemoWidths[mMemoNext] = surfaceWidth;
+        mMemoHeights[mMemoNext] = surfaceHeight;
+        mMemoResults[mMemoNext] = result;
+        mMemoNext = (mMemoNext + 1) % MEMO_SIZE;
+        mMemoCount = Math.min(mMemoCount + 1, MEMO_SIZE);
+        return result;
+    }
+
+    /**
+     * @param index An index returned by select()
+     * @return The width of that size
+     */
+    int getWidth(int index) {
+        return mSizes[index];
+    }
+
+    /**
+     * @param index An index returned by select()
+     * @return The height of that size
+     */
+    int getHeight(int index) {
+        return mSizes[index + 1];
+    }
+
+    /**
+     * Score every candidate against a surface
+     *
+     * @param surfaceWidth  The width of the surface, in pixels
+     * @param surfaceHeight The height of the surface, in pixels
+     * @return The index of the best size's width, or -1 if there are no sizes
+     */
+    private int score(int surfaceWidth, int surfaceHeight) {
+        int surfaceLong = Math.max(surfaceWidth, surfaceHeight);
+        int surfaceShort = Math.min(surfaceWidth, surfaceHeight);
+        double targetRatio = (surfaceShort == 0) ? 1 : (double) surfaceLong / surfaceShort;
+
+        int best = -1;
+        boolean bestInBudget = false;
+        double bestRatioDiff = Double.MAX_VALUE;
+        int bestSizeDiff = Integer.MAX_VALUE;
+        long bestPixels = Long.MAX_VALUE;
+        for (int i = 0; i + 1 < mSizes.length; i += 2) {
+            int sizeLong = Math.max(mSizes[i], mSizes[i + 1]);
+            int sizeShort = Math.min(mSizes[i], mSizes[i + 1]);
+            if (sizeShort == 0) {
+                continue;
+            }
+            long pixels = (long) sizeLong * sizeShort;
+            boolean inBudget = pixels <= mPixelBudget;
+            double ratioDiff = Math.abs((double) sizeLong / sizeShort - targetRatio);
+            int sizeDiff = Math.abs(sizeLong - surfaceLong);
+
+            boolean better;
+            if (inBudget != bestInBudget) {
+                /* Anything in the budget beats anything over it */
+                better = inBudget;
+            } else if (!inBudget) {
+                /* Over the budget, the smallest is the least bad */
+                better = pixels < bestPixels;
+            } else if (Math.abs(ratioDiff - bestRatioDiff) > RATIO_TOLERANCE) {
+                better = ratioDiff < bestRatioDiff;
+            } else {
+                better = sizeDiff < bestSizeDiff;
+            }
+
+            if (best < 0 || better) {
+                best = i;
+                bestInBudget = inBudget;
+                bestRatioDiff = ratioDiff;
+                bestSizeDiff = sizeDiff;
+                bestPixels = pixels;
+            }
+        }
+        return best;
+    }
+}
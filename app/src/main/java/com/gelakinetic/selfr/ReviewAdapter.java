@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Thumbnails of saved pictures for the review strip, newest first. Views are recycled by the list,
+ * and thumbnails come from a ThumbnailLoader, so only the ones on screen are ever loaded
+ */
+class ReviewAdapter extends BaseAdapter {
+
+    private final Context mContext;
+    private final ThumbnailLoader mLoader;
+    private final int mSize;
+    private final ArrayList<File> mPictures = new ArrayList<>();
+    private final HashSet<File> mPictureSet = new HashSet<>();
+    /* Pictures saved before setPictures() was called, oldest first. The journals may have been
+     * read before they were logged, so they're merged in then
+     */
+    private final ArrayList<File> mPendingPictures = new ArrayList<>();
+    private boolean mLoaded = false;
+
+    /**
+     * Default constructor
+     *
+     * @param context The Context to make views with
+     * @param loader  Where thumbnails come from
+     * @param size    The width and height of each thumbnail, in pixels
+     */
+    ReviewAdapter(Context context, ThumbnailLoader loader, int size) {
+        mContext = context;
+        mLoader = loader;
+        mSize = size;
+    }
+
+    /**
+     * Replace every picture. Pictures added since the last call which aren't in the list are kept
+     * in front of it
+     *
+     * @param pictures The pictures, oldest first, like they're read from the journals
+     */
+    void setPictures(List<File> pictures) {
+        mPictures.clear();
+        mPictureSet.clear();
+        for (int i = pictures.size() - 1; i >= 0; i--) {
+            if (mPictureSet.add(pictures.get(i))) {
+                mPictures.add(pictures.get(i));
+            }
+        }
+        for (File picture : mPendingPictures) {
+            if (mPictureSet.add(picture)) {
+                mPictures.add(0, picture);
+            }
+        }
+        mPendingPictures.clear();
+        mLoaded = true;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Add a picture which was just saved to the front. Until setPictures() is called, it's held
+     * and merged in then, in case the journals were read before it was logged
+     *
+     * @param picture The picture
+     */
+    void addPicture(File picture) {
+        if (!mLoaded) {
+            mPendingPictures.add(picture);
+        } else if (mPictureSet.add(picture)) {
+            mPictures.add(0, picture);
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * @return The number of pictures
+     */
+    @Override
+    public int getCount() {
+        return mPictures.size();
+    }
+
+    /**
+     * @param position A position in the strip
+     * @return The picture there
+     */
+    @Override
+    public File getItem(int position) {
+        return mPictures.get(position);
+    }
+
+    /**
+     * @param position A position in the strip
+     * @return The same position, pictures don't have IDs
+     */
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * @param position    A position in the strip
+     * @param convertView A view to reuse, may be null
+     * @param parent      The strip
+     * @return A view showing the picture's thumbnail
+     */
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ImageView view;
+        if (convertView instanceof ImageView) {
+            view = (ImageView) convertView;
+        } else {
+            view = new ImageView(mContext);
+            view.setLayoutParams(new AbsListView.LayoutParams(mSize, mSize));
+            view.setScaleType(ImageView.ScaleType.CENTER_CROP);
+        }
+        mLoader.load(mPictures.get(position), view);
+        return view;
+    }
+}
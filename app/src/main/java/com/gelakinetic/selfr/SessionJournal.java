@@ -0,0 +1,309 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only log of the pictures saved in one session, as tab separated values with a header
+ * line. A review screen or stats can read this rather than listing and stat-ing every file in the
+ * picture directory. There is one journal per process, however many times the camera is paused
+ * and resumed. The file is only created once the first picture is saved, and each line is flushed
+ * as it's written, so a crash loses at most the line being written. Journals from earlier
+ * sessions are pruned of pictures which were deleted
+ */
+class SessionJournal {
+
+    private static final String PREFIX = "session_";
+    private static final String SUFFIX = ".tsv";
+    private static final String HEADER =
+            "file\tcapture_time_ms\ttrigger_latency_us\tcamera\trotation";
+    private static final String CAMERA_FRONT = "front";
+    private static final String CAMERA_BACK = "back";
+    private static final String CAMERA_UNKNOWN = "unknown";
+
+    /* For trigger latencies and cameras which aren't known, like for pictures salvaged after a
+     * crash
+     */
+    static final int UNKNOWN = -1;
+
+    /* The journal for this process */
+    private static SessionJournal sessionJournal;
+
+    private final File mFile;
+    private BufferedWriter mWriter = null;
+
+    /**
+     * A single saved picture
+     */
+    static class Entry {
+        final File mFile;
+        final long mCaptureTimeMillis;
+        final long mTriggerLatencyMicros;
+        final int mCameraFacing;
+        final int mRotation;
+
+        /**
+         * Default constructor
+         *
+         * @param file                 The picture
+         * @param captureTimeMillis    When it was taken, from System.currentTimeMillis()
+         * @param triggerLatencyMicros From the button press until the picture was taken, or
+         *                             UNKNOWN
+         * @param cameraFacing         One of the Camera.CameraInfo.CAMERA_FACING_* values, or
+         *                             UNKNOWN
+         * @param rotation             The device rotation when the button was pressed, in degrees
+         */
+        Entry(File file, long captureTimeMillis, long triggerLatencyMicros, int cameraFacing,
+              int rotation) {
+            mFile = file;
+            mCaptureTimeMillis = captureTimeMillis;
+            mTriggerLatencyMicros = triggerLatencyMicros;
+            mCameraFacing = cameraFacing;
+            mRotation = rotation;
+        }
+    }
+
+    /**
+     * Default constructor. Nothing is written until the first append()
+     *
+     * @param directory   The directory journals are kept in. It's created if it doesn't exist
+     * @param startMillis When the session started, from System.currentTimeMillis(). It names the
+     *                    journal
+     */
+    private SessionJournal(File directory, long startMillis) {
+        mFile = new File(directory, PREFIX + startMillis + SUFFIX);
+    }
+
+    /**
+     * Use this instead of the constructor. This manages a static instance of SessionJournal, so
+     * every picture this process saves goes in the same journal, rather than one per resume
+     *
+     * @param directory The directory journals are kept in
+     * @return The journal for this process
+     */
+    static synchronized SessionJournal getInstance(File directory) {
+        if (sessionJournal == null || !directory.equals(sessionJournal.mFile.getParentFile())) {
+            sessionJournal = new SessionJournal(directory, System.currentTimeMillis());
+        }
+        return sessionJournal;
+    }
+
+    /**
+     * @return The file this journal is written to. It may not exist yet
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Add a line for a saved picture. This does I/O, so don't call it on the UI thread
+     *
+     * @param entry The picture
+     * @return true if the line was written, false otherwise
+     */
+    synchronized boolean append(Entry entry) {
+        try {
+            if (mWriter == null) {
+                File directory = mFile.getParentFile();
+                if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                    return false;
+                }
+                mWriter = new BufferedWriter(new FileWriter(mFile, true));
+                if (mFile.length() == 0) {
+                    mWriter.write(HEADER);
+                    mWriter.newLine();
+                }
+            }
+            mWriter.write(format(entry));
+            mWriter.newLine();
+            mWriter.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param entry A saved picture
+     * @return The picture's line in a journal, without the line break
+     */
+    private static String format(Entry entry) {
+        return String.format(Locale.US, "%s\t%d\t%d\t%s\t%d",
+                entry.mFile.getAbsolutePath(), entry.mCaptureTimeMillis,
+                entry.mTriggerLatencyMicros,
+                formatCamera(entry.mCameraFacing),
+                entry.mRotation);
+    }
+
+    /**
+     * @param cameraFacing One of the Camera.CameraInfo.CAMERA_FACING_* values, or UNKNOWN
+     * @return How the camera is written in a journal
+     */
+    private static String formatCamera(int cameraFacing) {
+        switch (cameraFacing) {
+            case Camera.CameraInfo.CAMERA_FACING_FRONT:
+                return CAMERA_FRONT;
+            case Camera.CameraInfo.CAMERA_FACING_BACK:
+                return CAMERA_BACK;
+            default:
+                return CAMERA_UNKNOWN;
+        }
+    }
+
+    /**
+     * @param camera How a camera is written in a journal
+     * @return One of the Camera.CameraInfo.CAMERA_FACING_* values, or UNKNOWN
+     */
+    private static int parseCamera(String camera) {
+        if (CAMERA_FRONT.equals(camera)) {
+            return Camera.CameraInfo.CAMERA_FACING_FRONT;
+        } else if (CAMERA_BACK.equals(camera)) {
+            return Camera.CameraInfo.CAMERA_FACING_BACK;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Drop the pictures which no longer exist from an earlier session's journal, so journals
+     * don't grow forever. A journal with no pictures left is deleted. Otherwise it's rewritten to
+     * a temporary file which replaces it, so a crash never loses the pictures which are left.
+     * This does I/O, so don't call it on the UI thread
+     *
+     * @param file A journal which isn't being written to anymore
+     * @return The pictures left in the journal, in the order they were saved. Never null
+     */
+    static List<Entry> prune(File file) {
+        List<Entry> entries = read(file);
+        ArrayList<Entry> kept = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (entry.mFile.exists()) {
+                kept.add(entry);
+            }
+        }
+        if (kept.isEmpty()) {
+            file.delete();
+            return kept;
+        }
+        if (kept.size() == entries.size()) {
+            return kept;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        boolean written = false;
+        try {
+            writer = new BufferedWriter(new FileWriter(tempFile));
+            writer.write(HEADER);
+            writer.newLine();
+            for (Entry entry : kept) {
+                writer.write(format(entry));
+                writer.newLine();
+            }
+            written = true;
+        } catch (IOException e) {
+            /* Leave the journal as it was */
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written || !tempFile.renameTo(file)) {
+            tempFile.delete();
+        }
+        return kept;
+    }
+
+    /**
+     * @param directory The directory journals are kept in
+     * @return Every journal in the directory, oldest first. Never null
+     */
+    static List<File> list(File directory) {
+        ArrayList<File> journals = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    journals.add(file);
+                }
+            }
+        }
+        /* Every name has the same prefix, and start times have the same number of digits */
+        Collections.sort(journals);
+        return journals;
+    }
+
+    /**
+     * Read a journal back. Lines which can't be parsed, like one cut short by a crash, are skipped
+     *
+     * @param file The journal to read
+     * @return The pictures in the journal, in the order they were saved. Never null
+     */
+    static List<Entry> read(File file) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                /* Journals from older versions have a sixth column, which is ignored */
+                if (fields.length < 5 || line.startsWith(HEADER)) {
+                    continue;
+                }
+                try {
+                    entries.add(new Entry(new File(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), parseCamera(fields[3]),
+                            Integer.parseInt(fields[4])));
+                } catch (NumberFormatException e) {
+                    /* Skip it */
+                }
+            }
+        } catch (IOException e) {
+            /* Return what was read so far */
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+class SlidingWindowAverage {
+
+    /* The last mWindow.length values added, in a circular buffer */
+    private final float[] mWindow;
+    /* Where the next value will be written in mWindow */
+    private int mIndex = 0;
+    /* How many values have been added, up to mWindow.length */
+    private int mCount = 0;
+    /* The running sum of every value in mWindow */
+    private double mSum = 0;
+
+    /**
+     * Default constructor
+     *
+     * @param windowSize The number of values to average over, at least one
+     */
+    SlidingWindowAverage(int windowSize) {
+        mWindow = new float[Math.max(1, windowSize)];
+    }
+
+    /**
+     * Add a value to the window, pushing out the oldest one if the window is full. This is O(1)
+     * amortized, the sum is recalculated once per trip around the window to keep rounding errors
+     * from building up
+     *
+     * @param value The value to add
+     * @return The average of the values currently in the window
+     */
+    float add(float value) {
+        mSum += value - mWindow[mIndex];
+        mWindow[mIndex] = value;
+        mIndex++;
+        if (mCount < mWindow.length) {
+            mCount++;
+        }
+        if (mIndex == mWindow.length) {
+            mIndex = 0;
+            /* Resynchronize the sum */
+            mSum = 0;
+            for (float f : mWindow) {
+                mSum += f;
+            }
+        }
+        return (float) (mSum / mCount);
+    }
+
+    /**
+     * @return The average of the values currently in the window, or 0 if it is empty
+     */
+    float getAverage() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return (float) (mSum / mCount);
+    }
+
+    /**
+     * @return The number of values this window averages over
+     */
+    int getSize() {
+        return mWindow.length;
+    }
+
+    /**
+     * Empty the window
+     */
+    void clear() {
+        for (int i = 0; i < mWindow.length; i++) {
+            mWindow[i] = 0;
+        }
+        mIndex = 0;
+        mCount = 0;
+        mSum = 0;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.util.Random;
+
+/**
+ * Generates background noise with periodic selfie stick clicks mixed in. The output is the same
+ * for a given seed, so it can be used to compare detector changes
+ */
+class SyntheticAudioSource implements IAudioSource {
+
+    private final int mNoiseAmplitude;
+    private final int mClickAmplitude;
+    private final int mClickMillis;
+    private final int mPeriodMillis;
+    private final int mDurationMillis;
+    private final long mSeed;
+
+    private Random mRandom;
+    private int mSampleRate;
+    private long mPosition;
+    private long mClickSamples;
+    private long mPeriodSamples;
+    private long mTotalSamples;
+
+    /**
+     * Default constructor
+     *
+     * @param noiseAmplitude The standard deviation of the gaussian background noise
+     * @param clickAmplitude The peak amplitude of each click
+     * @param clickMillis    How long each click lasts
+     * @param periodMillis   The time from the start of one click to the start of the next. The
+     *                       first click starts one period in
+     * @param durationMillis How much audio to generate before the source is exhausted
+     * @param seed           Seed for the noise generator
+     */
+    SyntheticAudioSource(int noiseAmplitude, int clickAmplitude, int clickMillis,
+                         int periodMillis, int durationMillis, long seed) {
+        mNoiseAmplitude = noiseAmplitude;
+        mClickAmplitude = clickAmplitude;
+        mClickMillis = clickMillis;
+        mPeriodMillis = periodMillis;
+        mDurationMillis = durationMillis;
+        mSeed = seed;
+    }
+
+    /**
+     * Start generating audio from the beginning
+     *
+     * @param sampleRate The number of samples per second the caller expects
+     * @return true, this can always be opened
+     */
+    @Override
+    public boolean open(int sampleRate) {
+        mRandom = new Random(mSeed);
+        mSampleRate = sampleRate;
+        mPosition = 0;
+        mClickSamples = (long) mClickMillis * sampleRate / 1000;
+        mPeriodSamples = Math.max(1, (long) mPeriodMillis * sampleRate / 1000);
+        mTotalSamples = (long) mDurationMillis * sampleRate / 1000;
+        return true;
+    }
+
+    /**
+     * Generate samples as fast as possible
+     *
+     * @param buffer The buffer to read samples into
+     * @param offset Where in buffer to start writing samples
+     * @param length The maximum number of samples to read
+     * @return The number of samples generated, or -1 once the duration has been generated
+     */
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        if (mRandom == null || mPosition >= mTotalSamples) {
+            return -1;
+        }
+        int count = (int) Math.min(length, mTotalSamples - mPosition);
+        for (int i = 0; i < count; i++) {
+            double sample = mRandom.nextGaussian() * mNoiseAmplitude;
+            if (isClick(mPosition)) {
+                /* A click is a square wave at a quarter of the sample rate */
+                sample += ((mPosition & 2) == 0) ? mClickAmplitude : -mClickAmplitude;
+            }
+            buffer[offset + i] = (short) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, sample));
+            mPosition++;
+        }
+        return count;
+    }
+
+    /**
+     * Stop generating audio
+     */
+    @Override
+    public void close() {
+        mRandom = null;
+    }
+
+    /**
+     * @param sampleIndex The index of a sample from the start of the audio
+     * @return true if that sample is part of a click, false otherwise
+     */
+    boolean isClick(long sampleIndex) {
+        return sampleIndex >= mPeriodSamples &&
+                (sampleIndex % mPeriodSamples) < mClickSamples;
+    }
+
+    /**
+     * @param clickIndex Which click, starting from 0
+     * @return The index of the first sample of that click, once opened
+     */
+    long getClickStart(int clickIndex) {
+        return (clickIndex + 1) * mPeriodSamples;
+    }
+
+    /**
+     * @return The sample rate this was opened with
+     */
+    int getSampleRate() {
+        return mSampleRate;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Thumbnails by picture, in memory and on disk. The memory cache is bounded in bytes and throws
+ * out the least recently used thumbnails first. The disk cache keeps thumbnails as small JPEGs so
+ * they survive the app being closed, and throws out the oldest once it's too big. Memory may be
+ * read from any thread, the disk should only be touched from one background thread
+ */
+class ThumbnailCache {
+
+    private static final String SUFFIX = ".jpg";
+    private static final int DISK_QUALITY = 85;
+
+    /* The support library's LruCache, since the framework's can't be trimmed before API 17 */
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    private long mDiskBytes = -1;
+
+    /**
+     * Default constructor
+     *
+     * @param maxMemoryBytes How many bytes of thumbnails to keep in memory
+     * @param directory      Where to keep thumbnails on disk. It's created if it doesn't exist
+     * @param maxDiskBytes   How many bytes of thumbnails to keep on disk
+     */
+    ThumbnailCache(int maxMemoryBytes, File directory, long maxDiskBytes) {
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            /**
+             * @param key    The picture
+             * @param bitmap Its thumbnail
+             * @return How many bytes the thumbnail takes
+             */
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        /* Thumbnails are stored without alpha, so don't spend memory on it */
+        mOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * @param picture A picture
+     * @return The key its thumbnail is cached under. Picture names are never reused, so the name
+     * is enough
+     */
+    static String keyFor(File picture) {
+        return picture.getName();
+    }
+
+    /**
+     * @param key A key from keyFor()
+     * @return The thumbnail, or null if it's not in memory
+     */
+    Bitmap getFromMemory(String key) {
+        return mMemoryCache.get(key);
+    }
+
+    /**
+     * Read a thumbnail from the disk cache, and keep it in memory too
+     *
+     * @param key A key from keyFor()
+     * @return The thumbnail, or null if it's not on disk
+     */
+    Bitmap getFromDisk(String key) {
+        File file = new File(mDirectory, key + SUFFIX);
+        if (!file.exists()) {
+            return null;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), mOptions);
+        if (bitmap != null) {
+            mMemoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Keep a thumbnail in memory and on disk
+     *
+     * @param key       A key from keyFor()
+     * @param thumbnail The thumbnail
+     */
+    void put(String key, Bitmap thumbnail) {
+        mMemoryCache.put(key, thumbnail);
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return;
+        }
+        File file = new File(mDirectory, key + SUFFIX);
+        FileOutputStream fos = null;
+        boolean written = false;
+        try {
+            fos = new FileOutputStream(file);
+            written = thumbnail.compress(Bitmap.CompressFormat.JPEG, DISK_QUALITY, fos);
+        } catch (IOException e) {
+            /* It will be made again next time */
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+        if (!written) {
+            file.delete();
+            return;
+        }
+
+        if (mDiskBytes < 0) {
+            /* Only list the directory once, then keep count */
+            mDiskBytes = 0;
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File cached : files) {
+                    mDiskBytes += cached.length();
+                }
+            }
+        } else {
+            mDiskBytes += file.length();
+        }
+        if (mDiskBytes > mMaxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    /**
+     * Delete the oldest thumbnails on disk until they take three quarters of the limit, so this
+     * doesn't happen on every put()
+     */
+    private void trimDisk() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        mDiskBytes = 0;
+        for (File file : files) {
+            mDiskBytes += file.length();
+        }
+        for (int i = 0; i < files.length && mDiskBytes > mMaxDiskBytes * 3 / 4; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+
+    /**
+     * Give memory back when the system is low on it
+     *
+     * @param fraction How much of the memory cache to keep, from 0 to 1
+     */
+    void trimMemory(float fraction) {
+        if (fraction <= 0) {
+            mMemoryCache.evictAll();
+        } else {
+            mMemoryCache.trimToSize((int) (mMemoryCache.maxSize() * fraction));
+        }
+    }
+}
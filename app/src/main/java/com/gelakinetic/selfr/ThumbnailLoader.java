@@ -0,0 +1,290 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.util.WeakHashMap;
+
+/**
+ * Loads square thumbnails of pictures into ImageViews on a background thread. Each thumbnail comes
+ * from the first of these that works:
+ * - The memory cache, without leaving the UI thread
+ * - The disk cache
+ * - The thumbnail the camera embedded in the picture's EXIF, which needs no decode of the picture
+ * - A subsampled decode of the picture, into a reused Bitmap where the OS allows it
+ * The newest request is loaded first and requests for views which were rebound since are skipped,
+ * so flinging through a long list only loads what ends up on screen
+ */
+class ThumbnailLoader {
+
+    /* An embedded thumbnail is used if it's at least this fraction of the thumbnail size */
+    private static final float MIN_EMBEDDED_FRACTION = 0.5f;
+
+    private final ThumbnailCache mCache;
+    private final int mSize;
+    private final Handler mUiHandler;
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /* Which picture each view should show. Guarded by itself */
+    private final WeakHashMap<ImageView, File> mRequests = new WeakHashMap<>();
+
+    /* Only used on the loader thread */
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private Bitmap mScratch = null;
+
+    /**
+     * Default constructor
+     *
+     * @param cache     Where thumbnails are cached
+     * @param size      The width and height of thumbnails, in pixels
+     * @param uiHandler A Handler for the UI thread, where thumbnails are set
+     */
+    ThumbnailLoader(ThumbnailCache cache, int size, Handler uiHandler) {
+        mCache = cache;
+        mSize = Math.max(1, size);
+        mUiHandler = uiHandler;
+        /* Half the memory of ARGB_8888, and thumbnails don't need the alpha */
+        mOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * Start the loader thread
+     */
+    void start() {
+        mThread = new HandlerThread("ThumbnailThread");
+        mThread.setPriority(Thread.NORM_PRIORITY - 1);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Stop the loader thread. Thumbnails still waiting to be loaded aren't
+     */
+    void stop() {
+        if (mThread != null) {
+            mThread.quit();
+            mThread = null;
+        }
+        synchronized (mRequests) {
+            mRequests.clear();
+        }
+    }
+
+    /**
+     * Run something on the loader thread, like reading a list of pictures
+     *
+     * @param runnable What to run
+     */
+    void post(Runnable runnable) {
+        if (mHandler != null) {
+            mHandler.post(runnable);
+        }
+    }
+
+    /**
+     * @return The cache thumbnails are kept in
+     */
+    ThumbnailCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * Show a picture's thumbnail in a view. Call this on the UI thread. If the thumbnail isn't in
+     * memory, the view is cleared until it's loaded
+     *
+     * @param picture The picture
+     * @param view    The view to show it in. Any earlier request for this view is forgotten
+     */
+    void load(final File picture, final ImageView view) {
+        final String key = ThumbnailCache.keyFor(picture);
+        synchronized (mRequests) {
+            mRequests.put(view, picture);
+        }
+        Bitmap thumbnail = mCache.getFromMemory(key);
+        view.setImageBitmap(thumbnail);
+        if (thumbnail != null || mHandler == null) {
+            return;
+        }
+
+        /* The newest requests are the ones on screen, so they jump the queue */
+        mHandler.postAtFrontOfQueue(new Runnable() {
+            @Override
+            public void run() {
+                if (!isWanted(picture, view)) {
+                    return;
+                }
+                Bitmap thumbnail = mCache.getFromMemory(key);
+                if (thumbnail == null) {
+                    thumbnail = mCache.getFromDisk(key);
+                }
+                if (thumbnail == null) {
+                    thumbnail = makeThumbnail(picture);
+                    if (thumbnail == null) {
+                        return;
+                    }
+                    mCache.put(key, thumbnail);
+                }
+                final Bitmap loaded = thumbnail;
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isWanted(picture, view)) {
+                            view.setImageBitmap(loaded);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param picture A picture
+     * @param view    The view it was requested for
+     * @return true if the view still wants that picture, false if it was rebound since
+     */
+    private boolean isWanted(File picture, ImageView view) {
+        synchronized (mRequests) {
+            return picture.equals(mRequests.get(view));
+        }
+    }
+
+    /**
+     * Make a thumbnail from a picture, on the loader thread
+     *
+     * @param picture The picture
+     * @return The thumbnail, upright, or null if the picture couldn't be read
+     */
+    private Bitmap makeThumbnail(File picture) {
+        ExifThumbnailReader.Exif exif = ExifThumbnailReader.read(picture);
+        if (exif == null) {
+            return null;
+        }
+
+        /* Try the embedded thumbnail first, it's tiny compared to the picture */
+        Bitmap source = null;
+        if (exif.mThumbnail != null) {
+            mOptions.inSampleSize = 1;
+            source = BitmapFactory.decodeByteArray(exif.mThumbnail, exif.mThumbnailOffset,
+                    exif.mThumbnailLength, mOptions);
+            if (source != null && Math.min(source.getWidth(), source.getHeight()) <
+                    mSize * MIN_EMBEDDED_FRACTION) {
+                /* Too blurry at this size */
+                source.recycle();
+                source = null;
+            }
+        }
+        if (source == null) {
+            source = decodeSampled(picture);
+            if (source == null) {
+                return null;
+            }
+        }
+
+        /* Crop the middle square, shrink it, and turn it upright */
+        int side = Math.min(source.getWidth(), source.getHeight());
+        float scale = Math.min(1, mSize / (float) side);
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        matrix.postRotate(ExifThumbnailReader.rotationForOrientation(exif.mOrientation));
+        Bitmap thumbnail = Bitmap.createBitmap(source, (source.getWidth() - side) / 2,
+                (source.getHeight() - side) / 2, side, side, matrix, true);
+        if (source != mScratch && source != thumbnail) {
+            source.recycle();
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Decode a picture at the smallest power of two subsample which is still at least as big as a
+     * thumbnail
+     *
+     * @param picture The picture
+     * @return The decoded picture, or null if it couldn't be decoded. It may be the scratch Bitmap,
+     * which is overwritten by the next decode
+     */
+    private Bitmap decodeSampled(File picture) {
+        String path = picture.getPath();
+        mOptions.inJustDecodeBounds = true;
+        mOptions.inSampleSize = 1;
+        BitmapFactory.decodeFile(path, mOptions);
+        mOptions.inJustDecodeBounds = false;
+        int width = mOptions.outWidth;
+        int height = mOptions.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (Math.min(width, height) / (sampleSize * 2) >= mSize) {
+            sampleSize *= 2;
+        }
+        mOptions.inSampleSize = sampleSize;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            /* Before KitKat, only Bitmaps of the exact same size could be reused */
+            return BitmapFactory.decodeFile(path, mOptions);
+        }
+        return decodeReusing(path, ((width + sampleSize - 1) / sampleSize) *
+                ((height + sampleSize - 1) / sampleSize) * 2);
+    }
+
+    /**
+     * Decode a picture into the scratch Bitmap if it's big enough, otherwise into a new one which
+     * becomes the scratch Bitmap. It only ever grows, so after a few pictures decodes stop
+     * allocating
+     *
+     * @param path  The picture
+     * @param bytes How many bytes the decoded picture needs
+     * @return The decoded picture, which is the scratch Bitmap, or null if it couldn't be decoded
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private Bitmap decodeReusing(String path, int bytes) {
+        mOptions.inMutable = true;
+        mOptions.inBitmap = (mScratch != null && mScratch.getAllocationByteCount() >= bytes) ?
+                mScratch : null;
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeFile(path, mOptions);
+        } catch (IllegalArgumentException e) {
+            /* The decoder wouldn't reuse it after all */
+            mOptions.inBitmap = null;
+            decoded = BitmapFactory.decodeFile(path, mOptions);
+        }
+        mOptions.inBitmap = null;
+        mOptions.inMutable = false;
+        if (decoded != null && decoded != mScratch) {
+            if (mScratch != null) {
+                mScratch.recycle();
+            }
+            mScratch = decoded;
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records begin and end events from every thread into a preallocated ring, and writes them out as
+ * Chrome trace event JSON, which chrome://tracing or Perfetto can open. Recording doesn't allocate
+ * or lock, so it's cheap enough for the audio thread. Event names must be constants, since only
+ * the reference is kept. When the ring is full the oldest events are overwritten
+ */
+class TraceRecorder {
+
+    /* How many events are kept. At 100 audio frames a second, this is about a minute */
+    static final int CAPACITY = 16384;
+
+    private static TraceRecorder traceRecorder;
+
+    private volatile boolean enabled = false;
+    private final AtomicLong next = new AtomicLong(0);
+    private final String[] names = new String[CAPACITY];
+    private final boolean[] begins = new boolean[CAPACITY];
+    private final long[] timestamps = new long[CAPACITY];
+    private final long[] threadIds = new long[CAPACITY];
+    private final String[] threadNames = new String[CAPACITY];
+
+    /**
+     * Default constructor
+     */
+    private TraceRecorder() {
+    }
+
+    /**
+     * Use this instead of the constructor. This manages a static instance of TraceRecorder, so
+     * every thread records to the same ring
+     *
+     * @return The TraceRecorder to use
+     */
+    static synchronized TraceRecorder getInstance() {
+        if (traceRecorder == null) {
+            traceRecorder = new TraceRecorder();
+        }
+        return traceRecorder;
+    }
+
+    /**
+     * Start or stop recording. Events already recorded are kept
+     *
+     * @param enabled true to record events, false to ignore them
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Record the start of something on this thread
+     *
+     * @param name What started, a constant
+     */
+    void begin(String name) {
+        if (enabled) {
+            record(name, true);
+        }
+    }
+
+    /**
+     * Record the end of something on this thread, which was started with begin()
+     *
+     * @param name What ended, the same constant passed to begin()
+     */
+    void end(String name) {
+        if (enabled) {
+            record(name, false);
+        }
+    }
+
+    /**
+     * Put an event in the next slot of the ring
+     *
+     * @param name  What started or ended
+     * @param begin true if it started, false if it ended
+     */
+    private void record(String name, boolean begin) {
+        long timestamp = CaptureMetrics.now();
+        Thread thread = Thread.currentThread();
+        int slot = (int) (next.getAndIncrement() % CAPACITY);
+        names[slot] = name;
+        begins[slot] = begin;
+        timestamps[slot] = timestamp;
+        threadIds[slot] = thread.getId();
+        threadNames[slot] = thread.getName();
+    }
+
+    /**
+     * Forget every recorded event
+     */
+    synchronized void reset() {
+        next.set(0);
+    }
+
+    /**
+     * Write the recorded events to a file as Chrome trace event JSON, oldest first. Events recorded
+     * while this runs may be torn or missing, so stop recording first for an exact trace
+     *
+     * @param file      The file to write to. It is overwritten
+     * @param processId The process ID to show the events under
+     * @return true if the file was written, false otherwise
+     */
+    synchronized boolean export(File file, int processId) {
+        long end = next.get();
+        long start = Math.max(0, end - CAPACITY);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(file));
+            writer.write("{\"traceEvents\":[\n");
+            Map<Long, String> threads = new HashMap<>();
+            boolean first = true;
+            for (long i = start; i < end; i++) {
+                int slot = (int) (i % CAPACITY);
+                if (names[slot] == null) {
+                    continue;
+                }
+                threads.put(threadIds[slot], threadNames[slot]);
+                writer.write(first ? "" : ",\n");
+                writer.write(String.format(Locale.US,
+                        "{\"name\":\"%s\",\"ph\":\"%s\",\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                        escape(names[slot]), begins[slot] ? "B" : "E", timestamps[slot] / 1000.0,
+                        processId, threadIds[slot]));
+                first = false;
+            }
+            /* Name the threads, so the viewer shows names rather than IDs */
+            for (Map.Entry<Long, String> thread : threads.entrySet()) {
+                writer.write(first ? "" : ",\n");
+                writer.write(String.format(Locale.US,
+                        "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d," +
+                                "\"args\":{\"name\":\"%s\"}}",
+                        processId, thread.getKey(), escape(thread.getValue())));
+                first = false;
+            }
+            writer.write("\n]}\n");
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    /* Eat it */
+                }
+            }
+        }
+    }
+
+    /**
+     * @param string A string to put in JSON
+     * @return The string with quotes and backslashes escaped, and control characters dropped
+     */
+    static String escape(String string) {
+        if (string == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c >= ' ') {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads 16 bit PCM samples from a WAV file. Multichannel files are mixed down to mono, and files
+ * at a different sample rate are resampled to the requested rate by picking the nearest sample
+ */
+class WavFileSource implements IAudioSource {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final File mFile;
+    private InputStream mInputStream = null;
+
+    /* Format of the file, parsed from the fmt chunk */
+    private int mChannels;
+    private int mFileSampleRate;
+    private int mOutputSampleRate;
+
+    /* How many bytes of the data chunk are left to read */
+    private long mDataRemaining;
+
+    /* Resampling state, in units of output samples * file sample rate */
+    private long mResamplePosition;
+    private long mFramesRead;
+    private short mCurrentFrame;
+
+    /* Reused for every read, so reading doesn't allocate */
+    private final byte[] mFrameBytes = new byte[64];
+
+    /**
+     * Default constructor
+     *
+     * @param file The WAV file to read samples from
+     */
+    WavFileSource(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Open the file and parse the header
+     *
+     * @param sampleRate The number of samples per second the caller expects
+     * @return true if the file is a 16 bit PCM WAV file, false otherwise
+     */
+    @Override
+    public boolean open(int sampleRate) {
+        close();
+        try {
+            mInputStream = new BufferedInputStream(new FileInputStream(mFile));
+            if (readId() != fourCC("RIFF")) {
+                close();
+                return false;
+            }
+            readLittleEndian(4);
+            if (readId() != fourCC("WAVE")) {
+                close();
+                return false;
+            }
+
+            /* Walk the chunks until the data chunk is found */
+            boolean formatFound = false;
+            while (true) {
+                int chunkId = readId();
+                long chunkSize = readLittleEndian(4);
+                if (chunkId == fourCC("fmt ")) {
+                    int format = (int) readLittleEndian(2);
+                    mChannels = (int) readLittleEndian(2);
+                    mFileSampleRate = (int) readLittleEndian(4);
+                    readLittleEndian(4); /* Byte rate */
+                    readLittleEndian(2); /* Block align */
+                    int bitsPerSample = (int) readLittleEndian(2);
+                    skipFully(chunkSize - 16 + (chunkSize & 1));
+                    if ((format != FORMAT_PCM && format != FORMAT_EXTENSIBLE) ||
+                            bitsPerSample != 16 || mChannels < 1 ||
+                            mChannels * 2 > mFrameBytes.length || mFileSampleRate <= 0) {
+                        close();
+                        return false;
+                    }
+                    formatFound = true;
+                } else if (chunkId == fourCC("data")) {
+                    if (!formatFound) {
+                        close();
+                        return false;
+                    }
+                    mDataRemaining = chunkSize;
+                    break;
+                } else {
+                    /* Chunks are padded to an even size */
+                    skipFully(chunkSize + (chunkSize & 1));
+                }
+            }
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+
+        mOutputSampleRate = sampleRate;
+        mResamplePosition = 0;
+        mFramesRead = 0;
+        return true;
+    }
+
+    /**
+     * Read samples from the file as fast as possible
+     *
+     * @param buffer The buffer to read samples into
+     * @param offset Where in buffer to start writing samples
+     * @param length The maximum number of samples to read
+     * @return The number of samples read, or -1 at the end of the file or on an error
+     */
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        if (mInputStream == null) {
+            return -1;
+        }
+        int samplesRead = 0;
+        try {
+            while (samplesRead < length) {
+                /* Read file frames until reaching the one nearest this output sample */
+                long targetFrame = mResamplePosition / mOutputSampleRate;
+                while (mFramesRead <= targetFrame) {
+                    if (!readFrame()) {
+                        return samplesRead > 0 ? samplesRead : -1;
+                    }
+                }
+                buffer[offset + samplesRead] = mCurrentFrame;
+                samplesRead++;
+                mResamplePosition += mFileSampleRate;
+            }
+        } catch (IOException e) {
+            return samplesRead > 0 ? samplesRead : -1;
+        }
+        return samplesRead;
+    }
+
+    /**
+     * Close the file
+     */
+    @Override
+    public void close() {
+        if (mInputStream != null) {
+            try {
+                mInputStream.close();
+            } catch (IOException e) {
+                /* Eat it */
+            }
+            mInputStream = null;
+        }
+    }
+
+    /**
+     * Read one frame from the file and mix it down to mono in mCurrentFrame
+     *
+     * @return true if a frame was read, false at the end of the data
+     * @throws IOException If the file couldn't be read
+     */
+    private boolean readFrame() throws IOException {
+        int frameSize = mChannels * 2;
+        if (mDataRemaining < frameSize) {
+            return false;
+        }
+        int read = 0;
+        while (read < frameSize) {
+            int count = mInputStream.read(mFrameBytes, read, frameSize - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        mDataRemaining -= frameSize;
+
+        int sum = 0;
+        for (int channel = 0; channel < mChannels; channel++) {
+            sum += (short) ((mFrameBytes[channel * 2] & 0xFF) |
+                    (mFrameBytes[channel * 2 + 1] << 8));
+        }
+        mCurrentFrame = (short) (sum / mChannels);
+        mFramesRead++;
+        return true;
+    }
+
+    /**
+     * Read an unsigned little endian number from the file
+     *
+     * @param bytes The number of bytes in the number, up to 4
+     * @return The number
+     * @throws IOException If the file ended early
+     */
+    private long readLittleEndian(int bytes) throws IOException {
+        long value = 0;
+        for (int i = 0; i < bytes; i++) {
+            int b = mInputStream.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of WAV file");
+            }
+            value |= ((long) b) << (8 * i);
+        }
+        return value;
+    }
+
+    /**
+     * Read a four character chunk ID from the file
+     *
+     * @return The chunk ID, comparable to fourCC()
+     * @throws IOException If the file ended early
+     */
+    private int readId() throws IOException {
+        return (int) readLittleEndian(4);
+    }
+
+    /**
+     * Skip bytes in the file
+     *
+     * @param bytes The number of bytes to skip
+     * @throws IOException If the file ended early
+     */
+    private void skipFully(long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = mInputStream.skip(bytes);
+            if (skipped <= 0) {
+                if (mInputStream.read() < 0) {
+                    throw new IOException("Unexpected end of WAV file");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Helper function to turn a four character chunk ID into a number, as readId() would read it
+     *
+     * @param id A four character chunk ID
+     * @return The chunk ID as a number
+     */
+    private static int fourCC(String id) {
+        return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}
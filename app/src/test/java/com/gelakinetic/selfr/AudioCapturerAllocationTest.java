@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that once audio is flowing, neither the capture thread nor the detector thread allocates
+ * anything per frame. Allocation is measured per thread with HotSpot's ThreadMXBean, so this is
+ * skipped on JVMs without it
+ */
+public class AudioCapturerAllocationTest {
+
+    /* 10 ms frames, like streaming detection uses */
+    private static final int FRAME_SIZE = AudioCapturer.SAMPLES_PER_SECOND / 100;
+    /* Frames to let pass before measuring, so classes are loaded and buffers are sized */
+    private static final int WARM_UP_FRAMES = 200;
+    private static final int MEASURED_FRAMES = 1000;
+    /* Measuring allocates a little itself. A single object per frame would be thousands of bytes */
+    private static final long ALLOWED_BYTES = 1024;
+
+    /**
+     * @return HotSpot's ThreadMXBean, or null if this JVM doesn't count allocations per thread
+     */
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        return threadBean;
+    }
+
+    /**
+     * @param bean The ThreadMXBean to ask
+     * @return How many bytes the calling thread has allocated so far
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean bean) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * An IAudioSource which generates noise and clicks, and measures how much the capture thread
+     * allocates between two reads. Reads are paced so the detector keeps up and nothing is dropped
+     */
+    private static class MeasuringSource implements IAudioSource {
+        private final SyntheticAudioSource mSource =
+                new SyntheticAudioSource(100, 8000, 20, 500, 60000, 1);
+        private final com.sun.management.ThreadMXBean mBean;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mReads = 0;
+        private long mStartBytes;
+        volatile long mAllocatedBytes = -1;
+
+        MeasuringSource(com.sun.management.ThreadMXBean bean) {
+            mBean = bean;
+        }
+
+        @Override
+        public boolean open(int sampleRate) {
+            return mSource.open(sampleRate);
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            mReads++;
+            if (mReads == WARM_UP_FRAMES) {
+                mStartBytes = allocatedBytes(mBean);
+            } else if (mReads == WARM_UP_FRAMES + MEASURED_FRAMES) {
+                mAllocatedBytes = allocatedBytes(mBean) - mStartBytes;
+                mDone.countDown();
+                return -1;
+            }
+            LockSupport.parkNanos(100000);
+            return mSource.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            mSource.close();
+        }
+    }
+
+    /**
+     * An IAudioReceiver which runs the same detection CameraActivity does, and measures how much
+     * the detector thread allocates between two frames
+     */
+    private static class MeasuringReceiver implements IAudioReceiver {
+        private final ButtonDetector mDetector =
+                new ButtonDetector(ButtonDetector.Mode.STREAMING, FRAME_SIZE);
+        private final com.sun.management.ThreadMXBean mBean;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private int mFrames = 0;
+        private long mStartBytes;
+        volatile long mAllocatedBytes = -1;
+
+        MeasuringReceiver(com.sun.management.ThreadMXBean bean) {
+            mBean = bean;
+            mDetector.setThreshold(1000000);
+        }
+
+        @Override
+        public void capturedAudioReceived(short[] tempBuf, int length, long timestamp) {
+            mFrames++;
+            if (mFrames == WARM_UP_FRAMES) {
+                mStartBytes = allocatedBytes(mBean);
+            } else if (mFrames == WARM_UP_FRAMES + MEASURED_FRAMES / 2) {
+                mAllocatedBytes = allocatedBytes(mBean) - mStartBytes;
+                mDone.countDown();
+            }
+            mDetector.process(tempBuf, length);
+        }
+    }
+
+    /**
+     * Run audio through AudioCapturer and the detector, and check neither thread allocated while
+     * it was measured
+     *
+     * @throws InterruptedException If the test was interrupted while waiting
+     */
+    @Test
+    public void steadyStateCaptureDoesNotAllocate() throws InterruptedException {
+        com.sun.management.ThreadMXBean bean = getThreadBean();
+        Assume.assumeTrue(bean != null);
+
+        MeasuringSource source = new MeasuringSource(bean);
+        MeasuringReceiver receiver = new MeasuringReceiver(bean);
+        AudioCapturer capturer = AudioCapturer.getInstance(receiver);
+        capturer.setFrameSize(FRAME_SIZE);
+        capturer.setAudioSource(source);
+        assertTrue(capturer.start());
+        try {
+            assertTrue(source.mDone.await(30, TimeUnit.SECONDS));
+            assertTrue(receiver.mDone.await(30, TimeUnit.SECONDS));
+        } finally {
+            capturer.stop();
+        }
+
+        assertTrue("capture thread allocated " + source.mAllocatedBytes + " bytes",
+                source.mAllocatedBytes < ALLOWED_BYTES);
+        assertTrue("detector thread allocated " + receiver.mAllocatedBytes + " bytes",
+                receiver.mAllocatedBytes < ALLOWED_BYTES);
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks AudioFrameRing's claim / publish / peek / release contract on one thread, and that frames
+ * arrive whole and in order when a producer and a consumer race each other
+ */
+public class AudioFrameRingTest {
+
+    private static final int FRAME_SIZE = 16;
+
+    /**
+     * Claim a frame, fill every sample with a value and publish it
+     *
+     * @param ring  The ring to publish into
+     * @param value What to fill the frame with, and its timestamp
+     * @return true if the frame was published, false if it was an overrun
+     */
+    private static boolean publish(AudioFrameRing ring, short value) {
+        short[] frame = ring.claim();
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = value;
+        }
+        return ring.publish(frame, value % FRAME_SIZE + 1, value);
+    }
+
+    @Test
+    public void passesFramesInOrder() {
+        AudioFrameRing ring = new AudioFrameRing(4, FRAME_SIZE);
+        assertEquals(4, ring.getCapacity());
+        assertEquals(FRAME_SIZE, ring.getFrameSize());
+        assertNull(ring.peek());
+
+        assertTrue(publish(ring, (short) 1));
+        assertTrue(publish(ring, (short) 2));
+
+        short[] expected = new short[FRAME_SIZE];
+        for (short value = 1; value <= 2; value++) {
+            Arrays.fill(expected, value);
+            assertArrayEquals(expected, ring.peek());
+            assertEquals(value % FRAME_SIZE + 1, ring.peekLength());
+            assertEquals(value, ring.peekTimestamp());
+            /* Peeking again without releasing gives the same frame */
+            assertSame(ring.peek(), ring.peek());
+            ring.release();
+        }
+        assertNull(ring.peek());
+        assertEquals(2, ring.getHighWaterMark());
+        assertEquals(0, ring.getOverruns());
+    }
+
+    @Test
+    public void dropsFramesWhenFull() {
+        AudioFrameRing ring = new AudioFrameRing(2, FRAME_SIZE);
+        assertTrue(publish(ring, (short) 1));
+        assertTrue(publish(ring, (short) 2));
+
+        /* A full ring hands out scratch, and doesn't touch the frames waiting to be read */
+        short[] scratch = ring.claim();
+        assertNotSame(ring.peek(), scratch);
+        assertFalse(publish(ring, (short) 3));
+        assertFalse(publish(ring, (short) 4));
+        assertEquals(2, ring.getOverruns());
+        assertEquals(2, ring.getHighWaterMark());
+        assertEquals(1, ring.peekTimestamp());
+        assertEquals(1, ring.peek()[0]);
+
+        /* Releasing one frame makes room for the next */
+        ring.release();
+        assertTrue(publish(ring, (short) 5));
+        assertEquals(2, ring.peekTimestamp());
+        ring.release();
+        assertEquals(5, ring.peekTimestamp());
+        assertEquals(5, ring.peek()[FRAME_SIZE - 1]);
+        ring.release();
+        assertNull(ring.peek());
+        assertEquals(2, ring.getOverruns());
+    }
+
+    @Test(timeout = 30000)
+    public void survivesAProducerAndAConsumer() throws InterruptedException {
+        final AudioFrameRing ring = new AudioFrameRing(8, FRAME_SIZE);
+        final int frames = 200000;
+        final AtomicReference<String> error = new AtomicReference<>();
+        final long[] delivered = new long[1];
+        final boolean[] done = new boolean[1];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = -1;
+                while (true) {
+                    short[] frame = ring.peek();
+                    if (frame == null) {
+                        synchronized (done) {
+                            if (done[0] && ring.peek() == null) {
+                                return;
+                            }
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    long sequence = ring.peekTimestamp();
+                    /* Frames may be dropped, but never reordered or delivered twice */
+                    if (sequence <= last) {
+                        error.compareAndSet(null, "Frame " + sequence + " after " + last);
+                    }
+                    last = sequence;
+                    if (ring.peekLength() != sequence % FRAME_SIZE + 1) {
+                        error.compareAndSet(null, "Wrong length for frame " + sequence);
+                    }
+                    /* Every sample was written before the frame was published */
+                    for (short sample : frame) {
+                        if (sample != (short) sequence) {
+                            error.compareAndSet(null, "Torn frame " + sequence);
+                        }
+                    }
+                    delivered[0]++;
+                    ring.release();
+                }
+            }
+        });
+        consumer.start();
+
+        for (int sequence = 0; sequence < frames; sequence++) {
+            short[] frame = ring.claim();
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = (short) sequence;
+            }
+            ring.publish(frame, sequence % FRAME_SIZE + 1, sequence);
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        consumer.join();
+
+        assertNull(error.get(), error.get());
+        assertEquals(frames, delivered[0] + ring.getOverruns());
+        assertTrue(ring.getHighWaterMark() <= ring.getCapacity());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that GoertzelFilter picks out its own frequency, and that ButtonClassifier tells button
+ * tones apart through noise, whatever the buffer size is
+ */
+public class ButtonClassifierTest {
+
+    private static final int SAMPLE_RATE = AudioCapturer.SAMPLES_PER_SECOND;
+    /* 10 ms, the same block size ButtonClassifier uses */
+    private static final int BLOCK_SIZE = SAMPLE_RATE / 100;
+    /* Three buttons, two filter bandwidths apart */
+    private static final float[] TONES = {1000, 1200, 1400};
+
+    /**
+     * Write a tone with noise on top into part of a buffer
+     *
+     * @param samples   The buffer to write into
+     * @param offset    Where the tone starts
+     * @param length    How many samples of tone to write
+     * @param frequency The tone's frequency in Hz, or 0 for just noise
+     * @param amplitude The tone's peak amplitude
+     * @param noise     The peak amplitude of the noise
+     * @param random    Where the noise comes from
+     */
+    private static void writeTone(short[] samples, int offset, int length, float frequency,
+                                  int amplitude, int noise, Random random) {
+        for (int i = offset; i < offset + length; i++) {
+            double tone = amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE);
+            int hiss = (noise == 0) ? 0 : random.nextInt(2 * noise + 1) - noise;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(tone) + hiss));
+        }
+    }
+
+    @Test
+    public void goertzelMeasuresTonePower() {
+        short[] samples = new short[BLOCK_SIZE];
+        writeTone(samples, 0, BLOCK_SIZE, 1000, 10000, 0, null);
+        GoertzelFilter filter = new GoertzelFilter(1000, SAMPLE_RATE);
+        filter.process(samples, 0, BLOCK_SIZE);
+
+        /* A whole number of cycles at amplitude A over N samples has power (A * N / 2)^2 */
+        double expected = Math.pow(10000.0 * BLOCK_SIZE / 2, 2);
+        assertEquals(expected, filter.getPower(), expected * 0.01);
+        assertEquals(1000, filter.getFrequency(), 0);
+
+        filter.reset();
+        assertEquals(0, filter.getPower(), 0);
+    }
+
+    @Test
+    public void goertzelRejectsOtherFrequencies() {
+        short[] samples = new short[BLOCK_SIZE];
+        writeTone(samples, 0, BLOCK_SIZE, 1000, 10000, 0, null);
+        GoertzelFilter onTone = new GoertzelFilter(1000, SAMPLE_RATE);
+        onTone.process(samples, 0, BLOCK_SIZE);
+        for (float frequency : new float[]{600, 800, 1200, 1400, 3000}) {
+            GoertzelFilter offTone = new GoertzelFilter(frequency, SAMPLE_RATE);
+            offTone.process(samples, 0, BLOCK_SIZE);
+            assertTrue(frequency + " Hz", onTone.getPower() > 100 * offTone.getPower());
+        }
+    }
+
+    @Test
+    public void goertzelCarriesStateAcrossCalls() {
+        short[] samples = new short[BLOCK_SIZE];
+        writeTone(samples, 0, BLOCK_SIZE, 1200, 5000, 300, new Random(1));
+        GoertzelFilter whole = new GoertzelFilter(1200, SAMPLE_RATE);
+        whole.process(samples, 0, BLOCK_SIZE);
+        GoertzelFilter pieces = new GoertzelFilter(1200, SAMPLE_RATE);
+        pieces.process(samples, 0, 37);
+        pieces.process(samples, 37, BLOCK_SIZE - 37);
+        assertEquals(whole.getPower(), pieces.getPower(), 0);
+    }
+
+    @Test
+    public void classifierSeparatesTonesThroughNoise() {
+        Random random = new Random(2);
+        int[] bufferSizes = {BLOCK_SIZE / 2, BLOCK_SIZE, 256, 1024};
+        for (int bufferSize : bufferSizes) {
+            ButtonClassifier classifier = new ButtonClassifier(TONES, SAMPLE_RATE);
+            assertEquals(TONES.length, classifier.getButtonCount());
+            short[] samples = new short[bufferSize];
+            /* A press lasts longer than a buffer. Hold each tone for two whole blocks, so the
+             * last buffer doesn't only see a block which began with the previous tone
+             */
+            int buffersPerPress = Math.max(1, (2 * BLOCK_SIZE + bufferSize - 1) / bufferSize);
+            for (int trial = 0; trial < 30; trial++) {
+                int button = trial % TONES.length;
+                for (int i = 0; i < buffersPerPress; i++) {
+                    /* Noise as loud as the tone, spread over every frequency */
+                    writeTone(samples, 0, bufferSize, TONES[button], 4000, 4000, random);
+                    classifier.process(samples, bufferSize);
+                }
+                assertEquals("buffer size " + bufferSize + ", trial " + trial, button,
+                        classifier.classify());
+            }
+        }
+    }
+
+    @Test
+    public void classifierFindsShortPressesInLongBuffers() {
+        Random random = new Random(3);
+        ButtonClassifier classifier = new ButtonClassifier(TONES, SAMPLE_RATE);
+        short[] samples = new short[1024];
+        for (int button = 0; button < TONES.length; button++) {
+            /* 20 ms of tone, starting partway through a block, in a buffer of quiet noise */
+            writeTone(samples, 0, samples.length, 0, 0, 200, random);
+            writeTone(samples, 300 + 100 * button, 2 * BLOCK_SIZE, TONES[button], 8000, 200,
+                    random);
+            classifier.process(samples, samples.length);
+            assertEquals(button, classifier.classify());
+        }
+    }
+
+    @Test
+    public void detectorReportsTheClassifiedButton() {
+        Random random = new Random(4);
+        ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.STREAMING, BLOCK_SIZE,
+                false);
+        detector.setThreshold(1000000);
+        detector.setClassifier(new ButtonClassifier(TONES, SAMPLE_RATE));
+        short[] samples = new short[BLOCK_SIZE * 4];
+        for (int button = TONES.length - 1; button >= 0; button--) {
+            /* The window still holds the last press at first, so let it drain before checking
+             * that noise alone doesn't trigger
+             */
+            writeTone(samples, 0, samples.length, 0, 0, 100, random);
+            detector.process(samples, samples.length);
+            assertFalse(detector.process(samples, samples.length));
+            writeTone(samples, 0, samples.length, TONES[button], 8000, 100, random);
+            assertTrue(detector.process(samples, samples.length));
+            assertEquals(button, detector.getButton());
+        }
+    }
+
+    @Test
+    public void classifierWithoutButtonsReportsZero() {
+        ButtonClassifier classifier = new ButtonClassifier(new float[0], SAMPLE_RATE);
+        classifier.process(new short[BLOCK_SIZE], BLOCK_SIZE);
+        assertEquals(0, classifier.classify());
+        assertEquals(0, new ButtonDetector(ButtonDetector.Mode.BLOCK, 0, false).getButton());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the same click through BLOCK and STREAMING detection, and checks where each one finds it
+ */
+public class ButtonDetectorTest {
+
+    private static final int SAMPLE_RATE = AudioCapturer.SAMPLES_PER_SECOND;
+    /* The defaults from the preferences, 10 ms hops and a 20 ms window */
+    private static final int HOP_SIZE = SAMPLE_RATE / 100;
+    private static final int WINDOW_SIZE = SAMPLE_RATE / 50;
+    private static final float THRESHOLD = 1000;
+    /* The click starts half way through a one second block */
+    private static final int CLICK_START = SAMPLE_RATE / 2;
+    private static final int CLICK_LENGTH = SAMPLE_RATE / 50;
+
+    /**
+     * @return One second of quiet hiss, with a 20 ms click half way through
+     */
+    private static short[] makeRecording() {
+        Random random = new Random(1);
+        short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (random.nextInt(41) - 20);
+        }
+        for (int i = CLICK_START; i < CLICK_START + CLICK_LENGTH; i++) {
+            samples[i] += (short) Math.round(3000 * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    /**
+     * Feed a recording to a detector a frame at a time, the way AudioCapturer would
+     *
+     * @param detector  The detector to feed
+     * @param samples   The recording
+     * @param frameSize How many samples each call to process() gets
+     * @return The index into samples where the press was detected, or -1 if it never was
+     */
+    private static int findPress(ButtonDetector detector, short[] samples, int frameSize) {
+        short[] frame = new short[frameSize];
+        for (int start = 0; start + frameSize <= samples.length; start += frameSize) {
+            System.arraycopy(samples, start, frame, 0, frameSize);
+            if (detector.process(frame, frameSize)) {
+                return start + detector.getTriggerOffset();
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void blockModeFindsTheClickAtTheEndOfTheBlock() {
+        for (boolean fixedPoint : new boolean[]{false, true}) {
+            ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.BLOCK, 0, fixedPoint);
+            detector.setThreshold(THRESHOLD);
+
+            /* The whole block is averaged, so the decision waits for the last sample */
+            assertEquals(SAMPLE_RATE - 1, findPress(detector, makeRecording(), SAMPLE_RATE));
+        }
+    }
+
+    @Test
+    public void streamingModeFindsTheClickWithinMilliseconds() {
+        for (boolean fixedPoint : new boolean[]{false, true}) {
+            ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.STREAMING,
+                    WINDOW_SIZE, fixedPoint);
+            detector.setThreshold(THRESHOLD);
+
+            /* The window crosses the threshold within a millisecond of the click starting, and
+             * the hop which holds it returns straight away
+             */
+            int offset = findPress(detector, makeRecording(), HOP_SIZE);
+            assertTrue("Detected at " + offset,
+                    offset >= CLICK_START && offset < CLICK_START + SAMPLE_RATE / 1000);
+        }
+    }
+
+    @Test
+    public void streamingModeIgnoresTheHiss() {
+        for (boolean fixedPoint : new boolean[]{false, true}) {
+            ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.STREAMING,
+                    WINDOW_SIZE, fixedPoint);
+            detector.setThreshold(THRESHOLD);
+
+            short[] hiss = new short[CLICK_START];
+            System.arraycopy(makeRecording(), 0, hiss, 0, hiss.length);
+            assertEquals(-1, findPress(detector, hiss, HOP_SIZE));
+            assertFalse(detector.process(new short[HOP_SIZE], HOP_SIZE));
+            assertTrue(detector.getLevel() < THRESHOLD);
+        }
+    }
+
+    @Test
+    public void armsBelowTheThreshold() {
+        ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.BLOCK, 0);
+        detector.setThreshold(THRESHOLD);
+        short[] samples = new short[HOP_SIZE];
+        /* A steady level of about 28^2 = 784, above half the threshold but below it */
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((i % 2 == 0) ? 28 : -28);
+        }
+
+        assertFalse(detector.process(samples, samples.length));
+        assertFalse(detector.isArmed());
+
+        detector.setArmingFraction(0.5f);
+        assertFalse(detector.process(samples, samples.length));
+        assertTrue(detector.isArmed());
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that CameraCapabilityIndex survives a round trip through its file, forgets everything
+ * when the OS build changes or the file is corrupt, and never truncates a value it can't store
+ */
+public class CameraCapabilityIndexTest {
+
+    private static final String FINGERPRINT = "selfr/test/build:6.0.1/1";
+    private static final int FRONT = 1;
+    private static final int BACK = 0;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "capabilities");
+    }
+
+    /**
+     * @return The capabilities of a typical back camera
+     */
+    private static CameraCapabilityIndex.Capabilities back() {
+        return new CameraCapabilityIndex.Capabilities(0, BACK, 4160, 3120, true,
+                new int[]{1920, 1080, 1280, 720, 640, 480});
+    }
+
+    /**
+     * @return The capabilities of a typical front camera
+     */
+    private static CameraCapabilityIndex.Capabilities front() {
+        return new CameraCapabilityIndex.Capabilities(1, FRONT, 2592, 1944, false,
+                new int[]{1280, 720, 320, 240});
+    }
+
+    /**
+     * Check that two capabilities hold the same values
+     */
+    private static void assertCapabilities(CameraCapabilityIndex.Capabilities expected,
+                                           CameraCapabilityIndex.Capabilities actual) {
+        assertNotNull(actual);
+        assertEquals(expected.mCameraId, actual.mCameraId);
+        assertEquals(expected.mFacing, actual.mFacing);
+        assertEquals(expected.mPictureWidth, actual.mPictureWidth);
+        assertEquals(expected.mPictureHeight, actual.mPictureHeight);
+        assertEquals(expected.mAutoFocus, actual.mAutoFocus);
+        assertArrayEquals(expected.mPreviewSizes, actual.mPreviewSizes);
+    }
+
+    /**
+     * Write an index with both cameras, like a first run would
+     */
+    private void writeIndex() {
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertTrue(index.put(back()));
+        assertTrue(index.put(front()));
+        assertTrue(mFile.exists());
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void survivesARoundTrip() {
+        writeIndex();
+
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertCapabilities(back(), index.find(BACK));
+        assertCapabilities(front(), index.find(FRONT));
+    }
+
+    @Test
+    public void replacesAndInvalidatesCameras() {
+        writeIndex();
+
+        /* Replace the back camera, then forget the front one */
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        CameraCapabilityIndex.Capabilities smaller = new CameraCapabilityIndex.Capabilities(0,
+                BACK, 640, 480, false, new int[]{320, 240});
+        assertTrue(index.put(smaller));
+        index.invalidate(1);
+
+        index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertCapabilities(smaller, index.find(BACK));
+        assertNull(index.find(FRONT));
+    }
+
+    @Test
+    public void anotherBuildStartsOver() {
+        writeIndex();
+
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, "selfr/test/build:7.0/2");
+        assertNull(index.find(BACK));
+        assertNull(index.find(FRONT));
+
+        /* Adding a camera replaces the old build's index */
+        assertTrue(index.put(front()));
+        index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertNull(index.find(FRONT));
+    }
+
+    @Test
+    public void truncatedFileStartsOver() throws IOException {
+        writeIndex();
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertNull(index.find(BACK));
+        assertNull(index.find(FRONT));
+
+        /* And it can be rebuilt */
+        assertTrue(index.put(back()));
+        assertCapabilities(back(), new CameraCapabilityIndex(mFile, FINGERPRINT).find(BACK));
+    }
+
+    @Test
+    public void garbageFileStartsOver() throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write("this is not an index".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertNull(index.find(BACK));
+    }
+
+    @Test
+    public void valuesTooLargeForTheFileAreNotIndexed() {
+        writeIndex();
+        CameraCapabilityIndex index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+
+        /* 256 preview sizes don't fit in a byte */
+        assertFalse(index.put(new CameraCapabilityIndex.Capabilities(2, BACK, 640, 480, true,
+                new int[256 * 2])));
+        /* Neither does camera 256, and 65536 pixels don't fit in a short */
+        assertFalse(index.put(new CameraCapabilityIndex.Capabilities(256, BACK, 640, 480, true,
+                new int[0])));
+        assertFalse(index.put(new CameraCapabilityIndex.Capabilities(3, BACK, 65536, 480, true,
+                new int[0])));
+        assertFalse(index.put(new CameraCapabilityIndex.Capabilities(4, BACK, 640, 480, true,
+                new int[]{65536, 480})));
+
+        /* A camera which no longer fits is forgotten rather than left stale */
+        assertFalse(index.put(new CameraCapabilityIndex.Capabilities(1, FRONT, 70000, 480, true,
+                new int[0])));
+        assertNull(index.find(FRONT));
+
+        /* The largest values that fit survive the round trip */
+        CameraCapabilityIndex.Capabilities largest = new CameraCapabilityIndex.Capabilities(255,
+                FRONT, 65535, 65535, true, new int[255 * 2]);
+        assertTrue(index.put(largest));
+
+        index = new CameraCapabilityIndex(mFile, FINGERPRINT);
+        assertCapabilities(back(), index.find(BACK));
+        assertCapabilities(largest, index.find(FRONT));
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that CameraParameterCache only talks to the camera when it has to, pushes changes in one
+ * batch, and keeps the good changes when the camera rejects a bad one. The camera and its
+ * parameters are mocks backed by maps of parameter strings, like the real ones
+ */
+@SuppressWarnings("deprecation")
+public class CameraParameterCacheTest {
+
+    /* What the camera is using */
+    private final Map<String, String> mCameraValues = new HashMap<>();
+    /* Parameter values the camera refuses, as key=value */
+    private final Set<String> mRejected = new HashSet<>();
+    /* The values behind every Parameters handed out */
+    private final Map<Camera.Parameters, Map<String, String>> mParameterValues =
+            new IdentityHashMap<>();
+    private final Camera mCamera = mock(Camera.class);
+    private int mGetCount = 0;
+    private int mSetCount = 0;
+    private boolean mGone = false;
+
+    /**
+     * @param values The values to back the parameters with
+     * @return Parameters which read and write values
+     */
+    private Camera.Parameters newParameters(final Map<String, String> values) {
+        Camera.Parameters parameters = mock(Camera.Parameters.class);
+        mParameterValues.put(parameters, values);
+        Answer<String> get = new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                return values.get(args.length == 0 ? keyFor(invocation) : (String) args[0]);
+            }
+        };
+        Answer<Void> set = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                Object[] args = invocation.getArguments();
+                if (args.length == 1) {
+                    values.put(keyFor(invocation), String.valueOf(args[0]));
+                } else {
+                    values.put((String) args[0], String.valueOf(args[1]));
+                }
+                return null;
+            }
+        };
+        when(parameters.get(anyString())).thenAnswer(get);
+        when(parameters.getFlashMode()).thenAnswer(get);
+        when(parameters.getFocusMode()).thenAnswer(get);
+        doAnswer(set).when(parameters).set(anyString(), anyString());
+        doAnswer(set).when(parameters).setRotation(anyInt());
+        doAnswer(set).when(parameters).setFlashMode(anyString());
+        doAnswer(set).when(parameters).setFocusMode(anyString());
+        doAnswer(set).when(parameters).setAutoExposureLock(anyBoolean());
+        when(parameters.getAutoExposureLock()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return "true".equals(values.get("auto-exposure-lock"));
+            }
+        });
+        when(parameters.isAutoExposureLockSupported()).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return "true".equals(values.get("auto-exposure-lock-supported"));
+            }
+        });
+        when(parameters.getSupportedFlashModes()).thenReturn(Arrays.asList(
+                Camera.Parameters.FLASH_MODE_OFF, Camera.Parameters.FLASH_MODE_ON));
+        return parameters;
+    }
+
+    /**
+     * @param invocation A call to a typed getter or setter
+     * @return The parameter key it reads or writes
+     */
+    private static String keyFor(InvocationOnMock invocation) {
+        String name = invocation.getMethod().getName();
+        if (name.endsWith("Rotation")) {
+            return "rotation";
+        } else if (name.endsWith("FlashMode")) {
+            return "flash-mode";
+        } else if (name.endsWith("FocusMode")) {
+            return "focus-mode";
+        } else if (name.endsWith("AutoExposureLock")) {
+            return "auto-exposure-lock";
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    @Before
+    public void setUp() {
+        mCameraValues.put("rotation", "0");
+        mCameraValues.put("flash-mode", Camera.Parameters.FLASH_MODE_OFF);
+        mCameraValues.put("focus-mode", Camera.Parameters.FOCUS_MODE_AUTO);
+        mCameraValues.put("auto-exposure-lock", "false");
+        mCameraValues.put("auto-exposure-lock-supported", "true");
+
+        when(mCamera.getParameters()).thenAnswer(new Answer<Camera.Parameters>() {
+            @Override
+            public Camera.Parameters answer(InvocationOnMock invocation) {
+                if (mGone) {
+                    throw new RuntimeException("getParameters failed");
+                }
+                mGetCount++;
+                return newParameters(new HashMap<>(mCameraValues));
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                if (mGone) {
+                    throw new RuntimeException("setParameters failed");
+                }
+                mSetCount++;
+                Map<String, String> values =
+                        mParameterValues.get((Camera.Parameters) invocation.getArguments()[0]);
+                for (Map.Entry<String, String> value : values.entrySet()) {
+                    if (mRejected.contains(value.getKey() + "=" + value.getValue())) {
+                        throw new RuntimeException("setParameters failed");
+                    }
+                }
+                mCameraValues.putAll(values);
+                return null;
+            }
+        }).when(mCamera).setParameters(any(Camera.Parameters.class));
+    }
+
+    @Test
+    public void readsTheCameraOnce() {
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+        assertEquals(1, mGetCount);
+        assertEquals(2, cache.getSupportedFlashModes().size());
+        assertEquals("0", cache.getParameters().get("rotation"));
+        assertEquals(1, mGetCount);
+        assertEquals(0, mSetCount);
+    }
+
+    @Test
+    public void onlyAppliesChanges() {
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+
+        /* Setting what's already there isn't a change */
+        cache.setRotation(0);
+        cache.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+        cache.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+        cache.setAutoExposureLock(false);
+        assertFalse(cache.isDirty());
+        assertTrue(cache.apply());
+        assertEquals(0, mSetCount);
+
+        cache.setRotation(90);
+        assertTrue(cache.isDirty());
+        assertTrue(cache.apply());
+        assertFalse(cache.isDirty());
+        assertEquals(1, mSetCount);
+        assertEquals("90", mCameraValues.get("rotation"));
+
+        /* Nothing changed since */
+        assertTrue(cache.apply());
+        assertEquals(1, mSetCount);
+    }
+
+    @Test
+    public void appliesChangesInOneBatch() {
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+        cache.setRotation(270);
+        cache.setFlashMode(Camera.Parameters.FLASH_MODE_ON);
+        cache.setFocusMode(Camera.Parameters.FOCUS_MODE_MACRO);
+        cache.setAutoExposureLock(true);
+        assertTrue(cache.apply());
+
+        assertEquals(1, mSetCount);
+        assertEquals(1, mGetCount);
+        assertEquals("270", mCameraValues.get("rotation"));
+        assertEquals(Camera.Parameters.FLASH_MODE_ON, mCameraValues.get("flash-mode"));
+        assertEquals(Camera.Parameters.FOCUS_MODE_MACRO, mCameraValues.get("focus-mode"));
+        assertEquals("true", mCameraValues.get("auto-exposure-lock"));
+    }
+
+    @Test
+    public void keepsGoodChangesWhenOneIsRejected() {
+        mRejected.add("focus-mode=" + Camera.Parameters.FOCUS_MODE_MACRO);
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+        cache.setRotation(90);
+        cache.setFocusMode(Camera.Parameters.FOCUS_MODE_MACRO);
+        cache.setFlashMode(Camera.Parameters.FLASH_MODE_ON);
+        assertFalse(cache.apply());
+        assertFalse(cache.isDirty());
+
+        /* The rotation and flash made it, the focus mode didn't */
+        assertEquals("90", mCameraValues.get("rotation"));
+        assertEquals(Camera.Parameters.FLASH_MODE_ON, mCameraValues.get("flash-mode"));
+        assertEquals(Camera.Parameters.FOCUS_MODE_AUTO, mCameraValues.get("focus-mode"));
+
+        /* And the cache matches what the camera is using, so the next change still works */
+        assertEquals(Camera.Parameters.FOCUS_MODE_AUTO, cache.getParameters().getFocusMode());
+        assertEquals("90", cache.getParameters().get("rotation"));
+        cache.setRotation(180);
+        assertTrue(cache.apply());
+        assertEquals("180", mCameraValues.get("rotation"));
+        assertEquals(Camera.Parameters.FLASH_MODE_ON, mCameraValues.get("flash-mode"));
+    }
+
+    @Test
+    public void survivesAReleasedCamera() {
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+        cache.setRotation(90);
+        mGone = true;
+        assertFalse(cache.apply());
+        assertFalse(cache.isDirty());
+    }
+
+    @Test
+    public void ignoresAnUnsupportedExposureLock() {
+        mCameraValues.put("auto-exposure-lock-supported", "false");
+        CameraParameterCache cache = new CameraParameterCache(mCamera);
+        cache.setAutoExposureLock(true);
+        assertFalse(cache.isDirty());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that CaptureNamer's names are unique, keep sorting in the order pictures were taken, and
+ * never reuse a picture left by an earlier run
+ */
+public class CaptureNamerTest {
+
+    /* Some time on 2016-02-03 */
+    private static final long MILLIS = 1454472306789L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void namesMoveForward() throws IOException {
+        CaptureNamer namer = new CaptureNamer(mFolder.getRoot());
+        File first = namer.next(MILLIS);
+        File sameMillisecond = namer.next(MILLIS);
+        File clockWentBack = namer.next(MILLIS - 5000);
+        File later = namer.next(MILLIS + 1);
+
+        assertTrue(sameMillisecond.getName().endsWith("_001.jpg"));
+        assertTrue(clockWentBack.getName().endsWith("_002.jpg"));
+        assertTrue(first.getName().compareTo(sameMillisecond.getName()) < 0);
+        assertTrue(sameMillisecond.getName().compareTo(clockWentBack.getName()) < 0);
+        assertTrue(clockWentBack.getName().compareTo(later.getName()) < 0);
+        assertEquals(mFolder.getRoot(), later.getParentFile());
+    }
+
+    @Test
+    public void existingPicturesAreSkipped() throws IOException {
+        /* An earlier run saved pictures in this millisecond */
+        File earlier = new CaptureNamer(mFolder.getRoot()).next(MILLIS);
+        assertTrue(earlier.createNewFile());
+
+        CaptureNamer namer = new CaptureNamer(mFolder.getRoot());
+        File first = namer.next(MILLIS);
+        assertFalse(first.equals(earlier));
+        assertTrue(first.getName().endsWith("_001.jpg"));
+        assertFalse(first.exists());
+    }
+
+    @Test
+    public void gapsLeftByDeletedPicturesAreNotReused() throws IOException {
+        /* An earlier run took three pictures in one millisecond, and the first was deleted */
+        CaptureNamer earlierNamer = new CaptureNamer(mFolder.getRoot());
+        earlierNamer.next(MILLIS);
+        File second = earlierNamer.next(MILLIS);
+        File third = earlierNamer.next(MILLIS);
+        assertTrue(second.createNewFile());
+        assertTrue(third.createNewFile());
+
+        CaptureNamer namer = new CaptureNamer(mFolder.getRoot());
+        /* The deleted name is free */
+        assertFalse(namer.next(MILLIS).exists());
+        /* The next ones in the same millisecond skip past the pictures which are left */
+        File next = namer.next(MILLIS);
+        assertFalse(next.exists());
+        assertTrue(next.getName().endsWith("_003.jpg"));
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that ExifThumbnailReader finds the orientation and the IFD1 thumbnail in either byte
+ * order, with SHORT or LONG values, and gives up safely on segments which are cut short or point
+ * past their end. The JPEGs are built by hand, with nothing but the segments being read
+ */
+public class ExifThumbnailReaderTest {
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    /* A stand-in for the embedded thumbnail, which is a JPEG of its own */
+    private static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, 4, 5,
+            (byte) 0xFF, (byte) 0xD9};
+
+    /* Where things are in the TIFF data built by makeExif() */
+    private static final int IFD0 = 8;
+    private static final int IFD1 = IFD0 + 2 + 12 + 4;
+    private static final int THUMBNAIL_OFFSET = IFD1 + 2 + 2 * 12 + 4;
+    /* The APP1 segment starts with "Exif\0\0" before the TIFF data */
+    private static final int EXIF_HEADER_LENGTH = 6;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void writeShort(byte[] data, int offset, int value, boolean littleEndian) {
+        data[offset + (littleEndian ? 0 : 1)] = (byte) value;
+        data[offset + (littleEndian ? 1 : 0)] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value, boolean littleEndian) {
+        writeShort(data, offset + (littleEndian ? 0 : 2), value & 0xFFFF, littleEndian);
+        writeShort(data, offset + (littleEndian ? 2 : 0), value >>> 16, littleEndian);
+    }
+
+    /**
+     * Write a 12 byte IFD entry with a single value
+     */
+    private static void writeEntry(byte[] tiff, int entry, int tag, int type, int value,
+                                   boolean littleEndian) {
+        writeShort(tiff, entry, tag, littleEndian);
+        writeShort(tiff, entry + 2, type, littleEndian);
+        writeInt(tiff, entry + 4, 1, littleEndian);
+        if (type == TYPE_SHORT) {
+            writeShort(tiff, entry + 8, value, littleEndian);
+        } else {
+            writeInt(tiff, entry + 8, value, littleEndian);
+        }
+    }
+
+    /**
+     * Build an APP1 EXIF segment with an orientation in IFD0, and a thumbnail in IFD1
+     *
+     * @param littleEndian    true for Intel byte order, false for Motorola
+     * @param orientation     The orientation to write
+     * @param thumbnailType   TYPE_SHORT or TYPE_LONG, for the thumbnail offset and length
+     * @param thumbnailLength The thumbnail length to write, which may be wrong
+     * @return The segment, starting with its marker
+     */
+    private static byte[] makeExif(boolean littleEndian, int orientation, int thumbnailType,
+                                   int thumbnailLength) {
+        byte[] tiff = new byte[THUMBNAIL_OFFSET + THUMBNAIL.length];
+        tiff[0] = tiff[1] = (byte) (littleEndian ? 'I' : 'M');
+        writeShort(tiff, 2, 42, littleEndian);
+        writeInt(tiff, 4, IFD0, littleEndian);
+
+        writeShort(tiff, IFD0, 1, littleEndian);
+        writeEntry(tiff, IFD0 + 2, TAG_ORIENTATION, TYPE_SHORT, orientation, littleEndian);
+        writeInt(tiff, IFD0 + 2 + 12, IFD1, littleEndian);
+
+        writeShort(tiff, IFD1, 2, littleEndian);
+        writeEntry(tiff, IFD1 + 2, TAG_THUMBNAIL_OFFSET, thumbnailType, THUMBNAIL_OFFSET,
+                littleEndian);
+        writeEntry(tiff, IFD1 + 2 + 12, TAG_THUMBNAIL_LENGTH, thumbnailType, thumbnailLength,
+                littleEndian);
+        writeInt(tiff, IFD1 + 2 + 24, 0, littleEndian);
+        System.arraycopy(THUMBNAIL, 0, tiff, THUMBNAIL_OFFSET, THUMBNAIL.length);
+
+        return makeSegment(0xE1, concat(new byte[]{'E', 'x', 'i', 'f', 0, 0}, tiff));
+    }
+
+    /**
+     * @param marker The segment's marker
+     * @param data   What's in the segment
+     * @return The segment, starting with its marker and length
+     */
+    private static byte[] makeSegment(int marker, byte[] data) {
+        byte[] segment = new byte[4 + data.length];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        writeShort(segment, 2, data.length + 2, false);
+        System.arraycopy(data, 0, segment, 4, data.length);
+        return segment;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param segments The segments between the start of image and the image data
+     * @return A JPEG with those segments, and some image data which is never read
+     */
+    private static byte[] makeJpeg(byte[]... segments) {
+        return concat(new byte[]{(byte) 0xFF, (byte) 0xD8}, concat(segments),
+                new byte[]{(byte) 0xFF, (byte) 0xDA, 0, 2, 9, 9, 9, (byte) 0xFF, (byte) 0xD9});
+    }
+
+    /**
+     * Write a JPEG to a file, and read its EXIF back
+     */
+    private ExifThumbnailReader.Exif read(byte[] jpeg) throws IOException {
+        File file = mFolder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+        return ExifThumbnailReader.read(file);
+    }
+
+    /**
+     * Check that the thumbnail is where it was put
+     */
+    private static void assertThumbnail(ExifThumbnailReader.Exif exif) {
+        assertNotNull(exif.mThumbnail);
+        assertEquals(EXIF_HEADER_LENGTH + THUMBNAIL_OFFSET, exif.mThumbnailOffset);
+        assertEquals(THUMBNAIL.length, exif.mThumbnailLength);
+        assertArrayEquals(THUMBNAIL, Arrays.copyOfRange(exif.mThumbnail, exif.mThumbnailOffset,
+                exif.mThumbnailOffset + exif.mThumbnailLength));
+    }
+
+    @Test
+    public void readsLittleEndianLongs() throws IOException {
+        ExifThumbnailReader.Exif exif = read(makeJpeg(
+                makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG, THUMBNAIL.length)));
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_90, exif.mOrientation);
+        assertThumbnail(exif);
+    }
+
+    @Test
+    public void readsBigEndianShorts() throws IOException {
+        ExifThumbnailReader.Exif exif = read(makeJpeg(makeExif(false,
+                JpegExifWriter.ORIENTATION_ROTATE_270, TYPE_SHORT, THUMBNAIL.length)));
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_270, exif.mOrientation);
+        assertThumbnail(exif);
+    }
+
+    @Test
+    public void skipsOtherSegments() throws IOException {
+        /* XMP is APP1 too. The first orientation wins, and the thumbnail can come later */
+        byte[] xmp = makeSegment(0xE1, "http://ns.adobe.com/xap/1.0/\0<x/>".getBytes("UTF-8"));
+        byte[] app0 = makeSegment(0xE0, new byte[]{'J', 'F', 'I', 'F', 0, 1, 1});
+        byte[] first = makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_180, TYPE_LONG, 0);
+        byte[] second = makeExif(false, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG,
+                THUMBNAIL.length);
+        ExifThumbnailReader.Exif exif = read(makeJpeg(app0, xmp, first, second));
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_180, exif.mOrientation);
+        assertThumbnail(exif);
+    }
+
+    @Test
+    public void ignoresAThumbnailPastTheSegment() throws IOException {
+        ExifThumbnailReader.Exif exif = read(makeJpeg(makeExif(true,
+                JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG, THUMBNAIL.length + 1)));
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_90, exif.mOrientation);
+        assertNull(exif.mThumbnail);
+
+        /* A LONG length which only fits as a negative int */
+        exif = read(makeJpeg(makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG,
+                0x80000000)));
+        assertNull(exif.mThumbnail);
+    }
+
+    @Test
+    public void ignoresAnIfdPastTheSegment() throws IOException {
+        /* IFD0 claims more entries than fit, so neither it nor IFD1 is read */
+        byte[] segment = makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG,
+                THUMBNAIL.length);
+        writeShort(segment, 4 + EXIF_HEADER_LENGTH + IFD0, 0x7FFF, true);
+        ExifThumbnailReader.Exif exif = read(makeJpeg(segment));
+        assertNotNull(exif);
+        assertEquals(JpegExifWriter.ORIENTATION_NONE, exif.mOrientation);
+        assertNull(exif.mThumbnail);
+
+        /* IFD1 starts past the end */
+        segment = makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG,
+                THUMBNAIL.length);
+        writeInt(segment, 4 + EXIF_HEADER_LENGTH + IFD0 + 2 + 12, segment.length, true);
+        exif = read(makeJpeg(segment));
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_90, exif.mOrientation);
+        assertNull(exif.mThumbnail);
+    }
+
+    @Test
+    public void ignoresATiffHeaderCutShort() throws IOException {
+        ExifThumbnailReader.Exif exif = read(makeJpeg(
+                makeSegment(0xE1, new byte[]{'E', 'x', 'i', 'f', 0, 0, 'I', 'I', 42})));
+        assertNotNull(exif);
+        assertEquals(JpegExifWriter.ORIENTATION_NONE, exif.mOrientation);
+        assertNull(exif.mThumbnail);
+    }
+
+    @Test
+    public void rejectsAFileCutShort() throws IOException {
+        byte[] jpeg = makeJpeg(makeExif(true, JpegExifWriter.ORIENTATION_ROTATE_90, TYPE_LONG,
+                THUMBNAIL.length));
+        assertNull(read(Arrays.copyOf(jpeg, 40)));
+        assertNull(read(new byte[]{1, 2, 3, 4}));
+        assertNull(read(new byte[0]));
+    }
+
+    @Test
+    public void readsAJpegWithoutExif() throws IOException {
+        ExifThumbnailReader.Exif exif = read(makeJpeg());
+        assertNotNull(exif);
+        assertEquals(JpegExifWriter.ORIENTATION_NONE, exif.mOrientation);
+        assertNull(exif.mThumbnail);
+    }
+
+    @Test
+    public void readsWhatJpegExifWriterWrote() throws IOException {
+        byte[] jpeg = makeJpeg();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JpegExifWriter.write(jpeg, jpeg.length, JpegExifWriter.ORIENTATION_ROTATE_270, 0, out);
+        ExifThumbnailReader.Exif exif = read(out.toByteArray());
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_270, exif.mOrientation);
+        assertEquals(270, ExifThumbnailReader.rotationForOrientation(exif.mOrientation));
+    }
+}
@@ -0,0 +1,512 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+import android.view.SurfaceHolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A camera engine with no camera, which keeps everything in memory. Opening, focusing and taking
+ * pictures take configurable amounts of time, so trigger-to-capture timing can be measured without
+ * hardware. Commands run in order on a plain Java thread rather than a Looper, and the listener is
+ * called on that thread. Nothing here calls into Android, but ICameraEngine names Camera and
+ * SurfaceHolder, so the android.jar classes must be on the classpath, as they are for unit tests
+ */
+@SuppressWarnings("deprecation")
+class FakeCameraEngine implements ICameraEngine {
+
+    /* The smallest JPEG there is, start and end of image. Pictures are this unless set */
+    private static final byte[] EMPTY_JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+
+    /* Preview sizes the fake camera supports, as width & height pairs */
+    private static final int[] PREVIEW_SIZES = {1920, 1080, 1280, 720, 640, 480, 320, 240};
+
+    private static final List<String> FLASH_MODES = Collections.unmodifiableList(Arrays.asList(
+            Camera.Parameters.FLASH_MODE_OFF, Camera.Parameters.FLASH_MODE_ON));
+
+    private final Listener mListener;
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private final DelayQueue<Command> mCommands = new DelayQueue<>();
+    private long mSequence = 0;
+    private volatile Thread mThread = null;
+
+    /* How long the fake camera takes to do things, in milliseconds */
+    private volatile long mOpenLatency = 0;
+    private volatile long mFocusLatency = 0;
+    private volatile long mCaptureLatency = 0;
+    private volatile byte[] mPicture = EMPTY_JPEG;
+
+    /* Only changed on the camera thread, but read from anywhere */
+    private volatile State mState = State.CLOSED;
+    private volatile PreviewSizeSelector mPreviewSizeSelector = null;
+    private volatile int mPreviewPixelBudget = Integer.MAX_VALUE;
+    /* When the camera was asked to open, until its preview starts */
+    private volatile long mOpenRequestTime = 0;
+
+    /* What was asked of the fake camera, for checking afterwards */
+    private volatile int mCameraType = -1;
+    private volatile int mPreviewWidth = 0;
+    private volatile int mPreviewHeight = 0;
+    private volatile String mFlashMode = Camera.Parameters.FLASH_MODE_OFF;
+    private volatile int mRotation = 0;
+    private volatile int mPicturesTaken = 0;
+    private volatile long mLastTakePictureTime = 0;
+
+    /* Pre-focus state. Arming is set from any thread, the rest on the camera thread */
+    private volatile boolean mPreFocusArmed = false;
+    private volatile long mArmTime = 0;
+    private volatile boolean mPreFocusDone = false;
+
+    /**
+     * A Runnable waiting on the fake camera thread
+     */
+    private static class Command implements Delayed {
+        final Runnable mRunnable;
+        final long mTime;
+        final long mSequence;
+
+        Command(Runnable runnable, long delayMillis, long sequence) {
+            mRunnable = runnable;
+            mTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            mSequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Command command = (Command) other;
+            if (mTime != command.mTime) {
+                return (mTime < command.mTime) ? -1 : 1;
+            }
+            /* Commands due at the same time run in the order they were posted */
+            return (mSequence < command.mSequence) ? -1 : (mSequence == command.mSequence ? 0 : 1);
+        }
+    }
+
+    private final Runnable mPreFocusDoneRunnable = new Runnable() {
+        /**
+         * Called on the camera thread when the fake camera finished focusing
+         */
+        @Override
+        public void run() {
+            if (mPreFocusArmed && !mPreFocusDone) {
+                mPreFocusDone = true;
+                mMetrics.record(CaptureMetrics.Stage.PRE_FOCUS, mArmTime, CaptureMetrics.now());
+            }
+        }
+    };
+
+    /**
+     * Default constructor
+     *
+     * @param listener Notified on the camera thread when a camera is opened
+     */
+    FakeCameraEngine(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Set how long the fake camera takes to do things
+     *
+     * @param openMillis    From open() until the listener is notified
+     * @param focusMillis   From preFocus() until focus is settled
+     * @param captureMillis From takePicture() until the PictureCallback
+     */
+    void setLatencies(long openMillis, long focusMillis, long captureMillis) {
+        mOpenLatency = openMillis;
+        mFocusLatency = focusMillis;
+        mCaptureLatency = captureMillis;
+    }
+
+    /**
+     * @param picture The bytes every picture is, instead of an empty JPEG
+     */
+    void setPicture(byte[] picture) {
+        mPicture = picture;
+    }
+
+    /**
+     * @return The type of the camera last opened, or -1 if none was
+     */
+    int getCameraType() {
+        return mCameraType;
+    }
+
+    /**
+     * @return How many pictures were taken
+     */
+    int getPicturesTaken() {
+        return mPicturesTaken;
+    }
+
+    /**
+     * @return When takePicture() was last called, from CaptureMetrics.now(), or 0 if it wasn't
+     */
+    long getLastTakePictureTime() {
+        return mLastTakePictureTime;
+    }
+
+    /**
+     * @return The flash mode last set
+     */
+    String getFlashMode() {
+        return mFlashMode;
+    }
+
+    /**
+     * @return The rotation last set, in degrees
+     */
+    int getRotation() {
+        return mRotation;
+    }
+
+    /**
+     * @return The preview width last set, in pixels
+     */
+    int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    /**
+     * @return The preview height last set, in pixels
+     */
+    int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    /**
+     * Start the fake camera thread
+     */
+    @Override
+    public void start() {
+        final DelayQueue<Command> commands = mCommands;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (Thread.currentThread() == mThread) {
+                    try {
+                        commands.take().mRunnable.run();
+                    } catch (InterruptedException e) {
+                        /* Check if the thread should stop */
+                    }
+                }
+            }
+        }, "FakeCameraThread");
+        mThread.start();
+    }
+
+    /**
+     * Close the camera and stop the fake camera thread, after every command already posted
+     */
+    @Override
+    public void stop() {
+        close();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mThread = null;
+            }
+        });
+    }
+
+    /**
+     * @return The engine's state
+     */
+    @Override
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Run something on the fake camera thread, after every command already posted
+     *
+     * @param runnable What to run
+     */
+    @Override
+    public void post(Runnable runnable) {
+        postDelayed(runnable, 0);
+    }
+
+    /**
+     * Run something on the fake camera thread after a delay
+     *
+     * @param runnable    What to run
+     * @param delayMillis How long to wait, in milliseconds
+     */
+    @Override
+    public synchronized void postDelayed(Runnable runnable, long delayMillis) {
+        mCommands.put(new Command(runnable, Math.max(0, delayMillis), mSequence++));
+    }
+
+    /**
+     * Remove pending posts of a Runnable from the fake camera thread
+     *
+     * @param runnable What not to run
+     */
+    @Override
+    public synchronized void removeCallbacks(Runnable runnable) {
+        Iterator<Command> commands = mCommands.iterator();
+        while (commands.hasNext()) {
+            if (commands.next().mRunnable == runnable) {
+                commands.remove();
+            }
+        }
+    }
+
+    /**
+     * Open the fake camera, after the open latency
+     *
+     * @param cameraType Camera.CameraInfo.CAMERA_FACING_FRONT or
+     *                   Camera.CameraInfo.CAMERA_FACING_BACK
+     */
+    @Override
+    public void open(final int cameraType) {
+        final long requestTime = CaptureMetrics.now();
+        close();
+        postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mOpenRequestTime = requestTime;
+                mCameraType = cameraType;
+                mPreviewSizeSelector = new PreviewSizeSelector(PREVIEW_SIZES, mPreviewPixelBudget);
+                mState = State.OPENED;
+                if (mListener != null) {
+                    mListener.onCameraOpened(FakeCameraEngine.this);
+                }
+            }
+        }, mOpenLatency);
+    }
+
+    /**
+     * Close the fake camera
+     */
+    @Override
+    public void close() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mState = State.CLOSED;
+                mPreviewSizeSelector = null;
+                mOpenRequestTime = 0;
+                mPreFocusArmed = false;
+            }
+        });
+    }
+
+    /**
+     * Start the preview. The surface isn't drawn on, and may be null. The first preview frame is
+     * counted as arriving right away
+     *
+     * @param holder Ignored
+     */
+    @Override
+    public void startPreview(SurfaceHolder holder) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.OPENED) {
+                    mState = State.PREVIEWING;
+                    if (mOpenRequestTime != 0) {
+                        mMetrics.record(CaptureMetrics.Stage.FIRST_PREVIEW_FRAME,
+                                mOpenRequestTime, CaptureMetrics.now());
+                        mOpenRequestTime = 0;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Restart the preview. The surface isn't drawn on, and may be null
+     *
+     * @param holder Ignored
+     */
+    @Override
+    public void restartPreview(SurfaceHolder holder) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == State.OPENED || mState == State.PREVIEWING) {
+                    mState = State.PREVIEWING;
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The preview size selector for the fake camera, or null if it isn't open
+     */
+    @Override
+    public PreviewSizeSelector getPreviewSizeSelector() {
+        return mPreviewSizeSelector;
+    }
+
+    /**
+     * @param width  The width of preview frames, in pixels
+     * @param height The height of preview frames, in pixels
+     */
+    @Override
+    public void setPreviewSize(int width, int height) {
+        mPreviewWidth = width;
+        mPreviewHeight = height;
+    }
+
+    /**
+     * @param pixelBudget The most pixels a preview frame should have, Integer.MAX_VALUE for no
+     *                    limit
+     */
+    @Override
+    public void setPreviewPixelBudget(int pixelBudget) {
+        mPreviewPixelBudget = pixelBudget;
+    }
+
+    /**
+     * @return FLASH_MODE_OFF and FLASH_MODE_ON, the fake camera always has a flash
+     */
+    @Override
+    public List<String> getSupportedFlashModes() {
+        return FLASH_MODES;
+    }
+
+    /**
+     * @param flashMode One of the Camera.Parameters.FLASH_MODE_* values
+     */
+    @Override
+    public void setFlashMode(String flashMode) {
+        mFlashMode = flashMode;
+    }
+
+    /**
+     * @param rotation The clockwise rotation to apply to pictures, in degrees
+     */
+    @Override
+    public void setRotation(int rotation) {
+        mRotation = rotation;
+    }
+
+    /**
+     * Take a picture, which is delivered after the capture latency. Must be called on the fake
+     * camera thread
+     *
+     * @param callback Called on the fake camera thread with the picture
+     * @return true if the picture is being taken, false if the camera wasn't previewing
+     */
+    @Override
+    public boolean takePicture(final PictureCallback callback) {
+        if (mState != State.PREVIEWING) {
+            return false;
+        }
+        mLastTakePictureTime = CaptureMetrics.now();
+        if (mPreFocusArmed) {
+            mMetrics.increment(mPreFocusDone ? CaptureMetrics.Counter.PRE_FOCUS_IN_TIME :
+                    CaptureMetrics.Counter.PRE_FOCUS_LATE);
+            mPreFocusArmed = false;
+        }
+        mState = State.CAPTURING;
+        postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                mPicturesTaken++;
+                callback.onPictureTaken(mPicture);
+            }
+        }, mCaptureLatency);
+        return true;
+    }
+
+    /**
+     * Get ready for another picture. Must be called on the fake camera thread
+     *
+     * @return true if the preview is running again, false otherwise
+     */
+    @Override
+    public boolean startPreviewAfterPicture() {
+        if (mState != State.CAPTURING) {
+            return false;
+        }
+        mState = State.PREVIEWING;
+        return true;
+    }
+
+    /**
+     * Start focusing, which settles after the focus latency
+     *
+     * @param armTime When the detector armed, from CaptureMetrics.now()
+     */
+    @Override
+    public void preFocus(long armTime) {
+        if (mPreFocusArmed) {
+            return;
+        }
+        mPreFocusArmed = true;
+        mPreFocusDone = false;
+        mArmTime = armTime;
+        postDelayed(mPreFocusDoneRunnable, mFocusLatency);
+    }
+
+    /**
+     * @return true if pre-focus was started and hasn't been used yet, false otherwise
+     */
+    @Override
+    public boolean isPreFocusArmed() {
+        return mPreFocusArmed;
+    }
+
+    /**
+     * Preview frames aren't kept by the fake camera
+     *
+     * @param buffers Ignored
+     */
+    @Override
+    public void setZslBuffers(int buffers) {
+        /* Unused */
+    }
+
+    /**
+     * @return null, preview frames aren't kept by the fake camera
+     */
+    @Override
+    public PreviewFrameRing getPreviewFrameRing() {
+        return null;
+    }
+
+    /**
+     * Preview frames aren't kept by the fake camera, so there is nothing to release
+     *
+     * @param frameRing Ignored
+     * @param index     Ignored
+     */
+    @Override
+    public void releasePreviewFrame(PreviewFrameRing frameRing, int index) {
+        /* Unused */
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives FakeCameraEngine through open, pre-focus, a capture and a burst, to check
+ * trigger-to-capture timing, how pre-focus is counted, and that saving never holds up a burst,
+ * without a camera
+ */
+@SuppressWarnings("deprecation")
+public class FakeCameraEngineTest {
+
+    private static final long OPEN_MILLIS = 20;
+    private static final long FOCUS_MILLIS = 30;
+    private static final long CAPTURE_MILLIS = 50;
+    /* Generous, so a busy machine doesn't fail the test. Lower bounds are checked exactly */
+    private static final long SLACK_MILLIS = 1000;
+    private static final long NANOS_PER_MILLI = 1000000;
+    /* The same queue as CameraActivity, and a burst long enough to fill it */
+    private static final int BURST_QUEUE_CAPACITY = 3;
+    private static final int BURST_COUNT = 10;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final CaptureMetrics mMetrics = CaptureMetrics.getInstance();
+    private final CountDownLatch mOpened = new CountDownLatch(1);
+    private FakeCameraEngine mEngine;
+
+    /* Set on the fake camera thread when a picture arrives */
+    private volatile long mPictureTime = 0;
+    private volatile boolean mTookPicture = false;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mEngine = new FakeCameraEngine(new ICameraEngine.Listener() {
+            @Override
+            public void onCameraOpened(ICameraEngine engine) {
+                engine.startPreview(null);
+                mOpened.countDown();
+            }
+        });
+        mEngine.setLatencies(OPEN_MILLIS, FOCUS_MILLIS, CAPTURE_MILLIS);
+        mEngine.start();
+
+        /* Opening happens on the camera thread, so the caller doesn't wait for the camera */
+        long openTime = CaptureMetrics.now();
+        mEngine.open(Camera.CameraInfo.CAMERA_FACING_FRONT);
+        assertTrue(CaptureMetrics.now() - openTime < OPEN_MILLIS * NANOS_PER_MILLI);
+        assertTrue(mOpened.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(CaptureMetrics.now() - openTime >= OPEN_MILLIS * NANOS_PER_MILLI);
+        runOnCameraThread(null);
+        assertEquals(ICameraEngine.State.PREVIEWING, mEngine.getState());
+        assertEquals(Camera.CameraInfo.CAMERA_FACING_FRONT, mEngine.getCameraType());
+    }
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+    }
+
+    /**
+     * Run something on the fake camera thread after everything already posted, and wait for it
+     *
+     * @param runnable What to run, or null to just wait
+     */
+    private void runOnCameraThread(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mEngine.post(new Runnable() {
+            @Override
+            public void run() {
+                if (runnable != null) {
+                    runnable.run();
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Press the button: take a picture on the camera thread, like CameraActivity does, and wait
+     * for it to arrive
+     *
+     * @return When the press happened, from CaptureMetrics.now()
+     */
+    private long pressAndWait() throws InterruptedException {
+        final CountDownLatch taken = new CountDownLatch(1);
+        final ICameraEngine.PictureCallback callback = new ICameraEngine.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                mPictureTime = CaptureMetrics.now();
+                mEngine.startPreviewAfterPicture();
+                taken.countDown();
+            }
+        };
+        long pressTime = CaptureMetrics.now();
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                mTookPicture = mEngine.takePicture(callback);
+            }
+        });
+        assertTrue(mTookPicture);
+        assertTrue(taken.await(SLACK_MILLIS, TimeUnit.MILLISECONDS));
+        return pressTime;
+    }
+
+    @Test
+    public void triggerToCaptureTakesTheCaptureLatency() throws InterruptedException {
+        long pressTime = pressAndWait();
+        long takePictureTime = mEngine.getLastTakePictureTime();
+        assertTrue(takePictureTime >= pressTime);
+        long captureNanos = mPictureTime - takePictureTime;
+        assertTrue("capture took " + captureNanos + " ns",
+                captureNanos >= CAPTURE_MILLIS * NANOS_PER_MILLI);
+        long triggerNanos = mPictureTime - pressTime;
+        assertTrue("trigger to capture took " + triggerNanos + " ns",
+                triggerNanos < (CAPTURE_MILLIS + SLACK_MILLIS) * NANOS_PER_MILLI);
+        assertEquals(1, mEngine.getPicturesTaken());
+        assertEquals(ICameraEngine.State.PREVIEWING, mEngine.getState());
+    }
+
+    @Test
+    public void settledPreFocusIsInTime() throws InterruptedException {
+        long inTime = mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_IN_TIME);
+        long late = mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_LATE);
+        mEngine.preFocus(CaptureMetrics.now());
+        assertTrue(mEngine.isPreFocusArmed());
+        /* Press well after focus settles */
+        Thread.sleep(FOCUS_MILLIS * 3);
+        pressAndWait();
+        assertFalse(mEngine.isPreFocusArmed());
+        assertEquals(inTime + 1, mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_IN_TIME));
+        assertEquals(late, mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_LATE));
+    }
+
+    @Test
+    public void earlyPressIsLate() throws InterruptedException {
+        long inTime = mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_IN_TIME);
+        long late = mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_LATE);
+        /* Focusing takes a long time, and the press comes right away */
+        mEngine.setLatencies(OPEN_MILLIS, SLACK_MILLIS, CAPTURE_MILLIS);
+        mEngine.preFocus(CaptureMetrics.now());
+        pressAndWait();
+        assertEquals(inTime, mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_IN_TIME));
+        assertEquals(late + 1, mMetrics.getCount(CaptureMetrics.Counter.PRE_FOCUS_LATE));
+    }
+
+    @Test
+    public void secondPictureIsRefusedWhileCapturing() throws InterruptedException {
+        final ICameraEngine.PictureCallback ignore = new ICameraEngine.PictureCallback() {
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                mEngine.startPreviewAfterPicture();
+            }
+        };
+        final boolean[] results = new boolean[2];
+        runOnCameraThread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = mEngine.takePicture(ignore);
+                results[1] = mEngine.takePicture(ignore);
+            }
+        });
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertEquals(ICameraEngine.State.CAPTURING, mEngine.getState());
+    }
+
+    @Test
+    public void burstKeepsUpWithTheCamera() throws IOException, InterruptedException {
+        /* Full size pictures, written and synced in the background like CameraActivity does */
+        byte[] picture = new byte[2 * 1024 * 1024];
+        picture[0] = (byte) 0xFF;
+        picture[1] = (byte) 0xD8;
+        mEngine.setPicture(picture);
+        final File directory = mFolder.newFolder("burst");
+        final PictureWriter writer = new PictureWriter(BURST_QUEUE_CAPACITY,
+                PictureWriter.Policy.BLOCK, PictureWriter.SyncPolicy.DATA, null, null, null);
+        writer.start(null);
+
+        /* Restart the preview, hand the picture off and ask for the next one straight away, the
+         * way CameraActivity runs a burst with no interval
+         */
+        final long[] pictureTimes = new long[BURST_COUNT];
+        final CountDownLatch done = new CountDownLatch(1);
+        final Runnable[] next = new Runnable[1];
+        final ICameraEngine.PictureCallback callback = new ICameraEngine.PictureCallback() {
+            private int mTaken = 0;
+
+            @Override
+            public void onPictureTaken(byte[] jpeg) {
+                pictureTimes[mTaken] = CaptureMetrics.now();
+                if (mTaken > 0) {
+                    mMetrics.record(CaptureMetrics.Stage.BURST_INTERVAL,
+                            pictureTimes[mTaken - 1], pictureTimes[mTaken]);
+                }
+                mEngine.startPreviewAfterPicture();
+                writer.submit(jpeg, new File(directory, "IMG_" + mTaken + ".jpg"),
+                        pictureTimes[0], JpegExifWriter.ORIENTATION_NONE, 0, null);
+                if (++mTaken < BURST_COUNT) {
+                    mEngine.postDelayed(next[0], 0);
+                } else {
+                    done.countDown();
+                }
+            }
+        };
+        next[0] = new Runnable() {
+            @Override
+            public void run() {
+                assertTrue(mEngine.takePicture(callback));
+            }
+        };
+        mEngine.post(next[0]);
+        assertTrue(done.await(BURST_COUNT * (CAPTURE_MILLIS + SLACK_MILLIS),
+                TimeUnit.MILLISECONDS));
+        writer.stop();
+
+        /* The camera is the limit, so the burst runs within 20% of one picture per capture */
+        double seconds = (pictureTimes[BURST_COUNT - 1] - pictureTimes[0]) / 1e9;
+        double fps = (BURST_COUNT - 1) / seconds;
+        assertTrue("burst ran at " + fps + " fps", fps >= 0.8 * 1000 / CAPTURE_MILLIS);
+        assertEquals(BURST_COUNT, mEngine.getPicturesTaken());
+    }
+}
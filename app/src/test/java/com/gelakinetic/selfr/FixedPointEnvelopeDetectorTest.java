@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the integer only detection path follows the floating point one closely enough that
+ * switching between them doesn't change which presses are detected
+ */
+public class FixedPointEnvelopeDetectorTest {
+
+    private static final int BUFFER_SIZE = 160;
+    private static final int BUFFERS = 50;
+
+    /**
+     * Run the same random audio through both envelope detectors, a buffer at a time, and compare
+     * every output sample
+     *
+     * @param alpha The filter coefficient to test
+     */
+    private static void compareEnvelopes(float alpha) {
+        EnvelopeDetector floating = new EnvelopeDetector(alpha);
+        FixedPointEnvelopeDetector fixed = new FixedPointEnvelopeDetector(alpha);
+        short[] samples = new short[BUFFER_SIZE];
+        float[] floatOutputs = new float[BUFFER_SIZE + 1];
+        int[] fixedOutputs = new int[BUFFER_SIZE + 1];
+        Random random = new Random(alpha == 0.5f ? 1 : 2);
+
+        /* Each fixed point step truncates less than 1, and the filter scales old error by
+         * (1 - alpha), so truncation error stays under 1 / alpha. The float path has its own
+         * rounding, relative to the size of the envelope
+         */
+        float allowedError = 1 / alpha;
+        for (int buffer = 0; buffer < BUFFERS; buffer++) {
+            /* Alternate quiet and full scale buffers, so both ends of the range are covered */
+            int amplitude = (buffer % 2 == 0) ? 200 : Short.MAX_VALUE;
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                samples[i] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+            }
+            floating.findEnvelope(samples, BUFFER_SIZE, floatOutputs);
+            fixed.findEnvelope(samples, BUFFER_SIZE, fixedOutputs);
+            for (int i = 0; i <= BUFFER_SIZE; i++) {
+                assertEquals("buffer " + buffer + ", sample " + i, floatOutputs[i],
+                        fixedOutputs[i], allowedError + 1e-6 * Math.abs(floatOutputs[i]));
+            }
+        }
+    }
+
+    @Test
+    public void envelopeMatchesAtDefaultAlpha() {
+        compareEnvelopes(EnvelopeDetector.ALPHA);
+    }
+
+    @Test
+    public void envelopeMatchesAtSmallerAlpha() {
+        compareEnvelopes(0.125f);
+    }
+
+    /**
+     * Feed a window which settles at exactly 110.5 through a streaming detector
+     *
+     * @param fixedPoint true to use integer only math
+     * @param threshold  The threshold to set
+     * @return true if a press was detected
+     */
+    private static boolean detectsAt(boolean fixedPoint, float threshold) {
+        /* With alpha 1 the envelope is just the squared samples, 100 and 121 */
+        ButtonDetector detector = new ButtonDetector(ButtonDetector.Mode.STREAMING, 2, fixedPoint,
+                1f);
+        detector.setThreshold(threshold);
+        short[] samples = new short[BUFFER_SIZE];
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            samples[i] = (short) ((i % 2 == 0) ? 10 : 11);
+        }
+        return detector.process(samples, BUFFER_SIZE);
+    }
+
+    @Test
+    public void fractionalThresholdIsNotTruncated() {
+        /* Truncating 110.75 to 110 would let an average of 110.5 through */
+        assertFalse(detectsAt(false, 110.75f));
+        assertFalse(detectsAt(true, 110.75f));
+        assertTrue(detectsAt(false, 110.25f));
+        assertTrue(detectsAt(true, 110.25f));
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs sample JPEGs through JpegExifWriter and reads the EXIF back, to check every JPEG ends up
+ * with exactly one EXIF segment holding the right orientation, and that the camera's own EXIF and
+ * the image data survive. The samples are real JPEGs from ImageIO, with camera-like EXIF spliced
+ * in where needed
+ */
+public class JpegExifWriterTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private static final int TAG_SUB_SEC_TIME_ORIGINAL = 0x9291;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+
+    /* 2016-02-03 04:05:06.789 in UTC */
+    private static final long CAPTURE_TIME = 1454472306789L;
+
+    /**
+     * @return A small JFIF JPEG, the way ImageIO writes it
+     */
+    private static byte[] makeJfif() throws IOException {
+        BufferedImage image = new BufferedImage(32, 16, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x * 8) << 16 | (y * 16) << 8 | 0x40);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpg", out));
+        return out.toByteArray();
+    }
+
+    /**
+     * @param jfif A JFIF JPEG
+     * @return The same JPEG without its APP0 segment, the way cameras start
+     */
+    private static byte[] stripJfif(byte[] jfif) {
+        assertEquals(0xE0, jfif[3] & 0xFF);
+        int app0End = 4 + readShort(jfif, 4, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jfif, 0, 2);
+        out.write(jfif, app0End, jfif.length - app0End);
+        return out.toByteArray();
+    }
+
+    /**
+     * Build a camera-like EXIF segment: an IFD0 with a make, a pointer to an EXIF IFD with
+     * the capture date, and optionally an orientation, then an IFD1 for a thumbnail
+     *
+     * @param littleEndian   true for Intel byte order, false for Motorola
+     * @param orientation    The orientation to include, or 0 for none
+     * @param oddLength      true to end the TIFF data on an odd offset
+     * @return The segment, starting with its marker
+     */
+    private static byte[] makeCameraExif(boolean littleEndian, int orientation,
+                                         boolean oddLength) {
+        int ifd0Entries = (orientation != 0) ? 3 : 2;
+        int ifd0 = 8;
+        int make = ifd0 + 2 + ifd0Entries * 12 + 4;
+        byte[] makeValue = "Camera\0".getBytes(ASCII);
+        int exifIfd = make + 8;
+        int dateValue = exifIfd + 2 + 12 + 4;
+        int ifd1 = dateValue + 20;
+        int tiffLength = ifd1 + 2 + 12 + 4 + (oddLength ? 3 : 2);
+
+        byte[] tiff = new byte[tiffLength];
+        tiff[0] = tiff[1] = (byte) (littleEndian ? 'I' : 'M');
+        writeShort(tiff, 2, 42, littleEndian);
+        writeInt(tiff, 4, ifd0, littleEndian);
+
+        writeShort(tiff, ifd0, ifd0Entries, littleEndian);
+        int entry = ifd0 + 2;
+        entry = writeEntry(tiff, entry, TAG_MAKE, 2, makeValue.length, make, littleEndian);
+        if (orientation != 0) {
+            writeShort(tiff, entry, TAG_ORIENTATION, littleEndian);
+            writeShort(tiff, entry + 2, 3, littleEndian);
+            writeInt(tiff, entry + 4, 1, littleEndian);
+            writeShort(tiff, entry + 8, orientation, littleEndian);
+            entry += 12;
+        }
+        entry = writeEntry(tiff, entry, TAG_EXIF_IFD, 4, 1, exifIfd, littleEndian);
+        writeInt(tiff, entry, ifd1, littleEndian);
+        System.arraycopy(makeValue, 0, tiff, make, makeValue.length);
+
+        writeShort(tiff, exifIfd, 1, littleEndian);
+        writeEntry(tiff, exifIfd + 2, TAG_DATE_TIME_ORIGINAL, 2, 20, dateValue, littleEndian);
+        byte[] date = "2015:01:02 03:04:05\0".getBytes(ASCII);
+        System.arraycopy(date, 0, tiff, dateValue, date.length);
+
+        /* The thumbnail's offset is a value, not a pointer, so moving it would break it */
+        writeShort(tiff, ifd1, 1, littleEndian);
+        writeEntry(tiff, ifd1 + 2, TAG_THUMBNAIL_OFFSET, 4, 1, 0x1234, littleEndian);
+
+        byte[] segment = new byte[4 + EXIF_HEADER.length + tiffLength];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) 0xE1;
+        writeShort(segment, 2, segment.length - 2, false);
+        System.arraycopy(EXIF_HEADER, 0, segment, 4, EXIF_HEADER.length);
+        System.arraycopy(tiff, 0, segment, 4 + EXIF_HEADER.length, tiffLength);
+        return segment;
+    }
+
+    /**
+     * @param jpeg    A JPEG
+     * @param segment A segment to put right after its start of image
+     * @return The JPEG with the segment in it
+     */
+    private static byte[] insertAfterSoi(byte[] jpeg, byte[] segment) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        out.write(segment, 0, segment.length);
+        out.write(jpeg, 2, jpeg.length - 2);
+        return out.toByteArray();
+    }
+
+    private static byte[] write(byte[] jpeg, int orientation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        /* Pad the buffer, only length bytes may be used */
+        byte[] padded = Arrays.copyOf(jpeg, jpeg.length + 7);
+        JpegExifWriter.write(padded, jpeg.length, orientation, CAPTURE_TIME, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * The EXIF read back from a JPEG
+     */
+    private static class Exif {
+        byte[] mJpeg;
+        int mTiff;
+        boolean mLittleEndian;
+        int mIfd0;
+        int mExifSegmentCount = 0;
+        /* Everything after the EXIF segment */
+        byte[] mAfterExif;
+
+        int readShort(int offset) {
+            return JpegExifWriterTest.readShort(mJpeg, mTiff + offset, mLittleEndian);
+        }
+
+        int readInt(int offset) {
+            return JpegExifWriterTest.readInt(mJpeg, mTiff + offset, mLittleEndian);
+        }
+
+        /**
+         * @param ifd An IFD's offset from the TIFF header
+         * @param tag The tag to find
+         * @return The entry's offset from the TIFF header, or -1 if it isn't there
+         */
+        int findEntry(int ifd, int tag) {
+            int entries = readShort(ifd);
+            int lastTag = -1;
+            int found = -1;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd + 2 + i * 12;
+                int entryTag = readShort(entry);
+                /* Entries must be sorted */
+                assertTrue(entryTag > lastTag);
+                lastTag = entryTag;
+                if (entryTag == tag) {
+                    found = entry;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @param ifd An IFD's offset from the TIFF header
+         * @return The next IFD's offset from the TIFF header
+         */
+        int nextIfd(int ifd) {
+            return readInt(ifd + 2 + readShort(ifd) * 12);
+        }
+
+        int getOrientation() {
+            int entry = findEntry(mIfd0, TAG_ORIENTATION);
+            assertTrue(entry >= 0);
+            assertEquals(3, readShort(entry + 2));
+            assertEquals(1, readInt(entry + 4));
+            return readShort(entry + 8);
+        }
+
+        String getString(int ifd, int tag) {
+            int entry = findEntry(ifd, tag);
+            assertTrue(entry >= 0);
+            assertEquals(2, readShort(entry + 2));
+            int count = readInt(entry + 4);
+            int offset = (count <= 4) ? mTiff + entry + 8 : mTiff + readInt(entry + 8);
+            int end = offset;
+            while (end < offset + count && mJpeg[end] != 0) {
+                end++;
+            }
+            return new String(mJpeg, offset, end - offset, ASCII);
+        }
+    }
+
+    /**
+     * Walk a JPEG's segments up to the image data, and read its EXIF
+     *
+     * @param jpeg A JPEG
+     * @return Its EXIF, which must be there
+     */
+    private static Exif readExif(byte[] jpeg) {
+        assertEquals(0xFF, jpeg[0] & 0xFF);
+        assertEquals(0xD8, jpeg[1] & 0xFF);
+        Exif exif = new Exif();
+        exif.mJpeg = jpeg;
+        int position = 2;
+        while ((jpeg[position + 1] & 0xFF) != 0xDA) {
+            assertEquals(0xFF, jpeg[position] & 0xFF);
+            int end = position + 2 + readShort(jpeg, position + 2, false);
+            if ((jpeg[position + 1] & 0xFF) == 0xE1 && Arrays.equals(EXIF_HEADER,
+                    Arrays.copyOfRange(jpeg, position + 4, position + 4 + EXIF_HEADER.length))) {
+                exif.mExifSegmentCount++;
+                exif.mTiff = position + 4 + EXIF_HEADER.length;
+                exif.mLittleEndian = jpeg[exif.mTiff] == 'I';
+                assertEquals(42, exif.readShort(2));
+                exif.mIfd0 = exif.readInt(4);
+                /* IFDs start on even offsets, and stay inside the segment */
+                assertEquals(0, exif.mIfd0 % 2);
+                assertTrue(exif.mTiff + exif.mIfd0 + 2 + exif.readShort(exif.mIfd0) * 12 + 4
+                        <= end);
+                exif.mAfterExif = Arrays.copyOfRange(jpeg, end, jpeg.length);
+            }
+            position = end;
+        }
+        assertEquals(1, exif.mExifSegmentCount);
+        return exif;
+    }
+
+    /**
+     * Check a written JPEG still decodes to the same image
+     */
+    private static void assertDecodes(byte[] original, byte[] written) throws IOException {
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(original));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(written));
+        assertNotNull(actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void orientationNoneLeavesTheJpegAlone() throws IOException {
+        byte[] jpeg = insertAfterSoi(stripJfif(makeJfif()), makeCameraExif(true, 0, false));
+        assertArrayEquals(jpeg, write(jpeg, JpegExifWriter.ORIENTATION_NONE));
+    }
+
+    @Test
+    public void notAJpegIsLeftAlone() throws IOException {
+        byte[] notJpeg = "not a jpeg at all".getBytes(ASCII);
+        assertArrayEquals(notJpeg, write(notJpeg, JpegExifWriter.ORIENTATION_ROTATE_90));
+    }
+
+    @Test
+    public void segmentIsInsertedAfterJfif() throws IOException {
+        byte[] jfif = makeJfif();
+        byte[] written = write(jfif, JpegExifWriter.ORIENTATION_ROTATE_90);
+        /* The JFIF segment stays first */
+        assertEquals(0xE0, written[3] & 0xFF);
+        Exif exif = readExif(written);
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_90, exif.getOrientation());
+        assertDecodes(jfif, written);
+    }
+
+    @Test
+    public void segmentHasTheCaptureTime() throws IOException {
+        byte[] written = write(stripJfif(makeJfif()), JpegExifWriter.ORIENTATION_NORMAL);
+        assertEquals(0xE1, written[3] & 0xFF);
+        Exif exif = readExif(written);
+        String expected = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US)
+                .format(new Date(CAPTURE_TIME));
+        assertEquals(expected, exif.getString(exif.mIfd0, TAG_DATE_TIME));
+        int exifIfdEntry = exif.findEntry(exif.mIfd0, TAG_EXIF_IFD);
+        int exifIfd = exif.readInt(exifIfdEntry + 8);
+        assertEquals(expected, exif.getString(exifIfd, TAG_DATE_TIME_ORIGINAL));
+        assertEquals("789", exif.getString(exifIfd, TAG_SUB_SEC_TIME_ORIGINAL));
+    }
+
+    /**
+     * A camera's EXIF with an orientation tag just has that patched
+     */
+    private static void checkPatched(boolean littleEndian) throws IOException {
+        byte[] jpeg = insertAfterSoi(stripJfif(makeJfif()),
+                makeCameraExif(littleEndian, JpegExifWriter.ORIENTATION_NORMAL, false));
+        byte[] written = write(jpeg, JpegExifWriter.ORIENTATION_ROTATE_270);
+        assertEquals(jpeg.length, written.length);
+        Exif exif = readExif(written);
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_270, exif.getOrientation());
+
+        /* Only the orientation's value changed */
+        int different = 0;
+        for (int i = 0; i < jpeg.length; i++) {
+            if (jpeg[i] != written[i]) {
+                different++;
+            }
+        }
+        assertEquals(1, different);
+        assertDecodes(jpeg, written);
+    }
+
+    @Test
+    public void existingOrientationIsPatchedLittleEndian() throws IOException {
+        checkPatched(true);
+    }
+
+    @Test
+    public void existingOrientationIsPatchedBigEndian() throws IOException {
+        checkPatched(false);
+    }
+
+    /**
+     * A camera's EXIF without an orientation tag gets one, in its only EXIF segment, and
+     * everything the camera wrote can still be read
+     */
+    private static void checkAdded(boolean littleEndian, boolean oddLength) throws IOException {
+        byte[] jpeg = insertAfterSoi(stripJfif(makeJfif()),
+                makeCameraExif(littleEndian, 0, oddLength));
+        Exif before = readExif(jpeg);
+        byte[] written = write(jpeg, JpegExifWriter.ORIENTATION_ROTATE_180);
+        Exif exif = readExif(written);
+
+        assertEquals(littleEndian, exif.mLittleEndian);
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_180, exif.getOrientation());
+        assertEquals("Camera", exif.getString(exif.mIfd0, TAG_MAKE));
+        int exifIfdEntry = exif.findEntry(exif.mIfd0, TAG_EXIF_IFD);
+        assertEquals("2015:01:02 03:04:05",
+                exif.getString(exif.readInt(exifIfdEntry + 8), TAG_DATE_TIME_ORIGINAL));
+
+        /* The thumbnail IFD is still linked, and didn't move */
+        int ifd1 = exif.nextIfd(exif.mIfd0);
+        assertEquals(before.nextIfd(before.mIfd0), ifd1);
+        assertEquals(0x1234, exif.readInt(exif.findEntry(ifd1, TAG_THUMBNAIL_OFFSET) + 8));
+
+        /* The image data is untouched */
+        assertArrayEquals(before.mAfterExif, exif.mAfterExif);
+        assertDecodes(jpeg, written);
+    }
+
+    @Test
+    public void orientationIsAddedLittleEndian() throws IOException {
+        checkAdded(true, false);
+    }
+
+    @Test
+    public void orientationIsAddedBigEndian() throws IOException {
+        checkAdded(false, false);
+    }
+
+    @Test
+    public void orientationIsAddedAfterOddLengthExif() throws IOException {
+        checkAdded(true, true);
+        checkAdded(false, true);
+    }
+
+    @Test
+    public void unreadableExifIsReplaced() throws IOException {
+        byte[] segment = makeCameraExif(true, 0, false);
+        /* Neither Intel nor Motorola byte order */
+        segment[4 + EXIF_HEADER.length] = 'X';
+        segment[4 + EXIF_HEADER.length + 1] = 'X';
+        byte[] jpeg = insertAfterSoi(stripJfif(makeJfif()), segment);
+        byte[] written = write(jpeg, JpegExifWriter.ORIENTATION_ROTATE_90);
+        Exif exif = readExif(written);
+        assertEquals(JpegExifWriter.ORIENTATION_ROTATE_90, exif.getOrientation());
+        assertDecodes(jpeg, written);
+    }
+
+    private static int readShort(byte[] buffer, int offset, boolean littleEndian) {
+        int first = buffer[offset] & 0xFF;
+        int second = buffer[offset + 1] & 0xFF;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private static int readInt(byte[] buffer, int offset, boolean littleEndian) {
+        int first = readShort(buffer, offset, littleEndian);
+        int second = readShort(buffer, offset + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value, boolean littleEndian) {
+        buffer[offset] = (byte) (littleEndian ? value : value >> 8);
+        buffer[offset + 1] = (byte) (littleEndian ? value >> 8 : value);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value, boolean littleEndian) {
+        writeShort(buffer, offset, littleEndian ? value : value >>> 16, littleEndian);
+        writeShort(buffer, offset + 2, littleEndian ? value >>> 16 : value, littleEndian);
+    }
+
+    /**
+     * @return The offset just past the entry
+     */
+    private static int writeEntry(byte[] buffer, int offset, int tag, int type, int count,
+                                  int value, boolean littleEndian) {
+        writeShort(buffer, offset, tag, littleEndian);
+        writeShort(buffer, offset + 2, type, littleEndian);
+        writeInt(buffer, offset + 4, count, littleEndian);
+        writeInt(buffer, offset + 8, value, littleEndian);
+        return offset + 12;
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks LatencyHistogram's summary statistics, and that percentiles stay within the 25% its
+ * bucket spacing promises
+ */
+public class LatencyHistogramTest {
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100000; micros++) {
+            histogram.record(micros * NANOS_PER_MICRO);
+        }
+        assertEquals(100000, histogram.getCount());
+        assertEquals(50000, histogram.getMeanMicros());
+        assertEquals(100000, histogram.getMaxMicros());
+
+        double[] percentiles = {1, 10, 50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            long exact = (long) Math.ceil(100000 * percentile / 100);
+            long estimate = histogram.getPercentileMicros(percentile);
+            /* The estimate is the upper bound of a bucket, so it never undershoots */
+            assertTrue("p" + percentile + " was " + estimate, estimate >= exact);
+            assertTrue("p" + percentile + " was " + estimate, estimate <= exact * 1.25);
+        }
+        assertEquals(100000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void smallLatenciesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(1 * NANOS_PER_MICRO);
+        histogram.record(2 * NANOS_PER_MICRO);
+        histogram.record(3 * NANOS_PER_MICRO);
+        assertEquals(0, histogram.getPercentileMicros(25));
+        assertEquals(1, histogram.getPercentileMicros(50));
+        assertEquals(2, histogram.getPercentileMicros(75));
+        assertEquals(3, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void percentileNeverExceedsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000 * NANOS_PER_MICRO);
+        assertEquals(1000, histogram.getPercentileMicros(50));
+        assertEquals(1000, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void negativeLatenciesRecordAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5 * NANOS_PER_MICRO);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(500 * NANOS_PER_MICRO);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxMicros());
+        assertEquals(0, histogram.getPercentileMicros(99));
+        histogram.record(7 * NANOS_PER_MICRO);
+        assertEquals(7, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final long micros = (i + 1) * 100;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        histogram.record(micros * NANOS_PER_MICRO);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, histogram.getCount());
+        assertEquals(250, histogram.getMeanMicros());
+        assertEquals(400, histogram.getMaxMicros());
+    }
+}
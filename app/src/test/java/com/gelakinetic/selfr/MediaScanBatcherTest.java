@@ -0,0 +1,167 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that MediaScanBatcher flushes a batch when it's full, when its window runs out, and when
+ * asked, and never scans a picture twice. The window's timer is a mock Handler the test runs by
+ * hand
+ */
+public class MediaScanBatcherTest {
+
+    private static final int BATCH_SIZE = 3;
+    private static final long WINDOW_MILLIS = 2000;
+
+    /* What was sent to the scanner, one list per flush */
+    private final List<List<String>> mScans = new ArrayList<>();
+    private final Handler mHandler = mock(Handler.class);
+    /* The pending window timer, or null if none is pending */
+    private Runnable mTimer = null;
+    private long mTimerDelay = 0;
+    private MediaScanBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        when(mHandler.postDelayed(any(Runnable.class), anyLong())).thenAnswer(
+                new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        assertNull("Only one window at a time", mTimer);
+                        mTimer = (Runnable) invocation.getArguments()[0];
+                        mTimerDelay = (Long) invocation.getArguments()[1];
+                        return true;
+                    }
+                });
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                if (invocation.getArguments()[0] == mTimer) {
+                    mTimer = null;
+                }
+                return null;
+            }
+        }).when(mHandler).removeCallbacks(any(Runnable.class));
+
+        mBatcher = new MediaScanBatcher(new MediaScanBatcher.Scanner() {
+            @Override
+            public void scanFile(String[] paths, String[] mimeTypes) {
+                assertEquals(paths.length, mimeTypes.length);
+                for (String mimeType : mimeTypes) {
+                    assertEquals("image/jpeg", mimeType);
+                }
+                mScans.add(Arrays.asList(paths));
+            }
+        }, mHandler, BATCH_SIZE, WINDOW_MILLIS);
+    }
+
+    /**
+     * @param index Which picture
+     * @return The picture's file
+     */
+    private static File picture(int index) {
+        return new File("/sdcard/Pictures/Selfr/IMG_" + index + ".jpg");
+    }
+
+    /**
+     * Run the window timer, like the Handler would once it runs out
+     */
+    private void runTimer() {
+        Runnable timer = mTimer;
+        mTimer = null;
+        timer.run();
+    }
+
+    @Test
+    public void flushesAFullBatch() {
+        for (int i = 0; i < BATCH_SIZE * 2 + 1; i++) {
+            mBatcher.add(picture(i));
+        }
+
+        /* Two full batches, and the last picture waits for its window */
+        assertEquals(2, mScans.size());
+        assertEquals(Arrays.asList(picture(0).getAbsolutePath(), picture(1).getAbsolutePath(),
+                picture(2).getAbsolutePath()), mScans.get(0));
+        assertEquals(Arrays.asList(picture(3).getAbsolutePath(), picture(4).getAbsolutePath(),
+                picture(5).getAbsolutePath()), mScans.get(1));
+        assertEquals(WINDOW_MILLIS, mTimerDelay);
+
+        runTimer();
+        assertEquals(3, mScans.size());
+        assertEquals(Arrays.asList(picture(6).getAbsolutePath()), mScans.get(2));
+    }
+
+    @Test
+    public void flushesWhenTheWindowRunsOut() {
+        mBatcher.add(picture(0));
+        mBatcher.add(picture(1));
+        assertEquals(0, mScans.size());
+
+        /* The window started with the first picture, and the second didn't restart it */
+        runTimer();
+        assertEquals(1, mScans.size());
+        assertArrayEquals(new String[]{picture(0).getAbsolutePath(),
+                picture(1).getAbsolutePath()}, mScans.get(0).toArray());
+
+        /* The next picture starts a new window */
+        mBatcher.add(picture(2));
+        assertEquals(1, mScans.size());
+        runTimer();
+        assertEquals(2, mScans.size());
+        assertEquals(Arrays.asList(picture(2).getAbsolutePath()), mScans.get(1));
+    }
+
+    @Test
+    public void flushesWhenAsked() {
+        mBatcher.flush();
+        assertEquals(0, mScans.size());
+
+        mBatcher.add(picture(0));
+        mBatcher.flush();
+        assertEquals(1, mScans.size());
+        assertNull(mTimer);
+
+        /* Nothing is left to scan */
+        mBatcher.flush();
+        assertEquals(1, mScans.size());
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that NoiseFloorEstimator converges on the noise floor, follows it when it moves, and
+ * isn't dragged up by button presses
+ */
+public class NoiseFloorEstimatorTest {
+
+    /* 10 ms buffers, with a half second time constant, so each update is a 2% step */
+    private static final int BUFFER_SIZE = 160;
+    private static final int TIME_CONSTANT = 8000;
+    /* Each update moves the estimate by at most 2% with these settings, but a run of steps the
+     * same way adds up. Across hundreds of seeds it stays within 20% of the true quantile
+     */
+    private static final float TOLERANCE = 0.25f;
+    /* Enough updates to climb or fall two orders of magnitude, and then settle */
+    private static final int UPDATES = 2000;
+
+    /**
+     * Feed levels spread evenly between half and one and a half times a noise floor
+     *
+     * @param estimator The estimator to update
+     * @param random    Where the levels come from
+     * @param floor     The median level
+     * @param updates   How many levels to feed
+     */
+    private static void feedNoise(NoiseFloorEstimator estimator, Random random, float floor,
+                                  int updates) {
+        for (int i = 0; i < updates; i++) {
+            estimator.update(floor * (0.5f + random.nextFloat()), BUFFER_SIZE);
+        }
+    }
+
+    private static void assertNear(float expected, float actual) {
+        assertEquals(expected, actual, expected * TOLERANCE);
+    }
+
+    @Test
+    public void noUpdatesReportsZero() {
+        assertEquals(0, new NoiseFloorEstimator(0.5f, TIME_CONSTANT).getEstimate(), 0);
+    }
+
+    @Test
+    public void convergesOnTheMedian() {
+        NoiseFloorEstimator estimator = new NoiseFloorEstimator(0.5f, TIME_CONSTANT);
+        Random random = new Random(1);
+        /* Seed far below the floor, so it has to climb two orders of magnitude */
+        estimator.update(10, BUFFER_SIZE);
+        feedNoise(estimator, random, 1000, UPDATES);
+        assertNear(1000, estimator.getEstimate());
+    }
+
+    @Test
+    public void followsTheFloorDown() {
+        NoiseFloorEstimator estimator = new NoiseFloorEstimator(0.5f, TIME_CONSTANT);
+        Random random = new Random(2);
+        feedNoise(estimator, random, 100000, UPDATES);
+        assertNear(100000, estimator.getEstimate());
+        feedNoise(estimator, random, 1000, UPDATES);
+        assertNear(1000, estimator.getEstimate());
+    }
+
+    @Test
+    public void pressesBarelyMoveIt() {
+        NoiseFloorEstimator estimator = new NoiseFloorEstimator(0.5f, TIME_CONSTANT);
+        Random random = new Random(3);
+        feedNoise(estimator, random, 1000, UPDATES);
+        /* One buffer in twenty is a press, a thousand times louder than the noise */
+        for (int i = 0; i < UPDATES; i++) {
+            if (i % 20 == 0) {
+                estimator.update(1000000, BUFFER_SIZE);
+            } else {
+                estimator.update(1000 * (0.5f + random.nextFloat()), BUFFER_SIZE);
+            }
+        }
+        assertNear(1000, estimator.getEstimate());
+    }
+
+    @Test
+    public void higherQuantilesSettleHigher() {
+        NoiseFloorEstimator median = new NoiseFloorEstimator(0.5f, TIME_CONSTANT);
+        NoiseFloorEstimator upper = new NoiseFloorEstimator(0.9f, TIME_CONSTANT);
+        Random random = new Random(4);
+        for (int i = 0; i < UPDATES; i++) {
+            float level = 1000 * (0.5f + random.nextFloat());
+            median.update(level, BUFFER_SIZE);
+            upper.update(level, BUFFER_SIZE);
+        }
+        assertTrue(upper.getEstimate() > median.getEstimate());
+        /* The 90th percentile of levels between 500 and 1500 is 1400 */
+        assertNear(1400, upper.getEstimate());
+    }
+
+    @Test
+    public void climbsOutOfSilence() {
+        NoiseFloorEstimator estimator = new NoiseFloorEstimator(0.5f, TIME_CONSTANT);
+        for (int i = 0; i < 100; i++) {
+            estimator.update(0, BUFFER_SIZE);
+        }
+        assertEquals(1, estimator.getEstimate(), 0);
+        feedNoise(estimator, new Random(5), 1000, UPDATES);
+        assertNear(1000, estimator.getEstimate());
+    }
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.os.Handler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that PictureWriter writes every picture it accepted, even when it's stopped while
+ * pictures are still arriving, drops the ones it didn't, never leaves a temporary file behind, and
+ * salvages or deletes the temporary files a crash left
+ */
+public class PictureWriterTest {
+
+    /* A JPEG with nothing in it, enough for the writer to copy */
+    private static final byte[] JPEG = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Wait for the writer thread to write a number of pictures
+     *
+     * @param directory Where the pictures are written
+     * @param count     How many pictures to wait for
+     * @return true if exactly that many were written, with nothing half written, false if they
+     * weren't before the timeout
+     */
+    private static boolean waitForPictures(File directory, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            String[] names = directory.list();
+            int pictures = 0;
+            boolean writing = false;
+            for (String name : names) {
+                if (name.endsWith(".jpg")) {
+                    pictures++;
+                } else {
+                    writing = true;
+                }
+            }
+            if (!writing && pictures >= count) {
+                return pictures == count;
+            }
+            Thread.sleep(1);
+        }
+        return false;
+    }
+
+    /**
+     * Queue a picture
+     *
+     * @param writer    The writer to queue it on
+     * @param directory Where to write it
+     * @param index     Used to name it
+     * @return true if it was queued
+     */
+    private static boolean submit(PictureWriter writer, File directory, int index) {
+        return writer.submit(JPEG, new File(directory, "IMG_" + index + ".jpg"), 0,
+                JpegExifWriter.ORIENTATION_NONE, 0, null);
+    }
+
+    @Test
+    public void writesQueuedPicturesAfterStop() throws IOException, InterruptedException {
+        File directory = mFolder.newFolder("pictures");
+        PictureWriter writer = new PictureWriter(8, PictureWriter.Policy.BLOCK,
+                PictureWriter.SyncPolicy.NONE, null, null, null);
+        writer.start(null);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(submit(writer, directory, i));
+        }
+        writer.stop();
+        assertTrue(waitForPictures(directory, 8));
+    }
+
+    /**
+     * @return A Handler which runs everything posted to it right away, on the posting thread
+     */
+    private static Handler immediateHandler() {
+        Handler handler = mock(Handler.class);
+        when(handler.post(any(Runnable.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return true;
+            }
+        });
+        return handler;
+    }
+
+    @Test
+    public void tellsTheListenerOnceStoppedAndDrained() throws IOException,
+            InterruptedException {
+        File directory = mFolder.newFolder("pictures");
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch stopped = new CountDownLatch(1);
+        PictureWriter writer = new PictureWriter(8, PictureWriter.Policy.BLOCK,
+                PictureWriter.SyncPolicy.NONE, new PictureWriter.Listener() {
+            @Override
+            public void onPictureWritten(File file) {
+                events.add(file.getName());
+            }
+
+            @Override
+            public void onPictureDropped(File file) {
+                events.add("dropped");
+            }
+
+            @Override
+            public void onStopped() {
+                events.add("stopped");
+                stopped.countDown();
+            }
+        }, immediateHandler(), null);
+        writer.start(null);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(submit(writer, directory, i));
+        }
+        writer.stop();
+
+        /* Every picture comes before the stop, so a listener can flush what it gathered */
+        assertTrue(stopped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(6, events.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("IMG_" + i + ".jpg", events.get(i));
+        }
+        assertEquals("stopped", events.get(5));
+    }
+
+    @Test
+    public void dropsPicturesAfterStop() throws IOException, InterruptedException {
+        File directory = mFolder.newFolder("pictures");
+        PictureWriter writer = new PictureWriter(8, PictureWriter.Policy.BLOCK,
+                PictureWriter.SyncPolicy.NONE, null, null, null);
+        assertFalse(submit(writer, directory, 0));
+
+        writer.start(null);
+        writer.stop();
+        assertFalse(submit(writer, directory, 1));
+
+        /* A preview frame's buffer is handed back even when it's dropped */
+        final AtomicInteger done = new AtomicInteger();
+        assertFalse(writer.submitPreviewFrame(new byte[6], 2, 2,
+                new File(directory, "IMG_2.jpg"), 0, JpegExifWriter.ORIENTATION_NORMAL, 0,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        done.incrementAndGet();
+                    }
+                }, null));
+        assertEquals(1, done.get());
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test(timeout = 120000)
+    public void neverLosesAPictureWhileStopping() throws IOException, InterruptedException {
+        /* A producer blocked on a full queue can land its picture after the writer's last look
+         * at the queue. Every accepted picture must still be written
+         */
+        for (int round = 0; round < 300; round++) {
+            final File directory = mFolder.newFolder("round" + round);
+            final PictureWriter writer = new PictureWriter(1, PictureWriter.Policy.BLOCK,
+                    PictureWriter.SyncPolicy.NONE, null, null, null);
+            final AtomicInteger accepted = new AtomicInteger();
+            writer.start(null);
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 4; i++) {
+                        if (submit(writer, directory, i)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            producer.start();
+            if (round % 2 == 0) {
+                Thread.yield();
+            }
+            writer.stop();
+            producer.join();
+            assertTrue("Round " + round + " accepted " + accepted.get() + " but wrote " +
+                    directory.list().length, waitForPictures(directory, accepted.get()));
+        }
+    }
+
+    /**
+     * Write a file
+     *
+     * @param file  The file to write
+     * @param bytes What to write in it
+     */
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void neverLeavesATemporaryFile() throws IOException, InterruptedException {
+        /* The picture can't be renamed over a directory, so the write fails at the last step */
+        File directory = mFolder.newFolder("pictures");
+        assertTrue(new File(directory, "IMG_0.jpg").mkdir());
+        final CountDownLatch dropped = new CountDownLatch(1);
+        PictureWriter writer = new PictureWriter(8, PictureWriter.Policy.BLOCK,
+                PictureWriter.SyncPolicy.DATA, new PictureWriter.Listener() {
+            @Override
+            public void onPictureWritten(File file) {
+            }
+
+            @Override
+            public void onPictureDropped(File file) {
+                dropped.countDown();
+            }
+
+            @Override
+            public void onStopped() {
+            }
+        }, immediateHandler(), null);
+        writer.start(null);
+        assertTrue(submit(writer, directory, 0));
+        assertTrue(submit(writer, directory, 1));
+        writer.stop();
+
+        assertTrue(dropped.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(waitForPictures(directory, 2));
+        assertTrue(new File(directory, "IMG_0.jpg").isDirectory());
+        assertFalse(new File(directory, "IMG_0.jpg.tmp").exists());
+        assertTrue(new File(directory, "IMG_1.jpg").isFile());
+    }
+
+    @Test
+    public void recoversLeftoverTemporaryFiles() throws IOException {
+        File directory = mFolder.newFolder("pictures");
+        File journalDirectory = mFolder.newFolder("journals");
+        SessionJournal journal = SessionJournal.getInstance(journalDirectory);
+
+        /* Written but not renamed, cut off part way through, too short to be a JPEG, and written
+         * when the picture was already renamed into place
+         */
+        File complete = new File(directory, "IMG_complete.jpg");
+        writeFile(new File(directory, "IMG_complete.jpg.tmp"), JPEG);
+        writeFile(new File(directory, "IMG_truncated.jpg.tmp"),
+                new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0, 0x10});
+        writeFile(new File(directory, "IMG_short.jpg.tmp"), new byte[]{(byte) 0xFF});
+        File renamed = new File(directory, "IMG_renamed.jpg");
+        writeFile(renamed, new byte[]{1, 2, 3});
+        writeFile(new File(directory, "IMG_renamed.jpg.tmp"), JPEG);
+        /* Not a temporary file, so it's left alone */
+        File other = new File(directory, "notes.txt");
+        writeFile(other, new byte[]{1});
+
+        final List<File> written = new ArrayList<>();
+        PictureWriter writer = new PictureWriter(8, PictureWriter.Policy.BLOCK,
+                PictureWriter.SyncPolicy.NONE, new PictureWriter.Listener() {
+            @Override
+            public void onPictureWritten(File file) {
+                written.add(file);
+            }
+
+            @Override
+            public void onPictureDropped(File file) {
+            }
+
+            @Override
+            public void onStopped() {
+            }
+        }, immediateHandler(), journal);
+        CaptureMetrics metrics = CaptureMetrics.getInstance();
+        metrics.reset();
+        writer.recover(directory);
+
+        assertEquals(1, metrics.getCount(CaptureMetrics.Counter.TEMP_SALVAGED));
+        assertEquals(3, metrics.getCount(CaptureMetrics.Counter.TEMP_DELETED));
+        String[] names = directory.list();
+        Arrays.sort(names);
+        assertEquals(Arrays.asList("IMG_complete.jpg", "IMG_renamed.jpg", "notes.txt"),
+                Arrays.asList(names));
+        assertEquals(3, renamed.length());
+        assertTrue(other.exists());
+
+        /* The salvaged picture is shown and journaled, even though its details were lost */
+        assertEquals(Collections.singletonList(complete), written);
+        List<SessionJournal.Entry> entries = SessionJournal.read(journal.getFile());
+        assertEquals(1, entries.size());
+        assertEquals(complete.getAbsoluteFile(), entries.get(0).mFile);
+        assertEquals(SessionJournal.UNKNOWN, entries.get(0).mTriggerLatencyMicros);
+    }
+}
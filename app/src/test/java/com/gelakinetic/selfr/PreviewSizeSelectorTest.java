@@ -0,0 +1,178 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how PreviewSizeSelector ranks preview sizes, and that it remembers its answers
+ */
+public class PreviewSizeSelectorTest {
+
+    /* A typical camera's preview sizes, as width, height pairs */
+    private static final int[] SIZES = {
+            640, 480,
+            800, 600,
+            1280, 720,
+            1280, 768,
+            1920, 1080,
+            1440, 1080,
+            320, 240,
+    };
+
+    /**
+     * Select a size, and describe it so failures are readable
+     *
+     * @param selector      The selector to use
+     * @param surfaceWidth  The width of the surface
+     * @param surfaceHeight The height of the surface
+     * @return The chosen size as "widthxheight", or "none"
+     */
+    private static String select(PreviewSizeSelector selector, int surfaceWidth,
+                                 int surfaceHeight) {
+        int index = selector.select(surfaceWidth, surfaceHeight);
+        if (index < 0) {
+            return "none";
+        }
+        return selector.getWidth(index) + "x" + selector.getHeight(index);
+    }
+
+    @Test
+    public void exactRatioMatchWins() {
+        PreviewSizeSelector selector = new PreviewSizeSelector(SIZES, Integer.MAX_VALUE);
+        /* Portrait and landscape surfaces get the same sizes, which are always landscape */
+        assertEquals("1920x1080", select(selector, 1080, 1920));
+        assertEquals("1920x1080", select(selector, 1920, 1080));
+        assertEquals("1440x1080", select(selector, 1080, 1440));
+        assertEquals("800x600", select(selector, 600, 800));
+    }
+
+    @Test
+    public void ratioIsComparedExactly() {
+        /* Integer division makes 1280x768 and 1280x720 both 1, only an exact ratio tells them
+         * apart. 1280x768 is listed first, so it would win a tie
+         */
+        PreviewSizeSelector selector = new PreviewSizeSelector(new int[]{1280, 768, 1280, 720},
+                Integer.MAX_VALUE);
+        assertEquals("1280x720", select(selector, 720, 1280));
+    }
+
+    @Test
+    public void ratioBeatsSize() {
+        /* 640x480 is much smaller than the surface, but the only 4:3 size */
+        PreviewSizeSelector selector = new PreviewSizeSelector(
+                new int[]{1920, 1080, 640, 480}, Integer.MAX_VALUE);
+        assertEquals("640x480", select(selector, 1536, 2048));
+    }
+
+    @Test
+    public void closestSizeBreaksRatioTies() {
+        PreviewSizeSelector selector = new PreviewSizeSelector(SIZES, Integer.MAX_VALUE);
+        /* 1280x720 and 1920x1080 are both 16:9 */
+        assertEquals("1280x720", select(selector, 800, 1422));
+        assertEquals("1920x1080", select(selector, 1000, 1778));
+        /* 320x240, 640x480 and 800x600 are all 4:3 */
+        assertEquals("320x240", select(selector, 150, 200));
+    }
+
+    @Test
+    public void pixelBudgetCapsTheSize() {
+        PreviewSizeSelector selector = new PreviewSizeSelector(SIZES, 1280 * 720);
+        assertEquals(1280 * 720, selector.getPixelBudget());
+        /* 1920x1080 fits the surface best, but is over the budget */
+        assertEquals("1280x720", select(selector, 1080, 1920));
+        /* 1440x1080 is over too, so the best 4:3 size in the budget is picked */
+        assertEquals("800x600", select(selector, 1080, 1440));
+    }
+
+    @Test
+    public void budgetBeatsRatio() {
+        /* The only 16:9 size is over the budget, so a 4:3 one is used instead */
+        PreviewSizeSelector selector = new PreviewSizeSelector(
+                new int[]{1920, 1080, 640, 480}, 640 * 480);
+        assertEquals("640x480", select(selector, 1080, 1920));
+    }
+
+    @Test
+    public void smallestSizeWhenNothingIsInBudget() {
+        PreviewSizeSelector selector = new PreviewSizeSelector(
+                new int[]{1920, 1080, 1280, 720, 1440, 1080}, 100);
+        assertEquals("1280x720", select(selector, 1080, 1920));
+        assertEquals("1280x720", select(selector, 1080, 1440));
+    }
+
+    @Test
+    public void noSizes() {
+        assertEquals("none", select(new PreviewSizeSelector(new int[0], Integer.MAX_VALUE),
+                1080, 1920));
+        /* Sizes with a zero side are skipped */
+        assertEquals("none", select(new PreviewSizeSelector(new int[]{1280, 0, 0, 720},
+                Integer.MAX_VALUE), 1080, 1920));
+        /* A trailing width without a height is ignored */
+        assertEquals("640x480", select(new PreviewSizeSelector(new int[]{640, 480, 1280},
+                Integer.MAX_VALUE), 1080, 1920));
+    }
+
+    @Test
+    public void zeroSurfaceStillPicksASize() {
+        PreviewSizeSelector selector = new PreviewSizeSelector(SIZES, Integer.MAX_VALUE);
+        assertEquals("320x240", select(selector, 0, 0));
+    }
+
+    @Test
+    public void answersAreRemembered() {
+        /* The selector keeps the array, so changing it shows whether sizes are scored again */
+        int[] sizes = {1920, 1080, 640, 480};
+        PreviewSizeSelector selector = new PreviewSizeSelector(sizes, Integer.MAX_VALUE);
+        int first = selector.select(1080, 1920);
+        assertEquals(0, first);
+
+        /* Make the other size a much better fit. A remembered answer doesn't change */
+        sizes[2] = 1920;
+        sizes[3] = 1080;
+        sizes[0] = 640;
+        sizes[1] = 480;
+        assertEquals(first, selector.select(1080, 1920));
+
+        /* A new surface size is scored against the changed sizes */
+        assertEquals(2, selector.select(1081, 1920));
+    }
+
+    @Test
+    public void oldestAnswerIsForgotten() {
+        int[] sizes = {1920, 1080, 640, 480};
+        PreviewSizeSelector selector = new PreviewSizeSelector(sizes, Integer.MAX_VALUE);
+        assertEquals(0, selector.select(1080, 1920));
+        sizes[0] = 640;
+        sizes[1] = 480;
+        sizes[2] = 1920;
+        sizes[3] = 1080;
+
+        /* Four more surfaces push the first one out of the memo, so it's scored again */
+        for (int i = 1; i <= 4; i++) {
+            selector.select(1080 + i, 1920);
+        }
+        assertEquals(2, selector.select(1080, 1920));
+    }
+}
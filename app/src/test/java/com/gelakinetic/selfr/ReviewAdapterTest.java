@@ -0,0 +1,87 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that ReviewAdapter keeps pictures newest first, without duplicates, including pictures
+ * saved while the journals were being read
+ */
+public class ReviewAdapterTest {
+
+    private ReviewAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mAdapter = new ReviewAdapter(null, null, 64);
+    }
+
+    /**
+     * @param index Which picture
+     * @return The picture's file
+     */
+    private static File picture(int index) {
+        return new File("/sdcard/Pictures/Selfr/IMG_" + index + ".jpg");
+    }
+
+    /**
+     * Check the pictures in the strip, front first
+     */
+    private void assertPictures(int... indices) {
+        assertEquals(indices.length, mAdapter.getCount());
+        for (int i = 0; i < indices.length; i++) {
+            assertEquals(picture(indices[i]), mAdapter.getItem(i));
+        }
+    }
+
+    @Test
+    public void newestFirst() {
+        mAdapter.setPictures(Arrays.asList(picture(1), picture(2), picture(1), picture(3)));
+        assertPictures(3, 1, 2);
+
+        mAdapter.addPicture(picture(4));
+        mAdapter.addPicture(picture(4));
+        assertPictures(4, 3, 1, 2);
+    }
+
+    @Test
+    public void keepsPicturesSavedWhileLoading() {
+        /* Picture 3 was logged before the journals were read, picture 4 after */
+        mAdapter.addPicture(picture(3));
+        mAdapter.addPicture(picture(4));
+        assertEquals(0, mAdapter.getCount());
+
+        mAdapter.setPictures(Arrays.asList(picture(1), picture(2), picture(3)));
+        assertPictures(4, 3, 2, 1);
+
+        /* Reloading doesn't bring them back twice */
+        mAdapter.setPictures(Arrays.asList(picture(1), picture(2)));
+        assertPictures(2, 1);
+    }
+}
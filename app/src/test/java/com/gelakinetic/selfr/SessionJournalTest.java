@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.hardware.Camera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that SessionJournal reads back what it wrote, keeps one journal per process, and prunes
+ * pictures which were deleted from earlier sessions' journals
+ */
+@SuppressWarnings("deprecation")
+public class SessionJournalTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * @param file The picture
+     * @return A journal entry for it, from the front camera
+     */
+    private static SessionJournal.Entry entry(File file) {
+        return new SessionJournal.Entry(file, 1454472306789L, 12345,
+                Camera.CameraInfo.CAMERA_FACING_FRONT, 90);
+    }
+
+    @Test
+    public void oneJournalPerProcess() throws IOException {
+        File directory = mFolder.newFolder("journals");
+        SessionJournal journal = SessionJournal.getInstance(directory);
+        assertSame(journal, SessionJournal.getInstance(directory));
+        /* Nothing is written until a picture is saved */
+        assertFalse(journal.getFile().exists());
+
+        File picture = mFolder.newFile("IMG_1.jpg");
+        assertTrue(journal.append(entry(picture)));
+        assertTrue(SessionJournal.getInstance(directory).append(entry(picture)));
+
+        List<File> journals = SessionJournal.list(directory);
+        assertEquals(1, journals.size());
+        List<SessionJournal.Entry> entries = SessionJournal.read(journals.get(0));
+        assertEquals(2, entries.size());
+        SessionJournal.Entry read = entries.get(0);
+        assertEquals(picture.getAbsoluteFile(), read.mFile);
+        assertEquals(1454472306789L, read.mCaptureTimeMillis);
+        assertEquals(12345, read.mTriggerLatencyMicros);
+        assertEquals(Camera.CameraInfo.CAMERA_FACING_FRONT, read.mCameraFacing);
+        assertEquals(90, read.mRotation);
+    }
+
+    @Test
+    public void unknownDetailsRoundTrip() throws IOException {
+        /* Pictures salvaged after a crash don't know their camera or trigger latency */
+        File directory = mFolder.newFolder("salvaged");
+        SessionJournal journal = SessionJournal.getInstance(directory);
+        File picture = mFolder.newFile("IMG_salvaged.jpg");
+        assertTrue(journal.append(new SessionJournal.Entry(picture, 1000, SessionJournal.UNKNOWN,
+                SessionJournal.UNKNOWN, 0)));
+
+        List<SessionJournal.Entry> entries = SessionJournal.read(journal.getFile());
+        assertEquals(1, entries.size());
+        assertEquals(SessionJournal.UNKNOWN, entries.get(0).mTriggerLatencyMicros);
+        assertEquals(SessionJournal.UNKNOWN, entries.get(0).mCameraFacing);
+    }
+
+    @Test
+    public void readsOlderJournals() throws IOException {
+        /* Older journals had a sixth column, for pictures saved at half resolution */
+        File journal = mFolder.newFile("session_1.tsv");
+        FileWriter writer = new FileWriter(journal);
+        writer.write("file\tcapture_time_ms\ttrigger_latency_us\tcamera\trotation\tdegraded\n" +
+                "/sdcard/IMG_1.jpg\t1000\t2000\tback\t270\t1\n" +
+                "/sdcard/IMG_2.jpg\t3000\t4000\tfront\t0\t0\n");
+        writer.close();
+
+        List<SessionJournal.Entry> entries = SessionJournal.read(journal);
+        assertEquals(2, entries.size());
+        assertEquals(new File("/sdcard/IMG_1.jpg"), entries.get(0).mFile);
+        assertEquals(Camera.CameraInfo.CAMERA_FACING_BACK, entries.get(0).mCameraFacing);
+        assertEquals(270, entries.get(0).mRotation);
+        assertEquals(3000, entries.get(1).mCaptureTimeMillis);
+    }
+
+    /**
+     * Write an earlier session's journal
+     *
+     * @param directory Where journals are kept
+     * @param name      The journal's name
+     * @param pictures  The pictures in it
+     * @return The journal
+     */
+    private static File writeJournal(File directory, String name, File... pictures)
+            throws IOException {
+        /* The instance is per process, so write lines through a journal in its own directory,
+         * then move the file into place under an earlier session's name
+         */
+        File scratch = new File(directory, "scratch_" + name);
+        SessionJournal journal = SessionJournal.getInstance(scratch);
+        for (File picture : pictures) {
+            assertTrue(journal.append(entry(picture)));
+        }
+        File file = new File(directory, name);
+        assertTrue(journal.getFile().renameTo(file));
+        return file;
+    }
+
+    @Test
+    public void pruneDropsDeletedPictures() throws IOException {
+        File directory = mFolder.newFolder("journals");
+        File kept = mFolder.newFile("IMG_kept.jpg");
+        File deleted = mFolder.newFile("IMG_deleted.jpg");
+        File journal = writeJournal(directory, "session_1000000000000.tsv", kept, deleted);
+        assertTrue(deleted.delete());
+
+        List<SessionJournal.Entry> entries = SessionJournal.prune(journal);
+        assertEquals(1, entries.size());
+        assertEquals(kept.getAbsoluteFile(), entries.get(0).mFile);
+
+        /* The journal itself was rewritten */
+        entries = SessionJournal.read(journal);
+        assertEquals(1, entries.size());
+        assertEquals(kept.getAbsoluteFile(), entries.get(0).mFile);
+        assertFalse(new File(journal.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void pruneDeletesEmptyJournals() throws IOException {
+        File directory = mFolder.newFolder("journals");
+        File deleted = mFolder.newFile("IMG_deleted.jpg");
+        File journal = writeJournal(directory, "session_1000000000000.tsv", deleted);
+        assertTrue(deleted.delete());
+
+        assertTrue(SessionJournal.prune(journal).isEmpty());
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void pruneLeavesCompleteJournalsAlone() throws IOException {
+        File directory = mFolder.newFolder("journals");
+        File kept = mFolder.newFile("IMG_kept.jpg");
+        File journal = writeJournal(directory, "session_1000000000000.tsv", kept);
+        long modified = journal.lastModified();
+        long length = journal.length();
+
+        assertEquals(1, SessionJournal.prune(journal).size());
+        assertEquals(length, journal.length());
+        assertEquals(modified, journal.lastModified());
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks SlidingWindowAverage against a plain average, and that its running sum resynchronizes
+ */
+public class SlidingWindowAverageTest {
+
+    @Test
+    public void averagesTheLastValues() {
+        SlidingWindowAverage window = new SlidingWindowAverage(4);
+        assertEquals(4, window.getSize());
+        assertEquals(0, window.getAverage(), 0);
+
+        /* Until the window fills, the average is over what has been added so far */
+        assertEquals(2, window.add(2), 0);
+        assertEquals(3, window.add(4), 0);
+        assertEquals(4, window.add(6), 0);
+        assertEquals(5, window.add(8), 0);
+
+        /* After that, the oldest value drops out */
+        assertEquals(7, window.add(10), 0);
+        assertEquals(9, window.add(12), 0);
+        assertEquals(9, window.getAverage(), 0);
+
+        window.clear();
+        assertEquals(0, window.getAverage(), 0);
+        assertEquals(1, window.add(1), 0);
+    }
+
+    @Test
+    public void neverAveragesOverLessThanOne() {
+        SlidingWindowAverage window = new SlidingWindowAverage(0);
+        assertEquals(1, window.getSize());
+        assertEquals(3, window.add(3), 0);
+        assertEquals(5, window.add(5), 0);
+    }
+
+    @Test
+    public void resynchronizesTheSum() {
+        /* A huge value swallows the small ones added after it, so once it drops out the running
+         * sum is left at zero. Recalculating the sum once per trip around the window fixes it
+         */
+        SlidingWindowAverage window = new SlidingWindowAverage(4);
+        window.add(1e20f);
+        for (int i = 0; i < 3; i++) {
+            window.add(1);
+        }
+        float average = 0;
+        for (int i = 0; i < 4; i++) {
+            average = window.add(1);
+        }
+        assertEquals(1, average, 0);
+        assertEquals(1, window.getAverage(), 0);
+    }
+}
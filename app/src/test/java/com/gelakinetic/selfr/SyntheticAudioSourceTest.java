@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that SyntheticAudioSource repeats itself for a seed, puts clicks where it says it does,
+ * and ends after its duration
+ */
+public class SyntheticAudioSourceTest {
+
+    private static final int SAMPLE_RATE = AudioCapturer.SAMPLES_PER_SECOND;
+
+    /**
+     * Read everything from a source, in odd sized pieces
+     *
+     * @param source An opened source
+     * @return The samples read
+     */
+    private static short[] readAll(IAudioSource source) {
+        short[] samples = new short[SAMPLE_RATE * 2];
+        int read = 0;
+        int length;
+        while ((length = source.read(samples, read, 333)) > 0) {
+            read += length;
+        }
+        short[] result = new short[read];
+        System.arraycopy(samples, 0, result, 0, read);
+        return result;
+    }
+
+    @Test
+    public void repeatsForASeed() {
+        SyntheticAudioSource source = new SyntheticAudioSource(50, 8000, 20, 250, 1000, 3);
+        assertTrue(source.open(SAMPLE_RATE));
+        short[] first = readAll(source);
+        assertTrue(source.open(SAMPLE_RATE));
+        assertArrayEquals(first, readAll(source));
+
+        SyntheticAudioSource other = new SyntheticAudioSource(50, 8000, 20, 250, 1000, 4);
+        assertTrue(other.open(SAMPLE_RATE));
+        assertFalse(Arrays.equals(first, readAll(other)));
+    }
+
+    @Test
+    public void endsAfterItsDuration() {
+        SyntheticAudioSource source = new SyntheticAudioSource(50, 8000, 20, 250, 1000, 3);
+        assertEquals(-1, source.read(new short[1], 0, 1));
+
+        assertTrue(source.open(SAMPLE_RATE));
+        assertEquals(SAMPLE_RATE, readAll(source).length);
+        assertEquals(-1, source.read(new short[1], 0, 1));
+        assertEquals(SAMPLE_RATE, source.getSampleRate());
+
+        /* The last read is cut short at the end */
+        assertTrue(source.open(SAMPLE_RATE));
+        short[] buffer = new short[SAMPLE_RATE - 10];
+        assertEquals(buffer.length, source.read(buffer, 0, buffer.length));
+        assertEquals(10, source.read(buffer, 0, buffer.length));
+
+        source.close();
+        assertEquals(-1, source.read(buffer, 0, buffer.length));
+    }
+
+    @Test
+    public void clicksWhereItSays() {
+        /* No noise, so every sample is either silence or part of a click */
+        SyntheticAudioSource source = new SyntheticAudioSource(0, 8000, 20, 250, 1000, 3);
+        assertTrue(source.open(SAMPLE_RATE));
+        short[] samples = readAll(source);
+
+        assertEquals(SAMPLE_RATE / 4, source.getClickStart(0));
+        assertEquals(SAMPLE_RATE * 3 / 4, source.getClickStart(2));
+        int clickSamples = 0;
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals("Sample " + i, source.isClick(i), samples[i] != 0);
+            if (samples[i] != 0) {
+                assertEquals(8000, Math.abs(samples[i]));
+                clickSamples++;
+            }
+        }
+        /* Three 20 ms clicks, at 250, 500 and 750 ms */
+        assertEquals(3 * SAMPLE_RATE / 50, clickSamples);
+        assertFalse(source.isClick(source.getClickStart(0) - 1));
+        assertTrue(source.isClick(source.getClickStart(0)));
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that ThumbnailCache keeps its disk cache under its limit by deleting the oldest
+ * thumbnails, counting the ones an earlier run left. Bitmaps are mocks which compress to a fixed
+ * number of bytes
+ */
+public class ThumbnailCacheTest {
+
+    private static final int THUMBNAIL_BYTES = 300;
+    private static final long MAX_DISK_BYTES = 1000;
+    /* Some time in 2016, so each thumbnail can be made older than the next */
+    private static final long OLD_MILLIS = 1454472306000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private ThumbnailCache mCache;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "thumbnails");
+        mCache = new ThumbnailCache(1024 * 1024, mDirectory, MAX_DISK_BYTES);
+    }
+
+    /**
+     * @return A thumbnail which compresses to THUMBNAIL_BYTES bytes
+     */
+    private static Bitmap thumbnail() {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.compress(any(Bitmap.CompressFormat.class), anyInt(), any(OutputStream.class)))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) throws IOException {
+                        ((OutputStream) invocation.getArguments()[2])
+                                .write(new byte[THUMBNAIL_BYTES]);
+                        return true;
+                    }
+                });
+        return bitmap;
+    }
+
+    /**
+     * Cache a thumbnail, and date it so later ones are newer
+     *
+     * @param index Which thumbnail, also how many seconds after OLD_MILLIS it was made
+     * @return The thumbnail
+     */
+    private Bitmap put(int index) {
+        Bitmap bitmap = thumbnail();
+        mCache.put("IMG_" + index, bitmap);
+        File file = new File(mDirectory, "IMG_" + index + ".jpg");
+        if (file.exists()) {
+            assertTrue(file.setLastModified(OLD_MILLIS + index * 1000L));
+        }
+        return bitmap;
+    }
+
+    /**
+     * @return The thumbnails on disk, sorted by name
+     */
+    private String[] onDisk() {
+        String[] names = mDirectory.list();
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void trimsTheOldestThumbnails() {
+        Bitmap first = put(1);
+        put(2);
+        put(3);
+        assertEquals(3, onDisk().length);
+
+        /* The fourth goes over the limit, so the oldest go until it's under three quarters */
+        put(4);
+        assertEquals(Arrays.asList("IMG_3.jpg", "IMG_4.jpg"), Arrays.asList(onDisk()));
+
+        put(5);
+        put(6);
+        assertEquals(Arrays.asList("IMG_5.jpg", "IMG_6.jpg"), Arrays.asList(onDisk()));
+
+        /* Memory has its own limit, so trimmed thumbnails are still there */
+        assertSame(first, mCache.getFromMemory("IMG_1"));
+    }
+
+    @Test
+    public void countsThumbnailsFromAnEarlierRun() throws IOException {
+        assertTrue(mDirectory.mkdirs());
+        for (int i = 0; i < 2; i++) {
+            File old = new File(mDirectory, "IMG_old" + i + ".jpg");
+            FileOutputStream out = new FileOutputStream(old);
+            try {
+                out.write(new byte[THUMBNAIL_BYTES]);
+            } finally {
+                out.close();
+            }
+            assertTrue(old.setLastModified(OLD_MILLIS - 10000 + i));
+        }
+
+        put(1);
+        assertEquals(3, onDisk().length);
+        put(2);
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_2.jpg"), Arrays.asList(onDisk()));
+    }
+
+    @Test
+    public void dropsAThumbnailWhichFailsToCompress() {
+        Bitmap bitmap = mock(Bitmap.class);
+        when(bitmap.compress(any(Bitmap.CompressFormat.class), anyInt(), any(OutputStream.class)))
+                .thenReturn(false);
+        mCache.put("IMG_1", bitmap);
+        assertFalse(new File(mDirectory, "IMG_1.jpg").exists());
+        assertNull(mCache.getFromDisk("IMG_1"));
+        assertSame(bitmap, mCache.getFromMemory("IMG_1"));
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that TraceRecorder writes JSON a trace viewer can parse, keeps the newest events when the
+ * ring wraps around, and escapes names. org.json is only a stub in unit tests, so the JSON is read
+ * back with a small strict parser here
+ */
+public class TraceRecorderTest {
+
+    private static final int PROCESS_ID = 1234;
+    private static final String OUTER = "outer \"quoted\" \\ name";
+    private static final String INNER = "inner\nname";
+    private static final String THREAD_NAME = "Audio \"thread\"";
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final TraceRecorder mTrace = TraceRecorder.getInstance();
+
+    @Before
+    public void setUp() {
+        mTrace.reset();
+        mTrace.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        mTrace.setEnabled(false);
+        mTrace.reset();
+    }
+
+    /**
+     * Export the trace and parse it
+     *
+     * @return The trace's events, in the order they were written
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object> export() throws IOException {
+        File file = mFolder.newFile("trace.json");
+        assertTrue(mTrace.export(file, PROCESS_ID));
+        String json = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        Map<String, Object> trace = (Map<String, Object>) new JsonParser(json).parse();
+        return (List<Object>) trace.get("traceEvents");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void exportsValidJson() throws IOException, InterruptedException {
+        mTrace.begin(OUTER);
+        mTrace.begin(INNER);
+        mTrace.end(INNER);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mTrace.begin(INNER);
+                mTrace.end(INNER);
+            }
+        }, THREAD_NAME);
+        thread.start();
+        thread.join();
+        mTrace.end(OUTER);
+
+        /* Six events, then one name for each of the two threads */
+        List<Object> events = export();
+        assertEquals(8, events.size());
+        String[] names = {OUTER, "innername", "innername", "innername", "innername", OUTER};
+        String[] phases = {"B", "B", "E", "B", "E", "E"};
+        double lastTimestamp = 0;
+        for (int i = 0; i < names.length; i++) {
+            Map<String, Object> event = (Map<String, Object>) events.get(i);
+            assertEquals(names[i], event.get("name"));
+            assertEquals(phases[i], event.get("ph"));
+            assertEquals((double) PROCESS_ID, event.get("pid"));
+            double timestamp = (Double) event.get("ts");
+            assertTrue(timestamp >= lastTimestamp);
+            lastTimestamp = timestamp;
+        }
+        assertEquals((double) thread.getId(), ((Map<String, Object>) events.get(3)).get("tid"));
+
+        List<String> threadNames = new ArrayList<>();
+        for (int i = names.length; i < events.size(); i++) {
+            Map<String, Object> event = (Map<String, Object>) events.get(i);
+            assertEquals("thread_name", event.get("name"));
+            assertEquals("M", event.get("ph"));
+            threadNames.add((String) ((Map<String, Object>) event.get("args")).get("name"));
+        }
+        assertTrue(threadNames.contains(THREAD_NAME));
+        assertTrue(threadNames.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    public void exportsAnEmptyTrace() throws IOException {
+        assertEquals(0, export().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void keepsTheNewestEvents() throws IOException {
+        int overwritten = 100;
+        String[] names = new String[TraceRecorder.CAPACITY + overwritten];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = Integer.toString(i);
+            mTrace.begin(names[i]);
+        }
+
+        /* The oldest events were overwritten, and the rest are in order */
+        List<Object> events = export();
+        assertEquals(TraceRecorder.CAPACITY + 1, events.size());
+        for (int i = 0; i < TraceRecorder.CAPACITY; i++) {
+            assertEquals(names[overwritten + i], ((Map<String, Object>) events.get(i)).get("name"));
+        }
+        assertEquals("thread_name",
+                ((Map<String, Object>) events.get(TraceRecorder.CAPACITY)).get("name"));
+    }
+
+    @Test
+    public void ignoresEventsWhileDisabled() throws IOException {
+        mTrace.setEnabled(false);
+        mTrace.begin(OUTER);
+        mTrace.end(OUTER);
+        assertEquals(0, export().size());
+    }
+
+    @Test
+    public void escapesStrings() {
+        assertEquals("plain", TraceRecorder.escape("plain"));
+        assertEquals("a\\\"b\\\\c", TraceRecorder.escape("a\"b\\c"));
+        assertEquals("tabsandlines", TraceRecorder.escape("tabs\tand\r\nlines"));
+        assertEquals("", TraceRecorder.escape(null));
+    }
+
+    /**
+     * A strict JSON parser, just enough to check the trace. Objects become Maps, arrays Lists,
+     * numbers Doubles. Anything that isn't valid JSON fails the test
+     */
+    private static class JsonParser {
+        private final String mJson;
+        private int mPosition = 0;
+
+        JsonParser(String json) {
+            mJson = json;
+        }
+
+        /**
+         * @return The one value in the JSON
+         */
+        Object parse() {
+            Object value = value();
+            skipWhitespace();
+            if (mPosition != mJson.length()) {
+                fail("Trailing characters at " + mPosition);
+            }
+            return value;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            char c = peek();
+            if (c == '{') {
+                return object();
+            } else if (c == '[') {
+                return array();
+            } else if (c == '"') {
+                return string();
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                return number();
+            } else if (mJson.startsWith("true", mPosition)) {
+                mPosition += 4;
+                return true;
+            } else if (mJson.startsWith("false", mPosition)) {
+                mPosition += 5;
+                return false;
+            } else if (mJson.startsWith("null", mPosition)) {
+                mPosition += 4;
+                return null;
+            }
+            fail("Unexpected '" + c + "' at " + mPosition);
+            return null;
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                mPosition++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                object.put(key, value());
+                skipWhitespace();
+                if (peek() == '}') {
+                    mPosition++;
+                    return object;
+                }
+                expect(',');
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> array = new ArrayList<>();
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                mPosition++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhitespace();
+                if (peek() == ']') {
+                    mPosition++;
+                    return array;
+                }
+                expect(',');
+            }
+        }
+
+        private String string() {
+            expect('"');
+            StringBuilder string = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return string.toString();
+                } else if (c < ' ') {
+                    fail("Control character in a string at " + (mPosition - 1));
+                } else if (c == '\\') {
+                    char escaped = next();
+                    switch (escaped) {
+                        case '"':
+                        case '\\':
+                        case '/':
+                            string.append(escaped);
+                            break;
+                        case 'b':
+                            string.append('\b');
+                            break;
+                        case 'f':
+                            string.append('\f');
+                            break;
+                        case 'n':
+                            string.append('\n');
+                            break;
+                        case 'r':
+                            string.append('\r');
+                            break;
+                        case 't':
+                            string.append('\t');
+                            break;
+                        case 'u':
+                            string.append((char) Integer.parseInt(
+                                    mJson.substring(mPosition, mPosition + 4), 16));
+                            mPosition += 4;
+                            break;
+                        default:
+                            fail("Bad escape at " + (mPosition - 1));
+                    }
+                } else {
+                    string.append(c);
+                }
+            }
+        }
+
+        private Double number() {
+            int start = mPosition;
+            while (mPosition < mJson.length() && "+-0123456789.eE".indexOf(peek()) >= 0) {
+                mPosition++;
+            }
+            String number = mJson.substring(start, mPosition);
+            if (!number.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?")) {
+                fail("Bad number " + number + " at " + start);
+            }
+            return Double.valueOf(number);
+        }
+
+        private void skipWhitespace() {
+            while (mPosition < mJson.length() && " \t\r\n".indexOf(mJson.charAt(mPosition)) >= 0) {
+                mPosition++;
+            }
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                fail("Expected '" + expected + "' at " + (mPosition - 1));
+            }
+        }
+
+        private char peek() {
+            if (mPosition >= mJson.length()) {
+                fail("Unexpected end of JSON");
+            }
+            return mJson.charAt(mPosition);
+        }
+
+        private char next() {
+            char c = peek();
+            mPosition++;
+            return c;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that WavFileSource walks past unknown chunks, rejects formats it can't read, mixes down
+ * and resamples, and reports the end of the data
+ */
+public class WavFileSourceTest {
+
+    private static final int SAMPLE_RATE = AudioCapturer.SAMPLES_PER_SECOND;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Write a little endian number
+     *
+     * @param out   Where to write it
+     * @param value The number
+     * @param bytes How many bytes to write
+     */
+    private static void writeLittleEndian(ByteArrayOutputStream out, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            out.write((int) (value >> (8 * i)) & 0xFF);
+        }
+    }
+
+    /**
+     * Write a chunk, padded to an even size
+     *
+     * @param out  Where to write it
+     * @param id   The four character chunk ID
+     * @param data The chunk's contents
+     */
+    private static void writeChunk(ByteArrayOutputStream out, String id, byte[] data) {
+        out.write(id.getBytes(), 0, 4);
+        writeLittleEndian(out, data.length, 4);
+        out.write(data, 0, data.length);
+        if ((data.length & 1) != 0) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * @param channels      The number of channels
+     * @param sampleRate    The sample rate
+     * @param bitsPerSample The sample size
+     * @return A fmt chunk's contents
+     */
+    private static byte[] format(int channels, int sampleRate, int bitsPerSample) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeLittleEndian(out, 1, 2);
+        writeLittleEndian(out, channels, 2);
+        writeLittleEndian(out, sampleRate, 4);
+        writeLittleEndian(out, sampleRate * channels * bitsPerSample / 8, 4);
+        writeLittleEndian(out, channels * bitsPerSample / 8, 2);
+        writeLittleEndian(out, bitsPerSample, 2);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param samples 16 bit samples
+     * @return A data chunk's contents
+     */
+    private static byte[] data(short... samples) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (short sample : samples) {
+            writeLittleEndian(out, sample, 2);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a WAV file
+     *
+     * @param chunks The chunks after the WAVE ID, each an ID followed by its contents
+     * @return The file
+     * @throws IOException If the file couldn't be written
+     */
+    private File writeWav(Object... chunks) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("WAVE".getBytes(), 0, 4);
+        for (int i = 0; i < chunks.length; i += 2) {
+            writeChunk(body, (String) chunks[i], (byte[]) chunks[i + 1]);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("RIFF".getBytes(), 0, 4);
+        writeLittleEndian(out, body.size(), 4);
+        body.writeTo(out);
+
+        File file = mFolder.newFile();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            out.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    /**
+     * Read everything from a source
+     *
+     * @param source An opened source
+     * @param count  How many samples to expect
+     * @return The samples read
+     */
+    private static short[] readAll(IAudioSource source, int count) {
+        short[] samples = new short[count];
+        int read = 0;
+        while (read < count) {
+            int length = source.read(samples, read, Math.min(3, count - read));
+            assertTrue("Ended after " + read + " samples", length > 0);
+            read += length;
+        }
+        assertEquals(-1, source.read(new short[1], 0, 1));
+        return samples;
+    }
+
+    @Test
+    public void skipsUnknownChunks() throws IOException {
+        /* An odd sized chunk has a pad byte, which must be skipped too */
+        File file = writeWav("LIST", new byte[]{1, 2, 3},
+                "fmt ", format(1, SAMPLE_RATE, 16),
+                "fact", new byte[]{4, 5, 6, 7, 8},
+                "data", data((short) 1, (short) -2, (short) 300, Short.MIN_VALUE));
+        WavFileSource source = new WavFileSource(file);
+        assertTrue(source.open(SAMPLE_RATE));
+        assertArrayEquals(new short[]{1, -2, 300, Short.MIN_VALUE}, readAll(source, 4));
+        source.close();
+
+        /* Opening again starts from the beginning */
+        assertTrue(source.open(SAMPLE_RATE));
+        assertArrayEquals(new short[]{1, -2, 300, Short.MIN_VALUE}, readAll(source, 4));
+        source.close();
+        assertEquals(-1, source.read(new short[1], 0, 1));
+    }
+
+    @Test
+    public void rejectsWhatItCantRead() throws IOException {
+        /* 8 bit samples */
+        assertFalse(new WavFileSource(writeWav("fmt ", format(1, SAMPLE_RATE, 8),
+                "data", new byte[]{1, 2})).open(SAMPLE_RATE));
+        /* 24 bit samples */
+        assertFalse(new WavFileSource(writeWav("fmt ", format(1, SAMPLE_RATE, 24),
+                "data", new byte[]{1, 2, 3})).open(SAMPLE_RATE));
+        /* No channels, or more than a frame can hold */
+        assertFalse(new WavFileSource(writeWav("fmt ", format(0, SAMPLE_RATE, 16),
+                "data", data((short) 1))).open(SAMPLE_RATE));
+        assertFalse(new WavFileSource(writeWav("fmt ", format(33, SAMPLE_RATE, 16),
+                "data", data((short) 1))).open(SAMPLE_RATE));
+        /* Data before the format */
+        assertFalse(new WavFileSource(writeWav("data", data((short) 1),
+                "fmt ", format(1, SAMPLE_RATE, 16))).open(SAMPLE_RATE));
+        /* No data at all */
+        assertFalse(new WavFileSource(writeWav("fmt ", format(1, SAMPLE_RATE, 16)))
+                .open(SAMPLE_RATE));
+        /* Not a WAV file */
+        File text = mFolder.newFile();
+        FileOutputStream stream = new FileOutputStream(text);
+        stream.write("This is not a WAV file".getBytes());
+        stream.close();
+        assertFalse(new WavFileSource(text).open(SAMPLE_RATE));
+        /* Not a file */
+        assertFalse(new WavFileSource(new File(mFolder.getRoot(), "missing.wav"))
+                .open(SAMPLE_RATE));
+    }
+
+    @Test
+    public void mixesDownToMono() throws IOException {
+        File file = writeWav("fmt ", format(2, SAMPLE_RATE, 16),
+                "data", data((short) 100, (short) 200, (short) -1000, (short) 1000,
+                        Short.MAX_VALUE, Short.MAX_VALUE));
+        WavFileSource source = new WavFileSource(file);
+        assertTrue(source.open(SAMPLE_RATE));
+        assertArrayEquals(new short[]{150, 0, Short.MAX_VALUE}, readAll(source, 3));
+    }
+
+    @Test
+    public void resamples() throws IOException {
+        File file = writeWav("fmt ", format(1, SAMPLE_RATE / 2, 16),
+                "data", data((short) 1, (short) 2, (short) 3));
+        WavFileSource source = new WavFileSource(file);
+
+        /* Up, each sample is repeated */
+        assertTrue(source.open(SAMPLE_RATE));
+        assertArrayEquals(new short[]{1, 1, 2, 2, 3, 3}, readAll(source, 6));
+
+        /* Down, every other sample is skipped */
+        assertTrue(source.open(SAMPLE_RATE / 4));
+        assertArrayEquals(new short[]{1, 3}, readAll(source, 2));
+    }
+
+    @Test
+    public void stopsAtATruncatedDataChunk() throws IOException {
+        /* The data chunk claims four samples, but the file ends half way through the third */
+        ByteArrayOutputStream truncated = new ByteArrayOutputStream();
+        truncated.write(data((short) 7, (short) 8), 0, 4);
+        truncated.write(9);
+        File file = writeWav("fmt ", format(1, SAMPLE_RATE, 16), "data", new byte[0]);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes, 0, bytes.length - 4);
+        writeLittleEndian(out, 8, 4);
+        truncated.writeTo(out);
+        FileOutputStream stream = new FileOutputStream(file);
+        out.writeTo(stream);
+        stream.close();
+
+        WavFileSource source = new WavFileSource(file);
+        assertTrue(source.open(SAMPLE_RATE));
+        short[] buffer = new short[4];
+        assertEquals(2, source.read(buffer, 0, 4));
+        assertEquals(7, buffer[0]);
+        assertEquals(8, buffer[1]);
+        assertEquals(-1, source.read(buffer, 0, 4));
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+/**
+ * One second of noise and clicks, split into frames, shared by the benchmarks so that they all
+ * measure the same input
+ */
+class BenchmarkSignal {
+
+    /* One second of audio, every benchmark invocation processes this many samples */
+    static final int SAMPLES = 16000;
+
+    private BenchmarkSignal() {
+    }
+
+    /**
+     * Generate a second of audio with a click in it, split into frames
+     *
+     * @param frameSize The number of samples per frame. SAMPLES must be a multiple of this
+     * @return SAMPLES / frameSize frames of audio
+     */
+    static short[][] frames(int frameSize) {
+        SyntheticAudioSource source = new SyntheticAudioSource(200, 3000, 30, 500, 1000, 42);
+        source.open(SAMPLES);
+        short[][] frames = new short[SAMPLES / frameSize][frameSize];
+        for (short[] frame : frames) {
+            source.read(frame, 0, frameSize);
+        }
+        source.close();
+        return frames;
+    }
+}
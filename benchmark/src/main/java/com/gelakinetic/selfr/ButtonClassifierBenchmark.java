@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost ButtonClassifier adds to every sample, for a given number of buttons. Every
+ * invocation processes one second of audio, so the reported time is in nanoseconds per sample
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(BenchmarkSignal.SAMPLES)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ButtonClassifierBenchmark {
+
+    @Param({"160", "16000"})
+    public int bufferSize;
+
+    @Param({"1", "3", "6"})
+    public int buttons;
+
+    private short[][] mFrames;
+    private ButtonClassifier mButtonClassifier;
+
+    @Setup
+    public void setup() {
+        mFrames = BenchmarkSignal.frames(bufferSize);
+        float[] frequencies = new float[buttons];
+        for (int i = 0; i < buttons; i++) {
+            frequencies[i] = 1000 * (i + 1);
+        }
+        mButtonClassifier = new ButtonClassifier(frequencies, BenchmarkSignal.SAMPLES);
+    }
+
+    @Benchmark
+    public int process() {
+        for (short[] frame : mFrames) {
+            mButtonClassifier.process(frame, bufferSize);
+        }
+        return mButtonClassifier.classify();
+    }
+}
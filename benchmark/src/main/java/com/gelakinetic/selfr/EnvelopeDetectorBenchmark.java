@@ -0,0 +1,103 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every invocation processes one second of audio, in frames of bufferSize samples, so the reported
+ * time is in nanoseconds per sample regardless of the buffer size
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(BenchmarkSignal.SAMPLES)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EnvelopeDetectorBenchmark {
+
+    @Param({"80", "160", "320", "1600", "16000"})
+    public int bufferSize;
+
+    private short[][] mFrames;
+    private float[] mOutputs;
+    private EnvelopeDetector mEnvelopeDetector;
+    private int[] mFixedOutputs;
+    private FixedPointEnvelopeDetector mFixedEnvelopeDetector;
+
+    @Setup
+    public void setup() {
+        mFrames = BenchmarkSignal.frames(bufferSize);
+        mOutputs = new float[bufferSize + 1];
+        mEnvelopeDetector = new EnvelopeDetector();
+        mEnvelopeDetector.findEnvelope(mFrames[0], bufferSize, mOutputs);
+        mFixedOutputs = new int[bufferSize + 1];
+        mFixedEnvelopeDetector = new FixedPointEnvelopeDetector();
+        mFixedEnvelopeDetector.findEnvelope(mFrames[0], bufferSize, mFixedOutputs);
+    }
+
+    @Benchmark
+    public float findEnvelope() {
+        for (short[] frame : mFrames) {
+            mEnvelopeDetector.findEnvelope(frame, bufferSize, mOutputs);
+        }
+        return mOutputs[bufferSize];
+    }
+
+    @Benchmark
+    public float average() {
+        float sum = 0;
+        for (int i = 0; i < mFrames.length; i++) {
+            sum += EnvelopeDetector.average(mOutputs, bufferSize + 1);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int findEnvelopeFixedPoint() {
+        for (short[] frame : mFrames) {
+            mFixedEnvelopeDetector.findEnvelope(frame, bufferSize, mFixedOutputs);
+        }
+        return mFixedOutputs[bufferSize];
+    }
+
+    @Benchmark
+    public long sumFixedPoint() {
+        long sum = 0;
+        for (int i = 0; i < mFrames.length; i++) {
+            sum += FixedPointEnvelopeDetector.sum(mFixedOutputs, bufferSize + 1);
+        }
+        return sum;
+    }
+}
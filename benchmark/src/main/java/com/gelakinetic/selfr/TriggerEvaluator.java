@@ -0,0 +1,463 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.gelakinetic.selfr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a directory of labelled WAV recordings through ButtonDetector, the same way
+ * CameraActivity runs it, and reports how well it finds the button presses. Each recording may
+ * have a sidecar file with the same name and a .labels extension, listing where presses start,
+ * one per line. Integers are sample offsets at 16 kHz, numbers with a decimal point are seconds,
+ * and lines starting with # are ignored. Recordings without labels, like speech, music or street
+ * noise, should have no presses at all.
+ * <p/>
+ * Comma separated values for --alpha, --window and --threshold are swept, so the detector can be
+ * tuned against real data:
+ * <p/>
+ * TriggerEvaluator [options] directory
+ * --mode block|streaming  Detection mode, default block
+ * --hop ms                Frame size in streaming mode, default 10
+ * --window ms[,ms...]     Window size in streaming mode, default 20
+ * --alpha a[,a...]        Envelope filter coefficient, default EnvelopeDetector.ALPHA
+ * --threshold t[,t...]    Threshold, or the minimum threshold when adaptive, default 1000
+ * --adaptive dB           Follow the noise floor with this margin, default off
+ * --fixed-point           Use integer only math
+ * --tolerance ms          How far a detection may be from a label and still match, default 100
+ * --debounce ms           Ignore presses for this long after each one, default 3000
+ * --repeat n              Replay each configuration n times and report the fastest, default 3
+ * --verbose               Print results for every recording, not just the totals
+ */
+class TriggerEvaluator {
+
+    /* The rate AudioCapturer records at, and the rate labels are in */
+    private static final int SAMPLE_RATE = 16000;
+
+    /* The same noise floor tracking CameraActivity uses */
+    private static final float NOISE_FLOOR_QUANTILE = 0.5f;
+    private static final int NOISE_FLOOR_TIME_CONSTANT = 2 * SAMPLE_RATE;
+
+    /* Options, with the app's defaults */
+    private ButtonDetector.Mode mMode = ButtonDetector.Mode.BLOCK;
+    private int mHopMs = 10;
+    private int[] mWindowsMs = {20};
+    private float[] mAlphas = {EnvelopeDetector.ALPHA};
+    private float[] mThresholds = {1000};
+    private float mAdaptiveMarginDb = Float.NaN;
+    private boolean mFixedPoint = false;
+    private int mToleranceMs = 100;
+    private int mDebounceMs = 3000;
+    private int mRepeat = 3;
+    private boolean mVerbose = false;
+
+    /**
+     * A recording, decoded into memory so replaying it only measures detection
+     */
+    static class Recording {
+        final String mName;
+        final short[] mSamples;
+        final long[] mLabels;
+
+        Recording(String name, short[] samples, long[] labels) {
+            mName = name;
+            mSamples = samples;
+            mLabels = labels;
+        }
+    }
+
+    /**
+     * Plays back samples which are already in memory
+     */
+    private static class SampleArraySource implements IAudioSource {
+        private final short[] mSamples;
+        private int mPosition;
+
+        SampleArraySource(short[] samples) {
+            mSamples = samples;
+        }
+
+        @Override
+        public boolean open(int sampleRate) {
+            mPosition = 0;
+            return true;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            int count = Math.min(length, mSamples.length - mPosition);
+            if (count <= 0) {
+                return -1;
+            }
+            System.arraycopy(mSamples, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Tallies detections against labels, for a single recording or a whole directory
+     */
+    static class Score {
+        int mTruePositives;
+        int mFalsePositives;
+        int mFalseNegatives;
+        final ArrayList<Long> mDelays = new ArrayList<>();
+        long mSamples;
+        long mNanos;
+
+        void add(Score other) {
+            mTruePositives += other.mTruePositives;
+            mFalsePositives += other.mFalsePositives;
+            mFalseNegatives += other.mFalseNegatives;
+            mDelays.addAll(other.mDelays);
+            mSamples += other.mSamples;
+            mNanos += other.mNanos;
+        }
+
+        float precision() {
+            int detections = mTruePositives + mFalsePositives;
+            return detections == 0 ? 1 : (float) mTruePositives / detections;
+        }
+
+        float recall() {
+            int labels = mTruePositives + mFalseNegatives;
+            return labels == 0 ? 1 : (float) mTruePositives / labels;
+        }
+
+        String format() {
+            long[] delays = new long[mDelays.size()];
+            for (int i = 0; i < delays.length; i++) {
+                delays[i] = mDelays.get(i);
+            }
+            Arrays.sort(delays);
+            String delay = "      -       -       -";
+            if (delays.length > 0) {
+                long sum = 0;
+                for (long d : delays) {
+                    sum += d;
+                }
+                delay = String.format(Locale.US, "%7d %7d %7d", sum / delays.length,
+                        delays[delays.length / 2], delays[delays.length - 1]);
+            }
+            double samplesPerSecond = mNanos == 0 ? 0 : mSamples * 1e9 / mNanos;
+            return String.format(Locale.US, "%4d %4d %4d %6.3f %6.3f %s %9.2f",
+                    mTruePositives, mFalsePositives, mFalseNegatives, precision(), recall(),
+                    delay, samplesPerSecond / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        TriggerEvaluator evaluator = new TriggerEvaluator();
+        File directory = evaluator.parseArgs(args);
+        if (directory == null || !directory.isDirectory()) {
+            System.err.println("Usage: TriggerEvaluator [options] directory, see the class " +
+                    "documentation for options");
+            System.exit(1);
+            return;
+        }
+        ArrayList<Recording> recordings = loadRecordings(directory);
+        if (recordings.isEmpty()) {
+            System.err.println("No WAV files in " + directory);
+            System.exit(1);
+            return;
+        }
+        evaluator.evaluate(recordings);
+    }
+
+    /**
+     * Parse command line options into this evaluator
+     *
+     * @param args The command line
+     * @return The directory of recordings, or null if there wasn't one
+     */
+    File parseArgs(String[] args) {
+        File directory = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--mode":
+                    mMode = ButtonDetector.Mode.valueOf(args[++i].toUpperCase(Locale.US));
+                    break;
+                case "--hop":
+                    mHopMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--window": {
+                    String[] values = args[++i].split(",");
+                    mWindowsMs = new int[values.length];
+                    for (int j = 0; j < values.length; j++) {
+                        mWindowsMs[j] = Integer.parseInt(values[j].trim());
+                    }
+                    break;
+                }
+                case "--alpha":
+                    mAlphas = parseFloats(args[++i]);
+                    break;
+                case "--threshold":
+                    mThresholds = parseFloats(args[++i]);
+                    break;
+                case "--adaptive":
+                    mAdaptiveMarginDb = Float.parseFloat(args[++i]);
+                    break;
+                case "--fixed-point":
+                    mFixedPoint = true;
+                    break;
+                case "--tolerance":
+                    mToleranceMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--debounce":
+                    mDebounceMs = Integer.parseInt(args[++i]);
+                    break;
+                case "--repeat":
+                    mRepeat = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "--verbose":
+                    mVerbose = true;
+                    break;
+                default:
+                    directory = new File(arg);
+                    break;
+            }
+        }
+        /* Block mode has no window to sweep */
+        if (mMode == ButtonDetector.Mode.BLOCK) {
+            mWindowsMs = new int[]{0};
+        }
+        return directory;
+    }
+
+    /**
+     * @param list Comma separated floats
+     * @return The parsed floats
+     */
+    private static float[] parseFloats(String list) {
+        String[] values = list.split(",");
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = Float.parseFloat(values[i].trim());
+        }
+        return floats;
+    }
+
+    /**
+     * Decode every WAV file in a directory, along with its labels
+     *
+     * @param directory Where the recordings are
+     * @return The recordings, sorted by name
+     * @throws IOException If a labels file can't be read
+     */
+    static ArrayList<Recording> loadRecordings(File directory) throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.toLowerCase(Locale.US).endsWith(".wav");
+            }
+        });
+        ArrayList<Recording> recordings = new ArrayList<>();
+        if (files == null) {
+            return recordings;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            short[] samples = readSamples(file);
+            if (samples == null) {
+                System.err.println("Skipping " + file.getName() + ", not a 16 bit PCM WAV file");
+                continue;
+            }
+            String baseName = file.getName().substring(0, file.getName().length() - 4);
+            recordings.add(new Recording(file.getName(), samples,
+                    readLabels(new File(directory, baseName + ".labels"))));
+        }
+        return recordings;
+    }
+
+    /**
+     * @param file A WAV file
+     * @return All of its samples, resampled to SAMPLE_RATE, or null if it couldn't be read
+     */
+    private static short[] readSamples(File file) {
+        WavFileSource source = new WavFileSource(file);
+        if (!source.open(SAMPLE_RATE)) {
+            return null;
+        }
+        try {
+            short[] samples = new short[SAMPLE_RATE];
+            int length = 0;
+            int samplesRead;
+            while ((samplesRead = source.read(samples, length, samples.length - length)) > 0) {
+                length += samplesRead;
+                if (length == samples.length) {
+                    samples = Arrays.copyOf(samples, samples.length * 2);
+                }
+            }
+            return Arrays.copyOf(samples, length);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * @param file A labels file, which may not exist
+     * @return The sorted sample offsets where presses start, empty if there's no labels file
+     * @throws IOException If the file exists but can't be read
+     */
+    private static long[] readLabels(File file) throws IOException {
+        if (!file.exists()) {
+            return new long[0];
+        }
+        ArrayList<Long> labels = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.contains(".")) {
+                    labels.add(Math.round(Double.parseDouble(line) * SAMPLE_RATE));
+                } else {
+                    labels.add(Long.parseLong(line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long[] array = new long[labels.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = labels.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Replay every recording with every combination of swept options, and print the results
+     *
+     * @param recordings The recordings to replay
+     */
+    private void evaluate(ArrayList<Recording> recordings) {
+        System.out.println(String.format(Locale.US, "%d recordings, %s%s, hop %d ms, " +
+                        "tolerance %d ms, debounce %d ms", recordings.size(),
+                mMode.toString().toLowerCase(Locale.US), mFixedPoint ? " fixed point" : "",
+                mHopMs, mToleranceMs, mDebounceMs));
+        System.out.println("alpha  window threshold   TP   FP   FN   prec    rec " +
+                "delay: mean     p50     max  Msamples/s");
+        for (float alpha : mAlphas) {
+            for (int windowMs : mWindowsMs) {
+                for (float threshold : mThresholds) {
+                    Score total = new Score();
+                    StringBuilder perRecording = new StringBuilder();
+                    for (Recording recording : recordings) {
+                        Score score = evaluate(recording, alpha, windowMs, threshold);
+                        total.add(score);
+                        if (mVerbose) {
+                            perRecording.append(String.format(Locale.US, "    %-27s %s%n",
+                                    recording.mName, score.format()));
+                        }
+                    }
+                    System.out.println(String.format(Locale.US, "%5.3f %7d %9.0f %s",
+                            alpha, windowMs, threshold, total.format()));
+                    System.out.print(perRecording);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replay one recording through a freshly configured detector, and match detections to labels
+     *
+     * @param recording The recording to replay
+     * @param alpha     The envelope filter coefficient
+     * @param windowMs  The window size in streaming mode
+     * @param threshold The threshold, or minimum threshold when adaptive
+     * @return How well the detections matched the labels
+     */
+    Score evaluate(Recording recording, float alpha, int windowMs, float threshold) {
+        int frameSize = (mMode == ButtonDetector.Mode.STREAMING) ?
+                Math.max(1, mHopMs * SAMPLE_RATE / 1000) : SAMPLE_RATE;
+        final ArrayList<Long> detections = new ArrayList<>();
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < mRepeat; i++) {
+            ButtonDetector detector = new ButtonDetector(mMode,
+                    Math.max(1, windowMs * SAMPLE_RATE / 1000), mFixedPoint, alpha);
+            detector.setThreshold(threshold);
+            if (!Float.isNaN(mAdaptiveMarginDb)) {
+                detector.setAdaptiveThreshold(new NoiseFloorEstimator(NOISE_FLOOR_QUANTILE,
+                        NOISE_FLOOR_TIME_CONSTANT), mAdaptiveMarginDb);
+            }
+            AudioReplay replay = new AudioReplay(new SampleArraySource(recording.mSamples),
+                    detector, frameSize);
+            replay.setDebounceSamples((long) mDebounceMs * SAMPLE_RATE / 1000);
+
+            /* Every replay is identical, so only keep the last one's detections */
+            detections.clear();
+            long start = System.nanoTime();
+            replay.run(SAMPLE_RATE, new AudioReplay.Listener() {
+                @Override
+                public void onButtonPressed(long sampleIndex, float level) {
+                    detections.add(sampleIndex);
+                }
+            });
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+
+        Score score = new Score();
+        score.mSamples = recording.mSamples.length;
+        score.mNanos = fastest;
+
+        /* Match each label to the earliest unmatched detection near it */
+        long tolerance = (long) mToleranceMs * SAMPLE_RATE / 1000;
+        boolean[] matched = new boolean[detections.size()];
+        for (long label : recording.mLabels) {
+            boolean found = false;
+            for (int i = 0; i < matched.length; i++) {
+                long delay = detections.get(i) - label;
+                if (!matched[i] && Math.abs(delay) <= tolerance) {
+                    matched[i] = true;
+                    score.mDelays.add(delay);
+                    found = true;
+                    break;
+                }
+            }
+            if (found) {
+                score.mTruePositives++;
+            } else {
+                score.mFalseNegatives++;
+            }
+        }
+        for (boolean m : matched) {
+            if (!m) {
+                score.mFalsePositives++;
+            }
+        }
+        return score;
+    }
+}
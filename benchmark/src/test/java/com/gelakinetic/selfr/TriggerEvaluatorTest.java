@@ -0,0 +1,209 @@
+/**
+ * Copyright 2015 Adam Feinstein
+ * <p/>
+ * This file is part of Selfr.
+ * <p/>
+ * Selfr is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * <p/>
+ * Selfr is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with Selfr.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package com.gelakinetic.selfr;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs TriggerEvaluator over synthetic recordings with clicks at known places, and checks how it
+ * parses labels and scores detections against them
+ */
+public class TriggerEvaluatorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    /**
+     * Write a 16 bit mono WAV file
+     *
+     * @param file    Where to write it
+     * @param samples What to write
+     * @throws IOException If it couldn't be written
+     */
+    private static void writeWav(File file, short[] samples) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + samples.length * 2));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE));
+            out.writeInt(Integer.reverseBytes(SAMPLE_RATE * 2));
+            out.writeShort(Short.reverseBytes((short) 2));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(samples.length * 2));
+            for (short sample : samples) {
+                out.writeShort(Short.reverseBytes(sample));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param source A synthetic source
+     * @return Everything it generates at SAMPLE_RATE
+     */
+    private static short[] generate(SyntheticAudioSource source) {
+        assertTrue(source.open(SAMPLE_RATE));
+        short[] samples = new short[SAMPLE_RATE * 2];
+        int length = 0;
+        int read;
+        while ((read = source.read(samples, length, samples.length - length)) > 0) {
+            length += read;
+        }
+        assertEquals(samples.length, length);
+        return samples;
+    }
+
+    @Before
+    public void writeRecordings() throws IOException {
+        mDirectory = mFolder.newFolder("recordings");
+
+        /* Two seconds with 20 ms clicks at 0.5, 1.0 and 1.5 s. The labels find the first two, one
+         * as a sample offset and one in seconds, miss the third and add one where there's nothing
+         */
+        writeWav(new File(mDirectory, "clicks.wav"),
+                generate(new SyntheticAudioSource(10, 8000, 20, 500, 2000, 1)));
+        FileWriter labels = new FileWriter(new File(mDirectory, "clicks.labels"));
+        labels.write("# Three presses\n8000\n\n1.0\n2.5\n");
+        labels.close();
+
+        /* Two seconds of quiet hiss, with no labels file */
+        writeWav(new File(mDirectory, "quiet.wav"),
+                generate(new SyntheticAudioSource(10, 0, 0, 2000, 2000, 2)));
+
+        /* Not a recording */
+        FileWriter notes = new FileWriter(new File(mDirectory, "notes.wav"));
+        notes.write("Not a WAV file");
+        notes.close();
+    }
+
+    @Test
+    public void loadsRecordingsAndLabels() throws IOException {
+        ArrayList<TriggerEvaluator.Recording> recordings =
+                TriggerEvaluator.loadRecordings(mDirectory);
+        assertEquals(2, recordings.size());
+
+        assertEquals("clicks.wav", recordings.get(0).mName);
+        assertEquals(2 * SAMPLE_RATE, recordings.get(0).mSamples.length);
+        assertArrayEquals(new long[]{8000, 16000, 40000}, recordings.get(0).mLabels);
+
+        assertEquals("quiet.wav", recordings.get(1).mName);
+        assertEquals(0, recordings.get(1).mLabels.length);
+    }
+
+    @Test
+    public void scoresStreamingDetection() throws IOException {
+        TriggerEvaluator evaluator = new TriggerEvaluator();
+        evaluator.parseArgs(new String[]{"--mode", "streaming", "--debounce", "100",
+                "--repeat", "1", mDirectory.getPath()});
+        ArrayList<TriggerEvaluator.Recording> recordings =
+                TriggerEvaluator.loadRecordings(mDirectory);
+
+        TriggerEvaluator.Score clicks = evaluator.evaluate(recordings.get(0),
+                EnvelopeDetector.ALPHA, 20, 1000);
+        assertEquals(2, clicks.mTruePositives);
+        assertEquals(1, clicks.mFalsePositives);
+        assertEquals(1, clicks.mFalseNegatives);
+        assertEquals(2 / 3f, clicks.precision(), 1e-6);
+        assertEquals(2 / 3f, clicks.recall(), 1e-6);
+        /* Streaming finds each click within a millisecond of it starting */
+        assertEquals(2, clicks.mDelays.size());
+        for (long delay : clicks.mDelays) {
+            assertTrue("Delay " + delay, delay >= 0 && delay < SAMPLE_RATE / 1000);
+        }
+        assertEquals(2 * SAMPLE_RATE, clicks.mSamples);
+        assertTrue(clicks.mNanos > 0);
+
+        TriggerEvaluator.Score quiet = evaluator.evaluate(recordings.get(1),
+                EnvelopeDetector.ALPHA, 20, 1000);
+        assertEquals(0, quiet.mTruePositives + quiet.mFalsePositives + quiet.mFalseNegatives);
+        assertEquals(1, quiet.precision(), 0);
+        assertEquals(1, quiet.recall(), 0);
+
+        /* A threshold above the clicks finds nothing */
+        TriggerEvaluator.Score deaf = evaluator.evaluate(recordings.get(0),
+                EnvelopeDetector.ALPHA, 20, 1e9f);
+        assertEquals(0, deaf.mTruePositives);
+        assertEquals(0, deaf.mFalsePositives);
+        assertEquals(3, deaf.mFalseNegatives);
+        assertEquals(0, deaf.recall(), 0);
+    }
+
+    @Test
+    public void scoresBlockDetection() throws IOException {
+        TriggerEvaluator evaluator = new TriggerEvaluator();
+        evaluator.parseArgs(new String[]{"--tolerance", "1000", "--debounce", "100",
+                "--repeat", "1", mDirectory.getPath()});
+        TriggerEvaluator.Score score = evaluator.evaluate(
+                TriggerEvaluator.loadRecordings(mDirectory).get(0), EnvelopeDetector.ALPHA, 0,
+                1000);
+
+        /* Each one second block is decided on its last sample, and the second block holds two
+         * clicks which can only be reported once
+         */
+        assertEquals(2, score.mTruePositives);
+        assertEquals(0, score.mFalsePositives);
+        assertEquals(1, score.mFalseNegatives);
+        assertEquals(Long.valueOf(SAMPLE_RATE - 1 - 8000), score.mDelays.get(0));
+        assertEquals(Long.valueOf(2 * SAMPLE_RATE - 1 - 16000), score.mDelays.get(1));
+    }
+
+    @Test
+    public void addsScores() {
+        TriggerEvaluator.Score a = new TriggerEvaluator.Score();
+        a.mTruePositives = 3;
+        a.mFalsePositives = 1;
+        a.mDelays.add(10L);
+        TriggerEvaluator.Score b = new TriggerEvaluator.Score();
+        b.mTruePositives = 1;
+        b.mFalseNegatives = 4;
+        b.mDelays.add(20L);
+        a.add(b);
+
+        assertEquals(4 / 5f, a.precision(), 1e-6);
+        assertEquals(4 / 8f, a.recall(), 1e-6);
+        assertEquals(2, a.mDelays.size());
+    }
+}